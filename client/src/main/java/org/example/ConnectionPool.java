@@ -0,0 +1,326 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Соединения клиента с сервером, разделенные по назначению.
+ * <p>
+ * Управляющее соединение одно и служит только коротким запросам (LIST, CHECK, QUERY); запросы на нем
+ * отправляются, не дожидаясь ответов на прежние ({@link MultiplexedConnection}), и вызывающий получает
+ * {@link CompletableFuture} ответа. Файлы передаются по соединениям данных: загрузка берет их из пула
+ * и возвращает после себя, так что управляющие запросы никогда не ждут за передачей файла,
+ * а следующая загрузка не тратит время на установку соединения. Простаивающие соединения данных
+ * закрываются через {@link #IDLE_TIMEOUT_MS}, чтобы не занимать места в пределе подключений сервера.
+ * <p>
+ * Каждый вид соединений восстанавливается отдельно: оборванное управляющее соединение открывается заново
+ * при следующем запросе, и запрос, который встретил обрыв на ранее открытом соединении, повторяется
+ * один раз — все управляющие запросы только читают состояние сервера. Соединение данных с ошибкой
+ * закрывается, а не возвращается в пул.
+ */
+final class ConnectionPool {
+    static final int CONNECT_TIMEOUT = 5000; // Время ожидания подключения и ответа, мс
+    static final int MAX_IDLE_DATA = SegmentedDownload.MAX_CONNECTIONS; // Простаивающих соединений данных
+    static final long IDLE_TIMEOUT_MS = 30_000; // Время жизни простаивающего соединения данных
+    private static final Log LOG = Log.root();
+
+    private final String host;
+    private final int port;
+    private final AtomicInteger requestIds;
+    private final Object controlLock = new Object(); // Открытие управляющего соединения
+    private volatile MultiplexedConnection control; // Управляющее соединение, null — не открыто; меняется под controlLock
+    private final Deque<Connection> idleData = new ArrayDeque<>(); // Последнее возвращенное — первое; защищено собой
+    private final ScheduledExecutorService reaper;
+    private volatile boolean closed;
+
+    /**
+     * @param requestIds общий счетчик идентификаторов запросов клиента
+     */
+    ConnectionPool(String host, int port, AtomicInteger requestIds) {
+        this.host = host;
+        this.port = port;
+        this.requestIds = requestIds;
+        this.reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-pool-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaper.scheduleWithFixedDelay(this::closeIdle, IDLE_TIMEOUT_MS, IDLE_TIMEOUT_MS / 2, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Открывает новое соединение и выполняет HELLO. Соединение не принадлежит пулу.
+     */
+    Connection open() throws IOException {
+        return open((byte) 0);
+    }
+
+    /**
+     * Открывает новое соединение и выполняет HELLO с флагами протокола.
+     *
+     * @param flags флаги HELLO, например {@link Protocol#HELLO_MULTIPLEX}
+     */
+    private Connection open(byte flags) throws IOException {
+        if (closed) {
+            throw new IOException("Клиент остановлен");
+        }
+        Socket socket = new Socket(host, port);
+        try {
+            socket.setSoTimeout(CONNECT_TIMEOUT);
+            Connection connection = new Connection(socket);
+            int requestId = requestIds.incrementAndGet();
+            Protocol.Frame ok = connection.call(flags == 0 ? Protocol.hello(requestId)
+                    : Protocol.hello(requestId, flags), Protocol.HELLO_OK);
+            if ((Protocol.readHelloOkFlags(ok.payload) & flags) != flags) {
+                LOG.debug("Сервер не принял флаги соединения {}, ответы придут по порядку", flags);
+            }
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Отправляет запрос по управляющему соединению, при необходимости открывая его.
+     *
+     * @return ответ; завершается {@link ServerError}, если сервер вернул ошибку,
+     *         и другим {@link IOException}, если соединение не удалось восстановить
+     */
+    CompletableFuture<Protocol.Frame> request(int requestId, ByteBuffer request, byte expectedOpcode) {
+        return requestAll(new int[] {requestId}, new ByteBuffer[] {request}, expectedOpcode).get(0);
+    }
+
+    /**
+     * Отправляет пакет запросов по управляющему соединению одной записью, не дожидаясь ответов.
+     * Запрос, который встретил обрыв ранее открытого соединения, повторяется один раз на новом.
+     *
+     * @return ответы в порядке запросов
+     */
+    List<CompletableFuture<Protocol.Frame>> requestAll(int[] requestIds, ByteBuffer[] requests, byte expectedOpcode) {
+        return send(requestIds, requests, expectedOpcode, true);
+    }
+
+    private List<CompletableFuture<Protocol.Frame>> send(int[] requestIds, ByteBuffer[] requests,
+                                                         byte expectedOpcode, boolean retry) {
+        MultiplexedConnection connection;
+        boolean reused;
+        try {
+            synchronized (controlLock) {
+                reused = control != null && control.isOpen();
+                if (!reused) {
+                    connectControl();
+                }
+                connection = control;
+            }
+        } catch (IOException e) {
+            List<CompletableFuture<Protocol.Frame>> failed = new ArrayList<>(requests.length);
+            for (int i = 0; i < requests.length; i++) {
+                failed.add(CompletableFuture.failedFuture(e));
+            }
+            return failed;
+        }
+        List<CompletableFuture<Protocol.Frame>> responses = connection.requestAll(requestIds, requests, expectedOpcode);
+        if (!retry || !reused) {
+            return responses;
+        }
+        List<CompletableFuture<Protocol.Frame>> retried = new ArrayList<>(requests.length);
+        for (int i = 0; i < requests.length; i++) {
+            int index = i;
+            retried.add(responses.get(i).exceptionallyCompose(error -> {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                if (cause instanceof ServerError || !(cause instanceof IOException) || closed) {
+                    return CompletableFuture.failedFuture(cause); // Ответ получен или клиент остановлен
+                }
+                if (connection.isOpen()) {
+                    return CompletableFuture.failedFuture(cause); // Истек только этот запрос, соединение исправно
+                }
+                // Все управляющие запросы только читают состояние сервера, повтор безопасен
+                return send(new int[] {requestIds[index]}, new ByteBuffer[] {requests[index]},
+                        expectedOpcode, false).get(0);
+            }));
+        }
+        return retried;
+    }
+
+    /**
+     * Открывает управляющее соединение, если оно еще не открыто.
+     */
+    void connectControl() throws IOException {
+        synchronized (controlLock) {
+            if (control == null || !control.isOpen()) {
+                Connection connection = open(Protocol.HELLO_MULTIPLEX);
+                try {
+                    control = new MultiplexedConnection(connection);
+                } catch (IOException e) {
+                    connection.close();
+                    throw e;
+                }
+                LOG.info("Successfully connected to server");
+            }
+        }
+    }
+
+    boolean isControlConnected() {
+        MultiplexedConnection connection = control;
+        return connection != null && connection.isOpen();
+    }
+
+    /**
+     * Выдает соединение данных: последнее возвращенное в пул или новое.
+     */
+    Connection acquireData() throws IOException {
+        synchronized (idleData) {
+            Connection connection = idleData.pollFirst();
+            if (connection != null) {
+                return connection;
+            }
+        }
+        return open();
+    }
+
+    /**
+     * Возвращает соединение данных в пул после успешной передачи.
+     * Соединение, на котором передача прервалась, нужно закрыть, а не возвращать.
+     */
+    void releaseData(Connection connection) {
+        connection.idleSince = System.nanoTime();
+        Connection evicted = connection;
+        synchronized (idleData) {
+            if (!closed && idleData.size() < MAX_IDLE_DATA) {
+                idleData.addFirst(connection);
+                evicted = null;
+            }
+        }
+        if (evicted != null) {
+            evicted.close();
+        }
+    }
+
+    private void closeIdle() {
+        long now = System.nanoTime();
+        List<Connection> expired = new ArrayList<>();
+        synchronized (idleData) {
+            // Самые давние соединения в конце очереди
+            while (!idleData.isEmpty() && now - idleData.peekLast().idleSince > IDLE_TIMEOUT_MS * 1_000_000) {
+                expired.add(idleData.pollLast());
+            }
+        }
+        for (Connection connection : expired) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Закрывает управляющее соединение, если оно открыто. Следующий запрос откроет его заново.
+     */
+    void closeControl() {
+        MultiplexedConnection connection = control;
+        if (connection != null) {
+            connection.close(); // Завершает ошибкой запросы, ждущие ответа
+        }
+    }
+
+    void close() {
+        closed = true;
+        reaper.shutdownNow();
+        closeControl();
+        List<Connection> idle;
+        synchronized (idleData) {
+            idle = new ArrayList<>(idleData);
+            idleData.clear();
+        }
+        for (Connection connection : idle) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Ответ ERROR от сервера. Соединение после него остается исправным.
+     */
+    static final class ServerError extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ServerError(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Соединение с сервером, прошедшее HELLO.
+     */
+    static final class Connection implements Closeable {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        private long idleSince; // Время возврата в пул; защищено idleData пула
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        /**
+         * Отправляет кадр запроса и ждет ответ ожидаемого типа.
+         *
+         * @param request кадр запроса
+         * @param expectedOpcode код операции ожидаемого ответа
+         * @return кадр ответа
+         * @throws ServerError если сервер вернул ошибку
+         * @throws IOException если соединение оборвалось или ответ неожиданный
+         */
+        Protocol.Frame call(ByteBuffer request, byte expectedOpcode) throws IOException {
+            send(request);
+            Protocol.Frame response = Protocol.read(in);
+            if (response == null) {
+                throw new EOFException("Сервер закрыл соединение");
+            }
+            if (response.opcode == Protocol.ERROR) {
+                throw new ServerError("Ошибка сервера: " + Protocol.readErrorMessage(response.payload));
+            }
+            if (response.opcode != expectedOpcode) {
+                throw new IOException("Неожиданный ответ сервера: " + response.opcode);
+            }
+            return response;
+        }
+
+        void send(ByteBuffer request) throws IOException {
+            write(request);
+            out.flush();
+        }
+
+        /**
+         * Записывает кадр запроса в буфер вывода, не отправляя его. Позиция буфера не меняется.
+         */
+        void write(ByteBuffer request) throws IOException {
+            out.write(request.array(), request.arrayOffset() + request.position(), request.remaining());
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing connection: {}", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP-сервер на петлевом интерфейсе, через который плеер читает видео, пока оно загружается.
+ * <p>
+ * Плеер открывает адрес из {@link #publish} и читает файл запросами GET с заголовком Range, как с любого
+ * HTTP-сервера. Байты отдаются из загружаемого файла по мере появления на диске: чтение части, которой
+ * еще нет, ждет ее в {@link SegmentedDownload#awaitRange}. Если загрузка не удалась, ответ обрывается.
+ * Каждое подключение обслуживается в своем потоке.
+ * <p>
+ * Чтение, которое упирается в еще не загруженную часть, — обычно перемотка плеера — переносит
+ * {@link #READ_AHEAD} байтов с этой позиции в начало очереди загрузки ({@link SegmentedDownload#prioritize}).
+ */
+final class LocalStreamServer implements Closeable {
+    private static final int READ_SIZE = 64 * 1024; // Порция чтения из файла
+    static final long READ_AHEAD = 2L * SegmentedDownload.SEGMENT_SIZE; // Загружается первым с позиции чтения
+    private static final int MAX_LINE_LENGTH = 8192; // Предел длины строки запроса или заголовка
+    private static final int MAX_HEADERS = 100;
+    private static final Log LOG = Log.root();
+
+    private final ServerSocket serverSocket;
+    private final Map<String, Stream> streams = new ConcurrentHashMap<>(); // Опубликованные видео по идентификатору
+    private final AtomicInteger streamIds = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * Открывает свободный порт на петлевом интерфейсе и принимает подключения в отдельном потоке.
+     */
+    LocalStreamServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::acceptLoop, "local-stream-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Публикует загружаемый файл. Прежняя публикация того же файла снимается.
+     *
+     * @param file файл, который появится по окончании загрузки
+     * @param fileSize полный размер файла
+     * @param download загрузка файла; чтение ждет ее
+     * @return адрес для плеера
+     */
+    String publish(Path file, long fileSize, SegmentedDownload download) {
+        streams.values().removeIf(stream -> stream.file.equals(file));
+        String id = Integer.toString(streamIds.incrementAndGet());
+        streams.put(id, new Stream(file, fileSize, download));
+        String name = URLEncoder.encode(file.getFileName().toString(), StandardCharsets.UTF_8).replace("+", "%20");
+        return "http://" + serverSocket.getInetAddress().getHostAddress() + ":" + serverSocket.getLocalPort()
+                + "/" + id + "/" + name;
+    }
+
+    /**
+     * Снимает публикацию, когда плеер перестал читать адрес. Новые запросы по нему получат 404,
+     * начатые ответы дописываются.
+     *
+     * @param url адрес, который вернул {@link #publish}
+     */
+    void unpublish(String url) {
+        String[] path = URI.create(url).getPath().split("/");
+        if (path.length > 1) {
+            streams.remove(path[1]);
+        }
+    }
+
+    /**
+     * Снимает публикацию загрузки, которая не удалась: недостающие части файла плеер уже не получит.
+     */
+    void unpublish(SegmentedDownload download) {
+        streams.values().removeIf(stream -> stream.download == download);
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread thread = new Thread(() -> serve(socket), "local-stream");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    LOG.warn("Ошибка при принятии подключения плеера: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Обслуживает запросы одного подключения, пока плеер держит его открытым.
+     */
+    private void serve(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), READ_SIZE);
+            while (!closed) {
+                String requestLine = readLine(in);
+                if (requestLine == null) {
+                    return;
+                }
+                if (requestLine.isEmpty()) {
+                    continue;
+                }
+                if (!handle(out, requestLine, readHeaders(in))) {
+                    return;
+                }
+            }
+        } catch (SocketException | EOFException e) {
+            // Плеер закрыл соединение, например при перемотке
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            LOG.debug("Поток для плеера прерван: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Обрабатывает один запрос.
+     *
+     * @return true, если соединение можно использовать для следующего запроса
+     */
+    private boolean handle(OutputStream out, String requestLine, Map<String, String> headers)
+            throws IOException, InterruptedException {
+        String[] parts = requestLine.split(" ");
+        if (parts.length != 3 || !parts[2].startsWith("HTTP/1.")) {
+            sendStatus(out, "400 Bad Request", false);
+            return false;
+        }
+        boolean keepAlive = "HTTP/1.1".equals(parts[2])
+                ? !"close".equalsIgnoreCase(headers.get("connection"))
+                : "keep-alive".equalsIgnoreCase(headers.get("connection"));
+        String method = parts[0];
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            sendStatus(out, "405 Method Not Allowed", keepAlive);
+            return keepAlive;
+        }
+        String[] path = parts[1].split("/");
+        Stream stream = path.length > 1 ? streams.get(path[1]) : null;
+        if (stream == null) {
+            sendStatus(out, "404 Not Found", keepAlive);
+            return keepAlive;
+        }
+
+        long offset = 0;
+        long length = stream.fileSize;
+        StringBuilder response = new StringBuilder(256);
+        String rangeHeader = headers.get("range");
+        long[] range = rangeHeader == null ? null : parseRange(rangeHeader, stream.fileSize);
+        if (range == null) {
+            response.append("HTTP/1.1 200 OK\r\n");
+        } else if (range[1] == 0) {
+            response.append("HTTP/1.1 416 Range Not Satisfiable\r\n")
+                    .append("Content-Range: bytes */").append(stream.fileSize).append("\r\n")
+                    .append("Content-Length: 0\r\n");
+            finish(out, response, keepAlive);
+            return keepAlive;
+        } else {
+            offset = range[0];
+            length = range[1];
+            response.append("HTTP/1.1 206 Partial Content\r\n")
+                    .append("Content-Range: bytes ").append(offset).append('-').append(offset + length - 1)
+                    .append('/').append(stream.fileSize).append("\r\n");
+        }
+        response.append("Content-Length: ").append(length).append("\r\n")
+                .append("Content-Type: ").append(contentType(stream.file)).append("\r\n")
+                .append("Accept-Ranges: bytes\r\n");
+        finish(out, response, keepAlive);
+
+        if ("GET".equals(method)) {
+            send(out, stream, offset, length);
+        }
+        return keepAlive;
+    }
+
+    /**
+     * Отправляет диапазон файла, дожидаясь каждой порции на диске.
+     */
+    private static void send(OutputStream out, Stream stream, long offset, long length)
+            throws IOException, InterruptedException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+        try (FileChannel file = stream.download.openForReading()) {
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                int part = (int) Math.min(READ_SIZE, end - position);
+                if (!stream.download.isWritten(position, part)) {
+                    stream.download.prioritize(position, READ_AHEAD);
+                    stream.download.awaitRange(position, part);
+                }
+                buffer.clear().limit(part);
+                while (buffer.hasRemaining()) {
+                    if (file.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException("Файл укоротился");
+                    }
+                }
+                out.write(buffer.array(), 0, part); // Не меньше буфера потока: уходит в сокет сразу
+                position += part;
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Разбирает заголовок Range для одного диапазона байтов. Несколько диапазонов и неверный синтаксис
+     * игнорируются: тогда отдается весь файл.
+     *
+     * @return {смещение, длина}, длина 0 для неудовлетворимого запроса или null, если заголовок игнорируется
+     */
+    static long[] parseRange(String header, long fileSize) {
+        String value = header.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6) || value.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = value.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // Суффикс: последние N байтов
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || fileSize == 0) {
+                    return new long[] {0, 0};
+                }
+                long length = Math.min(suffix, fileSize);
+                return new long[] {fileSize - length, length};
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? fileSize - 1 : Math.min(Long.parseLong(last), fileSize - 1);
+            if (start < 0 || (!last.isEmpty() && Long.parseLong(last) < start)) {
+                return null;
+            }
+            if (start >= fileSize) {
+                return new long[] {0, 0};
+            }
+            return new long[] {start, end - start + 1};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String contentType(Path file) {
+        String lower = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        if (lower.endsWith(".mp4")) return "video/mp4";
+        if (lower.endsWith(".mkv")) return "video/x-matroska";
+        if (lower.endsWith(".avi")) return "video/x-msvideo";
+        if (lower.endsWith(".mov")) return "video/quicktime";
+        if (lower.endsWith(".flv")) return "video/x-flv";
+        return "application/octet-stream";
+    }
+
+    private static void sendStatus(OutputStream out, String status, boolean keepAlive) throws IOException {
+        finish(out, new StringBuilder(128).append("HTTP/1.1 ").append(status).append("\r\n")
+                .append("Content-Length: 0\r\n"), keepAlive);
+    }
+
+    private static void finish(OutputStream out, StringBuilder response, boolean keepAlive) throws IOException {
+        response.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+        out.write(response.toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    /**
+     * Читает заголовки запроса до пустой строки. Имена приводятся к нижнему регистру.
+     */
+    private static Map<String, String> readHeaders(InputStream in) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                if (headers.size() >= MAX_HEADERS) {
+                    throw new IOException("Слишком много заголовков");
+                }
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+        }
+        if (line == null) {
+            throw new EOFException();
+        }
+        return headers;
+    }
+
+    /**
+     * Читает строку, завершенную CRLF или LF.
+     *
+     * @return строка без завершающих символов или null в конце потока
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                int length = line.size();
+                byte[] bytes = line.toByteArray();
+                if (length > 0 && bytes[length - 1] == '\r') {
+                    length--;
+                }
+                return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+            }
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Слишком длинная строка запроса");
+            }
+            line.write(b);
+        }
+        if (line.size() > 0) {
+            throw new EOFException();
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            LOG.warn("Ошибка при остановке локального потока: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Опубликованный файл.
+     */
+    private static final class Stream {
+        final Path file;
+        final long fileSize;
+        final SegmentedDownload download;
+
+        Stream(Path file, long fileSize, SegmentedDownload download) {
+            this.file = file;
+            this.fileSize = fileSize;
+            this.download = download;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Поиск индекса MP4 (атома {@code moov}) по заголовкам атомов верхнего уровня.
+ * <p>
+ * Без индекса плеер не может начать воспроизведение MP4. В файлах, подготовленных для потоковой
+ * передачи, он лежит перед данными ({@code mdat}) и загружается вместе с началом файла; во многих
+ * других — сразу после данных, в конце файла, и его нужно загрузить раньше середины.
+ */
+final class Mp4Index {
+    static final int PROBE_SIZE = 64 * 1024; // Начало файла, в котором ищутся заголовки атомов
+
+    private Mp4Index() {
+    }
+
+    /**
+     * Находит диапазон файла с индексом, читая первые {@link #PROBE_SIZE} байтов файла.
+     *
+     * @param channel файл, начало которого уже на диске
+     * @param fileSize полный размер файла
+     * @see #locate(ByteBuffer, long)
+     */
+    static long[] locate(FileChannel channel, long fileSize) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate((int) Math.min(PROBE_SIZE, fileSize));
+        while (head.hasRemaining()) {
+            if (channel.read(head, head.position()) < 0) {
+                break;
+            }
+        }
+        return locate(head.flip(), fileSize);
+    }
+
+    /**
+     * Находит диапазон файла с индексом по заголовкам атомов в начале файла.
+     *
+     * @param head начало файла между position и limit, обычно {@link #PROBE_SIZE} байтов
+     * @param fileSize размер файла
+     * @return {смещение, длина} индекса или null, если файл не MP4 или заголовки индекса нет в начале файла;
+     *         если индекс лежит после данных, его длина неизвестна, и диапазон продолжается до конца файла
+     */
+    static long[] locate(ByteBuffer head, long fileSize) {
+        ByteBuffer buffer = head.slice();
+        long position = 0;
+        boolean first = true;
+        while (position + 8 <= buffer.limit()) {
+            int at = (int) position;
+            long size = Integer.toUnsignedLong(buffer.getInt(at));
+            String type = new String(new byte[] {buffer.get(at + 4), buffer.get(at + 5), buffer.get(at + 6),
+                    buffer.get(at + 7)}, StandardCharsets.ISO_8859_1);
+            int header = 8;
+            if (size == 1) {
+                if (position + 16 > buffer.limit()) {
+                    return null;
+                }
+                size = buffer.getLong(at + 8);
+                header = 16;
+            } else if (size == 0) {
+                size = fileSize - position; // Атом до конца файла
+            }
+            if (first && !"ftyp".equals(type) || size < header || position + size > fileSize) {
+                return null; // Не MP4 или поврежденный заголовок
+            }
+            first = false;
+            if ("moov".equals(type)) {
+                return new long[] {position, size};
+            }
+            if ("mdat".equals(type)) {
+                long after = position + size;
+                return after < fileSize ? new long[] {after, fileSize - after} : null;
+            }
+            position += size;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,197 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Управляющее соединение, по которому запросы отправляются, не дожидаясь ответов на прежние.
+ * <p>
+ * Ответы читает отдельный поток и сопоставляет их с запросами по идентификатору, завершая
+ * ожидающие {@link CompletableFuture}. Пакет из сотен запросов CHECK поэтому стоит одного
+ * круга до сервера, а не сотни. Если сервер принял {@link Protocol#HELLO_MULTIPLEX}, он отвечает
+ * на короткие запросы в любом порядке; сервер без этого режима отвечает по порядку, и сопоставление
+ * по идентификатору работает так же.
+ * <p>
+ * Обрыв соединения закрывает его и завершает ошибкой все ожидающие запросы. Запрос, на который
+ * ответ не пришел за {@link ConnectionPool#CONNECT_TIMEOUT}, завершается ошибкой один; соединение
+ * закрывается по таймауту, только если с отправки запроса от сервера не пришло ни одного кадра.
+ */
+final class MultiplexedConnection implements Closeable {
+    private static final Log LOG = Log.root();
+
+    private final ConnectionPool.Connection connection;
+    private final Map<Integer, Pending> pending = new ConcurrentHashMap<>(); // Запросы без ответа по идентификатору
+    private final Object writeLock = new Object(); // Кадры запросов не перемежаются
+    private final long timeoutMs; // Время ожидания ответа на запрос
+    private volatile IOException failure; // Причина закрытия, null — соединение открыто
+    private volatile long lastReceived = System.nanoTime(); // Время получения последнего кадра
+
+    /**
+     * @param connection соединение, прошедшее HELLO; переходит во владение этого объекта
+     */
+    MultiplexedConnection(ConnectionPool.Connection connection) throws IOException {
+        this(connection, ConnectionPool.CONNECT_TIMEOUT);
+    }
+
+    /**
+     * @param connection соединение, прошедшее HELLO; переходит во владение этого объекта
+     * @param timeoutMs время ожидания ответа на запрос, мс
+     */
+    MultiplexedConnection(ConnectionPool.Connection connection, long timeoutMs) throws IOException {
+        this.connection = connection;
+        this.timeoutMs = timeoutMs;
+        connection.socket.setSoTimeout(0); // Ожидание ответа ограничивает таймер запроса
+        Thread reader = new Thread(this::readResponses, "control-connection-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    boolean isOpen() {
+        return failure == null;
+    }
+
+    /**
+     * Отправляет запросы одной записью в сокет, не дожидаясь ответов.
+     *
+     * @param requestIds идентификаторы запросов, по одному на кадр
+     * @param requests кадры запросов
+     * @param expectedOpcode код операции ожидаемых ответов
+     * @return ответы в порядке запросов; завершаются {@link ConnectionPool.ServerError}, если сервер
+     *         вернул ошибку, {@link SocketTimeoutException}, если ответ не пришел вовремя, и другим
+     *         {@link IOException}, если соединение оборвалось
+     */
+    List<CompletableFuture<Protocol.Frame>> requestAll(int[] requestIds, ByteBuffer[] requests, byte expectedOpcode) {
+        List<CompletableFuture<Protocol.Frame>> responses = new ArrayList<>(requests.length);
+        Pending[] sent = new Pending[requests.length];
+        for (int i = 0; i < requests.length; i++) {
+            CompletableFuture<Protocol.Frame> response = new CompletableFuture<>();
+            sent[i] = new Pending(expectedOpcode, response);
+            pending.put(requestIds[i], sent[i]);
+            responses.add(response);
+        }
+        long sentAt = System.nanoTime();
+        synchronized (writeLock) {
+            try {
+                IOException closedBy = failure;
+                if (closedBy != null) {
+                    throw closedBy;
+                }
+                for (ByteBuffer request : requests) {
+                    connection.write(request);
+                }
+                connection.out.flush();
+            } catch (IOException e) {
+                fail(e);
+                return responses;
+            }
+        }
+        CompletableFuture.delayedExecutor(timeoutMs, TimeUnit.MILLISECONDS)
+                .execute(() -> expire(requestIds, sent, sentAt));
+        return responses;
+    }
+
+    /**
+     * Завершает ошибкой запросы пакета, не получившие ответа за время ожидания. Если с отправки пакета
+     * сервер не прислал ни одного кадра, соединение считается зависшим и закрывается; иначе сервер
+     * отвечает на другие запросы, и соединение остается открытым для них.
+     */
+    private void expire(int[] requestIds, Pending[] sent, long sentAt) {
+        boolean silent = lastReceived - sentAt < 0;
+        for (int i = 0; i < sent.length; i++) {
+            if (sent[i].response.isDone()) {
+                continue;
+            }
+            SocketTimeoutException timeout = new SocketTimeoutException("Сервер не ответил за " + timeoutMs + " мс");
+            if (silent) {
+                fail(timeout);
+                return;
+            }
+            if (pending.remove(requestIds[i], sent[i])) {
+                LOG.warn("Сервер не ответил на запрос {} за {} мс", requestIds[i], timeoutMs);
+                sent[i].response.completeExceptionally(timeout);
+            }
+        }
+    }
+
+    private void readResponses() {
+        try {
+            Protocol.Frame frame;
+            while ((frame = Protocol.read(connection.in)) != null) {
+                lastReceived = System.nanoTime();
+                Pending request = pending.remove(frame.requestId);
+                if (request == null) {
+                    LOG.debug("Ответ на неизвестный запрос: {}", frame.requestId);
+                } else if (frame.opcode == Protocol.ERROR) {
+                    request.response.completeExceptionally(new ConnectionPool.ServerError(
+                            "Ошибка сервера: " + Protocol.readErrorMessage(frame.payload)));
+                } else if (frame.opcode != request.expectedOpcode) {
+                    throw new IOException("Неожиданный ответ сервера: " + frame.opcode);
+                } else {
+                    request.response.complete(frame);
+                }
+            }
+            throw new EOFException("Сервер закрыл соединение");
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Закрывает соединение и завершает ошибкой все ожидающие запросы, включая те,
+     * что успели зарегистрироваться после закрытия.
+     */
+    private void fail(IOException cause) {
+        if (failure == null) {
+            failure = cause;
+            if (!(cause instanceof Closed)) {
+                LOG.warn("Connection lost: {}", cause.getMessage());
+            }
+        }
+        connection.close();
+        IOException closedBy = failure;
+        for (Iterator<Pending> iterator = pending.values().iterator(); iterator.hasNext(); ) {
+            Pending request = iterator.next();
+            iterator.remove();
+            request.response.completeExceptionally(closedBy);
+        }
+    }
+
+    @Override
+    public void close() {
+        fail(new Closed());
+    }
+
+    /**
+     * Запрос, ждущий ответа.
+     */
+    private static final class Pending {
+        final byte expectedOpcode;
+        final CompletableFuture<Protocol.Frame> response;
+
+        Pending(byte expectedOpcode, CompletableFuture<Protocol.Frame> response) {
+            this.expectedOpcode = expectedOpcode;
+            this.response = response;
+        }
+    }
+
+    /**
+     * Соединение закрыто клиентом.
+     */
+    private static final class Closed extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        Closed() {
+            super("Соединение закрыто");
+        }
+    }
+}
@@ -1,42 +1,68 @@
 package org.example;
 
 import java.io.*;
-import java.net.Socket;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class NetworkManager {
     private static final String SERVER_HOST = "localhost";
     private static final int SERVER_PORT = 8080;
     private static final String TEMP_DIR = "temp";
-    private static final int CONNECTION_TIMEOUT = 5000; // 5 секунд
+    private static final int SUBSCRIPTION_RETRY_DELAY = 5000; // Пауза перед повторной подпиской, мс
+    static final long DEFAULT_STREAM_BUFFER = 8L * 1024 * 1024; // Начало файла, после которого начинается воспроизведение
+    private static final Log LOG = Log.root();
 
     private final ExecutorService executorService;
-    private Socket socket;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
-    private final AtomicBoolean isConnected = new AtomicBoolean(false);
-    private final Object connectionLock = new Object();
+    private final AtomicInteger requestIds = new AtomicInteger();
+    private final ConnectionPool pool = new ConnectionPool(SERVER_HOST, SERVER_PORT, requestIds); // Соединения по назначению
+    private final Map<Path, LocalHash> localHashes = new ConcurrentHashMap<>(); // Хэши файлов в temp
+    private final TreeSet<String> knownVideos = new TreeSet<>(); // Видео версии listVersion; защищено собой
+    private long catalogId; // Каталог сервера, к которому относится listVersion; защищено knownVideos
+    private long listVersion = -1; // Версия списка, известная клиенту, -1 — список еще не получен
+    private volatile boolean running = true;
+    private volatile ConnectionPool.Connection subscriptionConnection; // Соединение подписки на изменения каталога
+    private volatile long streamBuffer = DEFAULT_STREAM_BUFFER;
+    private LocalStreamServer streamServer; // Открывается при первом воспроизведении во время загрузки; защищено this
+    private SegmentedDownload streamDownload; // Последняя загрузка для воспроизведения; защищено this
 
     public NetworkManager() {
         this.executorService = Executors.newCachedThreadPool();
         createTempDirectory();
-        connect(() -> {}, e -> System.err.println("Initial connection failed: " + e.getMessage()));
+        connect(() -> {}, e -> LOG.warn("Initial connection failed: {}", e.getMessage()));
     }
 
+    /**
+     * Создает временную директорию, удаляя прежние копии видео. Прерванные загрузки
+     * ({@link SegmentedDownload#isResumable}) остаются, чтобы их можно было продолжить.
+     */
     private void createTempDirectory() {
         try {
             Path tempDir = Paths.get(TEMP_DIR);
             if (Files.exists(tempDir)) {
                 Files.walk(tempDir)
                         .sorted(java.util.Comparator.reverseOrder())
+                        .filter(path -> !SegmentedDownload.isResumable(path))
                         .map(Path::toFile)
-                        .forEach(File::delete);
+                        .forEach(File::delete); // Непустая директория не удаляется
             }
             Files.createDirectories(tempDir);
         } catch (IOException e) {
@@ -44,144 +70,554 @@ public class NetworkManager {
         }
     }
 
+    /**
+     * Проверяет, открыто ли управляющее соединение.
+     */
     public boolean isConnected() {
-        return isConnected.get() && socket != null && !socket.isClosed() && socket.isConnected();
+        return pool.isControlConnected();
     }
 
     public void connect(Runnable onSuccess, Consumer<Exception> onError) {
-        synchronized (connectionLock) {
-            if (isConnected()) {
+        if (isConnected()) {
+            onSuccess.run();
+            return;
+        }
+        executorService.submit(() -> {
+            try {
+                pool.connectControl();
                 onSuccess.run();
-                return;
+            } catch (IOException e) {
+                LOG.warn("Connection failed: {}", e.getMessage());
+                onError.accept(e);
             }
+        });
+    }
 
-            executorService.submit(() -> {
-                try {
-                    closeConnection();
-
-                    socket = new Socket(SERVER_HOST, SERVER_PORT);
-                    socket.setSoTimeout(CONNECTION_TIMEOUT);
+    public void requestVideoList(Consumer<List<String>> onSuccess, Consumer<Exception> onError) {
+        listVideos(onSuccess).whenComplete((videos, error) -> {
+            if (error != null) {
+                onError.accept(failure(error));
+            }
+        });
+    }
 
-                    out = new ObjectOutputStream(socket.getOutputStream());
-                    in = new ObjectInputStream(socket.getInputStream());
+    /**
+     * Запрашивает список видео. Сервер присылает только изменения после известной клиенту версии.
+     *
+     * @return список видео; завершается в пуле потоков клиента
+     */
+    public CompletableFuture<List<String>> requestVideoList() {
+        return listVideos(videos -> {});
+    }
 
-                    isConnected.set(true);
-                    System.out.println("Successfully connected to server");
-                    onSuccess.run();
-                } catch (IOException e) {
-                    System.err.println("Connection failed: " + e.getMessage());
-                    isConnected.set(false);
-                    onError.accept(e);
-                }
-            });
+    /**
+     * @param onSuccess получает копию списка под блокировкой списка, чтобы копии и изменения
+     *                  доходили до получателя по порядку версий
+     */
+    private CompletableFuture<List<String>> listVideos(Consumer<List<String>> onSuccess) {
+        long knownCatalog;
+        long knownVersion;
+        synchronized (knownVideos) {
+            knownCatalog = catalogId;
+            knownVersion = listVersion;
         }
+        LOG.debug("Отправка команды LIST на сервер...");
+        // Сервер присылает только изменения после известной версии, при ее отсутствии — весь список
+        return control(requestId -> Protocol.listSince(requestId, knownCatalog, knownVersion, true),
+                Protocol.LIST_CHANGES).thenApplyAsync(response -> {
+                    Protocol.ListChanges changes;
+                    try {
+                        changes = Protocol.readListChanges(response.payload);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                    synchronized (knownVideos) {
+                        applyChanges(changes);
+                        List<String> videos = new ArrayList<>(knownVideos);
+                        LOG.debug("Получен ответ от сервера: {} видео (добавлено: {}, удалено: {})",
+                                videos.size(), changes.added.size(), changes.removed.size());
+                        onSuccess.accept(videos);
+                        return videos;
+                    }
+                }, executorService).whenComplete((videos, error) -> {
+                    if (error != null) {
+                        LOG.warn("Ошибка при запросе списка видео: {}", failure(error).getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Запрашивает страницу списка видео с фильтром и сортировкой.
+     *
+     * @param filter начало имени или подстрока; пустая строка — без фильтра
+     * @param substring искать подстроку в любом месте имени, а не только в начале
+     * @param sort ключ сортировки: {@link Protocol#SORT_NAME}, {@link Protocol#SORT_SIZE} или {@link Protocol#SORT_MODIFIED}
+     * @param descending сортировать по убыванию
+     * @param offset номер первого видео страницы среди совпадений
+     * @param limit размер страницы
+     */
+    public void queryVideos(String filter, boolean substring, byte sort, boolean descending, int offset, int limit,
+                            Consumer<Protocol.QueryResult> onSuccess, Consumer<Exception> onError) {
+        queryVideos(filter, substring, sort, descending, offset, limit).whenComplete((result, error) -> {
+            if (error != null) {
+                onError.accept(failure(error));
+            } else {
+                onSuccess.accept(result);
+            }
+        });
     }
 
-    private void closeConnection() {
+    /**
+     * Запрашивает страницу списка видео с фильтром и сортировкой. Запросы нескольких страниц
+     * уходят на сервер сразу, не дожидаясь ответов на предыдущие.
+     *
+     * @return страница; завершается в пуле потоков клиента
+     * @see #queryVideos(String, boolean, byte, boolean, int, int, Consumer, Consumer)
+     */
+    public CompletableFuture<Protocol.QueryResult> queryVideos(String filter, boolean substring, byte sort,
+                                                               boolean descending, int offset, int limit) {
+        return control(requestId -> Protocol.query(requestId, filter, substring, sort, descending, offset, limit),
+                Protocol.QUERY_RESULT).thenApplyAsync(response -> {
+                    Protocol.QueryResult result = Protocol.readQueryResult(response.payload);
+                    LOG.debug("Получена страница списка с {}: {} из {} видео", offset, result.names.length, result.total);
+                    return result;
+                }, executorService).whenComplete((result, error) -> {
+                    if (error != null) {
+                        LOG.warn("Ошибка при запросе страницы списка видео: {}", failure(error).getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Отправляет запрос по управляющему соединению из пула потоков клиента, чтобы открытие
+     * соединения не задерживало вызывающий поток. Ответ завершается в потоке чтения ответов:
+     * разбирать его нужно в пуле ({@code thenApplyAsync(..., executorService)}).
+     *
+     * @param request создает кадр запроса по его идентификатору
+     */
+    private CompletableFuture<Protocol.Frame> control(IntFunction<ByteBuffer> request, byte expectedOpcode) {
+        return CompletableFuture.supplyAsync(() -> {
+            int requestId = requestIds.incrementAndGet();
+            return pool.request(requestId, request.apply(requestId), expectedOpcode);
+        }, executorService).thenCompose(Function.identity());
+    }
+
+    /**
+     * Извлекает причину из ошибки, которой завершился {@link CompletableFuture}.
+     */
+    private static Exception failure(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return cause instanceof Exception ? (Exception) cause : new IOException(cause);
+    }
+
+    /**
+     * Ждет ответ управляющего запроса в потоке пула.
+     *
+     * @throws IOException если запрос завершился ошибкой ввода-вывода или ошибкой сервера
+     */
+    private static Protocol.Frame await(CompletableFuture<Protocol.Frame> response) throws IOException {
         try {
-            if (out != null) out.close();
-            if (in != null) in.close();
-            if (socket != null && !socket.isClosed()) socket.close();
-        } catch (IOException e) {
-            System.err.println("Error closing connection: " + e.getMessage());
-        } finally {
-            out = null;
-            in = null;
-            socket = null;
-            isConnected.set(false);
+            return response.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
         }
     }
 
-    public void requestVideoList(Consumer<List<String>> onSuccess, Consumer<Exception> onError) {
-        if (!isConnected()) {
-            connect(() -> doRequestVideoList(onSuccess, onError), onError);
-            return;
+    /**
+     * Применяет изменения списка к известному списку видео. Вызывается под блокировкой {@code knownVideos}.
+     *
+     * @return false, если изменения не новее уже известной версии и пропущены
+     */
+    private boolean applyChanges(Protocol.ListChanges changes) {
+        if (changes.catalogId == catalogId && changes.version <= listVersion) {
+            return false;
+        }
+        if (changes.full) {
+            knownVideos.clear();
         }
+        knownVideos.removeAll(changes.removed);
+        knownVideos.addAll(changes.added);
+        catalogId = changes.catalogId;
+        listVersion = changes.version;
+        return true;
+    }
 
-        doRequestVideoList(onSuccess, onError);
+    /**
+     * Подписывается на изменения каталога по отдельному соединению, чтобы уведомления
+     * не смешивались с ответами на запросы. Подписка только сообщает об изменениях и не передает
+     * весь список: клиент запрашивает нужные страницы заново. При обрыве соединения подписка
+     * возобновляется с последней известной версии.
+     *
+     * @param onChanged вызывается потоком подписки, когда список на сервере изменился;
+     *                  должен только передать уведомление дальше, например в поток интерфейса
+     */
+    public void subscribeToChanges(Runnable onChanged) {
+        Thread thread = new Thread(() -> runSubscription(onChanged), "catalog-subscription");
+        thread.setDaemon(true);
+        thread.start();
     }
 
-    private void doRequestVideoList(Consumer<List<String>> onSuccess, Consumer<Exception> onError) {
-        executorService.submit(() -> {
+    private void runSubscription(Runnable onChanged) {
+        boolean reportFailure = true;
+        long knownCatalog = 0; // Каталог и версия, о которых уже сообщено; меняются только этим потоком
+        long knownVersion = -1;
+        while (running) {
+            try (ConnectionPool.Connection subscription = pool.open()) {
+                subscriptionConnection = subscription;
+                subscription.socket.setSoTimeout(0); // Уведомления приходят когда угодно
+                int requestId = requestIds.incrementAndGet();
+                Protocol.Frame frame = subscription.call(
+                        Protocol.subscribeNotifyOnly(requestId, knownCatalog, knownVersion), Protocol.LIST_CHANGES);
+                LOG.info("Подписка на изменения каталога оформлена");
+                reportFailure = true;
+                while (frame != null) {
+                    if (frame.opcode == Protocol.LIST_CHANGES && frame.requestId == requestId) {
+                        Protocol.ListChanges changes = Protocol.readListChanges(frame.payload);
+                        boolean otherCatalog = changes.catalogId != knownCatalog;
+                        if (otherCatalog || changes.version > knownVersion) {
+                            // Первый ответ после подписки на новый каталог только сообщает его версию
+                            boolean changed = knownVersion >= 0 && (otherCatalog || changes.full
+                                    || !changes.added.isEmpty() || !changes.removed.isEmpty());
+                            knownCatalog = changes.catalogId;
+                            knownVersion = changes.version;
+                            if (changed) {
+                                LOG.debug("Изменения каталога: добавлено {}, удалено {}",
+                                        changes.added.size(), changes.removed.size());
+                                onChanged.run();
+                            }
+                        }
+                    }
+                    frame = Protocol.read(subscription.in);
+                }
+                throw new EOFException("Сервер закрыл соединение");
+            } catch (IOException e) {
+                if (running && reportFailure) {
+                    LOG.warn("Подписка на изменения каталога прервана: {}", e.getMessage());
+                    reportFailure = false; // Неудачные повторы не засоряют журнал
+                }
+            }
             try {
-                System.out.println("Отправка команды LIST на сервер...");
-                synchronized (connectionLock) {
-                    out.writeObject("LIST");
-                    out.flush();
+                Thread.sleep(SUBSCRIPTION_RETRY_DELAY);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
 
-                    @SuppressWarnings("unchecked")
-                    List<String> videos = (List<String>) in.readObject();
-                    System.out.println("Получен ответ от сервера: " + videos);
+    /**
+     * Возвращает путь локальной копии видео. Имя видео — путь относительно директории видео сервера;
+     * он может содержать поддиректории, но не может выйти за пределы временной директории.
+     *
+     * @throws IOException если имя выходит за пределы временной директории
+     */
+    private static Path localPath(String videoName) throws IOException {
+        Path tempDir = Paths.get(TEMP_DIR).toAbsolutePath().normalize();
+        Path localFile = tempDir.resolve(videoName).normalize();
+        if (!localFile.startsWith(tempDir) || localFile.equals(tempDir)) {
+            throw new IOException("Недопустимое имя видео: " + videoName);
+        }
+        return localFile;
+    }
 
-                    onSuccess.accept(videos);
-                }
-            } catch (Exception e) {
-                System.err.println("Ошибка при запросе списка видео: " + e.getMessage());
-                handleConnectionError(e);
-                onError.accept(e);
-            }
-        });
+    /**
+     * Возвращает хэш локального файла. Хэш вычисляется один раз и переиспользуется,
+     * пока не изменились размер и время изменения файла.
+     */
+    private String localHash(Path localFile) throws IOException {
+        long size = Files.size(localFile);
+        long modified = Files.getLastModifiedTime(localFile).toMillis();
+        LocalHash cached = localHashes.get(localFile);
+        if (cached != null && cached.size == size && cached.modified == modified) {
+            return cached.hash;
+        }
+        String hash = ContentHash.hashFile(localFile, ForkJoinPool.commonPool());
+        localHashes.put(localFile, new LocalHash(size, modified, hash));
+        return hash;
+    }
+
+    private static final class LocalHash {
+        final long size;
+        final long modified;
+        final String hash;
+
+        LocalHash(long size, long modified, String hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
     }
 
     /**
      * Проверяет наличие и актуальность локального файла.
+     *
+     * @see #checkLocalVideos(Collection)
      */
     public void checkLocalVideo(String videoName, Consumer<VideoFileInfo> onResult, Consumer<Exception> onError) {
-        executorService.submit(() -> {
+        checkLocalVideos(List.of(videoName)).whenComplete((results, error) -> {
+            if (error != null) {
+                onError.accept(failure(error));
+            } else {
+                onResult.accept(results.get(videoName));
+            }
+        });
+    }
+
+    /**
+     * Проверяет наличие и актуальность локальных копий видео. Запросы CHECK для всех копий уходят
+     * на сервер одним пакетом, поэтому проверка сотен файлов занимает около одного круга до сервера,
+     * а не по кругу на файл. Копия актуальна, если совпадает хэш содержимого с сервером (или, пока хэш
+     * не вычислен сервером, размер и время изменения). Без подключения, как и при ошибке проверки,
+     * существующая копия считается актуальной.
+     *
+     * @param videoNames имена видео
+     * @return сведения о копиях по именам видео в порядке запроса; завершается в пуле потоков клиента
+     */
+    public CompletableFuture<Map<String, VideoFileInfo>> checkLocalVideos(Collection<String> videoNames) {
+        List<String> names = new ArrayList<>(videoNames);
+        return CompletableFuture.supplyAsync(() -> checkAll(names), executorService);
+    }
+
+    private Map<String, VideoFileInfo> checkAll(List<String> videoNames) {
+        Map<String, VideoFileInfo> results = new LinkedHashMap<>();
+        List<String> stored = new ArrayList<>(); // Видео, у которых есть локальная копия
+        List<Path> storedFiles = new ArrayList<>();
+        for (String videoName : videoNames) {
+            Path localFile;
             try {
-                Path localFile = Paths.get(TEMP_DIR, videoName);
-                if (!Files.exists(localFile)) {
-                    onResult.accept(new VideoFileInfo(false, null));
-                    return;
-                }
+                localFile = localPath(videoName);
+            } catch (IOException e) {
+                localFile = null; // Загрузка такого видео сообщит об ошибке сама
+            }
+            if (localFile == null || !Files.exists(localFile)) {
+                results.put(videoName, new VideoFileInfo(false, null));
+            } else if (!isConnected()) {
+                // Если нет подключения, считаем локальный файл актуальным
+                results.put(videoName, new VideoFileInfo(true, localFile));
+            } else {
+                results.put(videoName, null); // Место в порядке запроса
+                stored.add(videoName);
+                storedFiles.add(localFile);
+            }
+        }
+        if (stored.isEmpty()) {
+            return results;
+        }
 
-                if (!isConnected()) {
-                    // Если нет подключения, считаем локальный файл актуальным
-                    onResult.accept(new VideoFileInfo(true, localFile));
-                    return;
-                }
+        // Проверяем актуальность на сервере: все запросы сразу, ответы по мере прихода
+        int[] ids = new int[stored.size()];
+        ByteBuffer[] requests = new ByteBuffer[stored.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = requestIds.incrementAndGet();
+            requests[i] = Protocol.check(ids[i], stored.get(i));
+        }
+        List<CompletableFuture<Protocol.Frame>> responses = pool.requestAll(ids, requests, Protocol.CHECK_RESULT);
+        for (int i = 0; i < ids.length; i++) {
+            Path localFile = storedFiles.get(i);
+            VideoFileInfo info;
+            try {
+                info = compare(localFile, serverFile(await(responses.get(i))));
+            } catch (Exception e) {
+                LOG.warn("Ошибка при проверке локального файла: {}", e.getMessage());
+                // При ошибке проверки считаем локальный файл актуальным, если он существует
+                info = new VideoFileInfo(Files.exists(localFile), Files.exists(localFile) ? localFile : null);
+            }
+            results.put(stored.get(i), info);
+        }
+        return results;
+    }
+
+    /**
+     * Сравнивает локальную копию с файлом на сервере. Копию видео, удаленного с сервера, удаляет.
+     */
+    private VideoFileInfo compare(Path localFile, ServerFile serverFile) throws IOException {
+        if (serverFile.size == -1) {
+            // Файл не существует на сервере
+            Files.deleteIfExists(localFile);
+            return new VideoFileInfo(false, null);
+        }
+
+        long localFileSize = Files.size(localFile);
+        // Пока сервер не вычислил хэш, копия не считается проверенной: время изменения на разных
+        // машинах зависит от их часов и не доказывает, что содержимое совпадает
+        boolean isActual = localFileSize == serverFile.size && !serverFile.hash.isEmpty()
+                && serverFile.hash.equals(localHash(localFile));
+        return new VideoFileInfo(isActual, isActual ? localFile : null);
+    }
+
+    /**
+     * Запрашивает у сервера размер, время изменения и хэш видео по управляющему соединению.
+     */
+    private ServerFile requestCheck(String videoName) throws IOException {
+        int requestId = requestIds.incrementAndGet();
+        return serverFile(await(pool.request(requestId, Protocol.check(requestId, videoName), Protocol.CHECK_RESULT)));
+    }
+
+    private static ServerFile serverFile(Protocol.Frame response) {
+        return new ServerFile(response.payload.getLong(), response.payload.getLong(),
+                Protocol.getString(response.payload));
+    }
 
-                // Проверяем актуальность на сервере
-                synchronized (connectionLock) {
-                    out.writeObject("CHECK " + videoName);
-                    out.flush();
+    /**
+     * Ответ CHECK_RESULT.
+     */
+    private static final class ServerFile {
+        final long size; // -1, если файла нет
+        final long lastModified;
+        final String hash; // Пустая строка, пока сервер не вычислил хэш
+
+        ServerFile(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
 
-                    long serverFileSize = in.readLong();
-                    long serverModifiedTime = in.readLong();
+    public void downloadVideo(String videoName,
+                              Consumer<Integer> onProgress,
+                              Consumer<Path> onSuccess,
+                              Consumer<Exception> onError) {
+        fetchVideo(videoName, onProgress, download -> {}, onSuccess, onError);
+    }
 
-                    if (serverFileSize == -1) {
-                        // Файл не существует на сервере
-                        Files.deleteIfExists(localFile);
-                        onResult.accept(new VideoFileInfo(false, null));
-                        return;
+    /**
+     * Загружает видео, как {@link #downloadVideo}, но позволяет начать воспроизведение до конца загрузки.
+     * Когда на диске есть начало файла ({@link #setStreamBuffer}) и индекс MP4, {@code onReady} получает
+     * адрес локального потока ({@link LocalStreamServer}), который плеер читает по HTTP; чтение еще не
+     * загруженной части ждет ее. Актуальная локальная копия сразу передается в {@code onSuccess}, без потока.
+     * <p>
+     * Новая загрузка отменяет прежнюю, если та еще идет; прерванная так загрузка продолжится при следующем выборе
+     * видео. Поток остается опубликованным, пока плеер его читает ({@link #stopStream}), а при ошибке загрузки
+     * снимается сразу.
+     *
+     * @param onReady получает адрес потока для плеера и путь, по которому будет лежать файл, если воспроизведение
+     *                можно начать раньше конца загрузки
+     * @param onSuccess получает путь к файлу, когда он загружен целиком и проверен
+     */
+    public void streamVideo(String videoName,
+                            Consumer<Integer> onProgress,
+                            BiConsumer<String, Path> onReady,
+                            Consumer<Path> onSuccess,
+                            Consumer<Exception> onError) {
+        AtomicReference<SegmentedDownload> started = new AtomicReference<>();
+        fetchVideo(videoName, onProgress,
+                download -> {
+                    started.set(download);
+                    replaceStreamDownload(download);
+                    executorService.submit(() -> awaitPlayable(download, onReady));
+                },
+                onSuccess,
+                error -> {
+                    SegmentedDownload download = started.get();
+                    if (download != null) {
+                        synchronized (this) {
+                            if (streamServer != null) {
+                                streamServer.unpublish(download);
+                            }
+                        }
                     }
+                    onError.accept(error);
+                });
+    }
 
-                    long localFileSize = Files.size(localFile);
-                    long localModifiedTime = Files.getLastModifiedTime(localFile).toMillis();
+    /**
+     * Снимает публикацию локального потока, когда плеер перестал его воспроизводить.
+     *
+     * @param url адрес потока, переданный в {@code onReady}
+     */
+    public synchronized void stopStream(String url) {
+        if (streamServer != null) {
+            streamServer.unpublish(url);
+        }
+    }
 
-                    boolean isActual = localFileSize == serverFileSize &&
-                            localModifiedTime >= serverModifiedTime;
+    /**
+     * Отменяет прежнюю загрузку для воспроизведения и ждет ее остановки, чтобы две загрузки одного файла
+     * не писали в него одновременно. Полученные части остаются в журнале прежней загрузки.
+     */
+    private void replaceStreamDownload(SegmentedDownload download) {
+        SegmentedDownload previous;
+        synchronized (this) {
+            previous = streamDownload;
+            streamDownload = download;
+        }
+        if (previous != null) {
+            try {
+                previous.cancel();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Ждет, пока загружены начало файла и индекс MP4, без которых плеер не начнет воспроизведение.
+     * Индекс, записанный после данных, загружается раньше середины файла.
+     *
+     * @param buffer объем начала файла, который должен быть на диске
+     * @throws IOException если загрузка не удалась
+     */
+    static void awaitStreamable(SegmentedDownload download, long buffer) throws IOException, InterruptedException {
+        download.awaitRange(0, Mp4Index.PROBE_SIZE);
+        long[] index;
+        try (FileChannel channel = download.openForReading()) {
+            index = Mp4Index.locate(channel, download.fileSize());
+        }
+        if (index != null) {
+            download.prioritize(index[0], index[1]);
+            download.awaitRange(index[0], index[1]);
+        }
+        download.awaitRange(0, buffer);
+    }
 
-                    onResult.accept(new VideoFileInfo(isActual, isActual ? localFile : null));
+    /**
+     * Задает объем начала файла, который должен быть на диске до начала воспроизведения во время загрузки.
+     *
+     * @param bytes объем в байтах; меньший файл воспроизводится после полной загрузки
+     */
+    public void setStreamBuffer(long bytes) {
+        streamBuffer = Math.max(1, bytes);
+    }
+
+    /**
+     * Ждет, пока файл можно воспроизводить, и публикует его в локальном потоке.
+     */
+    private void awaitPlayable(SegmentedDownload download, BiConsumer<String, Path> onReady) {
+        try {
+            long fileSize = download.fileSize();
+            awaitStreamable(download, streamBuffer);
+            String url;
+            synchronized (this) {
+                if (download.isFailed()) {
+                    // Ошибку уже обработал onError: снять эту публикацию было бы некому
+                    throw new IOException("Загрузка прервана");
                 }
-            } catch (Exception e) {
-                System.err.println("Ошибка при проверке локального файла: " + e.getMessage());
-                // При ошибке проверки считаем локальный файл актуальным, если он существует
-                try {
-                    Path localFile = Paths.get(TEMP_DIR, videoName);
-                    onResult.accept(new VideoFileInfo(Files.exists(localFile),
-                            Files.exists(localFile) ? localFile : null));
-                } catch (Exception ex) {
-                    onError.accept(ex);
+                if (streamServer == null) {
+                    streamServer = new LocalStreamServer();
                 }
+                url = streamServer.publish(download.target(), fileSize, download);
             }
-        });
+            LOG.debug("Видео {} можно воспроизводить: {}", download.target().getFileName(), url);
+            onReady.accept(url, download.target());
+        } catch (IOException e) {
+            LOG.debug("Воспроизведение во время загрузки недоступно: {}", e.getMessage()); // Ошибку загрузки сообщит onError
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
-    public void downloadVideo(String videoName,
-                              Consumer<Integer> onProgress,
-                              Consumer<Path> onSuccess,
-                              Consumer<Exception> onError) {
+    /**
+     * Проверяет локальную копию и, если она не актуальна, загружает видео с сервера.
+     *
+     * @param onStart получает загрузку перед ее началом
+     */
+    private void fetchVideo(String videoName,
+                            Consumer<Integer> onProgress,
+                            Consumer<SegmentedDownload> onStart,
+                            Consumer<Path> onSuccess,
+                            Consumer<Exception> onError) {
         // Сначала проверяем локальный файл
         checkLocalVideo(videoName,
                 fileInfo -> {
@@ -191,18 +627,18 @@ public class NetworkManager {
                     } else {
                         // Иначе загружаем с сервера
                         if (!isConnected()) {
-                            connect(() -> doDownloadVideo(videoName, onProgress, onSuccess, onError), onError);
+                            connect(() -> doDownloadVideo(videoName, onProgress, onStart, onSuccess, onError), onError);
                         } else {
-                            doDownloadVideo(videoName, onProgress, onSuccess, onError);
+                            doDownloadVideo(videoName, onProgress, onStart, onSuccess, onError);
                         }
                     }
                 },
                 error -> {
                     // При ошибке проверки пытаемся загрузить с сервера
                     if (!isConnected()) {
-                        connect(() -> doDownloadVideo(videoName, onProgress, onSuccess, onError), onError);
+                        connect(() -> doDownloadVideo(videoName, onProgress, onStart, onSuccess, onError), onError);
                     } else {
-                        doDownloadVideo(videoName, onProgress, onSuccess, onError);
+                        doDownloadVideo(videoName, onProgress, onStart, onSuccess, onError);
                     }
                 }
         );
@@ -229,54 +665,55 @@ public class NetworkManager {
         }
     }
 
+    /**
+     * Загружает видео сегментами по соединениям данных ({@link SegmentedDownload}).
+     * Управляющее соединение занято только запросом CHECK, который сообщает размер и хэш файла,
+     * поэтому запросы списка не ждут окончания загрузки. Загрузка, прерванная обрывом соединения
+     * или остановкой клиента, при следующем вызове продолжается с уже полученных частей.
+     */
     private void doDownloadVideo(String videoName,
                                  Consumer<Integer> onProgress,
+                                 Consumer<SegmentedDownload> onStart,
                                  Consumer<Path> onSuccess,
                                  Consumer<Exception> onError) {
         executorService.submit(() -> {
             try {
-                synchronized (connectionLock) {
-                    out.writeObject("GET " + videoName);
-                    out.flush();
-
-                    long fileSize = in.readLong();
-                    if (fileSize == -1) {
-                        throw new IOException("Видео не найдено");
-                    }
-
-                    Path tempFile = Paths.get(TEMP_DIR, videoName);
-                    long totalBytesRead = 0;
-
-                    try (OutputStream fileOut = Files.newOutputStream(tempFile)) {
-                        byte[] buffer = new byte[8192];
-                        int count;
-                        while (totalBytesRead < fileSize &&
-                                (count = in.read(buffer, 0, (int) Math.min(buffer.length, fileSize - totalBytesRead))) > 0) {
-                            fileOut.write(buffer, 0, count);
-                            totalBytesRead += count;
-                            onProgress.accept((int) ((totalBytesRead * 100) / fileSize));
-                        }
-                    }
+                ServerFile serverFile = requestCheck(videoName);
+                if (serverFile.size == -1) {
+                    throw new IOException("Видео не найдено");
+                }
 
-                    onSuccess.accept(tempFile);
+                Path tempFile = localPath(videoName);
+                Files.createDirectories(tempFile.getParent()); // Видео из поддиректории сервера
+                SegmentedDownload download = new SegmentedDownload(videoName, serverFile.size,
+                        serverFile.lastModified, serverFile.hash, tempFile, pool, executorService, onProgress);
+                onStart.accept(download);
+                download.run();
+                if (!serverFile.hash.isEmpty()) {
+                    // Хэш уже сверен при загрузке: повторная проверка не перечитывает файл
+                    localHashes.put(tempFile, new LocalHash(Files.size(tempFile),
+                            Files.getLastModifiedTime(tempFile).toMillis(), serverFile.hash));
                 }
+
+                onSuccess.accept(tempFile);
             } catch (Exception e) {
-                handleConnectionError(e);
                 onError.accept(e);
             }
         });
     }
 
-    private void handleConnectionError(Exception e) {
-        if (e instanceof SocketException || e instanceof EOFException) {
-            System.err.println("Connection lost: " + e.getMessage());
-            isConnected.set(false);
-            closeConnection();
-        }
-    }
-
     public void shutdown() {
+        running = false;
         executorService.shutdown();
-        closeConnection();
+        pool.close();
+        synchronized (this) {
+            if (streamServer != null) {
+                streamServer.close();
+            }
+        }
+        ConnectionPool.Connection subscription = subscriptionConnection;
+        if (subscription != null) {
+            subscription.close();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,163 @@
+package org.example;
+
+import javax.swing.*;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Модель списка видео, загружающая его с сервера страницами по мере прокрутки.
+ * <p>
+ * Клиент знает только количество совпадений и страницы, которые недавно показывались;
+ * пока страница не получена, ее строки показываются как {@link #LOADING}. Все страницы в памяти
+ * относятся к одной версии каталога: страница более новой версии вытесняет остальные, и они
+ * запрашиваются заново при следующей отрисовке. Все методы вызываются в потоке интерфейса.
+ */
+@SuppressWarnings("serial")
+class PagedVideoListModel extends AbstractListModel<String> {
+    static final int PAGE_SIZE = 200; // Видео в одном запросе
+    static final int MAX_PAGES = 50; // Сколько страниц хранится в памяти
+    static final String LOADING = "Загрузка...";
+
+    private final NetworkManager networkManager;
+    private final Consumer<Exception> onError;
+    private final Map<Integer, String[]> pages = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String[]> eldest) {
+            return size() > MAX_PAGES;
+        }
+    };
+    private final Set<Integer> requested = new HashSet<>(); // Страницы, ответ на которые еще не получен
+    private String filter = "";
+    private boolean substring = true;
+    private byte sort = Protocol.SORT_NAME;
+    private boolean descending;
+    private int size;
+    private long catalogId; // Каталог и версия страниц в памяти
+    private long version = -1;
+    private int generation; // Меняется при смене запроса; ответы на прежние запросы отбрасываются
+
+    /**
+     * @param networkManager менеджер сетевого взаимодействия
+     * @param onError получает ошибки загрузки страниц в потоке интерфейса
+     */
+    PagedVideoListModel(NetworkManager networkManager, Consumer<Exception> onError) {
+        this.networkManager = networkManager;
+        this.onError = onError;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        String[] page = pages.get(index / PAGE_SIZE);
+        if (page == null) {
+            request(index / PAGE_SIZE);
+            return LOADING;
+        }
+        int position = index % PAGE_SIZE;
+        return position < page.length ? page[position] : LOADING;
+    }
+
+    /**
+     * Проверяет, получена ли строка с сервера, а не показывается как {@link #LOADING}.
+     */
+    boolean isLoaded(int index) {
+        String[] page = pages.get(index / PAGE_SIZE);
+        return page != null && index % PAGE_SIZE < page.length;
+    }
+
+    /**
+     * Меняет фильтр и сортировку и загружает список заново.
+     *
+     * @param filter начало имени или подстрока; пустая строка — без фильтра
+     * @param substring искать подстроку в любом месте имени
+     * @param sort ключ сортировки
+     * @param descending сортировать по убыванию
+     */
+    void setQuery(String filter, boolean substring, byte sort, boolean descending) {
+        this.filter = filter;
+        this.substring = substring;
+        this.sort = sort;
+        this.descending = descending;
+        reload();
+    }
+
+    /**
+     * Забывает загруженные страницы и запрашивает заново те, что видны.
+     * Количество строк остается прежним до ответа сервера, чтобы прокрутка не сбрасывалась.
+     */
+    void reload() {
+        generation++;
+        pages.clear();
+        requested.clear();
+        request(0); // Если список пуст, отрисовка ничего не запросит
+        if (size > 0) {
+            fireContentsChanged(this, 0, size - 1);
+        }
+    }
+
+    private void request(int page) {
+        if (!requested.add(page)) {
+            return;
+        }
+        int requestGeneration = generation;
+        networkManager.queryVideos(filter, substring, sort, descending, page * PAGE_SIZE, PAGE_SIZE,
+                result -> SwingUtilities.invokeLater(() -> loaded(requestGeneration, page, result)),
+                error -> SwingUtilities.invokeLater(() -> failed(requestGeneration, page, error)));
+    }
+
+    private void loaded(int requestGeneration, int page, Protocol.QueryResult result) {
+        if (requestGeneration != generation) {
+            return;
+        }
+        requested.remove(page);
+        boolean sameCatalog = result.catalogId == catalogId;
+        if (sameCatalog && result.version < version) {
+            // Ответ по индексу старее страниц в памяти: строки остались бы «Загрузка...» до следующей
+            // отрисовки, поэтому страница запрашивается снова и придет не старее текущей версии
+            request(page);
+            return;
+        }
+        boolean newer = !sameCatalog || result.version > version;
+        if (newer) {
+            // Страницы разных версий нельзя показывать вместе: остальные будут запрошены при отрисовке
+            pages.clear();
+            catalogId = result.catalogId;
+            version = result.version;
+        }
+        pages.put(page, result.names);
+        resize(result.total);
+        if (newer) {
+            if (size > 0) {
+                fireContentsChanged(this, 0, size - 1);
+            }
+        } else if (result.names.length > 0) {
+            int first = page * PAGE_SIZE;
+            fireContentsChanged(this, first, Math.min(size, first + result.names.length) - 1);
+        }
+    }
+
+    private void resize(int total) {
+        int previous = size;
+        size = total;
+        if (total > previous) {
+            fireIntervalAdded(this, previous, total - 1);
+        } else if (total < previous) {
+            fireIntervalRemoved(this, total, previous - 1);
+        }
+    }
+
+    private void failed(int requestGeneration, int page, Exception error) {
+        if (requestGeneration != generation) {
+            return;
+        }
+        requested.remove(page); // Страница будет запрошена снова при следующей отрисовке
+        onError.accept(error);
+    }
+}
@@ -0,0 +1,725 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Загрузка видео сегментами через несколько соединений данных {@link ConnectionPool} одновременно.
+ * <p>
+ * Файл заранее создается полного размера и делится на сегменты по {@link #SEGMENT_SIZE}; каждое соединение
+ * запрашивает у сервера диапазон очередного сегмента и пишет его на свое место в файле. Одно соединение TCP
+ * на канале с большой задержкой упирается в размер окна, а несколько соединений складывают свои окна.
+ * <p>
+ * Число соединений подбирается по измеренной скорости: загрузка начинается с {@link #INITIAL_CONNECTIONS},
+ * и соединения добавляются по одному, пока каждое добавление заметно увеличивает общую скорость.
+ * Если добавленное соединение скорости не прибавило, оно снимается, и подбор прекращается.
+ * <p>
+ * Сегменты выровнены по частям {@link ContentHash}: пока данные приходят, хэши частей вычисляются
+ * по ходу загрузки, и в конце хэш всего файла сверяется с хэшем сервера без повторного чтения файла.
+ * Сегмент считается полученным, когда сервер отдал его целиком для файла того же размера;
+ * при обрыве соединения сегмент загружается заново с последней полностью полученной части
+ * через новое соединение, остальные сегменты не затрагиваются.
+ * <p>
+ * Файл можно читать, не дожидаясь конца загрузки: {@link #awaitRange} ждет, пока нужный диапазон
+ * будет записан на диск, а {@link #prioritize} переносит его сегменты в начало очереди. Данные пишутся
+ * на диск блоками по {@link #BLOCK_SIZE}, не дожидаясь конца части хэша, и записанные блоки отмечаются
+ * в битовой карте, так что файл может заполняться не по порядку: после перемотки плеера
+ * сегмент с новой позицией отделяется от ждущего сегмента и загружается сразу, при необходимости
+ * через соединение сверх целевого числа, а остальные сегменты загружаются после него.
+ * <p>
+ * Загрузка пишется в файл {@code <имя>.part}, а каждая полученная часть хэша отмечается в журнале рядом
+ * с ним ({@code <имя>.part.journal}) вместе со своим хэшем. Прерванная загрузка — обрыв соединения, остановка
+ * сервера или клиента — оставляет оба файла, и следующая загрузка того же видео запрашивает только
+ * недостающие части, если размер и время изменения файла на сервере не изменились. Загруженный и
+ * проверенный файл атомарно переименовывается в целевой, а журнал удаляется.
+ */
+final class SegmentedDownload {
+    static final int SEGMENT_SIZE = 2 * ContentHash.CHUNK_SIZE; // Сегменты выровнены по частям хэша
+    static final int BLOCK_SIZE = 256 * 1024; // Единица записи на диск и учета записанного, делит часть хэша
+    static final String PART_SUFFIX = ".part";
+    static final String JOURNAL_SUFFIX = ".journal"; // Добавляется к имени файла .part
+    private static final int JOURNAL_MAGIC = 0x56444A31; // "VDJ1"
+    private static final int JOURNAL_RECORD_SIZE = 12; // Номер части и ее хэш
+    static final int INITIAL_CONNECTIONS = 2;
+    static final int MAX_CONNECTIONS = 8;
+    static final int MAX_ATTEMPTS = 3; // Попыток загрузить один сегмент
+    static final long SAMPLE_INTERVAL_MS = 500; // Интервал измерения скорости для подбора числа соединений
+    private static final double GROWTH_GAIN = 1.1; // Прирост скорости, ради которого стоит держать соединение
+    private static final Log LOG = Log.root();
+
+    private final String videoName;
+    private final long fileSize;
+    private final long lastModified; // Время изменения файла на сервере
+    private final String expectedHash; // Хэш содержимого на сервере, пустая строка — еще не вычислен
+    private final Path target;
+    private final Path part;
+    private final Path journalPath;
+    private final ConnectionPool pool;
+    private final Executor executor;
+    private final Consumer<Integer> onProgress;
+    private final long[] chunkHashes; // Хэши частей файла; каждую часть пишет один поток до completed()
+    private final AtomicLong received = new AtomicLong(); // Байты в полностью полученных и текущих частях
+    private final AtomicInteger reported = new AtomicInteger(-1); // Последний сообщенный процент
+    private final AtomicInteger requestIds = new AtomicInteger();
+    private final Deque<Segment> pending = new ArrayDeque<>(); // Сегменты, ждущие соединения; защищено this
+    private final BitSet written = new BitSet(); // Блоки файла, записанные на диск; защищено this
+    private final Set<ConnectionPool.Connection> connections = new HashSet<>(); // Занятые загрузкой; защищено this
+    private FileChannel file;
+    private FileChannel journal; // Записи дописываются под блокировкой самого канала
+    private int unfinished; // Сегменты, еще не полученные целиком; защищено this
+    private int limit = INITIAL_CONNECTIONS; // Целевое число соединений; защищено this
+    private int active; // Работающие соединения; защищено this
+    private IOException failure; // Причина отказа загрузки; защищено this
+    private boolean discard; // Полученные данные непригодны для продолжения загрузки; защищено this
+    private boolean promoted; // Файл переименован в целевой; защищено this
+    private boolean stopped; // run() завершился; защищено this
+    private boolean cancelled; // Соединения закрыты отменой и не возвращаются в пул; защищено this
+
+    /**
+     * @param lastModified время изменения файла из CHECK_RESULT
+     * @param expectedHash хэш содержимого из CHECK_RESULT; пустая строка отключает проверку содержимого
+     * @param onProgress получает общий процент загрузки, только при его росте
+     */
+    SegmentedDownload(String videoName, long fileSize, long lastModified, String expectedHash, Path target,
+                      ConnectionPool pool, Executor executor, Consumer<Integer> onProgress) {
+        this.videoName = videoName;
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.expectedHash = expectedHash;
+        this.target = target;
+        this.part = partFile(target);
+        this.journalPath = part.resolveSibling(part.getFileName() + JOURNAL_SUFFIX);
+        this.pool = pool;
+        this.executor = executor;
+        this.onProgress = onProgress;
+        this.chunkHashes = new long[(int) ((fileSize + ContentHash.CHUNK_SIZE - 1) / ContentHash.CHUNK_SIZE)];
+    }
+
+    /**
+     * Загружает файл и сверяет его хэш с сервером. Вызывающий поток распределяет сегменты
+     * и подбирает число соединений; сами сегменты загружаются в потоках {@code executor}.
+     *
+     * @throws IOException если сегмент не удалось загрузить за {@link #MAX_ATTEMPTS} попыток,
+     *                     файл изменился на сервере или хэш не совпал; полученные части остаются
+     *                     для следующей загрузки, если файл на сервере не изменился
+     */
+    void run() throws IOException, InterruptedException {
+        boolean complete = false;
+        try {
+            try (RandomAccessFile output = new RandomAccessFile(part.toFile(), "rw")) {
+                file = output.getChannel();
+                BitSet present = resume();
+                output.setLength(fileSize);
+                int chunksPerSegment = SEGMENT_SIZE / ContentHash.CHUNK_SIZE;
+                for (int first = 0; first < chunkHashes.length; first += chunksPerSegment) {
+                    // Сегмент без полученных частей; от частично полученного остаются недостающие участки
+                    int last = Math.min(chunkHashes.length, first + chunksPerSegment);
+                    for (int start = present.nextClearBit(first); start < last; ) {
+                        int end = present.nextSetBit(start);
+                        end = end < 0 ? last : Math.min(end, last);
+                        pending.add(new Segment((long) start * ContentHash.CHUNK_SIZE,
+                                Math.min(fileSize, (long) end * ContentHash.CHUNK_SIZE)));
+                        start = present.nextClearBit(end);
+                    }
+                }
+                unfinished = pending.size();
+                progress();
+                coordinate();
+            } finally {
+                if (journal != null) {
+                    journal.close();
+                }
+            }
+            verify();
+            promote();
+            complete = true;
+        } finally {
+            try {
+                if (!complete) {
+                    fail(new IOException("Загрузка прервана")); // Будит ждущих в awaitRange
+                    if (discarded()) {
+                        Files.deleteIfExists(journalPath);
+                        Files.deleteIfExists(part);
+                    }
+                }
+            } finally {
+                stopped();
+            }
+        }
+    }
+
+    /**
+     * Отменяет загрузку и ждет, пока ее соединения остановятся. Полученные части остаются в журнале,
+     * и следующая загрузка того же файла продолжится с них. Завершенную загрузку отмена не меняет.
+     */
+    synchronized void cancel() throws InterruptedException {
+        if (!stopped) {
+            fail(new IOException("Загрузка отменена"));
+            // Соединение, ждущее кадра от медленного сервера, иначе держало бы отмену до конца сегмента
+            cancelled = true;
+            for (ConnectionPool.Connection connection : connections) {
+                connection.close();
+            }
+        }
+        while (!stopped) {
+            wait();
+        }
+    }
+
+    /**
+     * @return true, если загрузка не удалась или отменена
+     */
+    synchronized boolean isFailed() {
+        return failure != null;
+    }
+
+    private synchronized void stopped() {
+        stopped = true;
+        notifyAll();
+    }
+
+    /**
+     * Восстанавливает части, полученные прерванной загрузкой, и открывает журнал для новых записей.
+     * Каждая часть из журнала перечитывается с диска и сверяется со своим хэшем: при сбое запись журнала
+     * могла сохраниться, а данные — нет. Журнал переписывается только с подтвержденными частями.
+     *
+     * @return номера частей, которые загружать не нужно
+     */
+    private BitSet resume() throws IOException {
+        BitSet present = new BitSet(chunkHashes.length);
+        ByteBuffer entries = ByteBuffer.allocate(0);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalPath)))) {
+            if (in.readInt() == JOURNAL_MAGIC && in.readLong() == fileSize && in.readLong() == lastModified) {
+                String hash = in.readUTF();
+                if (hash.isEmpty() || expectedHash.isEmpty() || hash.equals(expectedHash)) {
+                    entries = ByteBuffer.wrap(in.readAllBytes());
+                }
+            }
+        } catch (NoSuchFileException | EOFException e) {
+            // Прежней загрузки нет или журнал поврежден: загрузка начинается сначала
+        }
+
+        ByteBuffer confirmed = ByteBuffer.allocate(entries.remaining() / JOURNAL_RECORD_SIZE * JOURNAL_RECORD_SIZE);
+        byte[] chunk = new byte[(int) Math.min(ContentHash.CHUNK_SIZE, fileSize)];
+        long restored = 0;
+        while (entries.remaining() >= JOURNAL_RECORD_SIZE) { // Последняя запись могла записаться не целиком
+            int index = entries.getInt();
+            long hash = entries.getLong();
+            if (index < 0 || index >= chunkHashes.length || present.get(index)) {
+                continue;
+            }
+            long offset = (long) index * ContentHash.CHUNK_SIZE;
+            int length = (int) Math.min(ContentHash.CHUNK_SIZE, fileSize - offset);
+            ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+            while (buffer.hasRemaining()) {
+                if (file.read(buffer, offset + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            if (buffer.hasRemaining() || ContentHash.xxHash64(chunk, 0, length, 0) != hash) {
+                continue;
+            }
+            chunkHashes[index] = hash;
+            present.set(index);
+            blocksWritten((int) (offset / BLOCK_SIZE), (int) ((offset + length + BLOCK_SIZE - 1) / BLOCK_SIZE));
+            restored += length;
+            confirmed.putInt(index).putLong(hash);
+        }
+        received.set(restored);
+        if (restored > 0) {
+            LOG.info("Загрузка {} продолжается: {} из {} байт уже получены", videoName, restored, fileSize);
+        }
+
+        journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(header)) {
+            out.writeInt(JOURNAL_MAGIC);
+            out.writeLong(fileSize);
+            out.writeLong(lastModified);
+            out.writeUTF(expectedHash);
+        }
+        ByteBuffer[] contents = {ByteBuffer.wrap(header.toByteArray()), confirmed.flip()};
+        while (contents[0].hasRemaining() || contents[1].hasRemaining()) {
+            journal.write(contents);
+        }
+        return present;
+    }
+
+    /**
+     * Отмечает в журнале полученную и записанную часть.
+     */
+    private void record(int index, long hash) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(JOURNAL_RECORD_SIZE).putInt(index).putLong(hash).flip();
+        synchronized (journal) {
+            while (entry.hasRemaining()) {
+                journal.write(entry);
+            }
+        }
+    }
+
+    /**
+     * Переименовывает загруженный файл в целевой, заменяя прежнюю копию, и удаляет журнал.
+     */
+    private synchronized void promote() throws IOException {
+        Files.move(part, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        promoted = true;
+        Files.deleteIfExists(journalPath);
+    }
+
+    /**
+     * Открывает загружаемый файл для чтения: файл .part или, после переименования, целевой.
+     */
+    synchronized FileChannel openForReading() throws IOException {
+        return FileChannel.open(promoted ? target : part, StandardOpenOption.READ);
+    }
+
+    /**
+     * @return файл .part, в который пишется загрузка в {@code target}
+     */
+    static Path partFile(Path target) {
+        return target.resolveSibling(target.getFileName() + PART_SUFFIX);
+    }
+
+    /**
+     * Проверяет, относится ли файл к прерванной загрузке, которую можно продолжить:
+     * это файл .part с журналом или журнал с файлом .part.
+     */
+    static boolean isResumable(Path path) {
+        String name = path.getFileName().toString();
+        if (name.endsWith(PART_SUFFIX)) {
+            return Files.exists(path.resolveSibling(name + JOURNAL_SUFFIX));
+        }
+        if (name.endsWith(PART_SUFFIX + JOURNAL_SUFFIX)) {
+            return Files.exists(path.resolveSibling(name.substring(0, name.length() - JOURNAL_SUFFIX.length())));
+        }
+        return false;
+    }
+
+    long fileSize() {
+        return fileSize;
+    }
+
+    /**
+     * @return файл, который появится по окончании загрузки
+     */
+    Path target() {
+        return target;
+    }
+
+    /**
+     * Ждет, пока диапазон файла будет записан на диск.
+     *
+     * @throws IOException если загрузка не удалась
+     */
+    synchronized void awaitRange(long offset, long length) throws IOException, InterruptedException {
+        while (!isWritten(offset, length)) {
+            if (failure != null) {
+                throw new IOException(failure.getMessage(), failure);
+            }
+            wait();
+        }
+    }
+
+    /**
+     * @return true, если диапазон файла уже записан на диск
+     */
+    synchronized boolean isWritten(long offset, long length) {
+        long end = Math.min(fileSize, offset + length);
+        if (offset >= end) {
+            return true;
+        }
+        int first = (int) (offset / BLOCK_SIZE);
+        int last = (int) ((end - 1) / BLOCK_SIZE);
+        return written.nextClearBit(first) > last;
+    }
+
+    /**
+     * Переносит ждущие соединения сегменты, пересекающие диапазон, в начало очереди, сохраняя их порядок:
+     * они загрузятся следующими. Сегмент, начинающийся раньше диапазона, делится по части хэша с началом
+     * диапазона: его начало остается на прежнем месте в очереди. Сегмент с началом диапазона получает
+     * соединение сразу, даже если все соединения заняты.
+     */
+    synchronized void prioritize(long offset, long length) {
+        long end = Math.min(fileSize, offset + length);
+        long start = offset / ContentHash.CHUNK_SIZE * ContentHash.CHUNK_SIZE;
+        List<Segment> urgent = new ArrayList<>();
+        for (Segment segment : pending) {
+            if (segment.done >= end || segment.end <= offset) {
+                continue;
+            }
+            if (segment.done < start) {
+                Segment rest = new Segment(start, segment.end);
+                segment.end = start;
+                unfinished++;
+                urgent.add(rest);
+            } else {
+                urgent.add(segment);
+            }
+        }
+        if (urgent.isEmpty()) {
+            return;
+        }
+        pending.removeAll(urgent);
+        for (int i = urgent.size() - 1; i >= 0; i--) {
+            pending.addFirst(urgent.get(i));
+        }
+        Segment first = urgent.get(0);
+        first.urgent = first.done <= offset; // Иначе начало диапазона уже загружается
+        notifyAll();
+    }
+
+    /**
+     * Запускает соединения до целевого числа и раз в {@link #SAMPLE_INTERVAL_MS} пересматривает это число.
+     * Возвращается, когда все соединения завершились.
+     */
+    private synchronized void coordinate() throws IOException, InterruptedException {
+        long sampledAt = System.nanoTime();
+        long sampledBytes = received.get();
+        double previousRate = 0;
+        boolean probing = true; // Проверяется, прибавило ли скорости последнее добавленное соединение
+        try {
+            while (unfinished > 0 && failure == null) {
+                // Сегмент, которого ждет плеер, получает соединение сверх целевого числа
+                while (!pending.isEmpty() && (active < limit || active == limit && pending.peek().urgent)) {
+                    Segment first = pending.poll();
+                    active++;
+                    executor.execute(() -> work(first));
+                }
+                wait(SAMPLE_INTERVAL_MS);
+                long now = System.nanoTime();
+                if (now - sampledAt < SAMPLE_INTERVAL_MS * 1_000_000 || !probing || pending.isEmpty()) {
+                    continue;
+                }
+                double rate = (received.get() - sampledBytes) * 1e9 / (now - sampledAt);
+                sampledAt = now;
+                sampledBytes = received.get();
+                if (active < limit) {
+                    continue; // Соединения еще открываются: скорость пока не показательна
+                }
+                if (rate > previousRate * GROWTH_GAIN) {
+                    previousRate = rate;
+                    if (limit < MAX_CONNECTIONS) {
+                        limit++;
+                    } else {
+                        probing = false;
+                    }
+                } else {
+                    limit = Math.max(1, limit - 1); // Последнее соединение скорости не прибавило
+                    probing = false;
+                    LOG.debug("Загрузка {}: {} соединений, {} КБ/с", videoName, limit, (long) (previousRate / 1024));
+                }
+            }
+        } finally {
+            if (failure == null && unfinished > 0) {
+                failure = new IOException("Загрузка прервана");
+            }
+            while (active > 0) {
+                wait();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Загружает сегменты через одно соединение данных, пока они есть и соединение не лишнее.
+     * Исправное соединение возвращается в пул, соединение с ошибкой закрывается.
+     *
+     * @param first сегмент, выданный соединению при запуске
+     */
+    private void work(Segment first) {
+        ConnectionPool.Connection connection = null;
+        byte[] chunk = new byte[(int) Math.min(ContentHash.CHUNK_SIZE, fileSize)];
+        Segment segment = first;
+        try {
+            for (; segment != null; segment = next()) {
+                if (connection == null) {
+                    try {
+                        connection = pool.acquireData();
+                    } catch (IOException e) {
+                        if (refused(segment)) {
+                            segment = null;
+                            return;
+                        }
+                        throw e;
+                    }
+                    attach(connection);
+                }
+                fetch(connection, segment, chunk);
+                completed();
+            }
+        } catch (IOException e) {
+            if (connection != null) {
+                detach(connection);
+                connection.close();
+                connection = null;
+            }
+            if (segment != null) {
+                retry(segment, e);
+                segment = null;
+            }
+        } catch (RuntimeException e) {
+            if (connection != null) {
+                detach(connection);
+                connection.close();
+                connection = null;
+            }
+            fail(new IOException("Ошибка загрузки сегмента", e));
+        } finally {
+            if (connection != null) {
+                if (detach(connection)) {
+                    pool.releaseData(connection);
+                } else {
+                    connection.close();
+                }
+            }
+            finished(segment);
+        }
+    }
+
+    private synchronized void attach(ConnectionPool.Connection connection) {
+        connections.add(connection);
+        if (cancelled) {
+            connection.close(); // Отмена пришла, пока соединение открывалось
+        }
+    }
+
+    /**
+     * Снимает соединение с учета загрузки.
+     *
+     * @return true, если соединение исправно и его можно вернуть в пул
+     */
+    private synchronized boolean detach(ConnectionPool.Connection connection) {
+        connections.remove(connection);
+        return !cancelled;
+    }
+
+    /**
+     * Выдает соединению следующий сегмент.
+     *
+     * @return сегмент или null, если сегментов нет, загрузка отменена или соединений больше целевого числа
+     */
+    private synchronized Segment next() {
+        if (failure != null || active > limit) {
+            return null;
+        }
+        return pending.poll();
+    }
+
+    /**
+     * Обрабатывает отказ в новом соединении. Если другие соединения работают, сервер, вероятно,
+     * ограничил их число: целевое число уменьшается, а сегмент возвращается в очередь без учета попытки.
+     *
+     * @return true, если отказ обработан и соединение завершается
+     */
+    private synchronized boolean refused(Segment segment) {
+        if (active <= 1) {
+            return false;
+        }
+        limit = Math.min(limit, active - 1);
+        pending.add(segment);
+        LOG.debug("Загрузка {}: сервер не принял соединение, соединений не больше {}", videoName, limit);
+        return true;
+    }
+
+    private synchronized void completed() {
+        unfinished--;
+        notifyAll();
+    }
+
+    private synchronized void retry(Segment segment, IOException cause) {
+        if (failure != null) {
+            return;
+        }
+        segment.attempts++;
+        if (segment.attempts >= MAX_ATTEMPTS) {
+            fail(new IOException("Не удалось загрузить сегмент с " + segment.done + ": " + cause.getMessage(), cause));
+            return;
+        }
+        LOG.debug("Загрузка {}: сегмент с {} будет загружен заново: {}", videoName, segment.done, cause.getMessage());
+        pending.add(segment);
+    }
+
+    private synchronized void discard() {
+        discard = true;
+    }
+
+    private synchronized boolean discarded() {
+        return discard;
+    }
+
+    private synchronized void fail(IOException cause) {
+        if (failure == null) {
+            failure = cause;
+        }
+        notifyAll();
+    }
+
+    private synchronized void finished(Segment unprocessed) {
+        if (unprocessed != null) {
+            pending.add(unprocessed);
+        }
+        active--;
+        notifyAll();
+    }
+
+    /**
+     * Загружает остаток сегмента. Данные копятся по частям хэша: полученные блоки части сразу пишутся
+     * в файл, а часть хэшируется, когда получена целиком, и только после этого отмечается в сегменте
+     * как полученная.
+     */
+    private void fetch(ConnectionPool.Connection connection, Segment segment, byte[] chunk) throws IOException {
+        long length = segment.end - segment.done;
+        int requestId = requestIds.incrementAndGet();
+        Protocol.Frame response = connection.call(Protocol.get(requestId, videoName, segment.done, length),
+                Protocol.GET_RESULT);
+        long size = response.payload.getLong();
+        long bodyLength = response.payload.getLong();
+        if (bodyLength == -1 || size != fileSize) {
+            IOException changed = new IOException("Видео изменилось на сервере во время загрузки");
+            discard();
+            fail(changed);
+            throw changed;
+        }
+        if (bodyLength != length) {
+            throw new IOException("Сервер вернул " + bodyLength + " байт вместо " + length);
+        }
+        long chunkStart = segment.done;
+        int chunkLength = (int) Math.min(chunk.length, segment.end - chunkStart);
+        int filled = 0;
+        int flushed = 0; // Начало части, еще не записанное в файл
+        long remaining = length;
+        try {
+            while (remaining > 0) {
+                if (isFailed()) {
+                    // Остаток ответа не дочитывается: соединение закрывается, а не возвращается в пул
+                    throw new IOException("Загрузка остановлена");
+                }
+                int frameRemaining = Protocol.readDataHeader(connection.in, requestId);
+                if (frameRemaining > remaining) {
+                    throw new IOException("Сервер прислал больше данных, чем запрошено");
+                }
+                while (frameRemaining > 0) {
+                    int count = connection.in.read(chunk, filled, Math.min(chunkLength - filled, frameRemaining));
+                    if (count < 0) {
+                        throw new EOFException("Соединение оборвалось во время загрузки");
+                    }
+                    filled += count;
+                    frameRemaining -= count;
+                    remaining -= count;
+                    received.addAndGet(count);
+                    int complete = filled == chunkLength ? filled : filled / BLOCK_SIZE * BLOCK_SIZE;
+                    if (complete > flushed) {
+                        writeBlocks(chunk, flushed, complete - flushed, chunkStart + flushed);
+                        flushed = complete;
+                    }
+                    if (filled == chunkLength) {
+                        int index = (int) (chunkStart / ContentHash.CHUNK_SIZE);
+                        chunkHashes[index] = ContentHash.xxHash64(chunk, 0, chunkLength, 0);
+                        record(index, chunkHashes[index]);
+                        chunkStart += chunkLength;
+                        segment.done = chunkStart;
+                        chunkLength = (int) Math.min(chunk.length, segment.end - chunkStart);
+                        filled = 0;
+                        flushed = 0;
+                    }
+                    progress();
+                }
+            }
+        } catch (IOException e) {
+            received.addAndGet(-filled); // Неполная часть будет загружена заново
+            throw e;
+        }
+    }
+
+    /**
+     * Пишет полученные блоки части в файл. Последний блок может быть неполным только в конце файла.
+     */
+    private void writeBlocks(byte[] chunk, int from, int length, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk, from, length);
+        while (buffer.hasRemaining()) {
+            file.write(buffer, offset + buffer.position() - from);
+        }
+        blocksWritten((int) (offset / BLOCK_SIZE), (int) ((offset + length + BLOCK_SIZE - 1) / BLOCK_SIZE));
+    }
+
+    private synchronized void blocksWritten(int from, int to) {
+        written.set(from, to);
+        notifyAll();
+    }
+
+    private void progress() {
+        int percent = fileSize == 0 ? 100 : (int) (received.get() * 100 / fileSize);
+        int last = reported.get();
+        if (percent > last && reported.compareAndSet(last, percent)) {
+            onProgress.accept(percent);
+        }
+    }
+
+    /**
+     * Сверяет хэш файла, собранный из хэшей частей, с хэшем сервера.
+     */
+    private void verify() throws IOException {
+        if (expectedHash.isEmpty()) {
+            return;
+        }
+        if (!expectedHash.equals(hash())) {
+            discard();
+            throw new IOException("Содержимое загруженного видео не совпадает с сервером");
+        }
+    }
+
+    /**
+     * @return хэш загруженного файла в формате {@link ContentHash#hashFile}
+     */
+    String hash() {
+        ByteBuffer digests = ByteBuffer.allocate(chunkHashes.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+        synchronized (this) {
+            for (long chunkHash : chunkHashes) {
+                digests.putLong(chunkHash);
+            }
+        }
+        return String.format("%016x", ContentHash.xxHash64(digests.array(), 0, digests.capacity(), fileSize));
+    }
+
+    /**
+     * Диапазон файла, загружаемый одним запросом GET.
+     */
+    private static final class Segment {
+        long end; // Меняется под блокировкой загрузки, только пока сегмент ждет в очереди
+        long done; // Начало еще не полученной части; меняет только загружающее сегмент соединение
+        int attempts;
+        boolean urgent; // Сегмент ждет плеер; защищено блокировкой загрузки
+
+        Segment(long offset, long end) {
+            this.done = offset;
+            this.end = end;
+        }
+    }
+}
@@ -29,6 +29,11 @@ public class VideoClient extends JFrame {
                         videoPath.getFileName().toString(), source);
                 setTitle(title);
             }
+
+            @Override
+            protected void onStreamReleased(String url) {
+                networkManager.stopStream(url);
+            }
         };
         listPanel = new VideoListPanel(networkManager, playerPanel);
 
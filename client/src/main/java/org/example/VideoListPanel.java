@@ -2,26 +2,36 @@ package org.example;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.nio.file.Path;
-import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Панель со списком доступных видео и элементами управления.
+ * Список загружается с сервера страницами по мере прокрутки; фильтр и сортировка выполняются сервером.
  */
 public class VideoListPanel extends JPanel {
+    private static final int FILTER_DELAY = 250; // Пауза после ввода перед запросом, мс
+    private static final String[] SORT_NAMES = {"По имени", "По размеру", "По дате изменения"};
+    private static final byte[] SORT_KEYS = {Protocol.SORT_NAME, Protocol.SORT_SIZE, Protocol.SORT_MODIFIED};
+    private static final Log LOG = Log.root();
+
     private final JList<String> videoList;
-    private final DefaultListModel<String> listModel;
+    private final PagedVideoListModel listModel;
     private final JProgressBar progressBar;
     private final NetworkManager networkManager;
     private final VideoPlayerPanel playerPanel;
     private final JButton refreshButton;
+    private final JTextField filterField;
+    private final JCheckBox prefixBox;
+    private final JComboBox<String> sortBox;
+    private final JCheckBox descendingBox;
+    private final Timer filterTimer;
     private boolean isLoading = false;
-    private final AtomicBoolean isConnecting = new AtomicBoolean(false);
-    private static final int MAX_RETRY_ATTEMPTS = 3;
+    private boolean errorShown = false; // Ошибка загрузки страниц уже показана после последнего обновления
+    private int loadGeneration; // Меняется при выборе видео; индикатор показывает только последнюю загрузку
 
     /**
      * Создает панель списка видео.
@@ -38,9 +48,18 @@ public class VideoListPanel extends JPanel {
         setBorder(new EmptyBorder(0, 5, 5, 5));
 
         // Инициализация компонентов
-        listModel = new DefaultListModel<>();
+        listModel = new PagedVideoListModel(networkManager, this::showListError);
         videoList = new JList<>(listModel);
         videoList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        // Высота строк задана заранее: иначе JList измеряет каждую строку и запрашивает все страницы
+        videoList.setPrototypeCellValue("Длинное название видеофайла.mp4");
+
+        filterField = new JTextField();
+        prefixBox = new JCheckBox("Только начало имени");
+        sortBox = new JComboBox<>(SORT_NAMES);
+        descendingBox = new JCheckBox("По убыванию");
+        filterTimer = new Timer(FILTER_DELAY, e -> applyQuery());
+        filterTimer.setRepeats(false);
 
         progressBar = new JProgressBar(0, 100);
         progressBar.setStringPainted(true);
@@ -55,14 +74,23 @@ public class VideoListPanel extends JPanel {
 
         // Загрузка списка видео
         refreshVideoList();
+
+        // Новые и удаленные на сервере видео появляются в списке без обновления вручную
+        networkManager.subscribeToChanges(() -> SwingUtilities.invokeLater(listModel::reload));
     }
 
     /**
      * Настраивает пользовательский интерфейс панели.
      */
     private void setupUI() {
-        // Заголовок
-        add(new JLabel("Доступные видео"), BorderLayout.NORTH);
+        // Заголовок, фильтр и сортировка
+        JPanel queryPanel = new JPanel(new GridLayout(0, 1, 0, 2));
+        queryPanel.add(new JLabel("Доступные видео"));
+        queryPanel.add(filterField);
+        queryPanel.add(prefixBox);
+        queryPanel.add(sortBox);
+        queryPanel.add(descendingBox);
+        add(queryPanel, BorderLayout.NORTH);
 
         // Список видео
         JScrollPane scrollPane = new JScrollPane(videoList);
@@ -85,6 +113,27 @@ public class VideoListPanel extends JPanel {
      * Настраивает слушателей событий.
      */
     private void setupListeners() {
+        // Запрос отправляется, когда пользователь перестал печатать
+        filterField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                filterTimer.restart();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                filterTimer.restart();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                filterTimer.restart();
+            }
+        });
+        prefixBox.addActionListener(e -> applyQuery());
+        sortBox.addActionListener(e -> applyQuery());
+        descendingBox.addActionListener(e -> applyQuery());
+
         // Обновляем обработчик кликов по списку
         videoList.addMouseListener(new MouseAdapter() {
             @Override
@@ -94,7 +143,7 @@ public class VideoListPanel extends JPanel {
                 int index = videoList.locationToIndex(e.getPoint());
                 if (index != -1) {
                     Rectangle bounds = videoList.getCellBounds(index, index);
-                    if (bounds != null && bounds.contains(e.getPoint())) {
+                    if (bounds != null && bounds.contains(e.getPoint()) && listModel.isLoaded(index)) {
                         String selectedVideo = videoList.getModel().getElementAt(index);
                         verifyAndLoadVideo(selectedVideo);
                     }
@@ -109,6 +158,7 @@ public class VideoListPanel extends JPanel {
      * @param selectedVideo имя выбранного видеофайла
      */
     private void verifyAndLoadVideo(String selectedVideo) {
+        loadGeneration++;
         setUIEnabled(false);
         isLoading = true;
         progressBar.setIndeterminate(true);
@@ -121,7 +171,7 @@ public class VideoListPanel extends JPanel {
                     if (fileInfo.isActual() && fileInfo.getPath() != null) {
                         // Используем локальную копию
                         System.out.println("Используется локальная копия: " + fileInfo.getPath());
-                        playerPanel.playVideo(fileInfo.getPath());
+                        playerPanel.playVideo(selectedVideo, fileInfo.getPath());
                         setUIEnabled(true);
                         isLoading = false;
                         progressBar.setVisible(false);
@@ -139,184 +189,100 @@ public class VideoListPanel extends JPanel {
     }
 
     /**
-     * Проверяет наличие видео на сервере и загружает его.
+     * Загружает видео с сервера. Если видео уже удалено, об этом сообщит сама загрузка.
      *
      * @param selectedVideo имя выбранного видеофайла
      */
     private void verifyOnServerAndLoad(String selectedVideo) {
-        progressBar.setString("Проверка доступности на сервере...");
-
-        networkManager.requestVideoList(
-                videos -> SwingUtilities.invokeLater(() -> {
-                    updateVideoList(videos);
-
-                    if (videos != null && videos.contains(selectedVideo)) {
-                        progressBar.setIndeterminate(false);
-                        progressBar.setString("Загрузка видео...");
-                        loadVideo(selectedVideo);
-                    } else {
-                        showError("Выбранное видео не доступно на сервере", null);
-                        setUIEnabled(true);
-                        isLoading = false;
-                        progressBar.setVisible(false);
-                    }
-                }),
-                error -> SwingUtilities.invokeLater(() -> {
-                    showError("Ошибка проверки доступности видео", error);
-                    setUIEnabled(true);
-                    isLoading = false;
-                    progressBar.setVisible(false);
-                })
-        );
+        progressBar.setIndeterminate(false);
+        progressBar.setString("Загрузка видео...");
+        loadVideo(selectedVideo);
     }
 
     /**
-     * Обновляет список видео в модели.
-     *
-     * @param videos новый список видео
+     * Применяет фильтр и сортировку, выбранные пользователем.
      */
-    private void updateVideoList(List<String> videos) {
-        listModel.clear();
-        if (videos != null && !videos.isEmpty()) {
-            videos.forEach(listModel::addElement);
-        }
-        System.out.println("Список видео обновлен, количество: " + listModel.size());
+    private void applyQuery() {
+        filterTimer.stop();
+        listModel.setQuery(filterField.getText().trim(), !prefixBox.isSelected(),
+                SORT_KEYS[sortBox.getSelectedIndex()], descendingBox.isSelected());
     }
 
     /**
-     * Обновляет список доступных видео с сервера.
+     * Показывает ошибку загрузки страницы списка один раз до следующего обновления,
+     * чтобы повторные запросы при прокрутке не открывали окно за окном.
      */
-    private void refreshVideoList() {
-        if (isLoading) {
-            return;
-        }
-
-        setUIEnabled(false);
-        isLoading = true;
-        progressBar.setIndeterminate(true);
-        progressBar.setString("Обновление списка видео...");
-        progressBar.setVisible(true);
-
-        networkManager.requestVideoList(
-                videos -> SwingUtilities.invokeLater(() -> {
-                    updateVideoList(videos);
-                    setUIEnabled(true);
-                    isLoading = false;
-                    progressBar.setVisible(false);
-                }),
-                error -> SwingUtilities.invokeLater(() -> {
-                    showError("Ошибка получения списка видео", error);
-                    setUIEnabled(true);
-                    isLoading = false;
-                    progressBar.setVisible(false);
-                })
-        );
-    }
-    /**
-     * Пытается подключиться к серверу и получить список видео.
-     *
-     * @param attemptsLeft количество оставшихся попыток
-     */
-    private void tryConnectAndGetList(int attemptsLeft) {
-        if (attemptsLeft <= 0) {
-            SwingUtilities.invokeLater(() -> {
-                showError("Не удалось подключиться к серверу после нескольких попыток", null);
-                setUIEnabled(true);
-                isLoading = false;
-                progressBar.setVisible(false);
-            });
-            return;
-        }
-
-        if (!networkManager.isConnected() && !isConnecting.get()) {
-            isConnecting.set(true);
-
-            networkManager.connect(
-                    // Успешное подключение
-                    () -> {
-                        isConnecting.set(false);
-                        requestVideoList(attemptsLeft);
-                    },
-                    // Ошибка подключения
-                    error -> {
-                        isConnecting.set(false);
-                        System.err.println("Попытка подключения " + (MAX_RETRY_ATTEMPTS - attemptsLeft + 1) +
-                                " не удалась: " + error.getMessage());
-                        SwingUtilities.invokeLater(() -> {
-                            progressBar.setString("Повторная попытка подключения (" + attemptsLeft + ")...");
-                            tryConnectAndGetList(attemptsLeft - 1);
-                        });
-                    }
-            );
-        } else {
-            requestVideoList(attemptsLeft);
+    private void showListError(Exception error) {
+        LOG.warn("Ошибка получения страницы списка: {}", error.getMessage());
+        if (!errorShown) {
+            errorShown = true;
+            showError("Ошибка получения списка видео", error);
         }
     }
 
     /**
-     * Запрашивает список видео с сервера.
-     *
-     * @param attemptsLeft количество оставшихся попыток
+     * Обновляет список доступных видео с сервера.
      */
-    private void requestVideoList(int attemptsLeft) {
-        SwingUtilities.invokeLater(() ->
-                progressBar.setString("Получение списка видео..."));
-
-        networkManager.requestVideoList(
-                videos -> SwingUtilities.invokeLater(() -> {
-                    System.out.println("Получен список видео: " + videos);
-                    listModel.clear();
-                    if (videos != null && !videos.isEmpty()) {
-                        videos.forEach(video -> {
-                            System.out.println("Добавление видео в список: " + video);
-                            listModel.addElement(video);
-                        });
-                    } else {
-                        System.out.println("Получен пустой список видео");
-                    }
-                    System.out.println("Текущий размер списка: " + listModel.size());
-                    setUIEnabled(true);
-                    isLoading = false;
-                    progressBar.setVisible(false);
-                    progressBar.setIndeterminate(false);
-                }),
-                error -> SwingUtilities.invokeLater(() -> {
-                    System.err.println("Ошибка получения списка: " + error.getMessage());
-                    if (attemptsLeft > 1) {
-                        progressBar.setString("Повторная попытка получения списка...");
-                        tryConnectAndGetList(attemptsLeft - 1);
-                    } else {
-                        showError("Не удалось получить список видео", error);
-                        setUIEnabled(true);
-                        isLoading = false;
-                        progressBar.setVisible(false);
-                        progressBar.setIndeterminate(false);
-                    }
-                })
-        );
+    private void refreshVideoList() {
+        errorShown = false;
+        listModel.reload();
     }
 
     /**
-     * Загружает выбранное видео.
+     * Загружает выбранное видео. Воспроизведение начинается, как только загружено начало файла;
+     * тогда же список снова доступен, а загрузка продолжается, и ее ход остается на индикаторе.
+     * Выбор другого видео отменяет загрузку ({@link NetworkManager#streamVideo}), и ее события
+     * больше не меняют панель.
      *
      * @param videoName имя видеофайла
      */
     private void loadVideo(String videoName) {
-        networkManager.downloadVideo(videoName,
+        int load = loadGeneration;
+        boolean[] playing = {false}; // Воспроизведение уже начато из потока; меняется в потоке интерфейса
+        networkManager.streamVideo(videoName,
                 // Обработчик прогресса
                 progress -> SwingUtilities.invokeLater(() -> {
-                    progressBar.setValue(progress);
-                    progressBar.setString("Загрузка: " + progress + "%");
+                    if (load == loadGeneration) {
+                        progressBar.setValue(progress);
+                        progressBar.setString((playing[0] ? "Воспроизведение, загрузка: " : "Загрузка: ") + progress + "%");
+                    }
+                }),
+                // Начало файла загружено: воспроизводим, пока загружается остальное
+                (streamUrl, videoPath) -> SwingUtilities.invokeLater(() -> {
+                    if (load == loadGeneration && isLoading && !playing[0]) {
+                        playing[0] = true;
+                        playerPanel.playStream(streamUrl, videoName, videoPath);
+                        // Список снова доступен, индикатор показывает загрузку до ее конца
+                        int progress = progressBar.getValue();
+                        setUIEnabled(true);
+                        isLoading = false;
+                        progressBar.setValue(progress);
+                        progressBar.setVisible(true);
+                    } else {
+                        // Файл уже воспроизводится целиком, загрузка не удалась или выбрано другое видео
+                        networkManager.stopStream(streamUrl);
+                    }
                 }),
                 // Обработчик успешного завершения
                 videoPath -> SwingUtilities.invokeLater(() -> {
-                    playerPanel.playVideo(videoPath);
-                    setUIEnabled(true);
-                    isLoading = false;
-                    progressBar.setVisible(false);
+                    if (playing[0]) {
+                        playerPanel.streamCompleted(videoPath);
+                    } else if (load == loadGeneration) {
+                        playing[0] = true;
+                        playerPanel.playVideo(videoName, videoPath);
+                    }
+                    if (load == loadGeneration) {
+                        setUIEnabled(true);
+                        isLoading = false;
+                        progressBar.setVisible(false);
+                    }
                 }),
                 // Обработчик ошибки
                 error -> SwingUtilities.invokeLater(() -> {
+                    if (load != loadGeneration) {
+                        LOG.debug("Загрузка {} остановлена: {}", videoName, error.getMessage());
+                        return;
+                    }
                     showError("Ошибка загрузки видео", error);
                     setUIEnabled(true);
                     isLoading = false;
@@ -333,6 +299,10 @@ public class VideoListPanel extends JPanel {
     private void setUIEnabled(boolean enabled) {
         videoList.setEnabled(enabled);
         refreshButton.setEnabled(enabled);
+        filterField.setEnabled(enabled);
+        prefixBox.setEnabled(enabled);
+        sortBox.setEnabled(enabled);
+        descendingBox.setEnabled(enabled);
         progressBar.setVisible(!enabled);
         if (enabled) {
             progressBar.setValue(0);
@@ -2,6 +2,7 @@ package org.example;
 
 import uk.co.caprica.vlcj.player.component.EmbeddedMediaPlayerComponent;
 import uk.co.caprica.vlcj.player.base.MediaPlayerEventAdapter;
+import uk.co.caprica.vlcj.player.base.State;
 
 import javax.swing.*;
 import java.awt.*;
@@ -16,6 +17,9 @@ public class VideoPlayerPanel extends JPanel {
     private final VideoControlPanel controlPanel;
     private final DatabaseManager databaseManager;
     private String currentVideoName;
+    private String streamUrl; // Адрес локального потока, который открыт в плеере, или null
+    private Path streamPath; // Файл, который загружается для этого потока
+    private boolean streamComplete; // Файл потока загружен целиком
 
     // Поддерживаемые форматы видео
     private static final String[] SUPPORTED_FORMATS = {".mp4", ".avi", ".mkv", ".mov", ".flv"};
@@ -46,6 +50,15 @@ public class VideoPlayerPanel extends JPanel {
                     databaseManager.saveProgress(currentVideoName, currentTime);
                 }
             }
+
+            @Override
+            public void stopped(uk.co.caprica.vlcj.player.base.MediaPlayer mediaPlayer) {
+                SwingUtilities.invokeLater(() -> {
+                    if (streamComplete) {
+                        switchToFile();
+                    }
+                });
+            }
         });
     }
 
@@ -114,42 +127,98 @@ public class VideoPlayerPanel extends JPanel {
         return false;
     }
 
-    public void playVideo(Path videoPath) {
-        String videoName = videoPath.getFileName().toString();
-        currentVideoName = videoName;
-
-        // Получаем прогресс из базы данных
-        long progress = databaseManager.getProgress(videoName);
+    /**
+     * Воспроизводит загруженное видео с сервера.
+     *
+     * @param videoName имя видео в каталоге сервера; по нему сохраняется позиция просмотра,
+     *                  поэтому одноименные файлы из разных папок не путаются
+     * @param videoPath путь к загруженному файлу
+     */
+    public void playVideo(String videoName, Path videoPath) {
+        start(videoName, videoPath.toString(), videoPath, false);
+    }
 
-        // Запускаем воспроизведение
-        mediaPlayer.mediaPlayer().media().start(videoPath.toString());
+    /**
+     * Воспроизводит видео из локального потока, пока оно еще загружается.
+     *
+     * @param mrl адрес потока
+     * @param videoName имя видео в каталоге сервера
+     * @param videoPath путь, по которому видео будет лежать после загрузки
+     */
+    public void playStream(String mrl, String videoName, Path videoPath) {
+        start(videoName, mrl, videoPath, false);
+        streamUrl = mrl;
+        streamPath = videoPath;
+    }
 
-        // Устанавливаем позицию воспроизведения, если прогресс больше 0
-        if (progress > 0) {
-            mediaPlayer.mediaPlayer().controls().setTime(progress);
+    /**
+     * Сообщает, что файл загружен целиком. Если плеер воспроизводит его из локального потока, поток нужен,
+     * пока идет воспроизведение: после остановки плеер открывает вместо него загруженный файл.
+     *
+     * @param videoPath путь к загруженному файлу
+     */
+    public void streamCompleted(Path videoPath) {
+        if (streamUrl == null || !videoPath.equals(streamPath)) {
+            return;
         }
+        streamComplete = true;
+        State state = mediaPlayer.mediaPlayer().status().state();
+        if (state == State.STOPPED || state == State.ENDED || state == State.ERROR) {
+            switchToFile();
+        }
+    }
+
+    /**
+     * Заменяет в остановленном плеере локальный поток загруженным файлом, не начиная воспроизведение.
+     */
+    private void switchToFile() {
+        Path file = streamPath;
+        releaseStream();
+        mediaPlayer.mediaPlayer().media().prepare(file.toString());
+    }
 
-        // Уведомляем о начале воспроизведения видео с сервера
-        onVideoStarted(videoPath, false);
+    /**
+     * Отпускает локальный поток, который был открыт в плеере.
+     */
+    private void releaseStream() {
+        if (streamUrl != null) {
+            String url = streamUrl;
+            streamUrl = null;
+            streamPath = null;
+            streamComplete = false;
+            onStreamReleased(url);
+        }
     }
 
     public void playLocalVideo(Path videoPath) {
-        String videoName = videoPath.getFileName().toString();
+        start(videoPath.getFileName().toString(), videoPath.toString(), videoPath, true);
+    }
+
+    /**
+     * Запускает воспроизведение с сохраненной позиции просмотра.
+     *
+     * @param videoName имя, под которым сохраняется позиция просмотра
+     * @param mrl файл или адрес потока для плеера
+     * @param videoPath путь к видеофайлу
+     * @param isLocal true, если видео локальное, false если с сервера
+     */
+    private void start(String videoName, String mrl, Path videoPath, boolean isLocal) {
+        releaseStream();
         currentVideoName = videoName;
 
         // Получаем прогресс из базы данных
         long progress = databaseManager.getProgress(videoName);
 
         // Запускаем воспроизведение
-        mediaPlayer.mediaPlayer().media().start(videoPath.toString());
+        mediaPlayer.mediaPlayer().media().start(mrl);
 
         // Устанавливаем позицию воспроизведения, если прогресс больше 0
         if (progress > 0) {
             mediaPlayer.mediaPlayer().controls().setTime(progress);
         }
 
-        // Уведомляем о начале воспроизведения локального видео
-        onVideoStarted(videoPath, true);
+        // Уведомляем о начале воспроизведения
+        onVideoStarted(videoPath, isLocal);
     }
 
     /**
@@ -161,7 +230,16 @@ public class VideoPlayerPanel extends JPanel {
         // Этот метод будет переопределен в VideoClient
     }
 
+    /**
+     * Метод, вызываемый, когда плеер больше не читает локальный поток
+     * @param url адрес потока
+     */
+    protected void onStreamReleased(String url) {
+        // Этот метод будет переопределен в VideoClient
+    }
+
     public void release() {
+        releaseStream();
         controlPanel.release();
         mediaPlayer.release();
     }
@@ -0,0 +1,67 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Управляющие запросы не ждут за передачами файлов на соединениях данных.
+ */
+class ConnectionPoolTest {
+    private static final List<String> NAMES = List.of("a.mp4", "b.mp4");
+    private static final long MAX_LIST_WAIT_MS = 500;
+
+    @Test
+    void listIsAnsweredWhileDataConnectionsAreBusy() throws Exception {
+        try (FakeServer server = new FakeServer(NAMES)) {
+            ConnectionPool pool = server.pool();
+            List<ConnectionPool.Connection> data = new ArrayList<>();
+            try {
+                for (int i = 0; i < SegmentedDownload.MAX_CONNECTIONS; i++) {
+                    ConnectionPool.Connection connection = pool.acquireData();
+                    data.add(connection);
+                    // Тело не читается: сервер отправляет его, пока не заполнит буферы сокета
+                    connection.call(Protocol.get(1000 + i, "a.mp4", 0, -1), Protocol.GET_RESULT);
+                }
+
+                long slowest = 0;
+                for (int requestId = 1; requestId <= 20; requestId++) {
+                    long start = System.nanoTime();
+                    Protocol.Frame list = pool.request(requestId, Protocol.list(requestId), Protocol.LIST_RESULT)
+                            .get(MAX_LIST_WAIT_MS * 10, TimeUnit.MILLISECONDS);
+                    slowest = Math.max(slowest, System.nanoTime() - start);
+                    assertEquals(NAMES, Protocol.readListResult(list.payload));
+                }
+                assertTrue(slowest < MAX_LIST_WAIT_MS * 1_000_000,
+                        "LIST ждал " + slowest / 1_000_000 + " мс");
+            } finally {
+                for (ConnectionPool.Connection connection : data) {
+                    connection.close();
+                }
+                pool.close();
+            }
+        }
+    }
+
+    @Test
+    void releasedDataConnectionIsReused() throws Exception {
+        try (FakeServer server = new FakeServer(NAMES)) {
+            ConnectionPool pool = server.pool();
+            try {
+                ConnectionPool.Connection first = pool.acquireData();
+                pool.releaseData(first);
+                ConnectionPool.Connection second = pool.acquireData();
+                assertSame(first, second);
+                second.close();
+            } finally {
+                pool.close();
+            }
+        }
+    }
+}
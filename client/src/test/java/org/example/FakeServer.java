@@ -0,0 +1,213 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Сервер основного протокола для тестов клиента: отвечает на HELLO, LIST и CHECK.
+ * На GET добавленного видео ({@link #addVideo}) отдает запрошенный диапазон файла, на GET
+ * любого другого имени бесконечно отправляет кадры DATA, пока клиент их читает.
+ * Каждое подключение обслуживается своим потоком.
+ * <p>
+ * Скорость отдачи файлов можно ограничить общей для всех подключений полосой ({@link #rate}),
+ * а загрузку — оборвать, задав, сколько байтов тела сервер еще отдаст ({@link #budget}).
+ */
+final class FakeServer implements Closeable {
+    static final int DATA_FRAME = 64 * 1024;
+
+    final int port;
+    final List<String> names;
+    final Set<String> unanswered = ConcurrentHashMap.newKeySet(); // Имена CHECK, оставляемых без ответа
+    final List<long[]> served = new CopyOnWriteArrayList<>(); // Запрошенные диапазоны файлов: смещение, длина
+    final AtomicLong budget = new AtomicLong(Long.MAX_VALUE); // Сколько байтов тела еще отдать до обрыва
+    volatile long rate; // Байт/с на все подключения, 0 — без ограничения
+    private final Map<String, Video> videos = new ConcurrentHashMap<>();
+    private long linkFree; // Время, когда полоса освободится; защищено this
+    private final ServerSocket serverSocket;
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+
+    FakeServer(List<String> names) throws IOException {
+        this.names = names;
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        this.port = serverSocket.getLocalPort();
+        Thread acceptor = new Thread(this::accept, "fake-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Добавляет видео, которое сервер отдает по CHECK и GET.
+     */
+    void addVideo(String name, Path file, long lastModified) throws IOException {
+        videos.put(name, new Video(Files.readAllBytes(file), lastModified,
+                ContentHash.hashFile(file, ForkJoinPool.commonPool())));
+    }
+
+    ConnectionPool pool() {
+        return new ConnectionPool("127.0.0.1", port, new AtomicInteger());
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                sockets.add(socket);
+                Thread session = new Thread(() -> serve(socket), "fake-session");
+                session.setDaemon(true);
+                session.start();
+            }
+        } catch (IOException e) {
+            // Сервер закрыт
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            Protocol.Frame frame;
+            while ((frame = Protocol.read(in)) != null) {
+                switch (frame.opcode) {
+                    case Protocol.HELLO:
+                        send(out, Protocol.helloOk(frame.requestId, Protocol.helloFlags(frame)));
+                        break;
+                    case Protocol.LIST:
+                        send(out, Protocol.listResult(frame.requestId, names));
+                        break;
+                    case Protocol.CHECK: {
+                        String name = Protocol.getString(frame.payload);
+                        Video video = videos.get(name);
+                        if (video != null) {
+                            send(out, Protocol.checkResult(frame.requestId, video.content.length,
+                                    video.lastModified, video.hash));
+                        } else if (!unanswered.contains(name)) {
+                            send(out, Protocol.checkResult(frame.requestId, 1000, 1, ""));
+                        }
+                        break;
+                    }
+                    case Protocol.GET: {
+                        Video video = videos.get(Protocol.getString(frame.payload));
+                        if (video == null) {
+                            sendEndlessBody(out, frame.requestId);
+                            return;
+                        }
+                        sendRange(out, frame.requestId, video, frame.payload.getLong(), frame.payload.getLong());
+                        break;
+                    }
+                    default:
+                        send(out, Protocol.error(frame.requestId, Protocol.ERROR_BAD_REQUEST, "Неизвестный запрос"));
+                }
+            }
+        } catch (IOException e) {
+            // Клиент отключился
+        }
+    }
+
+    /**
+     * Отдает диапазон файла кадрами DATA. Если запас {@link #budget} исчерпан, закрывает соединение.
+     */
+    private void sendRange(DataOutputStream out, int requestId, Video video, long offset, long length)
+            throws IOException {
+        long size = video.content.length;
+        long end = length < 0 ? size : Math.min(size, offset + length);
+        send(out, Protocol.getResult(requestId, size, end - offset));
+        served.add(new long[] {offset, end - offset});
+        for (long position = offset; position < end; ) {
+            int frame = (int) Math.min(DATA_FRAME, end - position);
+            if (budget.addAndGet(-frame) < 0) {
+                throw new IOException("Загрузка оборвана тестом");
+            }
+            throttle(frame);
+            write(out, Protocol.dataHeader(requestId, frame));
+            out.write(video.content, (int) position, frame);
+            out.flush();
+            position += frame;
+        }
+    }
+
+    /**
+     * Ждет очереди кадра на общей полосе: кадры всех подключений уходят по одному, как по одному каналу.
+     */
+    private void throttle(int bytes) throws IOException {
+        long limit = rate;
+        if (limit == 0) {
+            return;
+        }
+        long slot;
+        synchronized (this) {
+            slot = Math.max(System.nanoTime(), linkFree);
+            linkFree = slot + bytes * 1_000_000_000L / limit;
+        }
+        long delay = slot - System.nanoTime();
+        if (delay > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private static void sendEndlessBody(DataOutputStream out, int requestId) throws IOException {
+        send(out, Protocol.getResult(requestId, Long.MAX_VALUE, Long.MAX_VALUE));
+        byte[] data = new byte[DATA_FRAME];
+        while (true) {
+            write(out, Protocol.dataHeader(requestId, data.length));
+            out.write(data);
+            out.flush();
+        }
+    }
+
+    private static void send(DataOutputStream out, ByteBuffer frame) throws IOException {
+        write(out, frame);
+        out.flush();
+    }
+
+    private static void write(DataOutputStream out, ByteBuffer frame) throws IOException {
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    /**
+     * Видео, которое отдает сервер.
+     */
+    private static final class Video {
+        final byte[] content;
+        final long lastModified;
+        final String hash;
+
+        Video(byte[] content, long lastModified, String hash) {
+            this.content = content;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Перемотка во время загрузки: чтение с произвольной позиции через локальный поток ждет
+ * ограниченное время, а не пока загрузка дойдет до этой позиции по порядку.
+ */
+class LocalStreamServerTest {
+    private static final int VIDEO_SIZE = 192 * 1024 * 1024;
+    private static final long LINK_RATE = 16L * 1024 * 1024; // Весь файл загружается за 12 с
+    private static final int SEEK_READ = 512 * 1024; // Сколько плеер читает после перемотки
+    private static final int SEEKS = 6;
+    private static final long MAX_SEEK_WAIT_MS = 3000; // По порядку загрузка доходит до позиций за 3–12 с
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void randomSeeksDuringDownloadWaitBoundedTime() throws Exception {
+        byte[] content = new byte[VIDEO_SIZE];
+        new Random(3).nextBytes(content);
+        Path source = dir.resolve("source.mp4");
+        Files.write(source, content);
+        Path target = dir.resolve("video.mp4");
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try (FakeServer server = new FakeServer(List.of("video.mp4"));
+             LocalStreamServer streams = new LocalStreamServer()) {
+            server.addVideo("video.mp4", source, 1);
+            server.rate = LINK_RATE;
+            ConnectionPool pool = server.pool();
+            SegmentedDownload download = new SegmentedDownload("video.mp4", VIDEO_SIZE, 1,
+                    ContentHash.hashFile(source, ForkJoinPool.commonPool()), target, pool, executor, percent -> { });
+            Future<?> finished = executor.submit(() -> {
+                download.run();
+                return null;
+            });
+            String url = streams.publish(target, VIDEO_SIZE, download);
+
+            Random random = new Random(4);
+            long slowest = 0;
+            for (int i = 0; i < SEEKS; i++) {
+                int offset = VIDEO_SIZE / 4 + random.nextInt(VIDEO_SIZE * 3 / 4 - SEEK_READ);
+                long start = System.nanoTime();
+                byte[] read = readRange(url, offset, SEEK_READ);
+                slowest = Math.max(slowest, System.nanoTime() - start);
+                assertArrayEquals(Arrays.copyOfRange(content, offset, offset + SEEK_READ), read,
+                        "Неверные данные с " + offset);
+            }
+            assertTrue(slowest < MAX_SEEK_WAIT_MS * 1_000_000,
+                    "Перемотка ждала " + slowest / 1_000_000 + " мс");
+
+            finished.get(60, TimeUnit.SECONDS);
+            assertEquals(-1, Files.mismatch(source, target));
+            pool.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void unpublishedStreamsAreNotFound() throws Exception {
+        try (LocalStreamServer streams = new LocalStreamServer()) {
+            SegmentedDownload stopped = new SegmentedDownload("a.mp4", 1, 1, "", dir.resolve("a.mp4"), null,
+                    Runnable::run, percent -> { });
+            SegmentedDownload failed = new SegmentedDownload("b.mp4", 1, 1, "", dir.resolve("b.mp4"), null,
+                    Runnable::run, percent -> { });
+            String stoppedUrl = streams.publish(dir.resolve("a.mp4"), 1, stopped);
+            String failedUrl = streams.publish(dir.resolve("b.mp4"), 1, failed);
+            assertEquals(416, status(stoppedUrl)); // Опубликован: файла еще нет, но адрес найден
+            assertEquals(416, status(failedUrl));
+
+            streams.unpublish(stoppedUrl);
+            streams.unpublish(failed);
+            assertEquals(404, status(stoppedUrl));
+            assertEquals(404, status(failedUrl));
+        }
+    }
+
+    /**
+     * @return код ответа на запрос диапазона за концом файла, который не ждет загрузки
+     */
+    private static int status(String url) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) URI.create(url).toURL().openConnection();
+        connection.setRequestProperty("Range", "bytes=10-");
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static byte[] readRange(String url, int offset, int length) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) URI.create(url).toURL().openConnection();
+        connection.setReadTimeout(30_000);
+        connection.setRequestProperty("Range", "bytes=" + offset + "-" + (offset + length - 1));
+        assertEquals(206, connection.getResponseCode());
+        try (InputStream in = connection.getInputStream()) {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Запрос без ответа завершается ошибкой по таймауту один, пока сервер отвечает на другие запросы;
+ * молчащий сервер закрывает соединение.
+ */
+class MultiplexedConnectionTest {
+    private static final long TIMEOUT_MS = 300;
+
+    private FakeServer server;
+    private ConnectionPool pool;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        server = new FakeServer(List.of("a.mp4"));
+        server.unanswered.add("lost.mp4");
+        pool = server.pool();
+    }
+
+    @AfterEach
+    void stopServer() throws Exception {
+        pool.close();
+        server.close();
+    }
+
+    @Test
+    void overdueRequestFailsAloneWhileServerKeepsAnswering() throws Exception {
+        try (MultiplexedConnection control = new MultiplexedConnection(pool.open(), TIMEOUT_MS)) {
+            List<CompletableFuture<Protocol.Frame>> responses = control.requestAll(new int[] {1, 2},
+                    new ByteBuffer[] {Protocol.check(1, "lost.mp4"), Protocol.check(2, "a.mp4")},
+                    Protocol.CHECK_RESULT);
+            assertEquals(1000, responses.get(1).get(2, TimeUnit.SECONDS).payload.getLong());
+
+            ExecutionException error = assertThrows(ExecutionException.class,
+                    () -> responses.get(0).get(TIMEOUT_MS * 10, TimeUnit.MILLISECONDS));
+            assertInstanceOf(SocketTimeoutException.class, error.getCause());
+            assertTrue(control.isOpen(), "Соединение закрыто из-за одного запроса");
+
+            Protocol.Frame list = control.requestAll(new int[] {3}, new ByteBuffer[] {Protocol.list(3)},
+                    Protocol.LIST_RESULT).get(0).get(2, TimeUnit.SECONDS);
+            assertEquals(List.of("a.mp4"), Protocol.readListResult(list.payload));
+        }
+    }
+
+    @Test
+    void silentServerClosesConnection() throws Exception {
+        try (MultiplexedConnection control = new MultiplexedConnection(pool.open(), TIMEOUT_MS)) {
+            List<CompletableFuture<Protocol.Frame>> responses = control.requestAll(new int[] {1, 2},
+                    new ByteBuffer[] {Protocol.check(1, "lost.mp4"), Protocol.check(2, "lost.mp4")},
+                    Protocol.CHECK_RESULT);
+            for (CompletableFuture<Protocol.Frame> response : responses) {
+                ExecutionException error = assertThrows(ExecutionException.class,
+                        () -> response.get(TIMEOUT_MS * 10, TimeUnit.MILLISECONDS));
+                assertInstanceOf(SocketTimeoutException.class, error.getCause());
+            }
+            assertFalse(control.isOpen(), "Зависшее соединение осталось открытым");
+        }
+    }
+}
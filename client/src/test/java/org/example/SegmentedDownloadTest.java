@@ -0,0 +1,207 @@
+package org.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Прерванная загрузка продолжается с места обрыва: части, проверенные по журналу, не загружаются заново,
+ * а готовый файл переименовывается в целевой, а не копируется. Отмена останавливает загрузку
+ * с медленного сервера, не дожидаясь конца сегментов.
+ */
+class SegmentedDownloadTest {
+    private static final int CHUNKS = 10;
+    private static final int VIDEO_SIZE = CHUNKS * ContentHash.CHUNK_SIZE - 12345;
+    private static final long LAST_MODIFIED = 1;
+    private static final long SLOW_RATE = 512 * 1024; // Сегмент с такой скоростью загружается около 16 с
+    private static final long CANCEL_TIMEOUT_MS = 2000;
+
+    @TempDir
+    Path dir;
+
+    private Path source;
+    private Path target;
+    private String hash;
+    private FakeServer server;
+    private ConnectionPool pool;
+    private ExecutorService executor;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        byte[] content = new byte[VIDEO_SIZE];
+        new Random(5).nextBytes(content);
+        source = dir.resolve("source.mp4");
+        Files.write(source, content);
+        target = dir.resolve("video.mp4");
+        hash = ContentHash.hashFile(source, ForkJoinPool.commonPool());
+        server = new FakeServer(List.of("video.mp4"));
+        server.addVideo("video.mp4", source, LAST_MODIFIED);
+        pool = server.pool();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterEach
+    void stopServer() throws Exception {
+        executor.shutdownNow();
+        pool.close();
+        server.close();
+    }
+
+    @Test
+    void resumesWithoutRefetchingVerifiedChunks() throws Exception {
+        BitSet verified = interruptHalfway();
+        Path part = SegmentedDownload.partFile(target);
+        Object partInode = Files.getAttribute(part, "unix:ino");
+
+        download().run();
+
+        for (long[] range : server.served) {
+            int first = (int) (range[0] / ContentHash.CHUNK_SIZE);
+            int last = (int) ((range[0] + range[1] - 1) / ContentHash.CHUNK_SIZE);
+            for (int index = first; index <= last; index++) {
+                assertFalse(verified.get(index), "Проверенная часть " + index + " загружена заново");
+            }
+        }
+        assertEquals(VIDEO_SIZE - verifiedBytes(verified), servedBytes(), "Загружено больше недостающего");
+        assertPromoted(part, partInode);
+    }
+
+    @Test
+    void refetchesVerifiedChunkCorruptedOnDisk() throws Exception {
+        BitSet verified = interruptHalfway();
+        Path part = SegmentedDownload.partFile(target);
+        int corrupted = verified.nextSetBit(0);
+        try (RandomAccessFile file = new RandomAccessFile(part.toFile(), "rw")) {
+            long position = (long) corrupted * ContentHash.CHUNK_SIZE + 100;
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0xFF);
+        }
+        Object partInode = Files.getAttribute(part, "unix:ino");
+
+        download().run();
+
+        long corruptedStart = (long) corrupted * ContentHash.CHUNK_SIZE;
+        assertTrue(server.served.stream().anyMatch(range -> range[0] <= corruptedStart
+                        && range[0] + range[1] > corruptedStart),
+                "Испорченная часть " + corrupted + " не загружена заново");
+        verified.clear(corrupted);
+        assertEquals(VIDEO_SIZE - verifiedBytes(verified), servedBytes(), "Загружено больше недостающего");
+        assertPromoted(part, partInode);
+    }
+
+    @Test
+    void cancelDoesNotWaitForSegmentsFromSlowServer() throws Exception {
+        server.rate = SLOW_RATE;
+        SegmentedDownload download = download();
+        Future<?> run = executor.submit(() -> {
+            download.run();
+            return null;
+        });
+        download.awaitRange(0, SegmentedDownload.BLOCK_SIZE);
+
+        long start = System.nanoTime();
+        download.cancel();
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+
+        assertTrue(elapsed < CANCEL_TIMEOUT_MS, "Отмена заняла " + elapsed + " мс");
+        ExecutionException error = assertThrows(ExecutionException.class, run::get);
+        assertTrue(error.getCause() instanceof IOException, String.valueOf(error.getCause()));
+        assertTrue(download.isFailed());
+    }
+
+    /**
+     * Обрывает загрузку, когда сервер отдал половину файла.
+     *
+     * @return части, отмеченные в журнале и совпадающие с исходным файлом
+     */
+    private BitSet interruptHalfway() throws Exception {
+        server.budget.set(VIDEO_SIZE / 2);
+        assertThrows(IOException.class, download()::run);
+
+        Path part = SegmentedDownload.partFile(target);
+        Path journal = part.resolveSibling(part.getFileName() + SegmentedDownload.JOURNAL_SUFFIX);
+        assertTrue(Files.exists(part), "Файл .part удален после обрыва");
+        assertTrue(Files.exists(journal), "Журнал удален после обрыва");
+        assertFalse(Files.exists(target), "Целевой файл появился до конца загрузки");
+
+        BitSet verified = new BitSet();
+        byte[] expected = Files.readAllBytes(source);
+        byte[] received = Files.readAllBytes(part);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journal)))) {
+            in.readInt();
+            in.readLong();
+            in.readLong();
+            in.readUTF();
+            while (true) {
+                int index = in.readInt();
+                in.readLong();
+                int from = index * ContentHash.CHUNK_SIZE;
+                int to = Math.min(VIDEO_SIZE, from + ContentHash.CHUNK_SIZE);
+                assertTrue(Arrays.equals(expected, from, to, received, from, to),
+                        "Часть " + index + " в журнале не совпадает с исходной");
+                verified.set(index);
+            }
+        } catch (EOFException e) {
+            // Конец журнала
+        }
+        assertFalse(verified.isEmpty(), "До обрыва не получено ни одной части");
+        assertTrue(verified.cardinality() < CHUNKS, "Загрузка не была прервана");
+
+        server.served.clear();
+        server.budget.set(Long.MAX_VALUE);
+        return verified;
+    }
+
+    private SegmentedDownload download() {
+        return new SegmentedDownload("video.mp4", VIDEO_SIZE, LAST_MODIFIED, hash, target, pool, executor,
+                percent -> { });
+    }
+
+    /**
+     * Проверяет, что загруженный файл совпадает с исходным и стал целевым переименованием файла .part:
+     * у целевого файла тот же индексный дескриптор, а файл .part и журнал удалены.
+     */
+    private void assertPromoted(Path part, Object partInode) throws IOException {
+        assertEquals(-1, Files.mismatch(source, target));
+        assertEquals(partInode, Files.getAttribute(target, "unix:ino"), "Файл скопирован, а не переименован");
+        assertFalse(Files.exists(part));
+        assertFalse(Files.exists(part.resolveSibling(part.getFileName() + SegmentedDownload.JOURNAL_SUFFIX)));
+    }
+
+    private static long verifiedBytes(BitSet verified) {
+        long bytes = 0;
+        for (int index = verified.nextSetBit(0); index >= 0; index = verified.nextSetBit(index + 1)) {
+            bytes += Math.min(ContentHash.CHUNK_SIZE, VIDEO_SIZE - (long) index * ContentHash.CHUNK_SIZE);
+        }
+        return bytes;
+    }
+
+    private long servedBytes() {
+        return server.served.stream().mapToLong(range -> range[1]).sum();
+    }
+}
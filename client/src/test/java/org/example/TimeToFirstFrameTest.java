@@ -0,0 +1,128 @@
+package org.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Воспроизведение во время загрузки начинается задолго до ее конца, где бы в MP4 ни лежал индекс:
+ * перед данными, как в файлах для потоковой передачи, или после них, в конце файла.
+ * Загрузка идет с сервера с ограниченной полосой, и время до готовности потока сравнивается
+ * со временем всей загрузки.
+ */
+class TimeToFirstFrameTest {
+    private static final int VIDEO_SIZE = 64 * 1024 * 1024;
+    private static final int MOOV_SIZE = 256 * 1024;
+    private static final long RATE = 16 * 1024 * 1024; // Вся загрузка занимает около 4 с
+    private static final long STREAM_BUFFER = 1024 * 1024;
+    private static final long LAST_MODIFIED = 1;
+
+    @TempDir
+    Path dir;
+
+    private FakeServer server;
+    private ConnectionPool pool;
+    private ExecutorService executor;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = new FakeServer(List.of("video.mp4"));
+        server.rate = RATE;
+        pool = server.pool();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterEach
+    void stopServer() throws Exception {
+        executor.shutdownNow();
+        pool.close();
+        server.close();
+    }
+
+    @ParameterizedTest(name = "индекс перед данными: {0}")
+    @ValueSource(booleans = {true, false})
+    void streamIsReadyLongBeforeDownloadEnds(boolean moovFirst) throws Exception {
+        Path source = dir.resolve("source.mp4");
+        writeMp4(source, moovFirst);
+        server.addVideo("video.mp4", source, LAST_MODIFIED);
+        SegmentedDownload download = new SegmentedDownload("video.mp4", VIDEO_SIZE, LAST_MODIFIED,
+                ContentHash.hashFile(source, ForkJoinPool.commonPool()), dir.resolve("video.mp4"), pool, executor,
+                percent -> { });
+
+        long start = System.nanoTime();
+        Future<Long> finished = executor.submit(() -> {
+            download.run();
+            return System.nanoTime() - start;
+        });
+        NetworkManager.awaitStreamable(download, STREAM_BUFFER);
+        long ready = System.nanoTime() - start;
+
+        assertFalse(download.isWritten(0, VIDEO_SIZE), "Поток готов только после всей загрузки");
+        long[] index;
+        try (FileChannel channel = download.openForReading()) {
+            index = Mp4Index.locate(channel, VIDEO_SIZE);
+            ByteBuffer moov = ByteBuffer.allocate(MOOV_SIZE);
+            while (moov.hasRemaining() && channel.read(moov, index[0] + moov.position()) >= 0) {
+                // Чтение индекса с диска
+            }
+            byte[] expected = new byte[MOOV_SIZE];
+            ByteBuffer.wrap(Files.readAllBytes(source)).position((int) index[0]).get(expected);
+            assertArrayEquals(expected, moov.array(), "Индекс на диске не совпадает с исходным");
+        }
+        assertEquals(moovFirst ? 24 : VIDEO_SIZE - MOOV_SIZE, index[0]);
+
+        long total = finished.get();
+        assertEquals(-1, Files.mismatch(source, dir.resolve("video.mp4")));
+        assertTrue(ready * 3 < total, String.format("Поток готов через %d мс, загрузка заняла %d мс",
+                ready / 1_000_000, total / 1_000_000));
+    }
+
+    /**
+     * Записывает файл из атомов верхнего уровня {@code ftyp}, {@code moov} и {@code mdat}
+     * с индексом перед данными или после них. Содержимое атомов случайное.
+     */
+    private static void writeMp4(Path path, boolean moovFirst) throws IOException {
+        Random random = new Random(7);
+        byte[] ftyp = ByteBuffer.allocate(24).putInt(24).put(type("ftyp")).put(type("isom")).putInt(0x200)
+                .put(type("isom")).put(type("mp42")).array();
+        byte[] moov = atom("moov", MOOV_SIZE, random);
+        byte[] mdat = atom("mdat", VIDEO_SIZE - ftyp.length - MOOV_SIZE, random);
+        try (OutputStream out = Files.newOutputStream(path)) {
+            out.write(ftyp);
+            out.write(moovFirst ? moov : mdat);
+            out.write(moovFirst ? mdat : moov);
+        }
+    }
+
+    private static byte[] atom(String type, int size, Random random) {
+        byte[] atom = new byte[size];
+        random.nextBytes(atom);
+        ByteBuffer.wrap(atom).putInt(size).put(type(type));
+        return atom;
+    }
+
+    private static byte[] type(String type) {
+        return type.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,160 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Хэш содержимого видеофайла для проверки актуальности копий.
+ * <p>
+ * Файл делится на части по {@link #CHUNK_SIZE}; каждая часть хэшируется xxHash64 независимо,
+ * поэтому части считаются параллельно. Итоговый хэш — xxHash64 от хэшей частей с размером
+ * файла в качестве seed. Результат записывается как 16 шестнадцатеричных цифр.
+ * <p>
+ * Сервер и клиент считают хэш этим же классом из модуля common, поэтому их хэши совпадают.
+ */
+final class ContentHash {
+    static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private ContentHash() {
+    }
+
+    /**
+     * Вычисляет хэш файла, распределяя части по потокам пула.
+     *
+     * @param file путь к файлу
+     * @param pool пул, в котором хэшируются части
+     * @return хэш в шестнадцатеричном виде
+     * @throws IOException если файл не удалось прочитать
+     */
+    static String hashFile(Path file, ForkJoinPool pool) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int chunks = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            List<ChunkTask> tasks = new ArrayList<>(chunks);
+            for (int i = 0; i < chunks; i++) {
+                long offset = (long) i * CHUNK_SIZE;
+                tasks.add(new ChunkTask(channel, offset, (int) Math.min(CHUNK_SIZE, size - offset)));
+            }
+            pool.invoke(new RecursiveTask<Void>() {
+                @Override
+                protected Void compute() {
+                    invokeAll(tasks);
+                    return null;
+                }
+            });
+
+            ByteBuffer digests = ByteBuffer.allocate(chunks * 8).order(ByteOrder.LITTLE_ENDIAN);
+            for (ChunkTask task : tasks) {
+                digests.putLong(task.join());
+            }
+            return String.format("%016x", xxHash64(digests.array(), 0, digests.capacity(), size));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Вычисляет xxHash64 участка массива.
+     */
+    static long xxHash64(byte[] data, int offset, int length, long seed) {
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+        int position = offset;
+        int end = offset + length;
+        long hash;
+        if (length >= 32) {
+            long v1 = seed + PRIME1 + PRIME2;
+            long v2 = seed + PRIME2;
+            long v3 = seed;
+            long v4 = seed - PRIME1;
+            for (int limit = end - 32; position <= limit; position += 32) {
+                v1 = round(v1, buffer.getLong(position));
+                v2 = round(v2, buffer.getLong(position + 8));
+                v3 = round(v3, buffer.getLong(position + 16));
+                v4 = round(v4, buffer.getLong(position + 24));
+            }
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        } else {
+            hash = seed + PRIME5;
+        }
+        hash += length;
+
+        for (; position + 8 <= end; position += 8) {
+            hash ^= round(0, buffer.getLong(position));
+            hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+        }
+        if (position + 4 <= end) {
+            hash ^= (buffer.getInt(position) & 0xFFFFFFFFL) * PRIME1;
+            hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+            position += 4;
+        }
+        for (; position < end; position++) {
+            hash ^= (data[position] & 0xFFL) * PRIME5;
+            hash = Long.rotateLeft(hash, 11) * PRIME1;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private static long round(long accumulator, long input) {
+        return Long.rotateLeft(accumulator + input * PRIME2, 31) * PRIME1;
+    }
+
+    private static long mergeRound(long accumulator, long value) {
+        return (accumulator ^ round(0, value)) * PRIME1 + PRIME4;
+    }
+
+    /**
+     * Хэширование одной части файла позиционным чтением, без общего состояния канала.
+     */
+    private static final class ChunkTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+        private final transient FileChannel channel;
+        private final long offset;
+        private final int length;
+
+        ChunkTask(FileChannel channel, long offset, int length) {
+            this.channel = channel;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        protected Long compute() {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            try {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) {
+                        throw new IOException("Файл укоротился во время хэширования");
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return xxHash64(buffer.array(), 0, length, 0);
+        }
+    }
+}
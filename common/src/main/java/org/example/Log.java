@@ -0,0 +1,252 @@
+package org.example;
+
+import java.nio.file.Path;
+
+/**
+ * Журнал с асинхронной записью.
+ * <p>
+ * Вызов журнала только кладет шаблон сообщения и аргументы в кольцевой буфер {@link LogWriter};
+ * строка собирается и выводится фоновым потоком. Места подстановки аргументов в шаблоне
+ * обозначаются {@code {}}. Если уровень сообщения отключен, вызов возвращается сразу,
+ * ничего не собирая. Если последний аргумент — исключение без места подстановки,
+ * к сообщению добавляется трасса стека.
+ * <p>
+ * Журнал клиента ({@link #forClient(int)}) добавляет к сообщениям префикс {@code [Клиент N]}
+ * и, как и {@link #limited(String)}, ограничивает повторы: одно и то же сообщение выводится
+ * не чаще {@link #REPEAT_LIMIT} раз в секунду, о пропущенных повторах сообщается одной строкой.
+ */
+final class Log {
+    /**
+     * Уровни важности сообщений.
+     */
+    enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    static final int REPEAT_LIMIT = 20; // Повторов одного сообщения клиента в секунду
+    private static final long REPEAT_WINDOW = 1_000_000_000; // Окно подсчета повторов, нс
+    private static final int REPEAT_SLOTS = 8; // Различных сообщений, повторы которых учитываются одновременно
+
+    private static final LogWriter WRITER = LogWriter.start();
+    private static final Log ROOT = new Log(null);
+    private static volatile Level threshold = Level.INFO;
+
+    final String prefix; // Префикс сообщений, null — без префикса
+    private final RepeatSlot[] repeats; // null — повторы не ограничиваются
+
+    private Log(String prefix) {
+        this.prefix = prefix;
+        if (prefix == null) {
+            this.repeats = null;
+        } else {
+            this.repeats = new RepeatSlot[REPEAT_SLOTS];
+            for (int i = 0; i < REPEAT_SLOTS; i++) {
+                repeats[i] = new RepeatSlot();
+            }
+        }
+    }
+
+    /**
+     * Общий журнал без префикса и без ограничения повторов.
+     */
+    static Log root() {
+        return ROOT;
+    }
+
+    /**
+     * Создает журнал подключения. Им пользуется только поток, обслуживающий подключение.
+     *
+     * @param clientId идентификатор клиента
+     * @return журнал с префиксом клиента
+     */
+    static Log forClient(int clientId) {
+        return limited("[Клиент " + clientId + "] ");
+    }
+
+    /**
+     * Создает журнал с ограничением повторов. Им должен пользоваться один поток.
+     *
+     * @param prefix префикс сообщений
+     */
+    static Log limited(String prefix) {
+        return new Log(prefix);
+    }
+
+    /**
+     * Настраивает журнал.
+     *
+     * @param level наименьший выводимый уровень
+     * @param file файл журнала или null, если писать только в консоль
+     * @param maxFileBytes размер файла, после которого он переименовывается и начинается новый
+     * @param maxFiles сколько старых файлов хранить
+     */
+    static void configure(Level level, Path file, long maxFileBytes, int maxFiles) {
+        threshold = level;
+        WRITER.setFile(file, maxFileBytes, maxFiles);
+    }
+
+    /**
+     * Разбирает имя уровня без учета регистра.
+     *
+     * @throws IllegalArgumentException если уровень неизвестен
+     */
+    static Level parseLevel(String name) {
+        for (Level level : Level.values()) {
+            if (level.name().equalsIgnoreCase(name)) {
+                return level;
+            }
+        }
+        throw new IllegalArgumentException("Неизвестный уровень журнала: " + name);
+    }
+
+    /**
+     * Возвращает число сообщений, не попавших в журнал из-за переполнения буфера.
+     */
+    static long dropped() {
+        return WRITER.dropped();
+    }
+
+    /**
+     * Дожидается вывода уже принятых сообщений.
+     */
+    static void flush() {
+        WRITER.flush();
+    }
+
+    static boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    boolean isInfoEnabled() {
+        return isEnabled(Level.INFO);
+    }
+
+    void debug(String template) {
+        log(Level.DEBUG, template, 0, null, null, null);
+    }
+
+    void debug(String template, Object arg) {
+        log(Level.DEBUG, template, 1, arg, null, null);
+    }
+
+    void debug(String template, Object arg1, Object arg2) {
+        log(Level.DEBUG, template, 2, arg1, arg2, null);
+    }
+
+    void debug(String template, Object arg1, Object arg2, Object arg3) {
+        log(Level.DEBUG, template, 3, arg1, arg2, arg3);
+    }
+
+    void info(String template) {
+        log(Level.INFO, template, 0, null, null, null);
+    }
+
+    void info(String template, Object arg) {
+        log(Level.INFO, template, 1, arg, null, null);
+    }
+
+    void info(String template, Object arg1, Object arg2) {
+        log(Level.INFO, template, 2, arg1, arg2, null);
+    }
+
+    void info(String template, Object arg1, Object arg2, Object arg3) {
+        log(Level.INFO, template, 3, arg1, arg2, arg3);
+    }
+
+    void warn(String template) {
+        log(Level.WARN, template, 0, null, null, null);
+    }
+
+    void warn(String template, Object arg) {
+        log(Level.WARN, template, 1, arg, null, null);
+    }
+
+    void warn(String template, Object arg1, Object arg2) {
+        log(Level.WARN, template, 2, arg1, arg2, null);
+    }
+
+    void warn(String template, Object arg1, Object arg2, Object arg3) {
+        log(Level.WARN, template, 3, arg1, arg2, arg3);
+    }
+
+    void error(String template) {
+        log(Level.ERROR, template, 0, null, null, null);
+    }
+
+    void error(String template, Object arg) {
+        log(Level.ERROR, template, 1, arg, null, null);
+    }
+
+    void error(String template, Object arg1, Object arg2) {
+        log(Level.ERROR, template, 2, arg1, arg2, null);
+    }
+
+    void error(String template, Object arg1, Object arg2, Object arg3) {
+        log(Level.ERROR, template, 3, arg1, arg2, arg3);
+    }
+
+    /**
+     * Сообщает о еще не выведенных пропущенных повторах. Вызывается при отключении клиента.
+     */
+    void close() {
+        if (repeats != null) {
+            for (RepeatSlot slot : repeats) {
+                reportSuppressed(slot);
+            }
+        }
+    }
+
+    private void log(Level level, String template, int argCount, Object arg1, Object arg2, Object arg3) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        if (repeats != null && !allowRepeat(level, template)) {
+            return;
+        }
+        WRITER.publish(level, this, template, argCount, arg1, arg2, arg3);
+    }
+
+    /**
+     * Решает, выводить ли очередной повтор сообщения. Сообщения различаются по шаблону:
+     * шаблоны — строковые константы, поэтому достаточно сравнения ссылок.
+     */
+    private boolean allowRepeat(Level level, String template) {
+        RepeatSlot slot = repeats[(System.identityHashCode(template) & 0x7fffffff) % REPEAT_SLOTS];
+        long now = System.nanoTime();
+        if (slot.template != template || now - slot.windowStart >= REPEAT_WINDOW) {
+            reportSuppressed(slot);
+            slot.template = template;
+            slot.level = level;
+            slot.windowStart = now;
+            slot.count = 0;
+        }
+        if (++slot.count <= REPEAT_LIMIT) {
+            return true;
+        }
+        slot.suppressed++;
+        return false;
+    }
+
+    private void reportSuppressed(RepeatSlot slot) {
+        if (slot.suppressed > 0) {
+            WRITER.publish(slot.level, this, "Сообщение повторилось еще {} раз: {}", 2,
+                    slot.suppressed, slot.template, null);
+            slot.suppressed = 0;
+        }
+    }
+
+    /**
+     * Счетчик повторов одного сообщения в текущем окне.
+     */
+    private static final class RepeatSlot {
+        String template;
+        Level level;
+        long windowStart;
+        int count;
+        long suppressed;
+    }
+}
@@ -0,0 +1,369 @@
+package org.example;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Фоновый вывод журнала.
+ * <p>
+ * Сообщения принимаются в кольцевой буфер с заранее созданными ячейками. Потоки-источники
+ * занимают ячейку сравнением с обменом номера записи и публикуют ее записью номера в ячейку,
+ * поэтому не блокируют друг друга и не ждут вывода. Если буфер заполнен, сообщение отбрасывается
+ * и учитывается в счетчике пропущенных. Единственный поток вывода собирает строки пачкой
+ * и пишет их в консоль (предупреждения и ошибки — в stderr) и, если задан, в файл журнала.
+ * Файл, выросший больше заданного размера, переименовывается в {@code имя.1},
+ * прежние — в {@code имя.2} и далее, самый старый удаляется.
+ */
+final class LogWriter implements Runnable {
+    private static final int CAPACITY = 16384; // Ячеек в буфере, степень двойки
+    private static final int BATCH = 256; // Наибольшее число сообщений в одной пачке вывода
+    private static final long IDLE_PARK = 10_000_000; // Пауза потока вывода при пустом буфере, нс
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.").withZone(ZoneId.systemDefault());
+
+    private final Event[] ring = new Event[CAPACITY];
+    private final AtomicLong head = new AtomicLong(); // Номер следующей занимаемой ячейки
+    private volatile long tail; // Номер следующей читаемой ячейки
+    private final LongAdder dropped = new LongAdder();
+    private volatile long droppedTotal;
+    private volatile boolean running = true;
+    private Thread thread;
+    private final StringBuilder out = new StringBuilder(16 * 1024); // Пачка для stdout
+    private final StringBuilder err = new StringBuilder(1024); // Пачка для stderr
+    private final StringBuilder file = new StringBuilder(16 * 1024); // Пачка для файла
+    private volatile FileTarget pendingTarget; // Новый файл журнала, применяется потоком вывода
+    private FileTarget target; // Текущий файл журнала, null — только консоль
+    private long formattedSecond = -1; // Секунда, для которой собрано начало метки времени
+    private String secondPrefix; // Метка времени до миллисекунд
+
+    private LogWriter() {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Event();
+        }
+    }
+
+    /**
+     * Создает буфер и запускает поток вывода. При завершении JVM буфер выводится до конца.
+     */
+    static LogWriter start() {
+        LogWriter writer = new LogWriter();
+        writer.thread = new Thread(writer, "video-log");
+        writer.thread.setDaemon(true);
+        writer.thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(writer::stop, "video-log-shutdown"));
+        return writer;
+    }
+
+    /**
+     * Задает файл журнала; null — писать только в консоль.
+     */
+    void setFile(Path path, long maxBytes, int maxFiles) {
+        pendingTarget = new FileTarget(path, maxBytes, maxFiles);
+        LockSupport.unpark(thread);
+    }
+
+    long dropped() {
+        return droppedTotal + dropped.sum();
+    }
+
+    /**
+     * Кладет сообщение в буфер.
+     *
+     * @return false, если буфер заполнен и сообщение отброшено
+     */
+    boolean publish(Log.Level level, Log source, String template, int argCount,
+                    Object arg1, Object arg2, Object arg3) {
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail >= CAPACITY) {
+                dropped.increment();
+                return false;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+
+        Event event = ring[(int) sequence & (CAPACITY - 1)];
+        event.time = System.currentTimeMillis();
+        event.level = level;
+        event.source = source;
+        event.template = template;
+        event.argCount = argCount;
+        event.arg1 = arg1;
+        event.arg2 = arg2;
+        event.arg3 = arg3;
+        event.sequence = sequence; // Публикация: после этой записи ячейка видна потоку вывода
+        if (level.compareTo(Log.Level.WARN) >= 0) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    /**
+     * Ждет, пока поток вывода не обработает все уже опубликованные сообщения.
+     */
+    void flush() {
+        long target = head.get();
+        LockSupport.unpark(thread);
+        while (tail < target && thread.isAlive()) {
+            LockSupport.parkNanos(1_000_000);
+        }
+    }
+
+    private void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            FileTarget next = pendingTarget;
+            if (next != null) {
+                pendingTarget = null;
+                openTarget(next);
+            }
+            int count = drain();
+            if (count == 0) {
+                if (!running) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_PARK);
+            }
+        }
+        if (target != null) {
+            target.close();
+        }
+    }
+
+    /**
+     * Выводит одну пачку опубликованных сообщений.
+     *
+     * @return число выведенных сообщений
+     */
+    private int drain() {
+        int count = 0;
+        long sequence = tail;
+        while (count < BATCH) {
+            Event event = ring[(int) sequence & (CAPACITY - 1)];
+            if (event.sequence != sequence) {
+                break; // Ячейка еще не опубликована
+            }
+            format(event.level, event.time, event.source.prefix, event.template, event.argCount,
+                    event.arg1, event.arg2, event.arg3);
+            event.clear();
+            sequence++;
+            tail = sequence; // Ячейка снова доступна источникам
+            count++;
+        }
+        long lost = dropped.sumThenReset();
+        if (lost > 0) {
+            droppedTotal += lost;
+            format(Log.Level.WARN, System.currentTimeMillis(), null,
+                    "Буфер журнала переполнен, пропущено сообщений: {}", 1, lost, null, null);
+        }
+        if (count > 0 || lost > 0) {
+            writeBatch();
+        }
+        return count;
+    }
+
+    /**
+     * Собирает строку сообщения и добавляет ее в пачку.
+     */
+    private void format(Log.Level level, long time, String prefix, String template, int argCount,
+                        Object arg1, Object arg2, Object arg3) {
+        StringBuilder console = level.compareTo(Log.Level.WARN) >= 0 ? err : out;
+        int lineStart = console.length();
+        appendTime(console, time);
+        console.append(' ').append(level.name());
+        for (int i = level.name().length(); i < 6; i++) {
+            console.append(' ');
+        }
+        if (prefix != null) {
+            console.append(prefix);
+        }
+        int used = 0;
+        int from = 0;
+        int at;
+        while (used < argCount && (at = template.indexOf("{}", from)) >= 0) {
+            console.append(template, from, at);
+            Object arg = used == 0 ? arg1 : used == 1 ? arg2 : arg3;
+            console.append(arg);
+            used++;
+            from = at + 2;
+        }
+        console.append(template, from, template.length());
+        Object last = argCount == 0 ? null : argCount == 1 ? arg1 : argCount == 2 ? arg2 : arg3;
+        if (used < argCount && last instanceof Throwable) {
+            StringWriter trace = new StringWriter();
+            ((Throwable) last).printStackTrace(new PrintWriter(trace));
+            console.append(System.lineSeparator()).append(trace.toString().trim());
+        }
+        console.append(System.lineSeparator());
+        if (target != null) {
+            file.append(console, lineStart, console.length());
+        }
+    }
+
+    /**
+     * Добавляет метку времени. Дата и время до секунд собираются заново только при смене секунды.
+     */
+    private void appendTime(StringBuilder text, long time) {
+        long second = Math.floorDiv(time, 1000);
+        if (second != formattedSecond) {
+            formattedSecond = second;
+            secondPrefix = TIME_FORMAT.format(Instant.ofEpochSecond(second));
+        }
+        int millis = Math.floorMod(time, 1000);
+        text.append(secondPrefix).append((char) ('0' + millis / 100))
+                .append((char) ('0' + millis / 10 % 10)).append((char) ('0' + millis % 10));
+    }
+
+    private void writeBatch() {
+        if (out.length() > 0) {
+            System.out.print(out);
+            System.out.flush();
+            out.setLength(0);
+        }
+        if (err.length() > 0) {
+            System.err.print(err);
+            System.err.flush();
+            err.setLength(0);
+        }
+        if (file.length() > 0) {
+            target.write(file);
+            file.setLength(0);
+        }
+    }
+
+    private void openTarget(FileTarget next) {
+        if (target != null) {
+            target.close();
+            target = null;
+        }
+        if (next.path == null) {
+            return;
+        }
+        try {
+            next.open();
+            target = next;
+        } catch (IOException e) {
+            System.err.println("Не удалось открыть файл журнала " + next.path + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Ячейка буфера. Поля записываются источником до публикации номера
+     * и читаются потоком вывода после нее.
+     */
+    private static final class Event {
+        volatile long sequence = -1;
+        long time;
+        Log.Level level;
+        Log source;
+        String template;
+        int argCount;
+        Object arg1;
+        Object arg2;
+        Object arg3;
+
+        void clear() {
+            source = null;
+            template = null;
+            arg1 = null;
+            arg2 = null;
+            arg3 = null;
+        }
+    }
+
+    /**
+     * Файл журнала с переименованием по размеру. Используется только потоком вывода.
+     */
+    private static final class FileTarget {
+        final Path path;
+        final long maxBytes;
+        final int maxFiles;
+        private OutputStream stream;
+        private long size;
+
+        FileTarget(Path path, long maxBytes, int maxFiles) {
+            this.path = path;
+            this.maxBytes = maxBytes;
+            this.maxFiles = maxFiles;
+        }
+
+        void open() throws IOException {
+            Path parent = path.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            stream = new BufferedOutputStream(Files.newOutputStream(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND), 64 * 1024);
+            size = Files.size(path);
+        }
+
+        void write(CharSequence text) {
+            byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+            try {
+                stream.write(bytes);
+                stream.flush();
+                size += bytes.length;
+                if (maxBytes > 0 && size >= maxBytes) {
+                    roll();
+                }
+            } catch (IOException e) {
+                System.err.println("Ошибка записи файла журнала " + path + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Переименовывает текущий файл в {@code имя.1}, сдвигая старые файлы, и начинает новый.
+         */
+        private void roll() throws IOException {
+            stream.close();
+            String name = path.getFileName().toString();
+            Files.deleteIfExists(path.resolveSibling(name + "." + maxFiles));
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                Path older = path.resolveSibling(name + "." + i);
+                if (Files.exists(older)) {
+                    Files.move(older, path.resolveSibling(name + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            if (maxFiles > 0) {
+                Files.move(path, path.resolveSibling(name + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.delete(path);
+            }
+            open();
+        }
+
+        void close() {
+            try {
+                if (stream != null) {
+                    stream.close();
+                }
+            } catch (IOException e) {
+                System.err.println("Ошибка закрытия файла журнала " + path + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,564 @@
+package org.example;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Бинарный протокол обмена между клиентом и сервером.
+ * <p>
+ * Каждое сообщение — кадр: длина (int, без учета самого поля), код операции (byte),
+ * идентификатор запроса (int) и данные. Строки передаются как длина (unsigned short) и байты UTF-8.
+ * Соединение начинается с HELLO от клиента; сервер отвечает HELLO_OK или ERROR и закрывает
+ * соединение, если версия не поддерживается.
+ * <p>
+ * В HELLO клиент может попросить режим мультиплексирования ({@link #HELLO_MULTIPLEX}), и сервер
+ * подтверждает его в HELLO_OK. В этом режиме клиент посылает запросы, не дожидаясь ответов на прежние,
+ * а сервер отвечает на короткие запросы, не дожидаясь окончания передачи файла: их ответы вставляются
+ * между кадрами DATA. Ответ сопоставляется с запросом по идентификатору, порядок ответов не гарантирован.
+ * Передачи файлов на одном соединении по-прежнему идут по очереди.
+ * <p>
+ * Класс находится в модуле common, от которого зависят и сервер, и клиент.
+ */
+final class Protocol {
+    static final int MAGIC = 0x56494453; // "VIDS"
+    static final short VERSION = 2;
+
+    static final int HEADER_SIZE = 9; // Длина, код операции и идентификатор запроса
+    static final int MAX_FRAME_SIZE = 16 * 1024 * 1024; // Предел длины управляющего кадра
+    static final int DATA_CHUNK_SIZE = 1024 * 1024; // Наибольший объем данных в одном кадре DATA
+
+    static final byte HELLO = 1; // int magic, short версия[, byte флаги]
+    static final byte HELLO_OK = 2; // short версия[, byte принятые флаги]
+    static final byte ERROR = 3; // short код, строка сообщения
+    static final byte LIST = 10; // без данных
+    static final byte LIST_RESULT = 11; // int количество, строки
+    static final byte CHECK = 12; // строка имени
+    static final byte CHECK_RESULT = 13; // long размер, long время изменения (-1, если файла нет), строка хэша
+    static final byte GET = 14; // строка имени, long смещение, long длина (-1 — до конца файла)
+    static final byte GET_RESULT = 15; // long размер файла, long длина тела (-1, если файла нет)
+    static final byte DATA = 16; // часть тела ответа на GET
+    static final byte STATS = 17; // без данных
+    static final byte STATS_RESULT = 18; // int количество, пары (строка имени, long значение)
+    static final byte LIST_SINCE = 19; // long идентификатор каталога, long версия (-1 — полный список), byte флаги
+    static final byte LIST_CHANGES = 20; // long идентификатор каталога, long версия, byte вид, byte сжатие,
+                                         // int длина тела без сжатия, тело
+    static final byte SUBSCRIBE = 21; // как LIST_SINCE; ответ и последующие уведомления — LIST_CHANGES
+                                      // с идентификатором этого запроса
+    static final byte QUERY = 22; // int смещение, int предел, byte порядок, byte флаги, строка фильтра
+    static final byte QUERY_RESULT = 23; // long идентификатор каталога, long версия индекса, int всего совпадений,
+                                         // int количество, записи (строка имени, long размер, long время изменения)
+
+    static final byte HELLO_MULTIPLEX = 1; // Флаг HELLO: ответы на запросы в любом порядке и между кадрами DATA
+    static final byte LIST_ACCEPT_DEFLATE = 1; // Флаг LIST_SINCE: клиент принимает тело, сжатое Deflate
+    static final byte LIST_NOTIFY_ONLY = 2; // Флаг SUBSCRIBE: клиент не хранит список, нужны изменения с текущей версии
+    static final byte LIST_KIND_CHANGES = 0; // Тело: int количество и добавленные имена, int количество и удаленные
+    static final byte LIST_KIND_FULL = 1; // Тело: int количество и все имена, как в LIST_RESULT
+    static final byte ENCODING_PLAIN = 0;
+    static final byte ENCODING_DEFLATE = 1;
+    static final int LIST_CHANGES_PREFIX = 22; // Поля LIST_CHANGES перед телом
+
+    static final byte SORT_NAME = 0; // Порядок QUERY: по имени без учета регистра
+    static final byte SORT_SIZE = 1;
+    static final byte SORT_MODIFIED = 2;
+    static final byte QUERY_DESCENDING = 1; // Флаг QUERY: обратный порядок
+    static final byte QUERY_SUBSTRING = 2; // Флаг QUERY: фильтр ищется в любом месте имени, иначе — в начале
+
+    static final short ERROR_UNSUPPORTED_VERSION = 1;
+    static final short ERROR_BAD_REQUEST = 2;
+    static final short ERROR_BUSY = 3; // Достигнут предел подключений, повторите позже
+
+    private Protocol() {
+    }
+
+    /**
+     * Принятый кадр: код операции, идентификатор запроса и данные.
+     */
+    static final class Frame {
+        final byte opcode;
+        final int requestId;
+        final ByteBuffer payload;
+
+        Frame(byte opcode, int requestId, ByteBuffer payload) {
+            this.opcode = opcode;
+            this.requestId = requestId;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Читает кадр из блокирующего потока.
+     *
+     * @return кадр или null, если поток закрыт до начала кадра
+     * @throws IOException если кадр поврежден или поток оборвался
+     */
+    static Frame read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        checkLength(length);
+        byte opcode = in.readByte();
+        int requestId = in.readInt();
+        byte[] payload = new byte[length - (HEADER_SIZE - 4)];
+        in.readFully(payload);
+        return new Frame(opcode, requestId, ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * Извлекает кадр из буфера неблокирующего чтения, если он получен целиком.
+     *
+     * @param buffer буфер в режиме чтения; при успехе позиция сдвигается за кадр
+     * @return кадр или null, если данных пока недостаточно
+     * @throws IOException если длина кадра недопустима
+     */
+    static Frame poll(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE) {
+            return null;
+        }
+        int length = buffer.getInt(buffer.position());
+        checkLength(length);
+        if (buffer.remaining() < 4 + length) {
+            return null;
+        }
+        buffer.getInt();
+        byte opcode = buffer.get();
+        int requestId = buffer.getInt();
+        byte[] payload = new byte[length - (HEADER_SIZE - 4)];
+        buffer.get(payload);
+        return new Frame(opcode, requestId, ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * Читает заголовок кадра DATA из блокирующего потока, не загружая сами данные в память.
+     *
+     * @param requestId идентификатор запроса, которому должны принадлежать данные
+     * @return длина данных кадра
+     * @throws IOException если пришел не тот кадр или поток оборвался
+     */
+    static int readDataHeader(DataInputStream in, int requestId) throws IOException {
+        int length = in.readInt();
+        byte opcode = in.readByte();
+        int id = in.readInt();
+        if (opcode != DATA || id != requestId || length < HEADER_SIZE - 4) {
+            throw new IOException("Ожидался кадр данных запроса " + requestId + ", получен " + opcode);
+        }
+        return length - (HEADER_SIZE - 4);
+    }
+
+    /**
+     * Проверяет, что первые байты соединения — заголовок потока сериализации Java,
+     * которым начинали обмен клиенты до перехода на этот протокол.
+     */
+    static boolean isLegacyStream(int firstWord) {
+        return (firstWord >>> 16) == 0xACED;
+    }
+
+    /**
+     * Проверяет кадр приветствия клиента.
+     *
+     * @return описание проблемы или null, если клиент поддерживается
+     */
+    static String checkHello(Frame hello) {
+        if (hello == null || hello.opcode != HELLO || hello.payload.remaining() < 6
+                || hello.payload.getInt() != MAGIC) {
+            return "ожидалось приветствие протокола";
+        }
+        short version = hello.payload.getShort();
+        if (version != VERSION) {
+            return "версия протокола " + version + " не поддерживается, требуется " + VERSION;
+        }
+        return null;
+    }
+
+    /**
+     * Читает флаги из HELLO, уже проверенного {@link #checkHello}. Клиенты без флагов их не передают.
+     */
+    static byte helloFlags(Frame hello) {
+        return hello.payload.hasRemaining() ? hello.payload.get() : 0;
+    }
+
+    /**
+     * Читает флаги, принятые сервером, из HELLO_OK. Серверы без флагов их не передают.
+     */
+    static byte readHelloOkFlags(ByteBuffer payload) {
+        return payload.remaining() >= 3 ? payload.get(payload.position() + 2) : 0;
+    }
+
+    private static void checkLength(int length) throws IOException {
+        if (length < HEADER_SIZE - 4 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Неверная длина кадра: " + length);
+        }
+    }
+
+    /**
+     * Выделяет буфер под кадр и записывает заголовок.
+     * После заполнения данных буфер нужно перевести в режим чтения через {@code flip()}.
+     */
+    private static ByteBuffer frame(byte opcode, int requestId, int payloadSize) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payloadSize);
+        buffer.putInt(HEADER_SIZE - 4 + payloadSize).put(opcode).putInt(requestId);
+        return buffer;
+    }
+
+    static ByteBuffer hello(int requestId) {
+        ByteBuffer buffer = frame(HELLO, requestId, 6);
+        return buffer.putInt(MAGIC).putShort(VERSION).flip();
+    }
+
+    static ByteBuffer hello(int requestId, byte flags) {
+        ByteBuffer buffer = frame(HELLO, requestId, 7);
+        return buffer.putInt(MAGIC).putShort(VERSION).put(flags).flip();
+    }
+
+    static ByteBuffer helloOk(int requestId) {
+        return frame(HELLO_OK, requestId, 2).putShort(VERSION).flip();
+    }
+
+    static ByteBuffer helloOk(int requestId, byte flags) {
+        return frame(HELLO_OK, requestId, 3).putShort(VERSION).put(flags).flip();
+    }
+
+    static ByteBuffer error(int requestId, short code, String message) {
+        byte[] text = utf8(message);
+        return putString(frame(ERROR, requestId, 2 + 2 + text.length).putShort(code), text).flip();
+    }
+
+    static String readErrorMessage(ByteBuffer payload) {
+        payload.getShort();
+        return getString(payload);
+    }
+
+    static ByteBuffer list(int requestId) {
+        return frame(LIST, requestId, 0).flip();
+    }
+
+    static ByteBuffer listResult(int requestId, List<String> names) {
+        byte[][] encoded = new byte[names.size()][];
+        int size = 4;
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = utf8(names.get(i));
+            size += 2 + encoded[i].length;
+        }
+        ByteBuffer buffer = frame(LIST_RESULT, requestId, size).putInt(encoded.length);
+        for (byte[] name : encoded) {
+            putString(buffer, name);
+        }
+        return buffer.flip();
+    }
+
+    static List<String> readListResult(ByteBuffer payload) {
+        int count = payload.getInt();
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(getString(payload));
+        }
+        return names;
+    }
+
+    /**
+     * Запрос списка с версии, известной клиенту. Сервер отвечает только изменениями после нее,
+     * а если это невозможно (другой запуск сервера, слишком старая версия) — полным списком.
+     *
+     * @param catalogId идентификатор каталога из прошлого ответа или 0
+     * @param version версия из прошлого ответа или -1, если нужен полный список
+     * @param acceptDeflate клиент принимает сжатое тело
+     */
+    static ByteBuffer listSince(int requestId, long catalogId, long version, boolean acceptDeflate) {
+        return listRequest(LIST_SINCE, requestId, catalogId, version, acceptDeflate ? LIST_ACCEPT_DEFLATE : 0);
+    }
+
+    /**
+     * Подписка на изменения каталога. Сервер сразу отвечает, как на LIST_SINCE, а затем
+     * присылает LIST_CHANGES с тем же идентификатором запроса при каждом изменении списка,
+     * пока соединение открыто. Уведомления могут повторять уже присланные изменения.
+     */
+    static ByteBuffer subscribe(int requestId, long catalogId, long version, boolean acceptDeflate) {
+        return listRequest(SUBSCRIBE, requestId, catalogId, version, acceptDeflate ? LIST_ACCEPT_DEFLATE : 0);
+    }
+
+    /**
+     * Подписка только на уведомления: сервер не присылает список, который клиент не хранит.
+     * Первый ответ — пустые изменения с текущей версией, если клиент не знает версию этого каталога.
+     */
+    static ByteBuffer subscribeNotifyOnly(int requestId, long catalogId, long version) {
+        return listRequest(SUBSCRIBE, requestId, catalogId, version, LIST_NOTIFY_ONLY);
+    }
+
+    private static ByteBuffer listRequest(byte opcode, int requestId, long catalogId, long version, int flags) {
+        return frame(opcode, requestId, 17).putLong(catalogId).putLong(version).put((byte) flags).flip();
+    }
+
+    /**
+     * Заголовок кадра LIST_CHANGES вместе с полями перед телом; тело записывается в канал следом.
+     *
+     * @param rawLength длина тела без сжатия
+     * @param bodyLength длина тела в кадре
+     */
+    static ByteBuffer listChangesHeader(int requestId, long catalogId, long version, byte kind, byte encoding,
+                                        int rawLength, int bodyLength) {
+        return frame(LIST_CHANGES, requestId, LIST_CHANGES_PREFIX + bodyLength).putLong(catalogId).putLong(version)
+                .put(kind).put(encoding).putInt(rawLength).flip();
+    }
+
+    /**
+     * Заголовок кадра, данные которого записываются в канал следом.
+     */
+    static ByteBuffer header(byte opcode, int requestId, int payloadSize) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        return buffer.putInt(HEADER_SIZE - 4 + payloadSize).put(opcode).putInt(requestId).flip();
+    }
+
+    /**
+     * Кодирует список имен: int количество, строки.
+     */
+    static byte[] encodeNames(Collection<String> names) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4 + names.size() * 32);
+        ByteBuffer count = ByteBuffer.allocate(4).putInt(names.size());
+        out.write(count.array(), 0, 4);
+        for (String name : names) {
+            byte[] bytes = utf8(name);
+            out.write(bytes.length >>> 8);
+            out.write(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Сжимает тело ответа.
+     *
+     * @return сжатые байты
+     */
+    static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, raw.length / 4));
+            byte[] chunk = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Разбирает LIST_CHANGES, при необходимости распаковывая тело.
+     *
+     * @throws IOException если тело повреждено
+     */
+    static ListChanges readListChanges(ByteBuffer payload) throws IOException {
+        long catalogId = payload.getLong();
+        long version = payload.getLong();
+        byte kind = payload.get();
+        byte encoding = payload.get();
+        int rawLength = payload.getInt();
+        ByteBuffer body = payload;
+        if (encoding == ENCODING_DEFLATE) {
+            byte[] raw = new byte[rawLength];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(payload);
+                if (inflater.inflate(raw) != rawLength || !inflater.finished()) {
+                    throw new IOException("Поврежденный сжатый список");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Поврежденный сжатый список", e);
+            } finally {
+                inflater.end();
+            }
+            body = ByteBuffer.wrap(raw);
+        } else if (encoding != ENCODING_PLAIN) {
+            throw new IOException("Неизвестное сжатие списка: " + encoding);
+        }
+        List<String> added = readListResult(body);
+        List<String> removed = kind == LIST_KIND_FULL ? List.of() : readListResult(body);
+        return new ListChanges(catalogId, version, kind == LIST_KIND_FULL, added, removed);
+    }
+
+    /**
+     * Разобранный ответ LIST_CHANGES. Для полного списка все имена находятся в {@code added}.
+     */
+    static final class ListChanges {
+        final long catalogId;
+        final long version;
+        final boolean full;
+        final List<String> added;
+        final List<String> removed;
+
+        ListChanges(long catalogId, long version, boolean full, List<String> added, List<String> removed) {
+            this.catalogId = catalogId;
+            this.version = version;
+            this.full = full;
+            this.added = added;
+            this.removed = removed;
+        }
+    }
+
+    /**
+     * Запрос страницы списка с фильтром и порядком. Фильтр сравнивается без учета регистра.
+     *
+     * @param filter фильтр имени; пустой — все видео
+     * @param substring искать фильтр в любом месте имени, иначе — в начале
+     * @param sort {@link #SORT_NAME}, {@link #SORT_SIZE} или {@link #SORT_MODIFIED}
+     * @param offset номер первой записи страницы среди всех совпадений
+     * @param limit наибольшее число записей; сервер может вернуть меньше
+     */
+    static ByteBuffer query(int requestId, String filter, boolean substring, byte sort, boolean descending,
+                            int offset, int limit) {
+        byte[] text = utf8(filter);
+        byte flags = (byte) ((descending ? QUERY_DESCENDING : 0) | (substring ? QUERY_SUBSTRING : 0));
+        return putString(frame(QUERY, requestId, 10 + 2 + text.length).putInt(offset).putInt(limit).put(sort)
+                .put(flags), text).flip();
+    }
+
+    static ByteBuffer queryResult(int requestId, long catalogId, long version, int total,
+                                  String[] names, long[] sizes, long[] modified) {
+        byte[][] encoded = new byte[names.length][];
+        int size = 24;
+        for (int i = 0; i < names.length; i++) {
+            encoded[i] = utf8(names[i]);
+            size += 2 + encoded[i].length + 16;
+        }
+        ByteBuffer buffer = frame(QUERY_RESULT, requestId, size).putLong(catalogId).putLong(version)
+                .putInt(total).putInt(names.length);
+        for (int i = 0; i < names.length; i++) {
+            putString(buffer, encoded[i]).putLong(sizes[i]).putLong(modified[i]);
+        }
+        return buffer.flip();
+    }
+
+    static QueryResult readQueryResult(ByteBuffer payload) {
+        long catalogId = payload.getLong();
+        long version = payload.getLong();
+        int total = payload.getInt();
+        int count = payload.getInt();
+        String[] names = new String[count];
+        long[] sizes = new long[count];
+        long[] modified = new long[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = getString(payload);
+            sizes[i] = payload.getLong();
+            modified[i] = payload.getLong();
+        }
+        return new QueryResult(catalogId, version, total, names, sizes, modified);
+    }
+
+    /**
+     * Разобранный ответ QUERY_RESULT. Версия меняется при любом изменении каталога;
+     * страницы разных версий могут не стыковаться.
+     */
+    static final class QueryResult {
+        final long catalogId;
+        final long version;
+        final int total; // Всего совпадений
+        final String[] names;
+        final long[] sizes;
+        final long[] modified;
+
+        QueryResult(long catalogId, long version, int total, String[] names, long[] sizes, long[] modified) {
+            this.catalogId = catalogId;
+            this.version = version;
+            this.total = total;
+            this.names = names;
+            this.sizes = sizes;
+            this.modified = modified;
+        }
+    }
+
+    static ByteBuffer check(int requestId, String videoName) {
+        byte[] name = utf8(videoName);
+        return putString(frame(CHECK, requestId, 2 + name.length), name).flip();
+    }
+
+    /**
+     * Ответ на CHECK. Хэш содержимого (см. ContentHash) пуст, если файла нет или хэш еще не вычислен.
+     */
+    static ByteBuffer checkResult(int requestId, long fileSize, long lastModified, String contentHash) {
+        byte[] hash = utf8(contentHash == null ? "" : contentHash);
+        return putString(frame(CHECK_RESULT, requestId, 16 + 2 + hash.length).putLong(fileSize).putLong(lastModified),
+                hash).flip();
+    }
+
+    static ByteBuffer get(int requestId, String videoName, long offset, long length) {
+        byte[] name = utf8(videoName);
+        return putString(frame(GET, requestId, 2 + name.length + 16), name).putLong(offset).putLong(length).flip();
+    }
+
+    static ByteBuffer getResult(int requestId, long fileSize, long length) {
+        return frame(GET_RESULT, requestId, 16).putLong(fileSize).putLong(length).flip();
+    }
+
+    static ByteBuffer stats(int requestId) {
+        return frame(STATS, requestId, 0).flip();
+    }
+
+    static ByteBuffer statsResult(int requestId, Map<String, Long> values) {
+        byte[][] names = new byte[values.size()][];
+        int size = 4;
+        int i = 0;
+        for (String name : values.keySet()) {
+            names[i] = utf8(name);
+            size += 2 + names[i].length + 8;
+            i++;
+        }
+        ByteBuffer buffer = frame(STATS_RESULT, requestId, size).putInt(names.length);
+        i = 0;
+        for (long value : values.values()) {
+            putString(buffer, names[i++]).putLong(value);
+        }
+        return buffer.flip();
+    }
+
+    static Map<String, Long> readStatsResult(ByteBuffer payload) {
+        int count = payload.getInt();
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            values.put(getString(payload), payload.getLong());
+        }
+        return values;
+    }
+
+    /**
+     * Заголовок кадра DATA; сами данные записываются в канал следом.
+     */
+    static ByteBuffer dataHeader(int requestId, int length) {
+        return header(DATA, requestId, length);
+    }
+
+    static String getString(ByteBuffer payload) {
+        int length = payload.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer putString(ByteBuffer buffer, byte[] value) {
+        return buffer.putShort((short) value.length).put(value);
+    }
+
+    private static byte[] utf8(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Слишком длинная строка: " + bytes.length + " байт");
+        }
+        return bytes;
+    }
+}
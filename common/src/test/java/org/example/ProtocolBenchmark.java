@@ -0,0 +1,112 @@
+package org.example;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Замер кодирования и разбора кадров протокола в сравнении с сериализацией Java, которой клиент
+ * и сервер обменивались раньше: LIST из 10 000 имен и запрос CHECK.
+ * <p>
+ * Запуск: {@code mvn -P benchmark test -pl common -Dtest=ProtocolBenchmark}.
+ */
+@Tag("benchmark")
+class ProtocolBenchmark {
+    private static final int NAMES = 10_000;
+    private static final int WARMUP = 200;
+    private static final int RUNS = 200;
+    private static final int SMALL_BATCH = 10_000; // Запросов CHECK в одном замере
+
+    @Test
+    void listOfTenThousandNames() throws Exception {
+        List<String> names = new ArrayList<>(NAMES);
+        for (int i = 0; i < NAMES; i++) {
+            names.add("Фильм номер " + i + " (1080p).mp4");
+        }
+        byte[] serialized = serialize(new ArrayList<>(names));
+        ByteBuffer frame = Protocol.listResult(1, names);
+        assertEquals(names, decodeList(frame.duplicate()));
+        assertEquals(names, deserialize(serialized));
+
+        System.out.printf("LIST из %d имен%n", NAMES);
+        System.out.printf("%-14s %12s %18s %14s%n", "формат", "байт", "кодирование, нс", "разбор, нс");
+        System.out.printf("%-14s %12d %18d %14d%n", "протокол", frame.remaining(),
+                median(() -> Protocol.listResult(1, names)), median(() -> decodeList(frame.duplicate())));
+        System.out.printf("%-14s %12d %18d %14d%n", "сериализация", serialized.length,
+                median(() -> serialize(new ArrayList<>(names))), median(() -> deserialize(serialized)));
+    }
+
+    @Test
+    void checkRequest() throws Exception {
+        String name = "Фильм номер 42 (1080p).mp4";
+        System.out.printf("CHECK: кодирование и разбор, на запрос%n");
+        System.out.printf("%-14s %14s%n", "протокол", perRequest(median(() -> {
+            for (int i = 0; i < SMALL_BATCH; i++) {
+                ByteBuffer request = Protocol.check(i, name);
+                Protocol.Frame frame = Protocol.poll(request);
+                Protocol.getString(frame.payload);
+            }
+            return null;
+        })));
+        System.out.printf("%-14s %14s%n", "сериализация", perRequest(median(() -> {
+            for (int i = 0; i < SMALL_BATCH / 100; i++) {
+                deserialize(serialize("CHECK " + name));
+            }
+            return null;
+        }) * 100));
+    }
+
+    private static List<String> decodeList(ByteBuffer buffer) throws IOException {
+        return Protocol.readListResult(Protocol.poll(buffer).payload);
+    }
+
+    private static byte[] serialize(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+
+    /**
+     * @return медиана времени одного вызова после прогрева, нс
+     */
+    private static long median(Action action) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            action.run();
+        }
+        long[] times = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            action.run();
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        return times[RUNS / 2];
+    }
+
+    private static String perRequest(long batchNanos) {
+        return String.format("%.0f нс", (double) batchNanos / SMALL_BATCH);
+    }
+
+    private interface Action {
+        Object run() throws Exception;
+    }
+}
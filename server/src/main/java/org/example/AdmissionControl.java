@@ -0,0 +1,140 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Допуск подключений: общий предел одновременных сессий и предел подключений с одного адреса.
+ * <p>
+ * Подключение сверх предела не обслуживается: клиенту сразу отправляется короткий ответ
+ * «сервер занят», после чего соединение закрывается. Ответ отправляется в виртуальном потоке,
+ * чтобы поток приема не ждал медленного клиента; число одновременных отказов тоже ограничено,
+ * и при их избытке соединение просто закрывается.
+ */
+class AdmissionControl {
+    private static final int MAX_PENDING_REJECTIONS = 1024; // Одновременно отправляемые отказы
+    private static final int REJECT_LINGER = 500; // Сколько ждать, пока клиент прочитает отказ, мс
+
+    private final int maxSessions;
+    private final Semaphore sessions;
+    private final int maxPerAddress;
+    private final Map<InetAddress, Integer> perAddress = new ConcurrentHashMap<>();
+    private final Semaphore rejections = new Semaphore(MAX_PENDING_REJECTIONS);
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param maxSessions наибольшее число одновременных сессий
+     * @param maxPerAddress наибольшее число одновременных сессий с одного адреса
+     */
+    AdmissionControl(int maxSessions, int maxPerAddress) {
+        this.maxSessions = maxSessions;
+        this.sessions = new Semaphore(maxSessions);
+        this.maxPerAddress = maxPerAddress;
+    }
+
+    /**
+     * Пытается допустить подключение.
+     *
+     * @param address адрес клиента
+     * @return разрешение, которое нужно освободить по окончании сессии, или null, если предел достигнут
+     */
+    Permit admit(InetAddress address) {
+        boolean[] allowed = new boolean[1];
+        perAddress.compute(address, (key, count) -> {
+            int current = count == null ? 0 : count;
+            allowed[0] = current < maxPerAddress;
+            return allowed[0] ? current + 1 : count;
+        });
+        if (!allowed[0]) {
+            rejected.incrementAndGet();
+            return null;
+        }
+        if (!sessions.tryAcquire()) {
+            releaseAddress(address);
+            rejected.incrementAndGet();
+            return null;
+        }
+        return new Permit(address);
+    }
+
+    int activeSessions() {
+        return maxSessions - sessions.availablePermits();
+    }
+
+    long rejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Отправляет клиенту отказ и закрывает соединение, не задерживая вызывающий поток.
+     *
+     * @param channel соединение в блокирующем режиме
+     * @param reply ответ клиенту
+     */
+    void reject(SocketChannel channel, ByteBuffer reply) {
+        if (!rejections.tryAcquire()) {
+            closeQuietly(channel);
+            return;
+        }
+        Thread.ofVirtual().name("video-reject").start(() -> {
+            try {
+                channel.socket().setSoTimeout(REJECT_LINGER);
+                VideoServer.writeFully(channel, reply);
+                channel.shutdownOutput();
+                // Дочитываем запрос клиента: закрытие с непрочитанными данными сбросило бы соединение
+                // вместе с отказом. Ждать закрытия со стороны клиента не нужно.
+                byte[] discard = new byte[512];
+                InputStream in = channel.socket().getInputStream();
+                while (in.read(discard) >= 0 && in.available() > 0) {
+                    // Запрос еще не дочитан
+                }
+            } catch (SocketTimeoutException e) {
+                // Клиент не закрыл соединение вовремя
+            } catch (IOException e) {
+                // Клиент уже отключился
+            } finally {
+                closeQuietly(channel);
+                rejections.release();
+            }
+        });
+    }
+
+    private void releaseAddress(InetAddress address) {
+        perAddress.computeIfPresent(address, (key, count) -> count > 1 ? count - 1 : null);
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Разрешение на одну сессию. Повторное освобождение ничего не делает.
+     */
+    final class Permit {
+        private final InetAddress address;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(InetAddress address) {
+            this.address = address;
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                releaseAddress(address);
+                sessions.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package org.example;
+
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ограничение скорости отправки тел видео.
+ * <p>
+ * Общий предел и предел одного подключения задаются корзинами токенов. Пока общий предел
+ * исчерпан, полоса делится между ожидающими отправками справедливо с учетом весов: каждая
+ * отправка копит виртуальное время (отправлено байтов / вес), и токены получает только
+ * отправка, отставшая от самой медленной не больше чем на одну порцию. Небольшие отправки
+ * получают больший вес, поэтому короткие диапазоны не ждут за загрузками целых файлов.
+ * <p>
+ * Ограничиваются только кадры DATA; ответы на LIST, CHECK и заголовки ответов уходят сразу.
+ * Если пределы не заданы, разрешение выдается без блокировок и учитывается только скорость.
+ * Ожидание построено на {@link ReentrantLock}, а не на мониторе, чтобы не занимать потоки-носители
+ * виртуальных потоков.
+ */
+class BandwidthShaper {
+    static final int QUANTUM = 64 * 1024; // Наибольшая порция, на которую выдается разрешение
+    static final long SMALL_TRANSFER = 1024 * 1024; // Отправки не длиннее этого получают больший вес
+    static final int SMALL_WEIGHT = 4;
+    private static final double BURST_SECONDS = 0.05; // Сколько секунд полосы можно накопить в корзине
+    private static final long MIN_DELAY = 1_000_000; // Наименьшая пауза до повторного запроса, нс
+
+    private final long globalRate; // Байт/с, 0 — без ограничения
+    private final long clientRate; // Байт/с на подключение, 0 — без ограничения
+    private final Map<Integer, Flow> flows = new ConcurrentHashMap<>();
+    private final LongAdder bytesSent = new LongAdder(); // Все разрешенные к отправке байты
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition(); // Очередь ожидающих сдвинулась
+    private final Set<Flow> waiting = new HashSet<>(); // Отправки, ждущие общей полосы; защищено lock
+    private double globalTokens; // Защищено lock
+    private long globalStamp = System.nanoTime(); // Защищено lock
+    private double systemTime; // Виртуальное время последней выданной порции; защищено lock
+
+    /**
+     * @param globalRate общий предел в байтах в секунду, 0 — без ограничения
+     * @param clientRate предел одного подключения в байтах в секунду, 0 — без ограничения
+     */
+    BandwidthShaper(long globalRate, long clientRate) {
+        this.globalRate = globalRate;
+        this.clientRate = clientRate;
+        this.globalTokens = burst(globalRate);
+    }
+
+    boolean isLimited() {
+        return globalRate > 0 || clientRate > 0;
+    }
+
+    /**
+     * Регистрирует подключение. Поток нужно закрыть при отключении клиента.
+     *
+     * @param clientId идентификатор клиента
+     * @return поток отправки подключения
+     */
+    Flow open(int clientId) {
+        Flow flow = new Flow(clientId);
+        flows.put(clientId, flow);
+        return flow;
+    }
+
+    long bytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * Возвращает скорость текущих отправок по клиентам.
+     *
+     * @return байт в секунду с начала отправки по идентификатору клиента
+     */
+    Map<Integer, Double> rates() {
+        Map<Integer, Double> rates = new TreeMap<>();
+        for (Flow flow : flows.values()) {
+            if (flow.transferStart != 0) {
+                rates.put(flow.clientId, flow.currentRate());
+            }
+        }
+        return Collections.unmodifiableMap(rates);
+    }
+
+    private static double burst(long rate) {
+        return Math.max(QUANTUM, rate * BURST_SECONDS);
+    }
+
+    private static long delayFor(double tokens, long rate) {
+        return tokens > 0 ? 0 : Math.max(MIN_DELAY, (long) (-tokens * 1e9 / rate));
+    }
+
+    /**
+     * Пополняет общую корзину.
+     */
+    private void refill(long now) {
+        globalTokens = Math.min(burst(globalRate), globalTokens + (now - globalStamp) * globalRate / 1e9);
+        globalStamp = now;
+    }
+
+    /**
+     * Решает, можно ли отправке получить порцию общей полосы. Вызывается под {@code lock}.
+     *
+     * @return 0, если разрешение выдано, иначе пауза в наносекундах до повторного запроса
+     */
+    private long grantGlobal(Flow flow, long bytes, long now) {
+        if (waiting.add(flow)) {
+            // Отправка, простоявшая без дела, не получает запаса за время простоя
+            flow.virtualTime = Math.max(flow.virtualTime, systemTime);
+        }
+        refill(now);
+        double fairLimit = Double.MAX_VALUE;
+        for (Flow other : waiting) {
+            fairLimit = Math.min(fairLimit, other.virtualTime);
+        }
+        fairLimit += QUANTUM;
+        if (globalTokens <= 0 || flow.virtualTime > fairLimit) {
+            return delayFor(Math.min(globalTokens, -1), globalRate);
+        }
+        waiting.remove(flow);
+        globalTokens -= bytes;
+        systemTime = flow.virtualTime;
+        flow.virtualTime += (double) bytes / flow.weight;
+        changed.signalAll(); // Пусть ожидающие проверят себя снова
+        return 0;
+    }
+
+    private void leave(Flow flow) {
+        lock.lock();
+        try {
+            if (waiting.remove(flow)) {
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Поток отправки одного подключения: своя корзина токенов и учет переданных байтов.
+     * Методы вызываются только потоком, обслуживающим подключение.
+     */
+    final class Flow {
+        final int clientId;
+        private double tokens;
+        private long stamp = System.nanoTime();
+        private double virtualTime; // Защищено lock
+        private int weight = 1;
+        private volatile long transferStart; // Начало текущей отправки, 0 — отправки нет
+        private volatile long transferBytes;
+
+        private Flow(int clientId) {
+            this.clientId = clientId;
+            this.tokens = burst(clientRate);
+        }
+
+        /**
+         * Отмечает начало отправки тела заданной длины.
+         */
+        void beginTransfer(long length) {
+            weight = length <= SMALL_TRANSFER ? SMALL_WEIGHT : 1;
+            transferBytes = 0;
+            transferStart = System.nanoTime();
+        }
+
+        /**
+         * Отмечает конец отправки.
+         *
+         * @return средняя скорость отправки в байтах в секунду
+         */
+        double finishTransfer() {
+            double rate = currentRate();
+            transferStart = 0;
+            leave(this);
+            return rate;
+        }
+
+        double currentRate() {
+            long start = transferStart;
+            if (start == 0) {
+                return 0;
+            }
+            return transferBytes * 1e9 / Math.max(1, System.nanoTime() - start);
+        }
+
+        /**
+         * Ограничивает размер следующей порции, чтобы полоса выдавалась мелкими частями.
+         */
+        long chunk(long wanted) {
+            return isLimited() ? Math.min(wanted, QUANTUM) : wanted;
+        }
+
+        /**
+         * Пытается получить разрешение на отправку порции без ожидания.
+         * Порция должна быть не больше {@link #chunk(long)}.
+         *
+         * @param bytes размер порции
+         * @return 0, если порцию можно отправлять, иначе пауза в наносекундах до повторного запроса
+         */
+        long tryAcquire(long bytes) {
+            if (!isLimited()) {
+                transferBytes += bytes;
+                bytesSent.add(bytes);
+                return 0;
+            }
+            long now = System.nanoTime();
+            if (clientRate > 0) {
+                tokens = Math.min(burst(clientRate), tokens + (now - stamp) * clientRate / 1e9);
+                stamp = now;
+                if (tokens <= 0) {
+                    // Подключение упирается в свой предел и не должно задерживать остальных
+                    leave(this);
+                    return delayFor(tokens, clientRate);
+                }
+            }
+            if (globalRate > 0) {
+                lock.lock();
+                try {
+                    long delay = grantGlobal(this, bytes, now);
+                    if (delay > 0) {
+                        return delay;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            tokens -= bytes;
+            transferBytes += bytes;
+            bytesSent.add(bytes);
+            return 0;
+        }
+
+        /**
+         * Получает разрешение на отправку порции, ожидая его при необходимости.
+         *
+         * @param bytes размер порции, не больше {@link #chunk(long)}
+         * @throws InterruptedIOException если поток прерван во время ожидания
+         */
+        void acquire(long bytes) throws InterruptedIOException {
+            long delay;
+            while ((delay = tryAcquire(bytes)) > 0) {
+                lock.lock();
+                try {
+                    changed.await(delay, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    waiting.remove(this);
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Отправка прервана");
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Снимает подключение с учета.
+         */
+        void close() {
+            leave(this);
+            flows.remove(clientId, this);
+        }
+    }
+}
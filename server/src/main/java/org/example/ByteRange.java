@@ -0,0 +1,37 @@
+package org.example;
+
+/**
+ * Диапазон байтов видеофайла: смещение и длина.
+ */
+class ByteRange {
+    final long offset;
+    final long length;
+
+    ByteRange(long offset, long length) {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Неверный диапазон: " + offset + "+" + length);
+        }
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Ограничивает диапазон размером файла: смещение за концом файла дает пустой диапазон.
+     *
+     * @param fileSize размер файла
+     * @return диапазон, целиком лежащий внутри файла
+     */
+    ByteRange clamp(long fileSize) {
+        long start = Math.min(offset, fileSize);
+        return new ByteRange(start, Math.min(length, fileSize - start));
+    }
+
+    long end() {
+        return offset + length;
+    }
+
+    @Override
+    public String toString() {
+        return offset + "-" + (end() - 1);
+    }
+}
@@ -0,0 +1,140 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Рассылка изменений каталога подписанным сессиям (запрос SUBSCRIBE).
+ * <p>
+ * Изменения, пришедшие от мониторинга директории в течение {@link #BATCH_DELAY_MS},
+ * собираются в одно уведомление. Рассылка только сообщает сессиям, что список изменился,
+ * и никогда не пишет в сокеты сама: каждая сессия отправляет изменения после последней
+ * отправленной ей версии, когда ее соединение свободно. Медленный клиент не задерживает
+ * остальных и не копит очередь уведомлений — он получает одно объединенное изменение,
+ * а если история каталога его уже не содержит, полный список.
+ */
+class CatalogFeed implements VideoCatalog.Listener {
+    static final long BATCH_DELAY_MS = 100; // Сколько ждать новых изменений перед рассылкой
+
+    private static final Log LOG = Log.root();
+
+    private final VideoCatalog catalog;
+    private final ListingCache listing;
+    private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "video-catalog-feed");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile long notifiedVersion; // Версия списка имен, о которой подписчики уже уведомлены
+
+    CatalogFeed(VideoCatalog catalog, ListingCache listing) {
+        this.catalog = catalog;
+        this.listing = listing;
+    }
+
+    /**
+     * Подписывает сессию и возвращает первый ответ: изменения после версии клиента или полный список.
+     *
+     * @return буферы кадра, которые нужно записать по порядку
+     */
+    ByteBuffer[] subscribe(Subscription subscription) {
+        if (subscription.notifyOnly && subscription.catalogId != catalog.id()) {
+            // Клиент не хранит список: вместо полного списка он получает изменения с текущей версии
+            subscription.catalogId = catalog.id();
+            subscription.version = catalog.namesVersion();
+        }
+        subscriptions.add(subscription);
+        // Версия читается до построения ответа: изменение между ними будет прислано повторно, но не потеряно
+        long version = catalog.namesVersion();
+        ByteBuffer[] frame = listing.listSince(subscription.requestId, subscription.catalogId,
+                subscription.version, subscription.deflate);
+        subscription.catalogId = catalog.id();
+        subscription.version = version;
+        return frame;
+    }
+
+    void unsubscribe(Subscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    /**
+     * Возвращает уведомление с изменениями после последней отправленной подписке версии.
+     * Вызывается сессией, когда ее соединение готово к записи.
+     *
+     * @return буферы кадра или null, если подписчик уже знает текущий список
+     */
+    ByteBuffer[] pending(Subscription subscription) {
+        long version = catalog.namesVersion();
+        if (subscription.catalogId == catalog.id() && subscription.version == version) {
+            return null;
+        }
+        ByteBuffer[] frame = listing.listSince(subscription.requestId, subscription.catalogId,
+                subscription.version, subscription.deflate);
+        subscription.catalogId = catalog.id();
+        subscription.version = version;
+        return frame;
+    }
+
+    int subscribers() {
+        return subscriptions.size();
+    }
+
+    @Override
+    public void changed(String name, VideoCatalog.VideoEntry entry) {
+        if (subscriptions.isEmpty() || catalog.namesVersion() == notifiedVersion) {
+            return; // Некого уведомлять или изменились только метаданные
+        }
+        if (scheduled.compareAndSet(false, true)) {
+            timer.schedule(this::notifySubscribers, BATCH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void notifySubscribers() {
+        scheduled.set(false);
+        notifiedVersion = catalog.namesVersion();
+        LOG.debug("Изменения каталога до версии {} разосланы подписчикам: {}", notifiedVersion, subscriptions.size());
+        for (Subscription subscription : subscriptions) {
+            subscription.notifier.run();
+        }
+    }
+
+    void stop() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Подписка одной сессии. Версия и каталог меняются только сессией, отправляющей уведомления,
+     * под ее блокировкой записи или в ее цикле событий.
+     */
+    static final class Subscription {
+        final int requestId;
+        final boolean deflate;
+        final boolean notifyOnly; // Клиент не хранит список и не получает его целиком при подписке
+        final Runnable notifier; // Сообщает сессии об изменениях; не должен блокироваться
+        private long catalogId;
+        private long version;
+
+        /**
+         * @param requestId идентификатор запроса SUBSCRIBE, с которым отправляются уведомления
+         * @param catalogId идентификатор каталога, известный клиенту
+         * @param version версия списка, известная клиенту, или -1
+         * @param flags флаги SUBSCRIBE
+         * @param notifier вызывается потоком рассылки, когда список изменился
+         */
+        Subscription(int requestId, long catalogId, long version, byte flags, Runnable notifier) {
+            this.requestId = requestId;
+            this.catalogId = catalogId;
+            this.version = version;
+            this.deflate = (flags & Protocol.LIST_ACCEPT_DEFLATE) != 0;
+            this.notifyOnly = (flags & Protocol.LIST_NOTIFY_ONLY) != 0;
+            this.notifier = notifier;
+        }
+    }
+}
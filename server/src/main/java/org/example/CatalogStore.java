@@ -0,0 +1,169 @@
+package org.example;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Постоянное хранилище каталога видео в SQLite.
+ * Записи сохраняются отдельным потоком пакетами в одной транзакции,
+ * поэтому мониторинг директории и обработка запросов не ждут диска.
+ */
+class CatalogStore {
+    private static final String CREATE_TABLE_QUERY = """
+        CREATE TABLE IF NOT EXISTS video_catalog (
+            name TEXT PRIMARY KEY,
+            size INTEGER NOT NULL,
+            modified INTEGER NOT NULL,
+            content_hash TEXT,
+            duration_ms INTEGER,
+            codec TEXT,
+            added_at INTEGER NOT NULL
+        )
+    """;
+    private static final String UPSERT_QUERY = "INSERT OR REPLACE INTO video_catalog " +
+            "(name, size, modified, content_hash, duration_ms, codec, added_at) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String DELETE_QUERY = "DELETE FROM video_catalog WHERE name = ?";
+    private static final int MAX_BATCH = 1000; // Наибольшее число изменений в одной транзакции
+    private static final Log LOG = Log.root();
+
+    private final String databaseUrl;
+    private final BlockingQueue<Change> changes = new LinkedBlockingQueue<>();
+    private volatile boolean running = true;
+    private Thread writer;
+
+    /**
+     * Изменение каталога, ожидающее записи: новая запись или удаление по имени.
+     */
+    private static final class Change {
+        final String name;
+        final VideoCatalog.VideoEntry entry; // null для удаления
+
+        Change(String name, VideoCatalog.VideoEntry entry) {
+            this.name = name;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * Открывает базу и создает таблицу, если она не существует.
+     *
+     * @param databasePath путь к файлу базы
+     * @throws SQLException если база недоступна
+     */
+    CatalogStore(String databasePath) throws SQLException {
+        this.databaseUrl = "jdbc:sqlite:" + databasePath;
+        try (Connection conn = DriverManager.getConnection(databaseUrl);
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA journal_mode=WAL");
+            stmt.execute(CREATE_TABLE_QUERY);
+        }
+    }
+
+    /**
+     * Загружает все сохраненные записи.
+     *
+     * @return записи каталога
+     * @throws SQLException если чтение не удалось
+     */
+    List<VideoCatalog.VideoEntry> loadAll() throws SQLException {
+        List<VideoCatalog.VideoEntry> entries = new ArrayList<>();
+        try (Connection conn = DriverManager.getConnection(databaseUrl);
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT name, size, modified, content_hash, duration_ms, codec, added_at " +
+                     "FROM video_catalog")) {
+            while (rs.next()) {
+                long duration = rs.getLong("duration_ms");
+                if (rs.wasNull()) {
+                    duration = -1;
+                }
+                entries.add(new VideoCatalog.VideoEntry(rs.getString("name"), rs.getLong("size"),
+                        rs.getLong("modified"), rs.getLong("added_at"), duration, rs.getString("codec"),
+                        rs.getString("content_hash")));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Запускает поток записи изменений.
+     */
+    void start() {
+        writer = new Thread(this::writeLoop, "video-catalog-db");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    void save(VideoCatalog.VideoEntry entry) {
+        changes.add(new Change(entry.name, entry));
+    }
+
+    void delete(String name) {
+        changes.add(new Change(name, null));
+    }
+
+    /**
+     * Останавливает поток записи после сохранения накопленных изменений.
+     */
+    void stop() {
+        running = false;
+        if (writer != null) {
+            writer.interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        List<Change> batch = new ArrayList<>();
+        try (Connection conn = DriverManager.getConnection(databaseUrl);
+             PreparedStatement upsert = conn.prepareStatement(UPSERT_QUERY);
+             PreparedStatement delete = conn.prepareStatement(DELETE_QUERY)) {
+            conn.setAutoCommit(false);
+            while (running || !changes.isEmpty()) {
+                try {
+                    batch.add(changes.take());
+                } catch (InterruptedException e) {
+                    if (changes.isEmpty()) {
+                        break;
+                    }
+                }
+                changes.drainTo(batch, MAX_BATCH - batch.size());
+                // Изменения применяются по порядку, чтобы удаление и повторное добавление файла не переставились
+                for (Change change : batch) {
+                    if (change.entry == null) {
+                        delete.setString(1, change.name);
+                        delete.executeUpdate();
+                    } else {
+                        bind(upsert, change.entry);
+                        upsert.executeUpdate();
+                    }
+                }
+                conn.commit();
+                batch.clear();
+            }
+        } catch (SQLException e) {
+            LOG.error("Ошибка записи каталога в базу: {}", e.getMessage());
+        }
+    }
+
+    private static void bind(PreparedStatement stmt, VideoCatalog.VideoEntry entry) throws SQLException {
+        stmt.setString(1, entry.name);
+        stmt.setLong(2, entry.size);
+        stmt.setLong(3, entry.lastModified);
+        stmt.setString(4, entry.contentHash);
+        if (entry.durationMs >= 0) {
+            stmt.setLong(5, entry.durationMs);
+        } else {
+            stmt.setNull(5, Types.INTEGER);
+        }
+        stmt.setString(6, entry.codec);
+        stmt.setLong(7, entry.addedAt);
+    }
+}
@@ -0,0 +1,527 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Следит за корневыми директориями видео ({@link StorageRoots}) со всеми поддиректориями и поддерживает
+ * каталог в актуальном состоянии. Видеофайлы отбираются по расширению без учета регистра; имя в каталоге —
+ * путь относительно своего корня. Если одно имя есть в нескольких корнях, в каталог попадает файл корня,
+ * указанного раньше, а при его удалении — следующий по порядку.
+ * <p>
+ * Полное сканирование обходит дерево параллельно в пуле ForkJoin: каждая поддиректория —
+ * отдельная задача, которая регистрирует наблюдение за своей директорией и затем читает ее.
+ * Наблюдение в Java не рекурсивно, поэтому новые поддиректории, появившиеся позже, регистрируются
+ * и сканируются в фоне по событию создания, а при удалении директории из каталога удаляются все видео в ней.
+ * Символические ссылки на директории не обходятся, чтобы не зациклиться.
+ * <p>
+ * События по одному файлу накапливаются и объединяются: файл попадает в каталог только после того,
+ * как события по нему прекратились и размер перестал меняться, поэтому клиенты не видят
+ * недописанные файлы. При переполнении очереди событий (OVERFLOW) выполняется одно полное
+ * сканирование с приведением каталога к состоянию директории.
+ * <p>
+ * Начальное сканирование выполняется в фоне: до его завершения каталог отдает записи,
+ * загруженные из {@link CatalogStore}. Длительность, кодеки и хэш содержимого новых и измененных
+ * файлов вычисляются отдельным потоком по одному файлу; части файла хэшируются параллельно
+ * в ограниченном пуле {@link ContentHash}.
+ */
+class DirectoryWatcher {
+    private static final long QUIET_PERIOD_MS = 1000; // Сколько файл должен не меняться перед публикацией
+    private static final long SWEEP_INTERVAL_MS = 250; // Период проверки ожидающих файлов
+    private static final Log LOG = Log.root();
+
+    private final StorageRoots roots;
+    private final VideoCatalog catalog;
+    private final Set<String> extensions; // Расширения видеофайлов в нижнем регистре, без точки
+    private final Map<String, PendingFile> pending = new HashMap<>(); // Используется только потоком наблюдения
+    // Обходы новых поддиректорий; используется только потоком наблюдения
+    private final List<ForkJoinTask<List<VideoCatalog.VideoEntry>>> subtreeScans = new ArrayList<>();
+    private final Map<WatchKey, Watched> watchedDirectories = new ConcurrentHashMap<>(); // Регистрируются задачами обхода
+    private final AtomicInteger unwatched = new AtomicInteger(); // Директории, наблюдение за которыми не удалось
+    private final ExecutorService analyzeExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "video-analyzer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ForkJoinPool hashPool; // Потоки хэширования частей файла
+    private final ForkJoinPool scanPool; // Потоки обхода директорий при сканировании и появлении поддиректорий
+    private WatchService watchService;
+    private volatile boolean running = true;
+
+    /**
+     * @param roots корневые директории видео
+     * @param catalog каталог, который поддерживается в актуальном состоянии
+     * @param extensions расширения видеофайлов без точки
+     * @param hashThreads потоки хэширования частей файла
+     * @param scanThreads потоки обхода директорий; обход упирается в ожидание файловой системы,
+     *                    поэтому потоков может быть больше, чем ядер
+     */
+    DirectoryWatcher(StorageRoots roots, VideoCatalog catalog, Collection<String> extensions, int hashThreads,
+                     int scanThreads) {
+        this.roots = roots;
+        this.catalog = catalog;
+        this.extensions = new HashSet<>();
+        for (String extension : extensions) {
+            this.extensions.add(extension.toLowerCase(Locale.ROOT));
+        }
+        this.hashPool = new ForkJoinPool(hashThreads);
+        this.scanPool = new ForkJoinPool(scanThreads);
+    }
+
+    /**
+     * Создает службу наблюдения и запускает поток, который выполняет начальное сканирование
+     * и затем обрабатывает события. Сканирование регистрирует наблюдение за каждой директорией
+     * перед ее чтением, чтобы не пропустить изменения между ними.
+     *
+     * @throws IOException если директорию не удалось создать или службу наблюдения — запустить
+     */
+    void start() throws IOException {
+        for (StorageRoots.Root root : roots.all()) {
+            if (!Files.exists(root.directory)) {
+                Files.createDirectories(root.directory); // Создаем директорию, если она не существует
+            }
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        new Thread(this::watch, "video-dir-watcher").start();
+        for (StorageRoots.Root root : roots.all()) {
+            LOG.info("Мониторинг изменений в директории: {}", root.directory);
+        }
+    }
+
+    /**
+     * Останавливает наблюдение.
+     */
+    void stop() {
+        running = false;
+        analyzeExecutor.shutdownNow();
+        hashPool.shutdownNow();
+        scanPool.shutdownNow();
+        try {
+            if (watchService != null) watchService.close();
+        } catch (IOException e) {
+            LOG.warn("Ошибка при остановке мониторинга: {}", e.getMessage());
+        }
+    }
+
+    private void watch() {
+        long lastSweep = 0;
+        try {
+            long started = System.nanoTime();
+            reconcile();
+            LOG.info("Загружено видео: {} за {} мс (директорий: {})", catalog.size(),
+                    (System.nanoTime() - started) / 1_000_000, watchedDirectories.size());
+            if (unwatched.get() > 0) {
+                LOG.warn("Без наблюдения осталось директорий: {}; их изменения будут видны после полного сканирования",
+                        unwatched.get());
+            }
+            while (running) {
+                WatchKey key = watchService.poll(SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS); // Ожидание события
+                long now = System.currentTimeMillis();
+                boolean overflow = false;
+                if (key != null) {
+                    Watched parent = watchedDirectories.get(key);
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                        } else if (parent != null) {
+                            changed(parent.root, parent.path.resolve((Path) event.context()), event.kind(), now);
+                        }
+                    }
+                    if (!key.reset()) { // Сбрасываем ключ для получения следующих событий
+                        watchedDirectories.remove(key);
+                        if (parent != null && parent.root.directory.equals(parent.path)) {
+                            LOG.error("Директория видео больше недоступна: {}", parent.path);
+                            if (watchedDirectories.isEmpty()) {
+                                return;
+                            }
+                        }
+                        // Удаление поддиректории обрабатывается по событию в родительской директории
+                    }
+                }
+
+                if (overflow) {
+                    LOG.warn("Переполнение очереди событий, полное сканирование");
+                    reconcile();
+                    lastSweep = now;
+                } else if (now - lastSweep >= SWEEP_INTERVAL_MS) {
+                    sweep(now);
+                    lastSweep = now;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Наблюдение остановлено
+        } catch (IOException e) {
+            LOG.error("Ошибка при мониторинге директории: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Обрабатывает событие по пути внутри наблюдаемой директории. Ожидающие файлы различаются только
+     * по имени: из какого корня их публиковать, решается при проверке ({@link #locate}).
+     */
+    private void changed(StorageRoots.Root root, Path path, WatchEvent.Kind<?> kind, long now) {
+        String name = relativeName(root, path);
+        if (kind == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            // Новая или перенесенная поддиректория: файлы в ней могли появиться до регистрации наблюдения.
+            // Перенесенное большое дерево обходится в пуле, не задерживая обработку остальных событий
+            try {
+                subtreeScans.add(scanPool.submit(new ScanTask(root, path, name + "/")));
+            } catch (RejectedExecutionException e) {
+                return; // Наблюдение остановлено
+            }
+            LOG.debug("Поддиректория ставится под наблюдение: {}", name);
+            return;
+        }
+        if (isVideo(name)) {
+            pending.computeIfAbsent(name, PendingFile::new).touch(kind, now);
+        } else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            // Удаленный путь мог быть директорией: ее видео проверяются в следующей проверке ожидающих
+            for (String nested : catalog.namesUnder(name)) {
+                pending.computeIfAbsent(nested, PendingFile::new).touch(kind, now);
+            }
+        }
+    }
+
+    /**
+     * Публикует файлы, которые перестали меняться, и удаляет из каталога исчезнувшие.
+     */
+    private void sweep(long now) {
+        collectSubtreeScans(now);
+        Iterator<PendingFile> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            PendingFile file = iterator.next();
+            boolean deleted = file.lastKind == StandardWatchEventKinds.ENTRY_DELETE;
+            if (!deleted && now - file.lastEventAt < QUIET_PERIOD_MS) {
+                continue;
+            }
+            VideoCatalog.VideoEntry entry = locate(file.name);
+            if (entry == null) {
+                if (catalog.get(file.name) != null) {
+                    catalog.remove(file.name);
+                    LOG.info("Видео удалено из каталога: {}", file.name);
+                }
+                iterator.remove();
+            } else if (entry.size == file.lastSize) {
+                publish(merge(entry));
+                LOG.info("Видео добавлено в каталог: {} (размер: {})", file.name, entry.size);
+                iterator.remove();
+            } else {
+                // Размер еще меняется или проверяется впервые: ждем следующий период тишины
+                file.lastSize = entry.size;
+                file.lastKind = StandardWatchEventKinds.ENTRY_MODIFY;
+                file.lastEventAt = now;
+            }
+        }
+    }
+
+    /**
+     * Ставит видео из завершенных обходов новых поддиректорий в ожидание, как файлы из событий:
+     * они публикуются после периода тишины.
+     */
+    private void collectSubtreeScans(long now) {
+        Iterator<ForkJoinTask<List<VideoCatalog.VideoEntry>>> scans = subtreeScans.iterator();
+        while (scans.hasNext()) {
+            ForkJoinTask<List<VideoCatalog.VideoEntry>> scan = scans.next();
+            if (!scan.isDone()) {
+                continue;
+            }
+            scans.remove();
+            if (scan.isCompletedNormally()) {
+                for (VideoCatalog.VideoEntry entry : scan.join()) {
+                    pending.computeIfAbsent(entry.name, PendingFile::new)
+                            .touch(StandardWatchEventKinds.ENTRY_CREATE, now);
+                }
+            }
+        }
+    }
+
+    /**
+     * Находит опубликованный вариант файла: первый по порядку корень, в котором он есть.
+     *
+     * @return запись или null, если файла нет ни в одном корне
+     */
+    private VideoCatalog.VideoEntry locate(String name) {
+        for (StorageRoots.Root root : roots.all()) {
+            Path file = root.resolve(name);
+            VideoCatalog.VideoEntry entry = file == null ? null : readEntry(file, name, root.index);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Сканирует деревья всех корней целиком и приводит каталог к их состоянию.
+     * Корни обходятся параллельно; из одинаковых имен остается файл корня, указанного раньше.
+     * Недавно измененные файлы не публикуются сразу, а ставятся в ожидание стабилизации.
+     */
+    private void reconcile() throws IOException {
+        long now = System.currentTimeMillis();
+        long started = System.nanoTime();
+        List<ScanTask> tasks = new ArrayList<>();
+        for (StorageRoots.Root root : roots.all()) {
+            ScanTask task = new ScanTask(root, root.directory, "");
+            scanPool.execute(task);
+            tasks.add(task);
+        }
+        Map<String, VideoCatalog.VideoEntry> found = new HashMap<>();
+        int conflicts = 0;
+        String example = null;
+        for (ScanTask task : tasks) {
+            for (VideoCatalog.VideoEntry entry : task.join()) {
+                if (found.putIfAbsent(entry.name, entry) != null) {
+                    conflicts++;
+                    example = entry.name;
+                }
+            }
+        }
+        LOG.debug("Обход директорий: {} видео за {} мс", found.size(), (System.nanoTime() - started) / 1_000_000);
+        if (conflicts > 0) {
+            LOG.warn("Видео с одинаковыми именами в нескольких директориях: {} (например, {}); " +
+                    "используются файлы из директории, указанной раньше", conflicts, example);
+        }
+        List<VideoCatalog.VideoEntry> stable = new ArrayList<>();
+        for (VideoCatalog.VideoEntry entry : found.values()) {
+            if (now - entry.lastModified < QUIET_PERIOD_MS || pending.containsKey(entry.name)) {
+                pending.computeIfAbsent(entry.name, PendingFile::new).touch(StandardWatchEventKinds.ENTRY_MODIFY, now);
+                VideoCatalog.VideoEntry published = catalog.get(entry.name);
+                if (published != null) {
+                    stable.add(published); // Прежняя версия остается в каталоге до стабилизации
+                }
+            } else {
+                stable.add(merge(entry));
+            }
+        }
+        catalog.replaceAll(stable);
+        for (VideoCatalog.VideoEntry entry : stable) {
+            analyze(entry);
+        }
+    }
+
+    /**
+     * Переносит в свежие атрибуты файла сохраненные метаданные.
+     * Если файл не менялся, возвращается прежняя запись с корнем, в котором файл найден.
+     */
+    private VideoCatalog.VideoEntry merge(VideoCatalog.VideoEntry fresh) {
+        VideoCatalog.VideoEntry previous = catalog.get(fresh.name);
+        if (previous == null) {
+            return fresh;
+        }
+        return previous.sameFile(fresh) ? previous.withRoot(fresh.root) : fresh.withAddedAt(previous.addedAt);
+    }
+
+    private void publish(VideoCatalog.VideoEntry entry) {
+        catalog.put(entry);
+        analyze(entry);
+    }
+
+    /**
+     * Вычисляет в фоне недостающие метаданные файла: длительность, кодеки и хэш содержимого.
+     * Результат попадает в каталог, только если за время вычисления файл не изменился.
+     */
+    private void analyze(VideoCatalog.VideoEntry entry) {
+        if (entry.hasMedia() && entry.contentHash != null) {
+            return;
+        }
+        try {
+            analyzeExecutor.execute(() -> {
+                StorageRoots.Location location = roots.locate(entry.name, entry);
+                if (location == null) {
+                    return;
+                }
+                Path file = location.path;
+                if (!entry.hasMedia()) {
+                    MediaProbe.MediaInfo info = MediaProbe.probe(file);
+                    if (info != null) {
+                        catalog.update(entry, current -> current.withMedia(info.durationMs, info.codec));
+                    }
+                }
+                if (entry.contentHash == null) {
+                    try {
+                        String hash = ContentHash.hashFile(file, hashPool);
+                        if (entry.sameFile(readEntry(file, entry.name, location.root.index))) {
+                            catalog.update(entry, current -> current.withContentHash(hash));
+                        }
+                    } catch (IOException e) {
+                        LOG.warn("Не удалось вычислить хэш {}: {}", entry.name, e.getMessage());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Наблюдение остановлено
+        }
+    }
+
+    /**
+     * Читает атрибуты видеофайла для каталога.
+     *
+     * @param file путь к файлу
+     * @param name имя видео в каталоге
+     * @param root номер корня, в котором лежит файл
+     * @return запись каталога или null, если файл исчез или не является обычным файлом
+     */
+    static VideoCatalog.VideoEntry readEntry(Path file, String name, int root) {
+        try {
+            return entry(name, root, Files.readAttributes(file, BasicFileAttributes.class));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static VideoCatalog.VideoEntry entry(String name, int root, BasicFileAttributes attributes) {
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+        return new VideoCatalog.VideoEntry(name, root, attributes.size(), attributes.lastModifiedTime().toMillis());
+    }
+
+    private boolean isVideo(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > name.lastIndexOf('/') + 1 && extensions.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Имя в каталоге: путь относительно корня с разделителем {@code /} на любой ОС.
+     */
+    private static String relativeName(StorageRoots.Root root, Path path) {
+        Path relative = root.directory.relativize(path);
+        if (relative.getNameCount() == 1) {
+            return relative.toString();
+        }
+        StringBuilder name = new StringBuilder();
+        for (Path part : relative) {
+            if (name.length() > 0) {
+                name.append('/');
+            }
+            name.append(part);
+        }
+        return name.toString();
+    }
+
+    /**
+     * Обход поддерева: регистрирует наблюдение за директорией, читает ее и обходит вложенные
+     * директории параллельными подзадачами.
+     */
+    @SuppressWarnings("serial")
+    private final class ScanTask extends RecursiveTask<List<VideoCatalog.VideoEntry>> {
+        private final StorageRoots.Root root;
+        private final Path path;
+        private final String prefix; // Имя директории в каталоге с завершающим разделителем
+
+        ScanTask(StorageRoots.Root root, Path path, String prefix) {
+            this.root = root;
+            this.path = path;
+            this.prefix = prefix;
+        }
+
+        @Override
+        protected List<VideoCatalog.VideoEntry> compute() {
+            List<VideoCatalog.VideoEntry> found = new ArrayList<>();
+            List<ScanTask> subdirectories = new ArrayList<>();
+            try {
+                // Регистрация до чтения: файл, созданный во время обхода, придет событием
+                WatchKey key = path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                watchedDirectories.put(key, new Watched(root, path));
+            } catch (IOException e) {
+                // Например, исчерпан предел наблюдений ОС: файлы директории все равно попадут в каталог
+                if (unwatched.getAndIncrement() == 0) {
+                    LOG.warn("Не удалось наблюдать за директорией {}: {}", path, e.getMessage());
+                }
+            }
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                for (Path child : stream) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        continue; // Удален во время обхода
+                    }
+                    String name = prefix + child.getFileName();
+                    if (attributes.isDirectory()) {
+                        ScanTask task = new ScanTask(root, child, name + "/");
+                        task.fork();
+                        subdirectories.add(task);
+                        continue;
+                    }
+                    if (!isVideo(name)) {
+                        continue;
+                    }
+                    // Ссылка на файл публикуется с атрибутами самого файла
+                    VideoCatalog.VideoEntry entry = attributes.isSymbolicLink()
+                            ? readEntry(child, name, root.index) : entry(name, root.index, attributes);
+                    if (entry != null) {
+                        found.add(entry);
+                    }
+                }
+            } catch (IOException e) {
+                LOG.warn("Не удалось прочитать директорию {}: {}", path, e.getMessage());
+            }
+            for (ScanTask task : subdirectories) {
+                found.addAll(task.join());
+            }
+            return found;
+        }
+    }
+
+    /**
+     * Наблюдаемая директория и корень, которому она принадлежит.
+     */
+    private static final class Watched {
+        final StorageRoots.Root root;
+        final Path path;
+
+        Watched(StorageRoots.Root root, Path path) {
+            this.root = root;
+            this.path = path;
+        }
+    }
+
+    /**
+     * Файл, по которому пришли события и который еще не опубликован.
+     */
+    private static final class PendingFile {
+        final String name;
+        WatchEvent.Kind<?> lastKind;
+        long lastEventAt;
+        long lastSize = -1; // Размер при предыдущей проверке
+
+        PendingFile(String name) {
+            this.name = name;
+        }
+
+        void touch(WatchEvent.Kind<?> kind, long now) {
+            lastKind = kind;
+            lastEventAt = now;
+        }
+    }
+}
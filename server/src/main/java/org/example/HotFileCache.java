@@ -0,0 +1,270 @@
+package org.example;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Кеш популярных видео, отображенных в память.
+ * <p>
+ * Для каждого файла считается число запросов. Файл, набравший {@code threshold} запросов,
+ * отображается в память фоновым потоком и заранее подгружается, после чего запросы к нему
+ * отдаются из отображения без открытия файла и чтения с диска. Суммарный объем отображений
+ * ограничен; при нехватке места вытесняются наименее популярные файлы, а новый файл
+ * принимается, только если он популярнее вытесняемых. Счетчики периодически уменьшаются
+ * вдвое, чтобы популярность отражала недавние запросы.
+ * <p>
+ * Отображение освобождается при удалении или изменении файла, но не раньше, чем закончатся
+ * отправки, которые его используют.
+ */
+class HotFileCache implements VideoCatalog.Listener {
+    private static final int AGING_PERIOD = 1000; // Через сколько запросов счетчики уменьшаются вдвое
+    private static final Log LOG = Log.root();
+
+    private final StorageRoots roots;
+    private final long capacity;
+    private final int threshold;
+    private final Map<String, Mapping> mappings = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> popularity = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> warming = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "hot-cache-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long mappedBytes; // Защищено this
+
+    /**
+     * @param roots корневые директории видео
+     * @param capacity наибольший суммарный объем отображений в байтах
+     * @param threshold число запросов, после которого файл отображается в память
+     */
+    HotFileCache(StorageRoots roots, long capacity, int threshold) {
+        this.roots = roots;
+        this.capacity = capacity;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Учитывает запрос к файлу и возвращает его отображение, если файл в кеше.
+     * Полученное отображение нужно освободить через {@link Mapping#release()} после отправки.
+     *
+     * @param entry запись каталога о запрошенном файле
+     * @return отображение или null, если файла нет в кеше
+     */
+    Mapping acquire(VideoCatalog.VideoEntry entry) {
+        long count = popularity.computeIfAbsent(entry.name, name -> new AtomicLong()).incrementAndGet();
+        if (requests.incrementAndGet() % AGING_PERIOD == 0) {
+            age();
+        }
+
+        Mapping mapping = mappings.get(entry.name);
+        if (mapping != null && mapping.entry.sameFile(entry) && mapping.retain()) {
+            hits.incrementAndGet();
+            return mapping;
+        }
+        misses.incrementAndGet();
+        if (count >= threshold && entry.size <= Math.min(capacity, Integer.MAX_VALUE)
+                && warming.putIfAbsent(entry.name, Boolean.TRUE) == null) {
+            try {
+                loader.execute(() -> warm(entry));
+            } catch (RejectedExecutionException e) {
+                warming.remove(entry.name);
+            }
+        }
+        return null;
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    synchronized long mappedBytes() {
+        return mappedBytes;
+    }
+
+    /**
+     * Освобождает отображения изменившихся и удаленных файлов.
+     */
+    @Override
+    public void changed(String name, VideoCatalog.VideoEntry entry) {
+        if (entry == null) {
+            popularity.remove(name);
+        }
+        Mapping mapping = mappings.get(name);
+        if (mapping != null && !mapping.entry.sameFile(entry)) {
+            evict(mapping);
+        }
+    }
+
+    /**
+     * Освобождает все отображения и останавливает фоновую загрузку.
+     */
+    void close() {
+        loader.shutdownNow();
+        for (Mapping mapping : mappings.values()) {
+            evict(mapping);
+        }
+    }
+
+    /**
+     * Отображает файл в память и подгружает его страницы, затем помещает в кеш,
+     * вытеснив при необходимости менее популярные файлы.
+     */
+    private void warm(VideoCatalog.VideoEntry entry) {
+        try {
+            if (!makeRoom(entry)) {
+                return;
+            }
+            StorageRoots.Location location = roots.locate(entry.name, entry);
+            if (location == null) {
+                return;
+            }
+            Path file = location.path;
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (channel.size() != entry.size) {
+                    return; // Файл уже изменился, каталог сообщит о новой версии
+                }
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, entry.size);
+            }
+            buffer.load();
+            if (!entry.sameFile(DirectoryWatcher.readEntry(file, entry.name, location.root.index))) {
+                unmap(buffer);
+                return;
+            }
+            Mapping mapping = new Mapping(entry, buffer);
+            synchronized (this) {
+                mappedBytes += entry.size;
+                Mapping previous = mappings.put(entry.name, mapping);
+                if (previous != null) {
+                    mappedBytes -= previous.entry.size;
+                    previous.release();
+                }
+            }
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Видео закешировано в памяти: {} (кеш: {} байт, {})", entry.name, mappedBytes(),
+                        "попаданий: " + hits() + ", промахов: " + misses());
+            }
+        } catch (IOException e) {
+            LOG.warn("Не удалось отобразить в память {}: {}", entry.name, e.getMessage());
+        } finally {
+            warming.remove(entry.name);
+        }
+    }
+
+    /**
+     * Освобождает место под файл, вытесняя наименее популярные отображения.
+     *
+     * @return false, если файл не популярнее тех, кого пришлось бы вытеснить
+     */
+    private synchronized boolean makeRoom(VideoCatalog.VideoEntry entry) {
+        long candidate = popularityOf(entry.name);
+        while (mappedBytes + entry.size > capacity) {
+            Mapping victim = null;
+            for (Mapping mapping : mappings.values()) {
+                if (victim == null || popularityOf(mapping.entry.name) < popularityOf(victim.entry.name)) {
+                    victim = mapping;
+                }
+            }
+            if (victim == null || popularityOf(victim.entry.name) >= candidate) {
+                return false;
+            }
+            evict(victim);
+        }
+        return true;
+    }
+
+    private synchronized void evict(Mapping mapping) {
+        if (mappings.remove(mapping.entry.name, mapping)) {
+            mappedBytes -= mapping.entry.size;
+            mapping.release();
+        }
+    }
+
+    private long popularityOf(String name) {
+        AtomicLong count = popularity.get(name);
+        return count == null ? 0 : count.get();
+    }
+
+    private void age() {
+        for (AtomicLong count : popularity.values()) {
+            count.updateAndGet(value -> value / 2);
+        }
+    }
+
+    /**
+     * Освобождает отображение сразу, не дожидаясь сборщика мусора.
+     * Если среда не позволяет этого сделать, память освободится при сборке мусора.
+     */
+    private static void unmap(ByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(field.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Отображение освободит сборщик мусора
+        }
+    }
+
+    /**
+     * Отображение файла в памяти со счетчиком использований.
+     * Кеш держит одну ссылку; каждая отправка берет свою и освобождает ее по окончании.
+     */
+    static final class Mapping {
+        final VideoCatalog.VideoEntry entry;
+        private final MappedByteBuffer buffer;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        Mapping(VideoCatalog.VideoEntry entry, MappedByteBuffer buffer) {
+            this.entry = entry;
+            this.buffer = buffer;
+        }
+
+        boolean retain() {
+            while (true) {
+                int current = references.get();
+                if (current == 0) {
+                    return false; // Отображение уже освобождено
+                }
+                if (references.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                unmap(buffer);
+            }
+        }
+
+        /**
+         * Возвращает независимое представление участка файла для записи в сокет.
+         */
+        ByteBuffer slice(long position, int length) {
+            return buffer.duplicate().position((int) position).limit((int) position + length);
+        }
+    }
+}
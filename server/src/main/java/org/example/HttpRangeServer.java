@@ -0,0 +1,420 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Минимальный HTTP/1.1 сервер, раздающий директорию видео.
+ * Поддерживает GET и HEAD, заголовок Range с ответом 206 Partial Content и постоянные соединения,
+ * поэтому VLC может открыть {@code http://host:port/<имя>} и начать воспроизведение до полной загрузки.
+ * Каждое подключение обслуживается в виртуальном потоке; подключения сверх пределов
+ * {@link AdmissionControl} получают ответ 503.
+ */
+class HttpRangeServer {
+    private static final int IDLE_TIMEOUT = 30_000; // Время ожидания следующего запроса, мс
+    private static final int MAX_LINE_LENGTH = 8192; // Предел длины строки запроса или заголовка
+    private static final int MAX_HEADERS = 100;
+    private static final Log LOG = Log.root();
+    private static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+    private static final ByteBuffer BUSY_RESPONSE = encode("HTTP/1.1 503 Service Unavailable\r\n" +
+            "Retry-After: 1\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").asReadOnlyBuffer();
+
+    private final VideoServer server;
+    private final int port;
+    private final int backlog;
+    private final ExecutorService executor;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running = true;
+
+    HttpRangeServer(VideoServer server, int port, int backlog) {
+        this.server = server;
+        this.port = port;
+        this.backlog = backlog;
+        this.executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("video-http-", 1).factory());
+    }
+
+    /**
+     * Открывает порт и принимает подключения в отдельном потоке.
+     *
+     * @throws IOException если порт не удалось открыть
+     */
+    void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), backlog);
+        Thread acceptor = new Thread(this::acceptLoop, "video-http-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        LOG.info("HTTP-сервер запущен на порту {}", port);
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                AdmissionControl.Permit permit = server.getAdmission().admit(channel.socket().getInetAddress());
+                if (permit == null) {
+                    server.getAdmission().reject(channel, BUSY_RESPONSE.duplicate());
+                    continue;
+                }
+                executor.execute(() -> {
+                    try {
+                        serve(channel);
+                    } finally {
+                        permit.release();
+                    }
+                });
+            } catch (IOException e) {
+                if (running) {
+                    LOG.error("Ошибка при принятии HTTP-подключения: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Останавливает прием подключений.
+     */
+    void stop() {
+        running = false;
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            LOG.warn("Ошибка при остановке HTTP-сервера: {}", e.getMessage());
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Обслуживает запросы одного подключения, пока клиент держит его открытым.
+     */
+    private void serve(SocketChannel channel) {
+        BandwidthShaper.Flow flow = server.getShaper().open(server.nextClientId());
+        try (channel) {
+            channel.socket().setSoTimeout(IDLE_TIMEOUT);
+            channel.socket().setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(channel.socket().getInputStream());
+            while (running) {
+                String requestLine = readLine(in);
+                if (requestLine == null) {
+                    return;
+                }
+                if (requestLine.isEmpty()) {
+                    continue; // Пустые строки между запросами допускаются
+                }
+                Map<String, String> headers = readHeaders(in);
+                if (!handle(channel, flow, requestLine, headers)) {
+                    return;
+                }
+            }
+        } catch (SocketTimeoutException | EOFException e) {
+            // Клиент закрыл соединение или простаивает слишком долго
+        } catch (IOException e) {
+            LOG.warn("Ошибка HTTP-соединения: {}", e.getMessage());
+        } finally {
+            flow.close();
+        }
+    }
+
+    /**
+     * Обрабатывает один запрос.
+     *
+     * @return true, если соединение можно использовать для следующего запроса
+     */
+    private boolean handle(SocketChannel channel, BandwidthShaper.Flow flow, String requestLine,
+                           Map<String, String> headers) throws IOException {
+        long received = System.nanoTime();
+        server.getMetrics().requested(ServerMetrics.Command.HTTP);
+        String[] parts = requestLine.split(" ");
+        if (parts.length != 3 || !parts[2].startsWith("HTTP/1.")) {
+            sendError(channel, 400, "Bad Request", false);
+            return false;
+        }
+        String method = parts[0];
+        boolean keepAlive = "HTTP/1.1".equals(parts[2])
+                ? !"close".equalsIgnoreCase(headers.get("connection"))
+                : "keep-alive".equalsIgnoreCase(headers.get("connection"));
+        String contentLength = headers.get("content-length");
+        if ((contentLength != null && !"0".equals(contentLength)) || headers.containsKey("transfer-encoding")) {
+            // Тело в запросах GET/HEAD не ожидается, разбирать его не будем
+            sendError(channel, 400, "Bad Request", false);
+            return false;
+        }
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            sendError(channel, 405, "Method Not Allowed", keepAlive);
+            return keepAlive;
+        }
+
+        String videoName = decodeName(parts[1]);
+        StorageRoots.Location location = videoName == null ? null : server.locateVideo(videoName);
+        Path videoPath = location == null ? null : location.path;
+        if (videoPath == null || !Files.isRegularFile(videoPath)) {
+            sendError(channel, 404, "Not Found", keepAlive);
+            return keepAlive;
+        }
+
+        try (FileChannel file = FileChannel.open(videoPath, StandardOpenOption.READ)) {
+            long fileSize = file.size();
+            StringBuilder response = new StringBuilder(256);
+            ByteRange body;
+            String rangeHeader = headers.get("range");
+            ByteRange requested = rangeHeader == null ? null : parseRange(rangeHeader, fileSize);
+            if (requested == null) {
+                body = new ByteRange(0, fileSize);
+                response.append("HTTP/1.1 200 OK\r\n");
+            } else if (requested.length == 0) {
+                response.append("HTTP/1.1 416 Range Not Satisfiable\r\n")
+                        .append("Content-Range: bytes */").append(fileSize).append("\r\n")
+                        .append("Content-Length: 0\r\n");
+                appendCommonHeaders(response, keepAlive);
+                VideoServer.writeFully(channel, encode(response));
+                return keepAlive;
+            } else {
+                body = requested;
+                response.append("HTTP/1.1 206 Partial Content\r\n")
+                        .append("Content-Range: bytes ").append(body).append('/').append(fileSize).append("\r\n");
+            }
+            response.append("Content-Type: ").append(contentType(videoName)).append("\r\n")
+                    .append("Content-Length: ").append(body.length).append("\r\n")
+                    .append("Accept-Ranges: bytes\r\n")
+                    .append("Last-Modified: ")
+                    .append(HTTP_DATE.format(Instant.ofEpochMilli(Files.getLastModifiedTime(videoPath).toMillis())))
+                    .append("\r\n");
+            appendCommonHeaders(response, keepAlive);
+            VideoServer.writeFully(channel, encode(response));
+
+            if ("GET".equals(method)) {
+                flow.beginTransfer(body.length);
+                try {
+                    boolean sent = location.root.isolated()
+                            ? sendPooled(channel, file, body, location.root, flow, received)
+                            : sendZeroCopy(channel, file, body, location.root, flow, received);
+                    if (!sent) {
+                        return false; // Файл укоротился: клиент увидит обрыв ответа
+                    }
+                } finally {
+                    flow.finishTransfer();
+                }
+            }
+        }
+        return keepAlive;
+    }
+
+    /**
+     * Передает диапазон файла из кеша страниц прямо в сокет через {@link FileChannel#transferTo}.
+     *
+     * @return false, если файл укоротился во время отправки
+     */
+    private boolean sendZeroCopy(SocketChannel channel, FileChannel file, ByteRange body, StorageRoots.Root root,
+                                 BandwidthShaper.Flow flow, long received) throws IOException {
+        long position = body.offset;
+        while (position < body.end()) {
+            long partEnd = position + flow.chunk(body.end() - position);
+            flow.acquire(partEnd - position);
+            while (position < partEnd) {
+                long sent = file.transferTo(position, partEnd - position, channel);
+                if (sent <= 0 && position >= file.size()) {
+                    return false;
+                }
+                if (position == body.offset && sent > 0) {
+                    server.getMetrics().completed(ServerMetrics.Command.HTTP, received);
+                }
+                root.transferred(sent);
+                position += sent;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Отправляет диапазон файла изолированного корня: части читаются в пуле корня,
+     * и подключение ждет только свой диск.
+     *
+     * @return false, если файл укоротился во время отправки
+     */
+    private boolean sendPooled(SocketChannel channel, FileChannel file, ByteRange body, StorageRoots.Root root,
+                               BandwidthShaper.Flow flow, long received) throws IOException {
+        boolean[] firstByte = {true};
+        return root.copy(file, body, chunk -> {
+            while (chunk.hasRemaining()) {
+                int part = (int) flow.chunk(chunk.remaining());
+                flow.acquire(part);
+                VideoServer.writeFully(channel, chunk.slice(chunk.position(), part));
+                chunk.position(chunk.position() + part);
+                if (firstByte[0]) {
+                    server.getMetrics().completed(ServerMetrics.Command.HTTP, received);
+                    firstByte[0] = false;
+                }
+            }
+        });
+    }
+
+    /**
+     * Разбирает заголовок Range для одного диапазона байтов.
+     * Несколько диапазонов и неверный синтаксис игнорируются, как разрешает RFC 9110:
+     * тогда отдается весь файл.
+     *
+     * @param header значение заголовка Range
+     * @param fileSize размер файла
+     * @return диапазон, пустой диапазон для неудовлетворимого запроса или null, если заголовок игнорируется
+     */
+    static ByteRange parseRange(String header, long fileSize) {
+        String value = header.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6) || value.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = value.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // Суффикс: последние N байтов
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || fileSize == 0) {
+                    return new ByteRange(0, 0);
+                }
+                long length = Math.min(suffix, fileSize);
+                return new ByteRange(fileSize - length, length);
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? fileSize - 1 : Math.min(Long.parseLong(last), fileSize - 1);
+            if (start < 0 || (!last.isEmpty() && Long.parseLong(last) < start)) {
+                return null;
+            }
+            if (start >= fileSize) {
+                return new ByteRange(0, 0);
+            }
+            return new ByteRange(start, end - start + 1);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Извлекает имя видео из пути запроса: путь относительно директории видео, выход за ее пределы не допускается.
+     *
+     * @return имя файла или null, если путь недопустим
+     */
+    private static String decodeName(String target) {
+        int query = target.indexOf('?');
+        if (query >= 0) {
+            target = target.substring(0, query);
+        }
+        if (!target.startsWith("/")) {
+            return null;
+        }
+        String name;
+        try {
+            name = URLDecoder.decode(target.substring(1).replace("+", "%2B"), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return VideoCatalog.isValidName(name) ? name : null;
+    }
+
+    private static String contentType(String videoName) {
+        String lower = videoName.toLowerCase(Locale.ROOT);
+        if (lower.endsWith(".mp4")) return "video/mp4";
+        if (lower.endsWith(".mkv")) return "video/x-matroska";
+        if (lower.endsWith(".avi")) return "video/x-msvideo";
+        if (lower.endsWith(".mov")) return "video/quicktime";
+        if (lower.endsWith(".flv")) return "video/x-flv";
+        if (lower.endsWith(".webm")) return "video/webm";
+        if (lower.endsWith(".m4v")) return "video/x-m4v";
+        return "application/octet-stream";
+    }
+
+    private static void appendCommonHeaders(StringBuilder response, boolean keepAlive) {
+        response.append("Date: ").append(HTTP_DATE.format(Instant.now())).append("\r\n")
+                .append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n")
+                .append("\r\n");
+    }
+
+    private static void sendError(SocketChannel channel, int status, String reason, boolean keepAlive)
+            throws IOException {
+        StringBuilder response = new StringBuilder(128)
+                .append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n")
+                .append("Content-Length: 0\r\n");
+        appendCommonHeaders(response, keepAlive);
+        VideoServer.writeFully(channel, encode(response));
+    }
+
+    private static ByteBuffer encode(CharSequence text) {
+        return ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Читает заголовки запроса до пустой строки. Имена приводятся к нижнему регистру.
+     */
+    private static Map<String, String> readHeaders(InputStream in) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                if (headers.size() >= MAX_HEADERS) {
+                    throw new IOException("Слишком много заголовков");
+                }
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+        }
+        if (line == null) {
+            throw new EOFException();
+        }
+        return headers;
+    }
+
+    /**
+     * Читает строку, завершенную CRLF или LF.
+     *
+     * @return строка без завершающих символов или null в конце потока
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                int length = line.size();
+                byte[] bytes = line.toByteArray();
+                if (length > 0 && bytes[length - 1] == '\r') {
+                    length--;
+                }
+                return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+            }
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Слишком длинная строка запроса");
+            }
+            line.write(b);
+        }
+        if (line.size() > 0) {
+            throw new EOFException();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,127 @@
+package org.example;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма задержек без блокировок.
+ * <p>
+ * Значения хранятся в микросекундах в логарифмических интервалах: каждая степень двойки
+ * делится на четыре части, поэтому ошибка перцентиля не больше четверти значения.
+ * Запись — одно атомарное увеличение счетчика, без выделения памяти.
+ */
+class LatencyHistogram {
+    private static final int SUB_BITS = 2; // Частей на степень двойки: 2^SUB_BITS
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40; // Значения от 2^40 мкс (около 12 дней) попадают в последний интервал
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB_COUNT + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder(); // Сумма значений, мкс
+
+    /**
+     * Записывает время, прошедшее с момента {@code startNanos}.
+     *
+     * @param startNanos значение {@link System#nanoTime()} в начале измерения
+     */
+    void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /**
+     * Записывает значение.
+     *
+     * @param micros задержка в микросекундах
+     */
+    void record(long micros) {
+        long value = Math.max(0, micros);
+        counts.incrementAndGet(indexOf(value));
+        sum.add(value);
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+        if (exponent == MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * Нижняя граница интервала в микросекундах.
+     */
+    static long lowerBound(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int exponent = index / SUB_COUNT + SUB_BITS - 1;
+        long sub = index % SUB_COUNT;
+        return (SUB_COUNT + sub) << (exponent - SUB_BITS);
+    }
+
+    /**
+     * Снимок счетчиков. Счетчики читаются по одному, поэтому при одновременной записи
+     * снимок может не учесть последние значения, но остается согласованным сам с собой.
+     */
+    Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total, sum.sum());
+    }
+
+    static final class Snapshot {
+        private final long[] counts;
+        final long count;
+        final long sumMicros;
+
+        private Snapshot(long[] counts, long count, long sumMicros) {
+            this.counts = counts;
+            this.count = count;
+            this.sumMicros = sumMicros;
+        }
+
+        /**
+         * Возвращает верхнюю оценку перцентиля.
+         *
+         * @param fraction доля от 0 до 1, например 0.99
+         * @return значение в микросекундах или 0, если значений нет
+         */
+        long percentile(double fraction) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return i + 1 < counts.length ? lowerBound(i + 1) - 1 : lowerBound(i);
+                }
+            }
+            return lowerBound(counts.length - 1);
+        }
+
+        /**
+         * Возвращает число значений меньше заданного.
+         * Граница должна совпадать с началом интервала, например быть степенью двойки.
+         *
+         * @param micros граница в микросекундах
+         */
+        long countBelow(long micros) {
+            int limit = indexOf(micros);
+            long total = 0;
+            for (int i = 0; i < limit; i++) {
+                total += counts[i];
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Готовые ответы на LIST и LIST_SINCE.
+ * <p>
+ * Полный список кодируется один раз на версию списка имен и отдается всем подключениям
+ * как неизменяемый буфер, к которому для каждого ответа добавляется только заголовок кадра.
+ * Сжатая копия строится при первом запросе клиента, который ее принимает.
+ * Ответ с изменениями после версии клиента строится по истории каталога; если изменений нет,
+ * он занимает несколько десятков байт. Последний такой ответ запоминается: подписчики
+ * {@link CatalogFeed}, получившие прошлое уведомление, запрашивают изменения с одной и той же версии,
+ * и тело для них кодируется один раз.
+ */
+class ListingCache {
+    static final int DEFLATE_THRESHOLD = 4096; // Тела короче этого не сжимаются
+
+    private final VideoCatalog catalog;
+    private final AtomicReference<Encoded> encoded = new AtomicReference<>();
+    private volatile Delta lastDelta; // Последний построенный ответ с изменениями
+
+    ListingCache(VideoCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    /**
+     * Ответ на LIST в прежнем формате LIST_RESULT.
+     *
+     * @return буферы кадра, которые нужно записать по порядку
+     */
+    ByteBuffer[] list(int requestId) {
+        Encoded full = current();
+        return new ByteBuffer[]{
+                Protocol.header(Protocol.LIST_RESULT, requestId, full.plain.remaining()), full.plain.duplicate()};
+    }
+
+    /**
+     * Ответ на LIST_SINCE: изменения после версии клиента или полный список.
+     *
+     * @param catalogId идентификатор каталога, известный клиенту
+     * @param since версия, известная клиенту, или -1
+     * @param acceptDeflate клиент принимает сжатое тело
+     * @return буферы кадра, которые нужно записать по порядку
+     */
+    ByteBuffer[] listSince(int requestId, long catalogId, long since, boolean acceptDeflate) {
+        boolean known = catalogId == catalog.id() && since >= 0;
+        Delta last = lastDelta;
+        if (known && last != null && last.since == since && last.deflate == acceptDeflate
+                && last.version == catalog.namesVersion()) {
+            return last.frame(requestId, catalogId);
+        }
+        VideoCatalog.Changes changes = known ? catalog.changesSince(since) : null;
+        if (changes == null) {
+            Encoded full = current();
+            ByteBuffer body = acceptDeflate ? full.deflated() : full.plain;
+            byte encoding = body == full.plain ? Protocol.ENCODING_PLAIN : Protocol.ENCODING_DEFLATE;
+            return new ByteBuffer[]{
+                    Protocol.listChangesHeader(requestId, catalog.id(), full.version, Protocol.LIST_KIND_FULL,
+                            encoding, full.plain.remaining(), body.remaining()),
+                    body.duplicate()};
+        }
+        byte[] added = Protocol.encodeNames(changes.added);
+        byte[] removed = Protocol.encodeNames(changes.removed);
+        byte[] raw = new byte[added.length + removed.length];
+        System.arraycopy(added, 0, raw, 0, added.length);
+        System.arraycopy(removed, 0, raw, added.length, removed.length);
+        byte[] body = raw;
+        byte encoding = Protocol.ENCODING_PLAIN;
+        if (acceptDeflate && raw.length >= DEFLATE_THRESHOLD) {
+            byte[] deflated = Protocol.deflate(raw);
+            if (deflated.length < raw.length) {
+                body = deflated;
+                encoding = Protocol.ENCODING_DEFLATE;
+            }
+        }
+        Delta delta = new Delta(since, changes.version, acceptDeflate, encoding, raw.length, ByteBuffer.wrap(body));
+        lastDelta = delta;
+        return delta.frame(requestId, catalogId);
+    }
+
+    /**
+     * Возвращает закодированный список текущей версии, кодируя его при первом обращении.
+     */
+    private Encoded current() {
+        VideoCatalog.Snapshot snapshot = catalog.snapshot();
+        Encoded cached = encoded.get();
+        if (cached != null && cached.version >= snapshot.version) {
+            return cached;
+        }
+        Encoded fresh = new Encoded(snapshot.version, ByteBuffer.wrap(Protocol.encodeNames(snapshot.names)));
+        while (true) {
+            Encoded published = encoded.get();
+            if (published != null && published.version >= fresh.version) {
+                return published;
+            }
+            if (encoded.compareAndSet(published, fresh)) {
+                return fresh;
+            }
+        }
+    }
+
+    /**
+     * Полный список одной версии. Буферы не изменяются, читатели берут их копии через duplicate().
+     */
+    private static final class Encoded {
+        final long version;
+        final ByteBuffer plain;
+        private volatile ByteBuffer deflated;
+
+        Encoded(long version, ByteBuffer plain) {
+            this.version = version;
+            this.plain = plain.asReadOnlyBuffer();
+        }
+
+        /**
+         * Возвращает сжатое тело или несжатое, если сжатие не уменьшает его.
+         * При одновременных первых запросах тело может быть сжато несколько раз, результат одинаков.
+         */
+        ByteBuffer deflated() {
+            ByteBuffer result = deflated;
+            if (result == null) {
+                if (plain.remaining() < DEFLATE_THRESHOLD) {
+                    result = plain;
+                } else {
+                    byte[] raw = new byte[plain.remaining()];
+                    plain.duplicate().get(raw);
+                    byte[] compressed = Protocol.deflate(raw);
+                    result = compressed.length < raw.length ? ByteBuffer.wrap(compressed).asReadOnlyBuffer() : plain;
+                }
+                deflated = result;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Ответ с изменениями между двумя версиями. Тело не изменяется, читатели берут его копии через duplicate().
+     */
+    private static final class Delta {
+        final long since;
+        final long version;
+        final boolean deflate; // Построен для клиента, принимающего сжатие
+        final byte encoding;
+        final int rawLength;
+        final ByteBuffer body;
+
+        Delta(long since, long version, boolean deflate, byte encoding, int rawLength, ByteBuffer body) {
+            this.since = since;
+            this.version = version;
+            this.deflate = deflate;
+            this.encoding = encoding;
+            this.rawLength = rawLength;
+            this.body = body.asReadOnlyBuffer();
+        }
+
+        ByteBuffer[] frame(int requestId, long catalogId) {
+            return new ByteBuffer[]{
+                    Protocol.listChangesHeader(requestId, catalogId, version, Protocol.LIST_KIND_CHANGES,
+                            encoding, rawLength, body.remaining()),
+                    body.duplicate()};
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Извлекает из MP4 длительность и кодеки дорожек.
+ * Читаются только заголовки атомов по пути moov/trak/mdia/minf/stbl, сами медиаданные не затрагиваются.
+ */
+final class MediaProbe {
+    private static final int MAX_DEPTH = 8;
+    private static final int MAX_BOXES = 10_000; // Защита от зацикливания на поврежденных файлах
+    private static final Set<String> CONTAINERS = Set.of("moov", "trak", "mdia", "minf", "stbl");
+
+    private MediaProbe() {
+    }
+
+    /**
+     * Длительность и кодеки видеофайла.
+     */
+    static final class MediaInfo {
+        final long durationMs; // -1, если не удалось определить
+        final String codec; // Коды дорожек через запятую, например "avc1,mp4a"
+
+        MediaInfo(long durationMs, String codec) {
+            this.durationMs = durationMs;
+            this.codec = codec;
+        }
+    }
+
+    /**
+     * Разбирает файл MP4.
+     *
+     * @param file путь к файлу
+     * @return сведения о файле или null, если файл не похож на MP4
+     */
+    static MediaInfo probe(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            State state = new State();
+            walk(channel, 0, channel.size(), 0, state);
+            if (state.durationMs < 0 && state.codecs.isEmpty()) {
+                return null;
+            }
+            return new MediaInfo(state.durationMs, state.codecs.isEmpty() ? null : String.join(",", state.codecs));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void walk(FileChannel channel, long start, long end, int depth, State state) throws IOException {
+        long position = start;
+        ByteBuffer header = ByteBuffer.allocate(16);
+        while (position + 8 <= end && state.boxes++ < MAX_BOXES) {
+            header.clear().limit(8);
+            if (channel.read(header, position) < 8) {
+                return;
+            }
+            long size = header.getInt(0) & 0xFFFFFFFFL;
+            String type = new String(header.array(), 4, 4, StandardCharsets.ISO_8859_1);
+            long headerSize = 8;
+            if (size == 1) {
+                header.clear().limit(8);
+                if (channel.read(header, position + 8) < 8) {
+                    return;
+                }
+                size = header.getLong(0);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = end - position; // Атом до конца файла
+            }
+            if (size < headerSize || position + size > end) {
+                return;
+            }
+
+            long body = position + headerSize;
+            if (CONTAINERS.contains(type) && depth < MAX_DEPTH) {
+                walk(channel, body, position + size, depth + 1, state);
+            } else if ("mvhd".equals(type)) {
+                readMovieHeader(channel, body, state);
+            } else if ("stsd".equals(type)) {
+                // Версия и флаги (4), число записей (4), затем первая запись: размер (4) и код формата (4)
+                ByteBuffer entry = ByteBuffer.allocate(16);
+                if (channel.read(entry, body) == 16) {
+                    state.codecs.add(new String(entry.array(), 12, 4, StandardCharsets.ISO_8859_1).trim());
+                }
+            }
+            position += size;
+        }
+    }
+
+    private static void readMovieHeader(FileChannel channel, long body, State state) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(32);
+        if (channel.read(buffer, body) < 20) {
+            return;
+        }
+        int version = buffer.get(0);
+        long timescale;
+        long duration;
+        if (version == 1) {
+            // Время создания и изменения по 8 байт
+            timescale = buffer.getInt(20) & 0xFFFFFFFFL;
+            duration = buffer.getLong(24);
+        } else {
+            timescale = buffer.getInt(12) & 0xFFFFFFFFL;
+            duration = buffer.getInt(16) & 0xFFFFFFFFL;
+        }
+        if (timescale > 0 && duration >= 0) {
+            state.durationMs = duration * 1000 / timescale;
+        }
+    }
+
+    private static final class State {
+        long durationMs = -1;
+        final Set<String> codecs = new LinkedHashSet<>();
+        int boxes;
+    }
+}
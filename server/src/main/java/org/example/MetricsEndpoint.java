@@ -0,0 +1,77 @@
+package org.example;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * HTTP-доступ к показателям сервера на отдельном порту, открытом только на локальном адресе.
+ * {@code /metrics} отдает формат Prometheus, {@code /stats} — строки {@code имя значение},
+ * как в ответе на команду STATS.
+ */
+class MetricsEndpoint {
+    private static final Log LOG = Log.root();
+
+    private final ServerMetrics metrics;
+    private final int port;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "video-metrics");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private HttpServer httpServer;
+
+    MetricsEndpoint(ServerMetrics metrics, int port) {
+        this.metrics = metrics;
+        this.port = port;
+    }
+
+    /**
+     * Открывает порт показателей.
+     *
+     * @throws IOException если порт не удалось открыть
+     */
+    void start() throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/metrics", exchange ->
+                respond(exchange, "text/plain; version=0.0.4; charset=utf-8", metrics.renderPrometheus()));
+        httpServer.createContext("/stats", exchange ->
+                respond(exchange, "text/plain; charset=utf-8", metrics.renderText()));
+        httpServer.setExecutor(executor);
+        httpServer.start();
+        LOG.info("Показатели доступны на http://{}:{}/metrics", InetAddress.getLoopbackAddress().getHostAddress(), port);
+    }
+
+    void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+        }
+        executor.shutdownNow();
+    }
+
+    private static void respond(HttpExchange exchange, String contentType, String body) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,975 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Неблокирующий режим видеосервера.
+ * Подключения принимаются одним потоком и распределяются по небольшому числу
+ * циклов событий на {@link Selector}, поэтому число соединений не зависит от числа потоков.
+ * Протокол совпадает с {@link VideoServer.ClientHandler}: кадры {@link Protocol} с запросами LIST, CHECK и GET.
+ * Уведомления подписчиков {@link CatalogFeed} передаются циклу событий подключения и отправляются,
+ * когда очередь вывода пуста и не идет отправка файла.
+ * Тело файла по умолчанию отправляется через {@link FileChannel#transferTo} без копирования в память процесса.
+ * Если корней хранилища несколько ({@link StorageRoots}), части файла читаются в пуле его корня, а цикл событий
+ * только отправляет прочитанное, поэтому медленный диск не задерживает подключения, читающие с других дисков.
+ * Подключение, упершееся в предел скорости {@link BandwidthShaper}, откладывается по таймеру цикла событий.
+ * Подключения сверх пределов {@link AdmissionControl} отклоняются до регистрации в цикле событий.
+ */
+class NioVideoServer {
+    private static final int READ_BUFFER_SIZE = 1024; // Начальный размер буфера чтения
+    private static final int MAX_READ_BUFFER_SIZE = 128 * 1024; // Предел длины одного запроса
+    private static final Log LOG = Log.root();
+
+    private final VideoServer server;
+    private final ServerConfig config;
+    private final EventLoop[] loops;
+    private ServerSocketChannel serverChannel;
+    private Selector acceptSelector;
+    private volatile boolean running = true;
+
+    NioVideoServer(VideoServer server, ServerConfig config) {
+        this.server = server;
+        this.config = config;
+        this.loops = new EventLoop[config.getIoThreads()];
+    }
+
+    /**
+     * Открывает серверный канал, запускает циклы событий и принимает подключения
+     * в текущем потоке до остановки сервера.
+     */
+    void start() {
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(config.getPort()), config.getAcceptBacklog());
+            serverChannel.configureBlocking(false);
+            acceptSelector = Selector.open();
+            serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(i);
+                loops[i].start();
+            }
+            LOG.info("Сервер запущен на порту {} (неблокирующий режим, циклов событий: {})",
+                    config.getPort(), loops.length);
+
+            int next = 0;
+            while (running && server.isRunning()) {
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    AdmissionControl.Permit permit = server.admit(channel);
+                    if (permit == null) {
+                        continue;
+                    }
+                    loops[next].register(channel, permit);
+                    next = (next + 1) % loops.length;
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // Сервер остановлен
+        } catch (IOException e) {
+            if (running) {
+                LOG.error("Ошибка сервера: {}", e.getMessage());
+            }
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Останавливает прием подключений и все циклы событий.
+     */
+    void stop() {
+        running = false;
+        try {
+            if (acceptSelector != null) acceptSelector.close();
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            LOG.warn("Ошибка при остановке сервера: {}", e.getMessage());
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Поток с собственным селектором, обслуживающий часть подключений.
+     */
+    private class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<Accepted> pending = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> notified = new ConcurrentLinkedQueue<>(); // Подписчики с новыми изменениями
+        private final Queue<ChunkRead> completedReads = new ConcurrentLinkedQueue<>(); // Чтения, завершенные пулами корней
+        private final Queue<Connection> throttled =
+                new PriorityQueue<>(Comparator.comparingLong(connection -> connection.resumeAt));
+
+        EventLoop(int index) throws IOException {
+            super("video-nio-" + index);
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Передает принятое подключение этому циклу событий.
+         */
+        void register(SocketChannel channel, AdmissionControl.Permit permit) {
+            pending.add(new Accepted(channel, permit));
+            selector.wakeup();
+        }
+
+        /**
+         * Сообщает циклу событий, что подписчику нужно отправить изменения каталога.
+         */
+        void notifyChanged(Connection connection) {
+            notified.add(connection);
+            selector.wakeup();
+        }
+
+        /**
+         * Вызывается пулом корня хранилища: передает циклу событий прочитанную часть файла.
+         */
+        void readCompleted(ChunkRead read) {
+            completedReads.add(read);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    long timeout = resumeThrottled();
+                    if (timeout < 0) {
+                        selector.select();
+                    } else {
+                        selector.select(timeout);
+                    }
+                    registerPending();
+                    pushNotified();
+                    sendCompletedReads();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                LOG.error("Ошибка цикла событий: {}", e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() != null) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        /**
+         * Откладывает отправку подключения до истечения паузы, назначенной ограничителем скорости.
+         */
+        void throttle(Connection connection) {
+            throttled.add(connection);
+        }
+
+        /**
+         * Возобновляет отправку подключений, пауза которых истекла.
+         *
+         * @return время до следующего возобновления в миллисекундах или -1, если отложенных подключений нет
+         */
+        private long resumeThrottled() {
+            long now = System.nanoTime();
+            Connection connection;
+            while ((connection = throttled.peek()) != null && connection.resumeAt <= now) {
+                throttled.poll();
+                try {
+                    connection.resume();
+                } catch (IOException | CancelledKeyException e) {
+                    connection.close();
+                }
+            }
+            if (connection == null) {
+                return -1;
+            }
+            return Math.max(1, (connection.resumeAt - now + 999_999) / 1_000_000);
+        }
+
+        private void pushNotified() {
+            Connection connection;
+            while ((connection = notified.poll()) != null) {
+                try {
+                    connection.pushChanges();
+                } catch (IOException | CancelledKeyException e) {
+                    connection.close();
+                }
+            }
+        }
+
+        private void sendCompletedReads() {
+            ChunkRead read;
+            while ((read = completedReads.poll()) != null) {
+                try {
+                    read.connection.chunkRead(read);
+                } catch (IOException | CancelledKeyException e) {
+                    read.connection.close();
+                }
+            }
+        }
+
+        private void registerPending() {
+            Accepted accepted;
+            while ((accepted = pending.poll()) != null) {
+                SocketChannel channel = accepted.channel;
+                int clientId = server.nextClientId();
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    Connection connection = new Connection(this, channel, key, clientId, accepted.permit);
+                    key.attach(connection);
+                    connection.log.info("Новое подключение: {}", channel.socket().getInetAddress());
+                } catch (IOException e) {
+                    LOG.warn("[Клиент {}] Ошибка регистрации: {}", clientId, e.getMessage());
+                    accepted.permit.release();
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Принятое подключение, ожидающее регистрации в цикле событий.
+     */
+    private static final class Accepted {
+        final SocketChannel channel;
+        final AdmissionControl.Permit permit;
+
+        Accepted(SocketChannel channel, AdmissionControl.Permit permit) {
+            this.channel = channel;
+            this.permit = permit;
+        }
+    }
+
+    /**
+     * Результат чтения части файла в пуле корня хранилища.
+     */
+    private static final class ChunkRead {
+        final Connection connection;
+        final FileChannel file; // Файл, из которого читали: отправка могла смениться или прерваться
+        final int count;
+        final IOException error;
+
+        ChunkRead(Connection connection, FileChannel file, int count, IOException error) {
+            this.connection = connection;
+            this.file = file;
+            this.count = count;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Состояние одного подключения: разбор входящих кадров и очередь исходящих данных.
+     */
+    private class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final int clientId;
+        private final BandwidthShaper.Flow flow; // Учет и ограничение скорости отправки
+        private final AdmissionControl.Permit permit; // Место среди допущенных сессий
+        private final Log log; // Журнал с префиксом клиента
+        private final Queue<ByteBuffer> output = new ArrayDeque<>();
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private boolean handshakeDone;
+        private FileChannel transferFile; // Файл, отправляемый по запросу GET
+        private StorageRoots.Root transferRoot; // Корень хранилища отправляемого файла
+        private boolean reading; // Порция файла читается в пуле корня
+        private ByteBuffer readAhead; // Порция, которую читает или уже прочитал пул корня
+        private int readAheadCount = -1; // Размер прочитанной заранее порции, -1 — ее нет
+        private long readPosition; // Смещение и остаток еще не запрошенной у пула части файла
+        private long readRemaining;
+        private long readRequested; // Размер чтения, запрошенного у пула
+        private HotFileCache.Mapping transferMapping; // Отображение файла в памяти, если он в кеше
+        private int transferRequestId;
+        private long transferPosition;
+        private long transferRemaining;
+        private long frameRemaining; // Остаток данных текущего кадра DATA
+        private String transferName;
+        private long transferReceived; // Время получения GET до отправки первого байта тела, 0 — нет
+        private ByteBuffer chunk;
+        private long shapedCredit; // Байты, на отправку которых уже получено разрешение
+        private boolean throttled; // Отправка отложена до resumeAt
+        private long resumeAt;
+        private boolean resumeRequests; // Есть запросы, отложенные до конца отправки файла
+        private boolean multiplexed; // Клиент принимает ответы между кадрами DATA (HELLO_MULTIPLEX)
+        private final Queue<ByteBuffer> replies = new ArrayDeque<>(); // Ответы, ждущие конца текущего кадра DATA
+        private final Queue<Protocol.Frame> pendingGets = new ArrayDeque<>(); // GET, ждущие конца текущей передачи
+        private CatalogFeed.Subscription subscription; // Подписка на изменения каталога
+        private boolean pushPending; // Изменения каталога ждут, пока освободится вывод
+        private final AtomicBoolean pushQueued = new AtomicBoolean(); // Подключение уже в очереди уведомлений цикла
+        private boolean closed;
+
+        Connection(EventLoop loop, SocketChannel channel, SelectionKey key, int clientId,
+                   AdmissionControl.Permit permit) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+            this.clientId = clientId;
+            this.permit = permit;
+            this.flow = server.getShaper().open(clientId);
+            this.log = Log.forClient(clientId);
+        }
+
+        void onReadable() throws IOException {
+            if (!readBuffer.hasRemaining()) {
+                if (readBuffer.capacity() >= MAX_READ_BUFFER_SIZE) {
+                    throw new IOException("Слишком длинный запрос");
+                }
+                ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                log.info("Клиент отключился: {}", channel.socket().getInetAddress());
+                close();
+                return;
+            }
+            processRequests();
+        }
+
+        void onWritable() throws IOException {
+            flushOutput();
+        }
+
+        /**
+         * Продолжает отправку после паузы, назначенной ограничителем скорости.
+         */
+        void resume() throws IOException {
+            throttled = false;
+            if (!closed) {
+                flushOutput();
+            }
+        }
+
+        /**
+         * Вызывается рассылкой из своего потока: передает подключение циклу событий,
+         * если оно еще не ждет там отправки изменений.
+         */
+        void catalogChanged() {
+            if (pushQueued.compareAndSet(false, true)) {
+                loop.notifyChanged(this);
+            }
+        }
+
+        /**
+         * Отмечает, что подписчику нужно отправить изменения, и отправляет их, если вывод свободен.
+         */
+        void pushChanges() throws IOException {
+            pushQueued.set(false);
+            if (!closed && subscription != null) {
+                pushPending = true;
+                flushOutput();
+            }
+        }
+
+        /**
+         * Выполняет все полностью полученные запросы. Без мультиплексирования запросы после GET
+         * ждут конца отправки файла, с ним — выполняются сразу, а ответы на них уходят между кадрами DATA.
+         */
+        private void processRequests() throws IOException {
+            readBuffer.flip();
+            try {
+                if (!handshakeDone && !handshake()) {
+                    return;
+                }
+                Protocol.Frame frame;
+                while (!closed && (multiplexed || !transferring()) && (frame = Protocol.poll(readBuffer)) != null) {
+                    processFrame(frame);
+                }
+            } finally {
+                readBuffer.compact();
+            }
+            resumeRequests = !multiplexed && transferring() && readBuffer.position() > 0;
+            flushOutput();
+        }
+
+        /**
+         * Проверяет приветствие клиента, если оно уже получено.
+         *
+         * @return true, если можно обрабатывать запросы
+         */
+        private boolean handshake() throws IOException {
+            if (readBuffer.remaining() >= 4 && Protocol.isLegacyStream(readBuffer.getInt(readBuffer.position()))) {
+                log.info("Устаревший клиент (сериализация Java), соединение закрыто.");
+                close();
+                return false;
+            }
+            Protocol.Frame hello = Protocol.poll(readBuffer);
+            if (hello == null) {
+                return false;
+            }
+            String problem = Protocol.checkHello(hello);
+            if (problem != null) {
+                log.info("Отклонено подключение: {}", problem);
+                output.add(Protocol.error(hello.requestId, Protocol.ERROR_UNSUPPORTED_VERSION, problem));
+                flushOutput();
+                close();
+                return false;
+            }
+            byte accepted = (byte) (Protocol.helloFlags(hello) & Protocol.HELLO_MULTIPLEX);
+            multiplexed = accepted != 0;
+            output.add(multiplexed ? Protocol.helloOk(hello.requestId, accepted) : Protocol.helloOk(hello.requestId));
+            handshakeDone = true;
+            return true;
+        }
+
+        private void processFrame(Protocol.Frame frame) {
+            ServerMetrics metrics = server.getMetrics();
+            long received = System.nanoTime();
+            try {
+                switch (frame.opcode) {
+                    case Protocol.LIST:
+                        metrics.requested(ServerMetrics.Command.LIST);
+                        log.debug("Отправляем список видео клиенту.");
+                        reply(server.getListing().list(frame.requestId));
+                        metrics.completed(ServerMetrics.Command.LIST, received);
+                        break;
+                    case Protocol.LIST_SINCE: {
+                        metrics.requested(ServerMetrics.Command.LIST);
+                        long catalogId = frame.payload.getLong();
+                        long since = frame.payload.getLong();
+                        boolean deflate = (frame.payload.get() & Protocol.LIST_ACCEPT_DEFLATE) != 0;
+                        log.debug("Отправляем изменения списка видео с версии {}.", since);
+                        reply(server.getListing().listSince(frame.requestId, catalogId, since, deflate));
+                        metrics.completed(ServerMetrics.Command.LIST, received);
+                        break;
+                    }
+                    case Protocol.SUBSCRIBE: {
+                        metrics.requested(ServerMetrics.Command.LIST);
+                        long catalogId = frame.payload.getLong();
+                        long since = frame.payload.getLong();
+                        byte flags = frame.payload.get();
+                        log.debug("Подписка на изменения каталога с версии {}.", since);
+                        if (subscription != null) {
+                            server.getFeed().unsubscribe(subscription);
+                        }
+                        subscription = new CatalogFeed.Subscription(frame.requestId, catalogId, since, flags,
+                                this::catalogChanged);
+                        reply(server.getFeed().subscribe(subscription));
+                        metrics.completed(ServerMetrics.Command.LIST, received);
+                        break;
+                    }
+                    case Protocol.QUERY:
+                        metrics.requested(ServerMetrics.Command.QUERY);
+                        log.debug("Запрос страницы списка видео.");
+                        reply(server.query(frame.requestId, frame.payload));
+                        metrics.completed(ServerMetrics.Command.QUERY, received);
+                        break;
+                    case Protocol.CHECK: {
+                        metrics.requested(ServerMetrics.Command.CHECK);
+                        String videoName = Protocol.getString(frame.payload);
+                        log.debug("Запрос на проверку видео: {}", videoName);
+                        checkVideo(frame.requestId, videoName);
+                        metrics.completed(ServerMetrics.Command.CHECK, received);
+                        break;
+                    }
+                    case Protocol.GET: {
+                        if (transferring()) {
+                            pendingGets.add(frame); // Передачи на одном соединении идут по очереди
+                            break;
+                        }
+                        metrics.requested(ServerMetrics.Command.GET);
+                        String videoName = Protocol.getString(frame.payload);
+                        long offset = frame.payload.getLong();
+                        long length = frame.payload.getLong();
+                        if (log.isDebugEnabled()) {
+                            log.debug("Запрос на получение видео: {}{}", videoName,
+                                    offset == 0 && length < 0 ? "" : " (" + offset + "+" + length + ")");
+                        }
+                        beginTransfer(frame.requestId, videoName, offset, length);
+                        if (transferring()) {
+                            transferReceived = received;
+                        }
+                        break;
+                    }
+                    case Protocol.STATS:
+                        metrics.requested(ServerMetrics.Command.STATS);
+                        reply(Protocol.statsResult(frame.requestId, metrics.snapshot()));
+                        metrics.completed(ServerMetrics.Command.STATS, received);
+                        break;
+                    default:
+                        metrics.requested(ServerMetrics.Command.UNKNOWN);
+                        log.warn("Неизвестная операция: {}", frame.opcode);
+                        reply(Protocol.error(frame.requestId, Protocol.ERROR_BAD_REQUEST,
+                                "Неизвестная операция: " + frame.opcode));
+                }
+            } catch (BufferUnderflowException e) {
+                reply(Protocol.error(frame.requestId, Protocol.ERROR_BAD_REQUEST, "Поврежденный запрос"));
+            }
+        }
+
+        /**
+         * Ставит ответ на запрос в очередь вывода. Во время отправки файла ответ ждет в replies,
+         * пока не уйдет текущий кадр DATA.
+         */
+        private void reply(ByteBuffer... buffers) {
+            Collections.addAll(transferring() ? replies : output, buffers);
+        }
+
+        private void checkVideo(int requestId, String videoName) {
+            VideoCatalog.VideoEntry entry = server.findVideo(videoName);
+            if (entry == null) {
+                log.info("Файл не найден: {}", videoName);
+                reply(Protocol.checkResult(requestId, -1, -1, null));
+            } else {
+                reply(Protocol.checkResult(requestId, entry.size, entry.lastModified, entry.contentHash));
+            }
+        }
+
+        /**
+         * Отправляет GET_RESULT и начинает отправку файла или его диапазона.
+         *
+         * @param requestId идентификатор запроса
+         * @param videoName имя видеофайла
+         * @param offset смещение начала диапазона
+         * @param length длина диапазона или -1 для чтения до конца файла
+         */
+        private void beginTransfer(int requestId, String videoName, long offset, long length) {
+            StorageRoots.Location location = server.locateVideo(videoName);
+            long fileSize = -1;
+            transferMapping = offset < 0 ? null : server.acquireMapped(videoName);
+            if (transferMapping != null) {
+                fileSize = transferMapping.entry.size;
+            } else if (offset >= 0 && location != null && Files.exists(location.path)) {
+                try {
+                    transferFile = FileChannel.open(location.path, StandardOpenOption.READ);
+                    transferRoot = location.root;
+                    fileSize = transferFile.size();
+                } catch (IOException e) {
+                    log.warn("Ошибка при отправке видео: {}", e.getMessage());
+                    closeTransfer();
+                }
+            } else {
+                log.info("Файл не найден: {}", videoName);
+            }
+
+            if (!transferring()) {
+                output.add(Protocol.getResult(requestId, -1, -1));
+                return;
+            }
+            ByteRange body = new ByteRange(offset, length < 0 ? Long.MAX_VALUE : length).clamp(fileSize);
+            transferRequestId = requestId;
+            transferName = videoName;
+            transferPosition = body.offset;
+            transferRemaining = body.length;
+            flow.beginTransfer(body.length);
+            output.add(Protocol.getResult(requestId, fileSize, body.length));
+        }
+
+        /**
+         * Отправляет накопленные данные в сокет. Когда очередь пуста, сначала отправляет ответы,
+         * ждавшие конца кадра DATA; затем, если идет отправка файла, передает следующую часть файла,
+         * а когда файла нет — ожидающие изменения каталога и следующий GET из очереди.
+         * Если сокет не принимает данные, подписывается на OP_WRITE;
+         * если исчерпан предел скорости, ждет таймера цикла событий.
+         */
+        void flushOutput() throws IOException {
+            while (!closed) {
+                ByteBuffer head = output.peek();
+                if (head != null) {
+                    channel.write(head);
+                    if (head.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    output.poll();
+                    continue;
+                }
+                if (!replies.isEmpty() && frameRemaining == 0) {
+                    output.addAll(replies);
+                    replies.clear();
+                    continue;
+                }
+                if (!transferring()) {
+                    if (pushPending) {
+                        pushPending = false;
+                        ByteBuffer[] changes = server.getFeed().pending(subscription);
+                        if (changes != null) {
+                            Collections.addAll(output, changes);
+                            continue;
+                        }
+                    }
+                    if (!pendingGets.isEmpty()) {
+                        processFrame(pendingGets.poll());
+                        continue;
+                    }
+                    key.interestOps(SelectionKey.OP_READ);
+                    // Запросы, пришедшие во время отправки файла, обрабатываются после нее
+                    if (resumeRequests) {
+                        resumeRequests = false;
+                        processRequests();
+                    }
+                    return;
+                }
+                if (throttled) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+                boolean progressed;
+                if (transferMapping != null) {
+                    progressed = queueMappedFrame();
+                } else if (transferRoot.isolated()) {
+                    progressed = readNextChunk();
+                } else {
+                    progressed = config.isZeroCopy() ? transferNextFrame() : fillNextChunk();
+                }
+                if (!progressed) {
+                    if (!closed) {
+                        key.interestOps(throttled || reading
+                                ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Передает очередную часть файла прямо из кеша страниц в сокет через
+         * {@link FileChannel#transferTo}. Перед каждым кадром DATA в очередь ставится его заголовок.
+         *
+         * @return false, если сокет сейчас не принимает данные или исчерпан предел скорости
+         */
+        private boolean transferNextFrame() throws IOException {
+            if (transferRemaining <= 0) {
+                finishTransfer();
+                return true;
+            }
+            if (frameRemaining == 0) {
+                // Кадр не больше порции ограничителя, чтобы ответы успевали между кадрами
+                frameRemaining = allowance(Math.min(Protocol.DATA_CHUNK_SIZE, transferRemaining));
+                if (frameRemaining == 0) {
+                    return false;
+                }
+                output.add(Protocol.dataHeader(transferRequestId, (int) frameRemaining));
+                return true;
+            }
+            long allowed = allowance(frameRemaining);
+            if (allowed == 0) {
+                return false;
+            }
+            long sent = transferFile.transferTo(transferPosition, allowed, channel);
+            if (sent <= 0) {
+                if (transferPosition >= transferFile.size()) {
+                    failTransfer();
+                }
+                return false;
+            }
+            firstByteSent();
+            transferRoot.transferred(sent);
+            transferPosition += sent;
+            transferRemaining -= sent;
+            frameRemaining -= sent;
+            shapedCredit -= sent;
+            return true;
+        }
+
+        /**
+         * Читает следующую порцию отправляемого файла в очередь вывода.
+         * Буфер порции переиспользуется: новая порция читается только после отправки предыдущей.
+         *
+         * @return false, если отправка прервана или исчерпан предел скорости
+         */
+        private boolean fillNextChunk() throws IOException {
+            if (transferRemaining <= 0) {
+                finishTransfer();
+                return true;
+            }
+            if (chunk == null) {
+                chunk = ByteBuffer.allocate(VideoServer.COPY_BUFFER_SIZE);
+            }
+            long allowed = allowance(Math.min(chunk.capacity(), transferRemaining));
+            if (allowed == 0) {
+                return false;
+            }
+            chunk.clear().limit((int) allowed);
+            int count = transferFile.read(chunk, transferPosition);
+            if (count < 0) {
+                failTransfer();
+                return false;
+            }
+            chunk.flip();
+            firstByteSent();
+            transferRoot.transferred(count);
+            transferPosition += count;
+            transferRemaining -= count;
+            shapedCredit -= count;
+            output.add(Protocol.dataHeader(transferRequestId, count));
+            output.add(chunk);
+            return true;
+        }
+
+        /**
+         * Отправляет файл изолированного корня через два буфера: пока одна порция уходит в сокет,
+         * следующая читается в пуле корня. Цикл событий не ждет диск: прочитанная порция
+         * встает в очередь вывода, когда освободится предыдущая ({@link #chunkRead}).
+         *
+         * @return false, если прочитанной порции еще нет: отправка продолжится по завершении чтения
+         * или по таймеру
+         */
+        private boolean readNextChunk() {
+            if (transferRemaining <= 0) {
+                finishTransfer();
+                return true;
+            }
+            if (readAhead == null) {
+                chunk = StorageRoots.readBuffer(transferRemaining);
+                readAhead = StorageRoots.readBuffer(transferRemaining);
+                readPosition = transferPosition;
+                readRemaining = transferRemaining;
+            }
+            if (readAheadCount < 0) {
+                startRead();
+                return false;
+            }
+            ByteBuffer ready = readAhead;
+            readAhead = chunk;
+            chunk = ready;
+            chunk.flip();
+            firstByteSent();
+            transferPosition += readAheadCount;
+            transferRemaining -= readAheadCount;
+            output.add(Protocol.dataHeader(transferRequestId, readAheadCount));
+            output.add(chunk);
+            readAheadCount = -1;
+            startRead();
+            return true;
+        }
+
+        /**
+         * Ставит чтение следующей порции в пул корня, если свободен буфер чтения.
+         * Если очередь корня заполнена, попытка повторяется по таймеру цикла, как при пределе скорости.
+         */
+        private void startRead() {
+            if (reading || readAheadCount >= 0 || readRemaining <= 0) {
+                return;
+            }
+            long allowed = allowance(Math.min(readAhead.capacity(), readRemaining));
+            if (allowed == 0) {
+                return;
+            }
+            readAhead.clear().limit((int) allowed);
+            FileChannel file = transferFile;
+            if (!transferRoot.submit(file, readAhead, readPosition,
+                    (count, error) -> loop.readCompleted(new ChunkRead(this, file, count, error)))) {
+                throttled = true;
+                resumeAt = System.nanoTime() + StorageRoots.BUSY_RETRY_MS * 1_000_000;
+                loop.throttle(this);
+                return;
+            }
+            reading = true;
+            readRequested = allowed;
+            readPosition += allowed;
+            readRemaining -= allowed;
+            shapedCredit -= allowed;
+        }
+
+        /**
+         * Принимает порцию, прочитанную пулом корня, и продолжает отправку.
+         */
+        void chunkRead(ChunkRead read) throws IOException {
+            if (closed || read.file != transferFile) {
+                return; // Отправка прервана, пока шло чтение
+            }
+            reading = false;
+            if (read.error != null) {
+                log.warn("Ошибка при отправке видео: {}", read.error.getMessage());
+                close();
+                return;
+            }
+            if (read.count < 0) {
+                failTransfer();
+                return;
+            }
+            // Короткое чтение: недочитанный остаток запрашивается заново
+            readPosition -= readRequested - read.count;
+            readRemaining += readRequested - read.count;
+            readAheadCount = read.count;
+            flushOutput();
+        }
+
+        /**
+         * Ставит в очередь следующий кадр DATA или его часть как представление участка отображения файла в памяти.
+         *
+         * @return false, если исчерпан предел скорости
+         */
+        private boolean queueMappedFrame() {
+            if (transferRemaining <= 0) {
+                finishTransfer();
+                return true;
+            }
+            if (frameRemaining == 0) {
+                // Кадр не больше порции ограничителя, чтобы ответы успевали между кадрами
+                frameRemaining = allowance(Math.min(Protocol.DATA_CHUNK_SIZE, transferRemaining));
+                if (frameRemaining == 0) {
+                    return false;
+                }
+                output.add(Protocol.dataHeader(transferRequestId, (int) frameRemaining));
+                return true;
+            }
+            int part = (int) allowance(frameRemaining);
+            if (part == 0) {
+                return false;
+            }
+            output.add(transferMapping.slice(transferPosition, part));
+            firstByteSent();
+            transferPosition += part;
+            transferRemaining -= part;
+            frameRemaining -= part;
+            shapedCredit -= part;
+            return true;
+        }
+
+        /**
+         * Возвращает, сколько байтов можно отправить сейчас. Если предел скорости исчерпан,
+         * откладывает отправку на паузу, назначенную ограничителем.
+         *
+         * @param wanted сколько байтов нужно отправить: остаток текущего кадра или размер нового
+         * @return разрешенное число байтов или 0, если отправка отложена
+         */
+        private long allowance(long wanted) {
+            if (shapedCredit == 0) {
+                long part = flow.chunk(wanted);
+                long delay = flow.tryAcquire(part);
+                if (delay > 0) {
+                    throttled = true;
+                    resumeAt = System.nanoTime() + delay;
+                    loop.throttle(this);
+                    return 0;
+                }
+                shapedCredit = part;
+            }
+            return Math.min(shapedCredit, wanted);
+        }
+
+        /**
+         * Записывает время до первого байта тела, если оно еще не записано для текущего GET.
+         */
+        private void firstByteSent() {
+            if (transferReceived != 0) {
+                server.getMetrics().completed(ServerMetrics.Command.GET, transferReceived);
+                transferReceived = 0;
+            }
+        }
+
+        private boolean transferring() {
+            return transferFile != null || transferMapping != null;
+        }
+
+        private void finishTransfer() {
+            if (log.isInfoEnabled()) {
+                log.info("Видео {} успешно отправлено{}.", transferName, VideoServer.formatRate(flow.currentRate()));
+            }
+            closeTransfer();
+        }
+
+        /**
+         * Прерывает соединение, если файл укоротился во время отправки:
+         * часть тела уже ушла клиенту, и сообщить об ошибке в том же потоке нельзя.
+         */
+        private void failTransfer() {
+            log.warn("Ошибка при отправке видео: файл изменился");
+            close();
+        }
+
+        private void closeTransfer() {
+            if (transferring()) {
+                flow.finishTransfer();
+            }
+            if (transferFile != null) {
+                try {
+                    transferFile.close();
+                } catch (IOException ignored) {
+                }
+            }
+            transferFile = null;
+            transferRoot = null;
+            reading = false;
+            readAhead = null;
+            readAheadCount = -1;
+            readPosition = 0;
+            readRemaining = 0;
+            readRequested = 0;
+            if (transferMapping != null) {
+                transferMapping.release();
+            }
+            transferMapping = null;
+            transferName = null;
+            transferPosition = 0;
+            transferRemaining = 0;
+            frameRemaining = 0;
+            shapedCredit = 0;
+            transferReceived = 0;
+            chunk = null;
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (subscription != null) {
+                server.getFeed().unsubscribe(subscription);
+            }
+            log.close();
+            closeTransfer();
+            flow.close();
+            permit.release();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Ошибка при закрытии соединения: {}", e.getMessage());
+            }
+        }
+    }
+}
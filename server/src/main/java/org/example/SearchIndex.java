@@ -0,0 +1,839 @@
+package org.example;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
+
+/**
+ * Поисковый индекс каталога для постраничных запросов QUERY.
+ * <p>
+ * Индекс — неизменяемый снимок каталога: имена, упорядоченные без учета регистра, размеры
+ * и времена изменения, перестановки записей по размеру и по времени изменения и индекс триграмм
+ * имен в нижнем регистре. Фильтр по началу имени — двоичный поиск отрезка имен; страница этого
+ * отрезка в порядке размера или времени берется из вейвлет-матрицы за O(log n) на запись.
+ * Фильтр по подстроке — пересечение списков записей, содержащих каждую триграмму фильтра,
+ * с проверкой кандидатов; фильтры короче трех символов проверяются перебором. Совпадения последних
+ * фильтров подстроки запоминаются для следующих страниц и уточнения фильтра. Страница совпадений
+ * подстроки в нужном порядке берется прямо из перестановки, если она близко к началу, или из
+ * совпадений, отсортированных по месту в перестановке и запомненных вместе с ними.
+ * <p>
+ * Снимок перестраивается фоновым потоком через {@link #REBUILD_DELAY_MS} после изменения каталога,
+ * изменения за время перестройки собираются в следующую. Имена берутся из снимка каталога, общего
+ * с LIST; если изменились только метаданные, заново сортируются лишь размеры и времена изменения.
+ * До публикации нового снимка запросы обслуживает прежний; версия снимка передается клиенту
+ * вместе со страницей.
+ */
+class SearchIndex implements VideoCatalog.Listener {
+    static final int MAX_PAGE = 1000; // Наибольшее число записей в одном ответе
+    static final long REBUILD_DELAY_MS = 200; // Сколько ждать новых изменений перед перестройкой
+    static final int RECENT_FILTERS = 8; // Сколько результатов фильтров подстроки хранит индекс
+
+    private static final Log LOG = Log.root();
+
+    private final VideoCatalog catalog;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final ScheduledExecutorService builder = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "video-search-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile Snapshot snapshot = Snapshot.empty();
+
+    SearchIndex(VideoCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    /**
+     * Запускает первое построение индекса. Каталог, загруженный из базы, не уведомляет слушателей.
+     */
+    void start() {
+        schedule();
+    }
+
+    void stop() {
+        builder.shutdownNow();
+    }
+
+    @Override
+    public void changed(String name, VideoCatalog.VideoEntry entry) {
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            builder.schedule(this::rebuild, REBUILD_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Строит индекс текущего состояния каталога и публикует его.
+     */
+    void rebuild() {
+        scheduled.set(false); // Изменения после этой точки запустят новую перестройку
+        // Версия читается до обхода, поэтому индекс не старее своей версии
+        long version = catalog.version();
+        if (version == snapshot.version) {
+            return;
+        }
+        long started = System.nanoTime();
+        try {
+            Snapshot fresh = Snapshot.build(version, catalog, snapshot);
+            snapshot = fresh;
+            LOG.debug("Поисковый индекс перестроен: {} видео за {} мс", fresh.names.length,
+                    (System.nanoTime() - started) / 1_000_000);
+        } catch (RuntimeException e) {
+            LOG.error("Ошибка построения поискового индекса: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Возвращает страницу записей, подходящих под фильтр, в заданном порядке.
+     *
+     * @param filter фильтр без учета регистра; пустой — все записи
+     * @param substring искать фильтр в любом месте имени, иначе — в начале
+     * @param sort порядок: {@link Protocol#SORT_NAME} (без учета регистра), {@link Protocol#SORT_SIZE}
+     *             или {@link Protocol#SORT_MODIFIED}
+     * @param descending обратный порядок
+     * @param offset номер первой записи страницы среди всех совпадений
+     * @param limit наибольшее число записей, не больше {@link #MAX_PAGE}
+     * @return страница и общее число совпадений
+     */
+    Page query(String filter, boolean substring, byte sort, boolean descending, int offset, int limit) {
+        return snapshot.query(filter.toLowerCase(Locale.ROOT), substring, sort, descending, offset,
+                Math.min(limit, MAX_PAGE));
+    }
+
+    /**
+     * Страница ответа на запрос.
+     */
+    static final class Page {
+        final long version; // Версия каталога, по которой построен индекс
+        final int total; // Всего совпадений
+        final String[] names;
+        final long[] sizes;
+        final long[] modified;
+
+        Page(long version, int total, String[] names, long[] sizes, long[] modified) {
+            this.version = version;
+            this.total = total;
+            this.names = names;
+            this.sizes = sizes;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * Порядок двух записей индекса по их номерам.
+     */
+    private interface IdOrder {
+        int compare(int a, int b);
+    }
+
+    /**
+     * Неизменяемый индекс одной версии каталога. Номера записей идут в порядке имен без учета
+     * регистра, поэтому совпадения фильтра по началу имени — отрезок номеров, а списки триграмм
+     * уже упорядочены по имени.
+     */
+    private static final class Snapshot {
+        final long version;
+        final List<String> listing; // Снимок списка имен каталога, по которому построен индекс
+        final String[] names; // По имени без учета регистра, при равенстве — как в LIST
+        final String[] lower; // Имена в нижнем регистре
+        final Trigrams trigrams;
+        final long[] sizes;
+        final long[] modified;
+        final int[] bySize; // Номера записей по размеру, при равенстве — по имени
+        final int[] byModified;
+        final int[] sizeRank; // Место записи в bySize
+        final int[] modifiedRank;
+        final WaveletMatrix sizeRanks; // Места записей в bySize в порядке номеров
+        final WaveletMatrix modifiedRanks;
+        // Совпадения последних фильтров подстроки по порядку обращения; защищено собой
+        private final Map<String, Matches> recent = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Matches> eldest) {
+                return size() > RECENT_FILTERS;
+            }
+        };
+
+        /**
+         * @param previous прежний индекс; если он построен по тому же списку имен, части индекса,
+         *                 зависящие только от имен, берутся из него
+         */
+        private Snapshot(long version, VideoCatalog catalog, List<String> listing, Snapshot previous) {
+            this.version = version;
+            this.listing = listing;
+            if (previous != null && previous.listing == listing) {
+                // Изменились только метаданные: имена, их порядок и триграммы те же
+                this.names = previous.names;
+                this.lower = previous.lower;
+                this.trigrams = previous.trigrams;
+                synchronized (previous.recent) {
+                    // Номера записей не изменились, а порядки по метаданным строятся заново
+                    for (Map.Entry<String, Matches> entry : previous.recent.entrySet()) {
+                        recent.put(entry.getKey(), new Matches(entry.getValue().ids));
+                    }
+                }
+            } else {
+                int count = listing.size();
+                String[] listed = listing.toArray(new String[0]);
+                String[] listedLower = new String[count];
+                for (int i = 0; i < count; i++) {
+                    listedLower[i] = listed[i].toLowerCase(Locale.ROOT);
+                }
+                int[] order = sortIds(count, (a, b) -> listedLower[a].compareTo(listedLower[b]));
+                this.names = new String[count];
+                this.lower = new String[count];
+                for (int id = 0; id < count; id++) {
+                    names[id] = listed[order[id]];
+                    lower[id] = listedLower[order[id]];
+                }
+                this.trigrams = new Trigrams(lower);
+            }
+            this.sizes = new long[names.length];
+            this.modified = new long[names.length];
+            for (int id = 0; id < names.length; id++) {
+                VideoCatalog.VideoEntry entry = catalog.get(names[id]);
+                if (entry != null) { // Запись, удаленную после снимка, уберет следующая перестройка
+                    sizes[id] = entry.size;
+                    modified[id] = entry.lastModified;
+                }
+            }
+            this.bySize = sortByKey(sizes);
+            this.byModified = sortByKey(modified);
+            this.sizeRank = ranks(bySize);
+            this.modifiedRank = ranks(byModified);
+            this.sizeRanks = new WaveletMatrix(sizeRank);
+            this.modifiedRanks = new WaveletMatrix(modifiedRank);
+        }
+
+        /**
+         * Пустой индекс до первого построения.
+         */
+        static Snapshot empty() {
+            return new Snapshot(-1, null, List.of(), null); // Каталог нужен только для записей списка
+        }
+
+        /**
+         * Строит индекс по снимку списка имен каталога, который уже отсортирован и общий с LIST.
+         */
+        static Snapshot build(long version, VideoCatalog catalog, Snapshot previous) {
+            return new Snapshot(version, catalog, catalog.snapshot().names, previous);
+        }
+
+        Page query(String filter, boolean substring, byte sort, boolean descending, int offset, int limit) {
+            int count = names.length;
+            int[] order; // Перестановка в порядке сортировки, null — порядок номеров
+            int[] rank;
+            WaveletMatrix ranksById;
+            if (sort == Protocol.SORT_SIZE) {
+                order = bySize;
+                rank = sizeRank;
+                ranksById = sizeRanks;
+            } else if (sort == Protocol.SORT_MODIFIED) {
+                order = byModified;
+                rank = modifiedRank;
+                ranksById = modifiedRanks;
+            } else {
+                order = null;
+                rank = null;
+                ranksById = null;
+            }
+
+            int[] ids;
+            int total;
+            if (filter.isEmpty()) {
+                total = count;
+                ids = slice(order, 0, count, descending, offset, limit);
+            } else if (!substring) {
+                int from = lowerBound(filter);
+                int to = prefixEnd(filter, from);
+                total = to - from;
+                ids = order == null
+                        ? slice(null, from, to, descending, offset, limit)
+                        : selectRange(order, ranksById, from, to, descending, offset, limit);
+            } else {
+                Matches matches = substringMatches(filter);
+                total = matches.ids.length;
+                ids = order == null
+                        ? slice(matches.ids, 0, total, descending, offset, limit)
+                        : select(order, rank, sort, matches, descending, offset, limit);
+            }
+
+            String[] pageNames = new String[ids.length];
+            long[] pageSizes = new long[ids.length];
+            long[] pageModified = new long[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                pageNames[i] = names[ids[i]];
+                pageSizes[i] = sizes[ids[i]];
+                pageModified[i] = modified[ids[i]];
+            }
+            return new Page(version, total, pageNames, pageSizes, pageModified);
+        }
+
+        /**
+         * Берет страницу из отрезка последовательности, все элементы которого подходят.
+         *
+         * @param sequence номера записей по порядку или null, если это сами номера
+         */
+        private static int[] slice(int[] sequence, int from, int to, boolean descending, int offset, int limit) {
+            int size = Math.max(0, Math.min(limit, to - from - offset));
+            int[] ids = new int[size];
+            for (int i = 0; i < size; i++) {
+                int position = descending ? to - 1 - offset - i : from + offset + i;
+                ids[i] = sequence == null ? position : sequence[position];
+            }
+            return ids;
+        }
+
+        /**
+         * Берет страницу из отрезка номеров [from, to) в порядке перестановки: каждая запись
+         * страницы — k-е по месту в перестановке на отрезке, что не зависит ни от числа совпадений,
+         * ни от глубины страницы.
+         */
+        private static int[] selectRange(int[] order, WaveletMatrix ranksById, int from, int to, boolean descending,
+                                         int offset, int limit) {
+            int total = to - from;
+            int size = Math.max(0, Math.min(limit, total - offset));
+            int[] ids = new int[size];
+            for (int i = 0; i < size; i++) {
+                int k = descending ? total - 1 - offset - i : offset + i;
+                ids[i] = order[ranksById.kth(from, to, k)];
+            }
+            return ids;
+        }
+
+        /**
+         * Берет страницу совпадений в порядке перестановки. Если совпадения уже отсортированы
+         * прежним запросом, страница берется из них. Иначе, если страница близко к началу,
+         * а совпадений много, перестановка просматривается с начала до конца страницы; в остальных
+         * случаях совпадения сортируются по месту в ней, и порядок запоминается для следующих страниц.
+         */
+        private int[] select(int[] order, int[] rank, byte sort, Matches matches, boolean descending,
+                             int offset, int limit) {
+            int count = names.length;
+            int total = matches.ids.length;
+            int[] sorted = matches.sorted(sort);
+            if (sorted != null) {
+                return slice(sorted, 0, total, descending, offset, limit);
+            }
+            int end = (int) Math.min(total, (long) offset + limit);
+            if (offset >= end) {
+                return new int[0];
+            }
+            long scanCost = (long) end * count / total;
+            long sortCost = (long) total * (32 - Integer.numberOfLeadingZeros(total));
+            // Просмотр повторяется для каждой страницы, а сортировка делается один раз
+            if (scanCost * 8 <= sortCost) {
+                int[] ids = new int[end - offset];
+                BitSet set = matches.set(count);
+                int found = 0;
+                for (int i = 0; i < count && found < end; i++) {
+                    int id = order[descending ? count - 1 - i : i];
+                    if (set.get(id)) {
+                        if (found >= offset) {
+                            ids[found - offset] = id;
+                        }
+                        found++;
+                    }
+                }
+                return ids;
+            }
+            long[] keyed = new long[total];
+            for (int i = 0; i < total; i++) {
+                int id = matches.ids[i];
+                keyed[i] = (long) rank[id] << 32 | id;
+            }
+            Arrays.sort(keyed);
+            sorted = new int[total];
+            for (int i = 0; i < total; i++) {
+                sorted[i] = (int) keyed[i];
+            }
+            matches.sorted(sort, sorted);
+            return slice(sorted, 0, total, descending, offset, limit);
+        }
+
+        /**
+         * Первый номер, имя которого не меньше фильтра.
+         */
+        private int lowerBound(String filter) {
+            int low = 0;
+            int high = lower.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (lower[middle].compareTo(filter) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Первый номер после {@code from}, имя которого не начинается с фильтра.
+         */
+        private int prefixEnd(String filter, int from) {
+            int low = from;
+            int high = lower.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (lower[middle].startsWith(filter)) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Номера записей, содержащих подстроку, по возрастанию. Совпадения последних фильтров
+         * запоминаются: следующие страницы того же фильтра не ищутся заново, а фильтр, дополняющий
+         * запомненный (пользователь допечатал символ), проверяется только на его совпадениях.
+         */
+        private Matches substringMatches(String filter) {
+            int[] narrowest = null; // Самый короткий запомненный результат фильтра, входящего в этот
+            synchronized (recent) {
+                Matches cached = recent.get(filter);
+                if (cached != null) {
+                    return cached;
+                }
+                for (Map.Entry<String, Matches> entry : recent.entrySet()) {
+                    int[] ids = entry.getValue().ids;
+                    if (filter.contains(entry.getKey()) && (narrowest == null || ids.length < narrowest.length)) {
+                        narrowest = ids;
+                    }
+                }
+            }
+            Matches matches = new Matches(filter.length() >= Trigrams.LENGTH
+                    ? searchTrigrams(filter, narrowest)
+                    : containing(narrowest, filter));
+            synchronized (recent) {
+                recent.put(filter, matches);
+            }
+            return matches;
+        }
+
+        /**
+         * Номера записей, содержащих подстроку, по индексу триграмм. Кандидаты — записи со всеми
+         * триграммами фильтра; если фильтр длиннее одной триграммы, кандидаты проверяются.
+         *
+         * @param narrowest совпадения фильтра, входящего в этот, или null; используются вместо
+         *                  триграмм, если их меньше
+         */
+        private int[] searchTrigrams(String filter, int[] narrowest) {
+            int gramCount = filter.length() - Trigrams.LENGTH + 1;
+            int[] grams = new int[gramCount];
+            for (int i = 0; i < gramCount; i++) {
+                grams[i] = trigrams.find(Trigrams.key(filter, i));
+                if (grams[i] < 0) {
+                    return new int[0];
+                }
+            }
+            // Пересечение начинается с самого короткого списка
+            Integer[] byLength = new Integer[gramCount];
+            for (int i = 0; i < gramCount; i++) {
+                byLength[i] = grams[i];
+            }
+            Arrays.sort(byLength, Comparator.comparingInt(trigrams::count));
+            if (narrowest != null && narrowest.length <= trigrams.count(byLength[0])) {
+                return containing(narrowest, filter);
+            }
+            int[] result = trigrams.postings(byLength[0]);
+            int size = result.length;
+            for (int i = 1; i < gramCount && size > 0; i++) {
+                if (byLength[i].intValue() != byLength[i - 1].intValue()) {
+                    size = trigrams.retain(byLength[i], result, size);
+                }
+            }
+            if (filter.length() > Trigrams.LENGTH) {
+                int kept = 0;
+                for (int i = 0; i < size; i++) {
+                    if (lower[result[i]].contains(filter)) {
+                        result[kept++] = result[i];
+                    }
+                }
+                size = kept;
+            }
+            return size == result.length ? result : Arrays.copyOf(result, size);
+        }
+
+        /**
+         * Номера записей, содержащих подстроку, по возрастанию, перебором кандидатов.
+         *
+         * @param candidates номера по возрастанию или null — все записи
+         */
+        private int[] containing(int[] candidates, String filter) {
+            int count = candidates == null ? lower.length : candidates.length;
+            int[] result = new int[16];
+            int size = 0;
+            for (int i = 0; i < count; i++) {
+                int id = candidates == null ? i : candidates[i];
+                if (lower[id].contains(filter)) {
+                    if (size == result.length) {
+                        result = Arrays.copyOf(result, size * 2);
+                    }
+                    result[size++] = id;
+                }
+            }
+            return Arrays.copyOf(result, size);
+        }
+
+        /**
+         * Сортирует номера записей по числовому ключу, при равенстве — по номеру. Ключ заменяется
+         * местом среди различных значений, и сортируются пары (место, номер), упакованные в long:
+         * сортировка примитивов обходится без сравнений через лямбду.
+         */
+        private static int[] sortByKey(long[] keys) {
+            long[] distinct = keys.clone();
+            Arrays.sort(distinct);
+            int unique = 0;
+            for (long key : distinct) {
+                if (unique == 0 || distinct[unique - 1] != key) {
+                    distinct[unique++] = key;
+                }
+            }
+            long[] keyed = new long[keys.length];
+            for (int id = 0; id < keys.length; id++) {
+                keyed[id] = (long) Arrays.binarySearch(distinct, 0, unique, keys[id]) << 32 | id;
+            }
+            Arrays.sort(keyed);
+            int[] ids = new int[keys.length];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = (int) keyed[i];
+            }
+            return ids;
+        }
+
+        /**
+         * Устойчиво сортирует номера 0..count-1 слиянием снизу вверх.
+         * Номера изначально идут в порядке имен, поэтому равные по ключу остаются в нем.
+         */
+        private static int[] sortIds(int count, IdOrder order) {
+            int[] ids = new int[count];
+            for (int i = 0; i < count; i++) {
+                ids[i] = i;
+            }
+            int[] buffer = new int[count];
+            for (int width = 1; width < count; width <<= 1) {
+                for (int low = 0; low < count; low += 2 * width) {
+                    int middle = Math.min(low + width, count);
+                    int high = Math.min(low + 2 * width, count);
+                    int left = low;
+                    int right = middle;
+                    int out = low;
+                    while (left < middle && right < high) {
+                        buffer[out++] = order.compare(ids[right], ids[left]) < 0 ? ids[right++] : ids[left++];
+                    }
+                    while (left < middle) {
+                        buffer[out++] = ids[left++];
+                    }
+                    while (right < high) {
+                        buffer[out++] = ids[right++];
+                    }
+                }
+                int[] sorted = buffer;
+                buffer = ids;
+                ids = sorted;
+            }
+            return ids;
+        }
+
+        private static int[] ranks(int[] order) {
+            int[] rank = new int[order.length];
+            for (int position = 0; position < order.length; position++) {
+                rank[order[position]] = position;
+            }
+            return rank;
+        }
+    }
+
+    /**
+     * Совпадения фильтра подстроки и построенные для них по запросам множество и порядки.
+     */
+    private static final class Matches {
+        final int[] ids; // Номера записей по возрастанию
+        private BitSet set; // Защищено this
+        private int[] bySize;
+        private int[] byModified;
+
+        Matches(int[] ids) {
+            this.ids = ids;
+        }
+
+        synchronized BitSet set(int count) {
+            if (set == null) {
+                set = new BitSet(count);
+                for (int id : ids) {
+                    set.set(id);
+                }
+            }
+            return set;
+        }
+
+        /**
+         * @return совпадения в порядке сортировки или null, если они еще не сортировались
+         */
+        synchronized int[] sorted(byte sort) {
+            return sort == Protocol.SORT_SIZE ? bySize : byModified;
+        }
+
+        synchronized void sorted(byte sort, int[] sorted) {
+            if (sort == Protocol.SORT_SIZE) {
+                bySize = sorted;
+            } else {
+                byModified = sorted;
+            }
+        }
+    }
+
+    /**
+     * Индекс триграмм: для каждой тройки подряд идущих символов — номера записей, в имени которых
+     * она встречается, по возрастанию. Списки хранятся подряд в одном массиве, триграммы
+     * находятся по открытой адресации в таблице ключей.
+     */
+    private static final class Trigrams {
+        static final int LENGTH = 3;
+        private static final long PRESENT = 1L << 48; // Отличает ключ от пустой ячейки таблицы
+
+        private long[] keys = new long[1024]; // Ключ триграммы или 0
+        private int[] slots = new int[1024]; // Номер триграммы для ключа в той же ячейке
+        private int gramCount;
+        private final int[] starts; // Списки записей триграммы g — в ids[starts[g]..starts[g + 1])
+        private final int[] ids;
+
+        Trigrams(String[] lower) {
+            // Первый проход: номера триграмм и число записей с каждой из них
+            int[] counts = new int[1024];
+            int[] lastId = new int[1024];
+            Arrays.fill(lastId, -1);
+            for (int id = 0; id < lower.length; id++) {
+                String name = lower[id];
+                for (int i = 0; i + LENGTH <= name.length(); i++) {
+                    int gram = intern(key(name, i));
+                    if (gram >= counts.length) {
+                        counts = Arrays.copyOf(counts, counts.length * 2);
+                        int grown = lastId.length;
+                        lastId = Arrays.copyOf(lastId, lastId.length * 2);
+                        Arrays.fill(lastId, grown, lastId.length, -1);
+                    }
+                    if (lastId[gram] != id) { // Повтор триграммы в том же имени учитывается один раз
+                        lastId[gram] = id;
+                        counts[gram]++;
+                    }
+                }
+            }
+            starts = new int[gramCount + 1];
+            for (int gram = 0; gram < gramCount; gram++) {
+                starts[gram + 1] = starts[gram] + counts[gram];
+            }
+            // Второй проход: заполнение списков по возрастанию номеров записей
+            ids = new int[starts[gramCount]];
+            int[] cursor = Arrays.copyOf(starts, gramCount);
+            Arrays.fill(lastId, -1);
+            for (int id = 0; id < lower.length; id++) {
+                String name = lower[id];
+                for (int i = 0; i + LENGTH <= name.length(); i++) {
+                    int gram = find(key(name, i));
+                    if (lastId[gram] != id) {
+                        lastId[gram] = id;
+                        ids[cursor[gram]++] = id;
+                    }
+                }
+            }
+        }
+
+        static long key(String text, int at) {
+            return PRESENT | (long) text.charAt(at) << 32 | (long) text.charAt(at + 1) << 16 | text.charAt(at + 2);
+        }
+
+        /**
+         * @return номер триграммы или -1, если ее нет ни в одном имени
+         */
+        int find(long key) {
+            int mask = keys.length - 1;
+            for (int cell = hash(key) & mask; keys[cell] != 0; cell = (cell + 1) & mask) {
+                if (keys[cell] == key) {
+                    return slots[cell];
+                }
+            }
+            return -1;
+        }
+
+        int count(int gram) {
+            return starts[gram + 1] - starts[gram];
+        }
+
+        int[] postings(int gram) {
+            return Arrays.copyOfRange(ids, starts[gram], starts[gram + 1]);
+        }
+
+        /**
+         * Оставляет в начале {@code result} только номера, которые есть в списке триграммы.
+         * Оба списка упорядочены: списки сравнимой длины сливаются, в намного более длинном
+         * списке номера ищутся двоичным поиском с продвигающейся нижней границей.
+         *
+         * @return новое число номеров
+         */
+        int retain(int gram, int[] result, int size) {
+            int from = starts[gram];
+            int to = starts[gram + 1];
+            int kept = 0;
+            if (to - from <= (long) size * 16) {
+                for (int i = 0; i < size && from < to; ) {
+                    if (ids[from] < result[i]) {
+                        from++;
+                    } else {
+                        if (ids[from] == result[i]) {
+                            result[kept++] = result[i];
+                            from++;
+                        }
+                        i++;
+                    }
+                }
+                return kept;
+            }
+            for (int i = 0; i < size && from < to; i++) {
+                int at = Arrays.binarySearch(ids, from, to, result[i]);
+                if (at >= 0) {
+                    result[kept++] = result[i];
+                    from = at + 1;
+                } else {
+                    from = -at - 1;
+                }
+            }
+            return kept;
+        }
+
+        private int intern(long key) {
+            int mask = keys.length - 1;
+            int cell = hash(key) & mask;
+            while (keys[cell] != 0) {
+                if (keys[cell] == key) {
+                    return slots[cell];
+                }
+                cell = (cell + 1) & mask;
+            }
+            keys[cell] = key;
+            slots[cell] = gramCount;
+            if (++gramCount * 2 > keys.length) {
+                grow();
+            }
+            return gramCount - 1;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldSlots = slots;
+            keys = new long[oldKeys.length * 2];
+            slots = new int[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int cell = hash(oldKeys[i]) & mask;
+                    while (keys[cell] != 0) {
+                        cell = (cell + 1) & mask;
+                    }
+                    keys[cell] = oldKeys[i];
+                    slots[cell] = oldSlots[i];
+                }
+            }
+        }
+
+        private static int hash(long key) {
+            long mixed = key * 0x9E3779B97F4A7C15L;
+            return (int) (mixed >>> 32) ^ (int) mixed;
+        }
+    }
+
+    /**
+     * Вейвлет-матрица над перестановкой чисел 0..n-1: k-е по величине число на отрезке
+     * перестановки за O(log n). Уровень хранит по биту каждого числа, начиная со старшего;
+     * числа следующего уровня устойчиво разделены по биту текущего — сначала нули, затем единицы.
+     */
+    private static final class WaveletMatrix {
+        private final int levels;
+        private final long[][] bits; // Биты чисел уровня в порядке уровня
+        private final int[][] ones; // Число единиц уровня в словах до данного
+        private final int[] zeros; // Число нулей на уровне
+
+        WaveletMatrix(int[] values) {
+            int count = values.length;
+            levels = 32 - Integer.numberOfLeadingZeros(Math.max(count - 1, 1));
+            bits = new long[levels][];
+            ones = new int[levels][];
+            zeros = new int[levels];
+            int[] current = values.clone();
+            int[] next = new int[count];
+            for (int level = 0; level < levels; level++) {
+                int bit = levels - 1 - level;
+                long[] words = new long[(count >>> 6) + 1];
+                int zeroCount = 0;
+                for (int i = 0; i < count; i++) {
+                    if ((current[i] >>> bit & 1) == 0) {
+                        zeroCount++;
+                    } else {
+                        words[i >>> 6] |= 1L << i;
+                    }
+                }
+                int zero = 0;
+                int one = zeroCount;
+                for (int i = 0; i < count; i++) {
+                    next[(current[i] >>> bit & 1) == 0 ? zero++ : one++] = current[i];
+                }
+                int[] counts = new int[words.length + 1];
+                for (int word = 0; word < words.length; word++) {
+                    counts[word + 1] = counts[word] + Long.bitCount(words[word]);
+                }
+                bits[level] = words;
+                ones[level] = counts;
+                zeros[level] = zeroCount;
+                int[] swap = current;
+                current = next;
+                next = swap;
+            }
+        }
+
+        /**
+         * @return k-е (с нуля) наименьшее число среди стоящих на местах [from, to)
+         */
+        int kth(int from, int to, int k) {
+            int value = 0;
+            for (int level = 0; level < levels; level++) {
+                int onesFrom = rank(level, from);
+                int onesTo = rank(level, to);
+                int zerosInRange = to - from - (onesTo - onesFrom);
+                value <<= 1;
+                if (k < zerosInRange) {
+                    from -= onesFrom;
+                    to -= onesTo;
+                } else {
+                    k -= zerosInRange;
+                    value |= 1;
+                    from = zeros[level] + onesFrom;
+                    to = zeros[level] + onesTo;
+                }
+            }
+            return value;
+        }
+
+        /**
+         * Число единиц уровня на местах до {@code position}.
+         */
+        private int rank(int level, int position) {
+            int word = position >>> 6;
+            return ones[level][word] + Long.bitCount(bits[level][word] & ((1L << position) - 1));
+        }
+    }
+}
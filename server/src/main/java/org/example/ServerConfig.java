@@ -0,0 +1,397 @@
+package org.example;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Параметры запуска видеосервера.
+ * Значения задаются аргументами командной строки вида {@code --ключ=значение}.
+ */
+public class ServerConfig {
+    private int port = 8080; // Порт основного протокола
+    private List<String> videoDirs = List.of("videos"); // Корни с видеофайлами в порядке приоритета, с поддиректориями
+    private int rootIoThreads = 4; // Потоки чтения одного корня, если корней несколько
+    private int rootIoQueue = 64; // Длина очереди чтений одного корня
+    private List<String> videoExtensions = List.of("mp4", "mkv", "avi", "mov", "flv"); // Расширения видеофайлов
+    private int scanThreads = Math.max(4, Runtime.getRuntime().availableProcessors()); // Потоки обхода директорий
+    private boolean nio = false; // Неблокирующий режим на Selector
+    private int ioThreads = Runtime.getRuntime().availableProcessors(); // Число потоков цикла событий
+    private boolean zeroCopy = true; // Отправка файлов через FileChannel.transferTo
+    private int httpPort = 8081; // Порт HTTP-раздачи видео, 0 — отключена
+    private int hashThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2); // Потоки хэширования
+    private long hotCacheBytes = 256L * 1024 * 1024; // Объем кеша популярных файлов в памяти, 0 — отключен
+    private int hotThreshold = 3; // Число запросов, после которого файл кешируется в памяти
+    private String catalogDb = "video_catalog.db"; // Файл базы каталога, пустая строка — только в памяти
+    private long maxRate = 0; // Общий предел скорости отправки, байт/с, 0 — без ограничения
+    private long clientRate = 0; // Предел скорости одного подключения, байт/с, 0 — без ограничения
+    private int maxSessions = 4096; // Наибольшее число одновременных сессий
+    private int maxPerAddress = 64; // Наибольшее число одновременных сессий с одного адреса
+    private int acceptBacklog = 1024; // Длина очереди принятых ядром, но еще не обработанных подключений
+    private int metricsPort = 0; // Локальный порт HTTP-доступа к показателям, 0 — отключен
+    private Log.Level logLevel = Log.Level.INFO; // Наименьший уровень сообщений журнала
+    private String logFile = ""; // Файл журнала, пустая строка — только консоль
+    private long logMaxBytes = 10L * 1024 * 1024; // Размер файла журнала, после которого начинается новый
+    private int logFiles = 5; // Сколько старых файлов журнала хранить
+
+    /**
+     * Разбирает аргументы командной строки.
+     * Поддерживаются: {@code --port=8080},
+     * {@code --dir=videos} (несколько корней через {@link File#pathSeparator}, например {@code /mnt/a:/mnt/b}),
+     * {@code --root-io-threads=4}, {@code --root-io-queue=64},
+     * {@code --extensions=mp4,mkv,avi,mov,flv}, {@code --scan-threads=N}, {@code --mode=nio|blocking},
+     * {@code --io-threads=N}, {@code --transfer=zerocopy|copy}, {@code --http-port=8081} (0 отключает HTTP),
+     * {@code --catalog-db=video_catalog.db} (пустое значение отключает сохранение каталога),
+     * {@code --hash-threads=N}, {@code --hot-cache-mb=256} (0 отключает кеш в памяти), {@code --hot-threshold=3},
+     * {@code --max-rate-mbps=N} и {@code --client-rate-mbps=N} (пределы скорости в Мбит/с, 0 — без ограничения),
+     * {@code --max-sessions=4096}, {@code --max-per-ip=64}, {@code --accept-backlog=1024},
+     * {@code --metrics-port=N} (0 отключает HTTP-доступ к показателям),
+     * {@code --log-level=debug|info|warn|error}, {@code --log-file=server.log} (пустое значение — только консоль),
+     * {@code --log-max-mb=10}, {@code --log-files=5}.
+     *
+     * @param args аргументы командной строки
+     * @return конфигурация сервера
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Неизвестный аргумент: " + arg);
+            }
+            String key = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (key) {
+                case "port":
+                    config.port = Integer.parseInt(value);
+                    break;
+                case "dir":
+                    config.setVideoDirs(List.of(value.split(File.pathSeparator)));
+                    break;
+                case "root-io-threads":
+                    config.rootIoThreads = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "root-io-queue":
+                    config.rootIoQueue = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "extensions":
+                    config.setVideoExtensions(List.of(value.split(",")));
+                    break;
+                case "scan-threads":
+                    config.scanThreads = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "mode":
+                    if (!"nio".equals(value) && !"blocking".equals(value)) {
+                        throw new IllegalArgumentException("Неизвестный режим: " + value);
+                    }
+                    config.nio = "nio".equals(value);
+                    break;
+                case "io-threads":
+                    config.ioThreads = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "transfer":
+                    if (!"zerocopy".equals(value) && !"copy".equals(value)) {
+                        throw new IllegalArgumentException("Неизвестный способ передачи: " + value);
+                    }
+                    config.zeroCopy = "zerocopy".equals(value);
+                    break;
+                case "http-port":
+                    config.httpPort = Integer.parseInt(value);
+                    break;
+                case "hash-threads":
+                    config.hashThreads = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "hot-cache-mb":
+                    config.hotCacheBytes = Math.max(0, Long.parseLong(value)) * 1024 * 1024;
+                    break;
+                case "hot-threshold":
+                    config.hotThreshold = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "catalog-db":
+                    config.catalogDb = value;
+                    break;
+                case "max-rate-mbps":
+                    config.maxRate = mbpsToBytes(value);
+                    break;
+                case "client-rate-mbps":
+                    config.clientRate = mbpsToBytes(value);
+                    break;
+                case "max-sessions":
+                    config.maxSessions = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "max-per-ip":
+                    config.maxPerAddress = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "accept-backlog":
+                    config.acceptBacklog = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "metrics-port":
+                    config.metricsPort = Integer.parseInt(value);
+                    break;
+                case "log-level":
+                    config.logLevel = Log.parseLevel(value);
+                    break;
+                case "log-file":
+                    config.logFile = value;
+                    break;
+                case "log-max-mb":
+                    config.logMaxBytes = Math.max(1, Long.parseLong(value)) * 1024 * 1024;
+                    break;
+                case "log-files":
+                    config.logFiles = Math.max(0, Integer.parseInt(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Неизвестный параметр: " + key);
+            }
+        }
+        return config;
+    }
+
+    private static long mbpsToBytes(String value) {
+        return (long) (Math.max(0, Double.parseDouble(value)) * 1_000_000 / 8);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public ServerConfig setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * @return корневые директории видео в порядке приоритета
+     */
+    public List<String> getVideoDirs() {
+        return videoDirs;
+    }
+
+    public ServerConfig setVideoDirs(List<String> videoDirs) {
+        List<String> nonEmpty = new ArrayList<>();
+        for (String directory : videoDirs) {
+            if (!directory.isBlank()) {
+                nonEmpty.add(directory);
+            }
+        }
+        if (nonEmpty.isEmpty()) {
+            throw new IllegalArgumentException("Не задано ни одной директории видео");
+        }
+        this.videoDirs = List.copyOf(nonEmpty);
+        return this;
+    }
+
+    public int getRootIoThreads() {
+        return rootIoThreads;
+    }
+
+    public ServerConfig setRootIoThreads(int rootIoThreads) {
+        this.rootIoThreads = Math.max(1, rootIoThreads);
+        return this;
+    }
+
+    public int getRootIoQueue() {
+        return rootIoQueue;
+    }
+
+    public ServerConfig setRootIoQueue(int rootIoQueue) {
+        this.rootIoQueue = Math.max(1, rootIoQueue);
+        return this;
+    }
+
+    /**
+     * @return расширения видеофайлов в нижнем регистре, без точки
+     */
+    public List<String> getVideoExtensions() {
+        return videoExtensions;
+    }
+
+    public ServerConfig setVideoExtensions(List<String> videoExtensions) {
+        List<String> normalized = new ArrayList<>();
+        for (String extension : videoExtensions) {
+            String trimmed = extension.trim().toLowerCase(Locale.ROOT);
+            if (trimmed.startsWith(".")) {
+                trimmed = trimmed.substring(1);
+            }
+            if (!trimmed.isEmpty()) {
+                normalized.add(trimmed);
+            }
+        }
+        if (normalized.isEmpty()) {
+            throw new IllegalArgumentException("Не задано ни одного расширения видеофайлов");
+        }
+        this.videoExtensions = List.copyOf(normalized);
+        return this;
+    }
+
+    public int getScanThreads() {
+        return scanThreads;
+    }
+
+    public ServerConfig setScanThreads(int scanThreads) {
+        this.scanThreads = Math.max(1, scanThreads);
+        return this;
+    }
+
+    public boolean isNio() {
+        return nio;
+    }
+
+    public ServerConfig setNio(boolean nio) {
+        this.nio = nio;
+        return this;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public ServerConfig setIoThreads(int ioThreads) {
+        this.ioThreads = Math.max(1, ioThreads);
+        return this;
+    }
+
+    public boolean isZeroCopy() {
+        return zeroCopy;
+    }
+
+    public ServerConfig setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+        return this;
+    }
+
+    public int getHttpPort() {
+        return httpPort;
+    }
+
+    public ServerConfig setHttpPort(int httpPort) {
+        this.httpPort = httpPort;
+        return this;
+    }
+
+    public int getHashThreads() {
+        return hashThreads;
+    }
+
+    public ServerConfig setHashThreads(int hashThreads) {
+        this.hashThreads = Math.max(1, hashThreads);
+        return this;
+    }
+
+    public long getHotCacheBytes() {
+        return hotCacheBytes;
+    }
+
+    public ServerConfig setHotCacheBytes(long hotCacheBytes) {
+        this.hotCacheBytes = Math.max(0, hotCacheBytes);
+        return this;
+    }
+
+    public int getHotThreshold() {
+        return hotThreshold;
+    }
+
+    public ServerConfig setHotThreshold(int hotThreshold) {
+        this.hotThreshold = Math.max(1, hotThreshold);
+        return this;
+    }
+
+    public String getCatalogDb() {
+        return catalogDb;
+    }
+
+    public ServerConfig setCatalogDb(String catalogDb) {
+        this.catalogDb = catalogDb;
+        return this;
+    }
+
+    public long getMaxRate() {
+        return maxRate;
+    }
+
+    public ServerConfig setMaxRate(long maxRate) {
+        this.maxRate = Math.max(0, maxRate);
+        return this;
+    }
+
+    public long getClientRate() {
+        return clientRate;
+    }
+
+    public ServerConfig setClientRate(long clientRate) {
+        this.clientRate = Math.max(0, clientRate);
+        return this;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    public ServerConfig setMaxSessions(int maxSessions) {
+        this.maxSessions = Math.max(1, maxSessions);
+        return this;
+    }
+
+    public int getMaxPerAddress() {
+        return maxPerAddress;
+    }
+
+    public ServerConfig setMaxPerAddress(int maxPerAddress) {
+        this.maxPerAddress = Math.max(1, maxPerAddress);
+        return this;
+    }
+
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    public ServerConfig setAcceptBacklog(int acceptBacklog) {
+        this.acceptBacklog = Math.max(1, acceptBacklog);
+        return this;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public ServerConfig setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+        return this;
+    }
+
+    public Log.Level getLogLevel() {
+        return logLevel;
+    }
+
+    public ServerConfig setLogLevel(Log.Level logLevel) {
+        this.logLevel = logLevel;
+        return this;
+    }
+
+    public String getLogFile() {
+        return logFile;
+    }
+
+    public ServerConfig setLogFile(String logFile) {
+        this.logFile = logFile;
+        return this;
+    }
+
+    public long getLogMaxBytes() {
+        return logMaxBytes;
+    }
+
+    public ServerConfig setLogMaxBytes(long logMaxBytes) {
+        this.logMaxBytes = Math.max(1, logMaxBytes);
+        return this;
+    }
+
+    public int getLogFiles() {
+        return logFiles;
+    }
+
+    public ServerConfig setLogFiles(int logFiles) {
+        this.logFiles = Math.max(0, logFiles);
+        return this;
+    }
+}
\ No newline at end of file
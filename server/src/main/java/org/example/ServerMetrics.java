@@ -0,0 +1,228 @@
+package org.example;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Показатели работы сервера: активные сессии, отправленные байты, число запросов по командам
+ * и гистограммы задержек. Счетчики обновляются без блокировок и без выделения памяти,
+ * поэтому их можно вызывать на пути обработки каждого запроса.
+ * <p>
+ * Для LIST, QUERY, CHECK и STATS измеряется время от получения запроса до передачи ответа на отправку,
+ * для GET и HTTP — время до отправки первого байта тела.
+ * По каждому корню хранилища учитываются прочитанные с него байты и очередь его пула чтения.
+ */
+class ServerMetrics {
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+    private static final int FIRST_BUCKET_EXPONENT = 6; // Нижняя граница гистограмм Prometheus: 2^6 мкс
+    private static final int LAST_BUCKET_EXPONENT = 25; // Верхняя граница: 2^25 мкс, около 33 с
+
+    /**
+     * Команды, по которым ведется учет.
+     */
+    enum Command {
+        LIST("list_latency"),
+        QUERY("query_latency"),
+        CHECK("check_latency"),
+        GET("get_first_byte"),
+        STATS("stats_latency"),
+        HTTP("http_first_byte"),
+        UNKNOWN("unknown_latency");
+
+        final String latencyName;
+
+        Command(String latencyName) {
+            this.latencyName = latencyName;
+        }
+    }
+
+    private final AdmissionControl admission;
+    private final BandwidthShaper shaper;
+    private final CatalogFeed feed;
+    private final StorageRoots roots;
+    private final long startedAt = System.nanoTime();
+    private final LongAdder[] requests = new LongAdder[Command.values().length];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Command.values().length];
+
+    ServerMetrics(AdmissionControl admission, BandwidthShaper shaper, CatalogFeed feed, StorageRoots roots) {
+        this.admission = admission;
+        this.shaper = shaper;
+        this.feed = feed;
+        this.roots = roots;
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = new LongAdder();
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Учитывает полученный запрос.
+     */
+    void requested(Command command) {
+        requests[command.ordinal()].increment();
+    }
+
+    /**
+     * Записывает задержку ответа на запрос.
+     *
+     * @param command команда
+     * @param startNanos значение {@link System#nanoTime()} при получении запроса
+     */
+    void completed(Command command, long startNanos) {
+        latencies[command.ordinal()].recordSince(startNanos);
+    }
+
+    /**
+     * Возвращает текущие значения показателей. Порядок имен постоянен.
+     * Задержки — в микросекундах, скорость — в байтах в секунду.
+     *
+     * @return значения по именам
+     */
+    Map<String, Long> snapshot() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        values.put("uptime_seconds", (System.nanoTime() - startedAt) / 1_000_000_000);
+        values.put("active_sessions", (long) admission.activeSessions());
+        values.put("rejected_sessions", admission.rejected());
+        values.put("catalog_subscribers", (long) feed.subscribers());
+        values.put("bytes_sent", shaper.bytesSent());
+        Map<Integer, Double> rates = shaper.rates();
+        double sendRate = 0;
+        for (double rate : rates.values()) {
+            sendRate += rate;
+        }
+        values.put("active_transfers", (long) rates.size());
+        values.put("send_rate", (long) sendRate);
+        values.put("log_dropped", Log.dropped());
+        for (Command command : Command.values()) {
+            values.put("requests_" + command.name().toLowerCase(Locale.ROOT), requests[command.ordinal()].sum());
+        }
+        for (Command command : Command.values()) {
+            LatencyHistogram.Snapshot latency = latencies[command.ordinal()].snapshot();
+            if (latency.count == 0) {
+                continue;
+            }
+            for (double percentile : PERCENTILES) {
+                values.put(command.latencyName + "_p" + Math.round(percentile * 100) + "_us",
+                        latency.percentile(percentile));
+            }
+            values.put(command.latencyName + "_max_us", latency.percentile(1));
+        }
+        for (Map.Entry<Integer, Double> rate : rates.entrySet()) {
+            values.put("client_" + rate.getKey() + "_send_rate", Math.round(rate.getValue()));
+        }
+        for (StorageRoots.Root root : roots.all()) {
+            String prefix = "root_" + root.index + "_";
+            values.put(prefix + "bytes_read", root.bytesRead());
+            values.put(prefix + "read_rate", Math.round(root.readRate()));
+            values.put(prefix + "read_queue", (long) root.pending());
+            values.put(prefix + "read_busy", root.busy());
+        }
+        return values;
+    }
+
+    /**
+     * Показатели в виде строк {@code имя значение}.
+     */
+    String renderText() {
+        StringBuilder text = new StringBuilder(1024);
+        for (Map.Entry<String, Long> value : snapshot().entrySet()) {
+            text.append(value.getKey()).append(' ').append(value.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Показатели в текстовом формате Prometheus.
+     */
+    String renderPrometheus() {
+        StringBuilder text = new StringBuilder(8192);
+        gauge(text, "video_server_uptime_seconds", "Время работы сервера",
+                (System.nanoTime() - startedAt) / 1e9);
+        gauge(text, "video_server_active_sessions", "Активные сессии", admission.activeSessions());
+        counter(text, "video_server_rejected_sessions_total", "Подключения, отклоненные из-за пределов",
+                admission.rejected());
+        gauge(text, "video_server_catalog_subscribers", "Сессии, подписанные на изменения каталога",
+                feed.subscribers());
+        counter(text, "video_server_bytes_sent_total", "Отправленные байты тел видео", shaper.bytesSent());
+        counter(text, "video_server_log_dropped_total", "Сообщения журнала, отброшенные при переполнении буфера",
+                Log.dropped());
+
+        text.append("# HELP video_server_requests_total Полученные запросы по командам\n")
+                .append("# TYPE video_server_requests_total counter\n");
+        for (Command command : Command.values()) {
+            text.append("video_server_requests_total{command=\"").append(command.name()).append("\"} ")
+                    .append(requests[command.ordinal()].sum()).append('\n');
+        }
+
+        text.append("# HELP video_server_latency_seconds Задержка ответа; для GET и HTTP — до первого байта тела\n")
+                .append("# TYPE video_server_latency_seconds histogram\n");
+        for (Command command : Command.values()) {
+            LatencyHistogram.Snapshot latency = latencies[command.ordinal()].snapshot();
+            String label = "command=\"" + command.name() + "\"";
+            for (int exponent = FIRST_BUCKET_EXPONENT; exponent <= LAST_BUCKET_EXPONENT; exponent++) {
+                long bound = 1L << exponent;
+                text.append("video_server_latency_seconds_bucket{").append(label).append(",le=\"")
+                        .append(formatNumber(bound / 1e6)).append("\"} ")
+                        .append(latency.countBelow(bound)).append('\n');
+            }
+            text.append("video_server_latency_seconds_bucket{").append(label).append(",le=\"+Inf\"} ")
+                    .append(latency.count).append('\n')
+                    .append("video_server_latency_seconds_sum{").append(label).append("} ")
+                    .append(formatNumber(latency.sumMicros / 1e6)).append('\n')
+                    .append("video_server_latency_seconds_count{").append(label).append("} ")
+                    .append(latency.count).append('\n');
+        }
+
+        text.append("# HELP video_server_client_send_rate_bytes Средняя скорость текущей отправки клиенту\n")
+                .append("# TYPE video_server_client_send_rate_bytes gauge\n");
+        for (Map.Entry<Integer, Double> rate : shaper.rates().entrySet()) {
+            text.append("video_server_client_send_rate_bytes{client=\"").append(rate.getKey()).append("\"} ")
+                    .append(Math.round(rate.getValue())).append('\n');
+        }
+
+        text.append("# HELP video_server_root_read_bytes_total Байты тел видео, прочитанные с корня хранилища\n")
+                .append("# TYPE video_server_root_read_bytes_total counter\n");
+        for (StorageRoots.Root root : roots.all()) {
+            text.append("video_server_root_read_bytes_total{").append(rootLabels(root)).append("} ")
+                    .append(root.bytesRead()).append('\n');
+        }
+        text.append("# HELP video_server_root_read_queue Чтения в очереди и в работе в пуле корня\n")
+                .append("# TYPE video_server_root_read_queue gauge\n");
+        for (StorageRoots.Root root : roots.all()) {
+            text.append("video_server_root_read_queue{").append(rootLabels(root)).append("} ")
+                    .append(root.pending()).append('\n');
+        }
+        text.append("# HELP video_server_root_read_busy_total Чтения, отложенные из-за заполненной очереди корня\n")
+                .append("# TYPE video_server_root_read_busy_total counter\n");
+        for (StorageRoots.Root root : roots.all()) {
+            text.append("video_server_root_read_busy_total{").append(rootLabels(root)).append("} ")
+                    .append(root.busy()).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static String rootLabels(StorageRoots.Root root) {
+        String directory = root.directory.toString().replace("\\", "\\\\").replace("\"", "\\\"");
+        return "root=\"" + root.index + "\",directory=\"" + directory + "\"";
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, double value) {
+        metric(text, name, help, "gauge", formatNumber(value));
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        metric(text, name, help, "counter", Long.toString(value));
+    }
+
+    private static void metric(StringBuilder text, String name, String help, String type, String value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(' ').append(type).append('\n')
+                .append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String formatNumber(double value) {
+        return value == Math.rint(value) ? Long.toString((long) value) : String.format(Locale.ROOT, "%.6f", value);
+    }
+}
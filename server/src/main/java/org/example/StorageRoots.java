@@ -0,0 +1,337 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Корневые директории видео, например по одной на физический диск. Каталог объединяет их содержимое
+ * в одно пространство имен; если одно имя есть в нескольких корнях, используется файл из корня,
+ * указанного в настройках раньше.
+ * <p>
+ * Когда корней несколько, у каждого свой пул потоков чтения с ограниченной очередью, и тела файлов
+ * с диска читаются только в пуле своего корня. Медленный или перегруженный диск тогда задерживает
+ * лишь передачи своих файлов: циклы событий и сессии не ждут его сами, а его очередь не занимает
+ * потоки других дисков. С одним корнем изолировать нечего, и файлы отправляются как раньше —
+ * через {@link FileChannel#transferTo} в потоке подключения.
+ */
+class StorageRoots {
+    static final int READ_SIZE = 128 * 1024; // Порция чтения в пуле корня
+    static final long BUSY_RETRY_MS = 5; // Пауза перед повтором чтения, если очередь корня заполнена
+    static final long RATE_INTERVAL_NS = 1_000_000_000L; // Наименьший интервал измерения скорости чтения
+    private static final int PAGE_SIZE = 4096;
+
+    private final List<Root> roots;
+
+    /**
+     * @param directories корневые директории в порядке приоритета
+     * @param ioThreads потоки чтения одного корня
+     * @param ioQueue длина очереди чтений одного корня
+     * @throws IllegalArgumentException если корней нет или они вложены друг в друга
+     */
+    StorageRoots(List<String> directories, int ioThreads, int ioQueue) {
+        if (directories.isEmpty()) {
+            throw new IllegalArgumentException("Не задано ни одной директории видео");
+        }
+        boolean isolated = directories.size() > 1;
+        List<Root> list = new ArrayList<>();
+        for (String directory : directories) {
+            Path path = Paths.get(directory).toAbsolutePath().normalize();
+            for (Root other : list) {
+                if (path.startsWith(other.directory) || other.directory.startsWith(path)) {
+                    throw new IllegalArgumentException("Директории видео вложены друг в друга: "
+                            + other.directory + " и " + path);
+                }
+            }
+            list.add(new Root(list.size(), path, isolated ? ioThreads : 0, ioQueue));
+        }
+        this.roots = Collections.unmodifiableList(list);
+    }
+
+    List<Root> all() {
+        return roots;
+    }
+
+    Root get(int index) {
+        return roots.get(index);
+    }
+
+    /**
+     * Находит файл видео. Если корень известен из каталога, файл берется из него,
+     * иначе выбирается первый по порядку корень, в котором файл есть.
+     *
+     * @param name проверенное имя видео ({@link VideoCatalog#isValidName})
+     * @param entry запись каталога или null, если видео еще нет в каталоге
+     * @return расположение файла или null, если файла нет ни в одном корне
+     */
+    Location locate(String name, VideoCatalog.VideoEntry entry) {
+        if (entry != null && entry.root >= 0 && entry.root < roots.size()) {
+            Root root = roots.get(entry.root);
+            Path path = root.resolve(name);
+            return path == null ? null : new Location(root, path);
+        }
+        for (Root root : roots) {
+            Path path = root.resolve(name);
+            if (path != null && Files.exists(path)) {
+                return new Location(root, path);
+            }
+        }
+        return null;
+    }
+
+    void stop() {
+        for (Root root : roots) {
+            root.stop();
+        }
+    }
+
+    /**
+     * Создает буфер для чтения в пуле корня. Буфер выровнен по странице: невыровненный буфер
+     * на файловых системах с прямым вводом-выводом (FUSE, сетевые) дробит чтение на лишние запросы к диску.
+     */
+    static ByteBuffer readBuffer(long wanted) {
+        int size = (int) Math.min(READ_SIZE, Math.max(1, wanted));
+        return ByteBuffer.allocateDirect(size + PAGE_SIZE).alignedSlice(PAGE_SIZE).limit(size).slice();
+    }
+
+    /**
+     * Файл видео в одном из корней.
+     */
+    static final class Location {
+        final Root root;
+        final Path path;
+
+        Location(Root root, Path path) {
+            this.root = root;
+            this.path = path;
+        }
+    }
+
+    /**
+     * Одна корневая директория и, если корни изолированы, ее пул чтения.
+     */
+    static final class Root {
+        final int index;
+        final Path directory;
+        private final ThreadPoolExecutor reader; // Пул чтения тел файлов, null — чтение в потоке подключения
+        private final LongAdder bytesRead = new LongAdder();
+        private final LongAdder busy = new LongAdder(); // Чтения, отложенные из-за заполненной очереди
+        private long rateSampledAt = System.nanoTime(); // Начало текущего интервала скорости; защищено this
+        private long rateSampledBytes;
+        private double rate;
+
+        Root(int index, Path directory, int ioThreads, int ioQueue) {
+            this.index = index;
+            this.directory = directory;
+            if (ioThreads > 0) {
+                AtomicInteger threads = new AtomicInteger();
+                this.reader = new ThreadPoolExecutor(ioThreads, ioThreads, 0, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(ioQueue), runnable -> {
+                    Thread thread = new Thread(runnable, "video-root-" + index + "-io-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            } else {
+                this.reader = null;
+            }
+        }
+
+        /**
+         * Возвращает путь к видео внутри корня. Имя не может выйти за его пределы.
+         *
+         * @return путь или null, если имя недопустимо
+         */
+        Path resolve(String name) {
+            Path path;
+            try {
+                path = directory.resolve(name).normalize();
+            } catch (InvalidPathException e) {
+                return null;
+            }
+            return path.startsWith(directory) && !path.equals(directory) ? path : null;
+        }
+
+        /**
+         * Проверяет, читаются ли файлы этого корня в его собственном пуле.
+         */
+        boolean isolated() {
+            return reader != null;
+        }
+
+        /**
+         * Ставит позиционное чтение в очередь корня. Обработчик вызывается в потоке пула.
+         *
+         * @return false, если очередь заполнена и чтение нужно повторить позже
+         */
+        boolean submit(FileChannel file, ByteBuffer buffer, long position, ReadHandler handler) {
+            try {
+                reader.execute(() -> {
+                    int count;
+                    try {
+                        count = file.read(buffer, position);
+                    } catch (IOException e) {
+                        handler.completed(-1, e);
+                        return;
+                    }
+                    if (count > 0) {
+                        bytesRead.add(count);
+                    }
+                    handler.completed(count, null);
+                });
+                return true;
+            } catch (RejectedExecutionException e) {
+                busy.increment();
+                return false;
+            }
+        }
+
+        /**
+         * Копирует диапазон файла порциями по {@link #READ_SIZE}, читая их в пуле корня: следующая
+         * порция читается, пока вызывающий поток отправляет предыдущую. Пока очередь корня заполнена,
+         * постановка чтения повторяется через {@link #BUSY_RETRY_MS}.
+         *
+         * @param sink получает прочитанные порции по порядку
+         * @return false, если файл укоротился во время копирования
+         */
+        boolean copy(FileChannel file, ByteRange body, ChunkSink sink) throws IOException {
+            ByteBuffer current = readBuffer(body.length);
+            ByteBuffer next = readBuffer(body.length);
+            long position = body.offset;
+            Future<Integer> reading = position < body.end() ? schedule(file, current, position, body.end()) : null;
+            while (reading != null) {
+                int count = await(reading);
+                if (count < 0) {
+                    return false;
+                }
+                position += count;
+                reading = position < body.end() ? schedule(file, next, position, body.end()) : null;
+                current.flip();
+                sink.accept(current);
+                ByteBuffer sent = current;
+                current = next;
+                next = sent;
+            }
+            return true;
+        }
+
+        private Future<Integer> schedule(FileChannel file, ByteBuffer buffer, long position, long end)
+                throws IOException {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+            while (true) {
+                try {
+                    return reader.submit(() -> file.read(buffer, position));
+                } catch (RejectedExecutionException e) {
+                    if (reader.isShutdown()) {
+                        throw new IOException("Сервер остановлен");
+                    }
+                    busy.increment();
+                    try {
+                        Thread.sleep(BUSY_RETRY_MS);
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+        }
+
+        private int await(Future<Integer> result) throws IOException {
+            try {
+                int count = result.get();
+                if (count > 0) {
+                    bytesRead.add(count);
+                }
+                return count;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                result.cancel(false);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        /**
+         * Учитывает байты, отправленные из файла корня без его пула.
+         */
+        void transferred(long bytes) {
+            bytesRead.add(bytes);
+        }
+
+        long bytesRead() {
+            return bytesRead.sum();
+        }
+
+        /**
+         * Скорость чтения в байтах в секунду за последний завершенный интервал между запросами показателей,
+         * не короче {@link #RATE_INTERVAL_NS}.
+         */
+        synchronized double readRate() {
+            long now = System.nanoTime();
+            if (now - rateSampledAt >= RATE_INTERVAL_NS) {
+                long bytes = bytesRead.sum();
+                rate = (bytes - rateSampledBytes) * 1e9 / (now - rateSampledAt);
+                rateSampledAt = now;
+                rateSampledBytes = bytes;
+            }
+            return rate;
+        }
+
+        long busy() {
+            return busy.sum();
+        }
+
+        /**
+         * Чтения в очереди и в работе.
+         */
+        int pending() {
+            return reader == null ? 0 : reader.getQueue().size() + reader.getActiveCount();
+        }
+
+        void stop() {
+            if (reader != null) {
+                reader.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Получатель порций файла, прочитанных {@link Root#copy}.
+     */
+    interface ChunkSink {
+        /**
+         * @param chunk порция между position и limit; буфер переиспользуется после возврата
+         */
+        void accept(ByteBuffer chunk) throws IOException;
+    }
+
+    /**
+     * Получатель результата чтения из пула корня.
+     */
+    interface ReadHandler {
+        /**
+         * @param count число прочитанных байтов или -1 в конце файла
+         * @param error ошибка чтения или null
+         */
+        void completed(int count, IOException error);
+    }
+}
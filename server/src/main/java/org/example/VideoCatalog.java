@@ -0,0 +1,430 @@
+package org.example;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * Каталог видеофайлов сервера. Имя видео — путь относительно директории видео
+ * с разделителем {@code /}, например {@code Сериалы/Сезон 1/01.mkv}.
+ * Изменения применяются по одному файлу за O(1); каждое изменение увеличивает версию каталога.
+ * Читатели получают неизменяемые снимки без блокировок: снимок строится один раз
+ * на версию списка имен при первом обращении и затем переиспользуется всеми подключениями.
+ * Если подключено хранилище {@link CatalogStore}, изменения записываются и в него.
+ * <p>
+ * Добавления и удаления имен запоминаются в ограниченной истории, поэтому клиент, знающий
+ * версию списка, может получить только изменения после нее ({@link #changesSince(long)}).
+ * Версии имеют смысл только в пределах одного запуска сервера, который отличается {@link #id()}.
+ */
+class VideoCatalog {
+    static final int MAX_HISTORY = 10_000; // Сколько последних изменений списка имен хранится
+
+    private final long id = ThreadLocalRandom.current().nextLong(); // Отличает версии этого запуска от прежних
+    private final ConcurrentHashMap<String, VideoEntry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private final ArrayDeque<NameChange> history = new ArrayDeque<>(); // Изменения списка имен; защищено собой
+    private volatile long namesVersion; // Версия последнего изменения списка имен; меняется под history
+    private long historyFloor; // Изменения после этой версии есть в истории; защищено history
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(new Snapshot(0, List.of()));
+    private volatile CatalogStore store; // Постоянное хранилище, null — только в памяти
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Получатель изменений каталога. Вызывается в потоке, изменившем каталог.
+     */
+    interface Listener {
+        /**
+         * @param name имя видеофайла
+         * @param entry новая запись или null, если файл удален из каталога
+         */
+        void changed(String name, VideoEntry entry);
+    }
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Заполняет каталог сохраненными записями без повторной записи в хранилище
+     * и подключает хранилище для последующих изменений.
+     *
+     * @param store хранилище каталога
+     * @param saved записи, загруженные из хранилища
+     */
+    void attach(CatalogStore store, Collection<VideoEntry> saved) {
+        for (VideoEntry entry : saved) {
+            entries.put(entry.name, entry);
+        }
+        synchronized (history) {
+            namesVersion = version.incrementAndGet();
+            history.clear();
+            historyFloor = namesVersion;
+        }
+        this.store = store;
+    }
+
+    /**
+     * Добавляет или обновляет запись о файле.
+     *
+     * @param entry запись о видеофайле
+     */
+    void put(VideoEntry entry) {
+        VideoEntry previous = entries.put(entry.name, entry);
+        if (!entry.equals(previous)) {
+            if (previous == null) {
+                nameChanged(entry.name, true);
+            } else {
+                version.incrementAndGet();
+            }
+            save(entry);
+            notifyListeners(entry.name, entry);
+        }
+    }
+
+    /**
+     * Дополняет запись метаданными, вычисленными в фоне, если файл с тех пор не изменился.
+     * Параллельные дополнения одной записи не теряют друг друга.
+     *
+     * @param base запись, для которой вычислялись метаданные
+     * @param change функция, добавляющая метаданные к текущей записи
+     * @return true, если запись обновлена
+     */
+    boolean update(VideoEntry base, UnaryOperator<VideoEntry> change) {
+        while (true) {
+            VideoEntry current = entries.get(base.name);
+            if (!base.sameFile(current)) {
+                return false;
+            }
+            VideoEntry updated = change.apply(current);
+            if (entries.replace(base.name, current, updated)) {
+                if (!updated.equals(current)) {
+                    version.incrementAndGet();
+                    save(updated);
+                    notifyListeners(updated.name, updated);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Удаляет запись о файле.
+     *
+     * @param name имя видеофайла
+     */
+    void remove(String name) {
+        if (entries.remove(name) != null) {
+            nameChanged(name, false);
+            CatalogStore current = store;
+            if (current != null) {
+                current.delete(name);
+            }
+            notifyListeners(name, null);
+        }
+    }
+
+    /**
+     * Увеличивает версию и запоминает изменение списка имен.
+     */
+    private void nameChanged(String name, boolean added) {
+        synchronized (history) {
+            long changed = version.incrementAndGet();
+            history.addLast(new NameChange(changed, name, added));
+            if (history.size() > MAX_HISTORY) {
+                historyFloor = history.removeFirst().version;
+            }
+            namesVersion = changed;
+        }
+    }
+
+    /**
+     * Возвращает изменения списка имен после заданной версии. Если одно имя менялось несколько раз,
+     * остается только его последнее состояние. Изменения можно применять повторно: снимок той же
+     * версии мог уже учесть изменения, идущие сразу за ней.
+     *
+     * @param since версия списка, известная клиенту
+     * @return изменения или null, если история их уже не содержит и нужен полный список
+     */
+    Changes changesSince(long since) {
+        synchronized (history) {
+            if (since < historyFloor || since > namesVersion) {
+                return null;
+            }
+            Map<String, Boolean> latest = new LinkedHashMap<>();
+            // История упорядочена по версии, нужные изменения — в ее конце
+            Iterator<NameChange> iterator = history.descendingIterator();
+            while (iterator.hasNext()) {
+                NameChange change = iterator.next();
+                if (change.version <= since) {
+                    break;
+                }
+                latest.putIfAbsent(change.name, change.added);
+            }
+            List<String> added = new ArrayList<>();
+            List<String> removed = new ArrayList<>();
+            for (Map.Entry<String, Boolean> change : latest.entrySet()) {
+                (change.getValue() ? added : removed).add(change.getKey());
+            }
+            Collections.sort(added);
+            Collections.sort(removed);
+            return new Changes(namesVersion, added, removed);
+        }
+    }
+
+    private void notifyListeners(String name, VideoEntry entry) {
+        for (Listener listener : listeners) {
+            listener.changed(name, entry);
+        }
+    }
+
+    private void save(VideoEntry entry) {
+        CatalogStore current = store;
+        if (current != null) {
+            current.save(entry);
+        }
+    }
+
+    /**
+     * Приводит каталог к результату полного сканирования директории.
+     *
+     * @param scanned все найденные видеофайлы
+     */
+    void replaceAll(Collection<VideoEntry> scanned) {
+        Set<String> present = new HashSet<>();
+        for (VideoEntry entry : scanned) {
+            present.add(entry.name);
+            put(entry);
+        }
+        for (String name : entries.keySet()) {
+            if (!present.contains(name)) {
+                remove(name);
+            }
+        }
+    }
+
+    VideoEntry get(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Возвращает имена видео внутри поддиректории на всех уровнях вложенности.
+     *
+     * @param directory путь поддиректории относительно директории видео
+     * @return имена по возрастанию
+     */
+    List<String> namesUnder(String directory) {
+        List<String> names = snapshot().names;
+        String prefix = directory + "/";
+        int from = Collections.binarySearch(names, prefix);
+        if (from < 0) {
+            from = -from - 1;
+        }
+        int to = from;
+        while (to < names.size() && names.get(to).startsWith(prefix)) {
+            to++;
+        }
+        return names.subList(from, to);
+    }
+
+    /**
+     * Проверяет, что имя видео, пришедшее от клиента, — относительный путь внутри директории видео:
+     * без пустых частей, {@code .} и {@code ..}, обратной косой черты и нулевого символа.
+     */
+    static boolean isValidName(String name) {
+        if (name.isEmpty() || name.indexOf('\\') >= 0 || name.indexOf('\0') >= 0) {
+            return false;
+        }
+        for (String part : name.split("/", -1)) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long version() {
+        return version.get();
+    }
+
+    /**
+     * Версия последнего добавления или удаления имени; изменения метаданных ее не меняют.
+     */
+    long namesVersion() {
+        return namesVersion;
+    }
+
+    long id() {
+        return id;
+    }
+
+    /**
+     * Возвращает неизменяемый снимок списка имен. Снимок перестраивается только при изменении
+     * списка имен, а не метаданных.
+     *
+     * @return снимок с версией списка имен и отсортированным списком
+     */
+    Snapshot snapshot() {
+        Snapshot current = snapshot.get();
+        long currentVersion = namesVersion;
+        if (current.version == currentVersion) {
+            return current;
+        }
+        // Версия читается до обхода, поэтому снимок не старее своей версии
+        List<String> names = new ArrayList<>(entries.keySet());
+        Collections.sort(names);
+        Snapshot fresh = new Snapshot(currentVersion, Collections.unmodifiableList(names));
+        while (true) {
+            Snapshot published = snapshot.get();
+            if (published.version >= currentVersion) {
+                return published;
+            }
+            if (snapshot.compareAndSet(published, fresh)) {
+                return fresh;
+            }
+        }
+    }
+
+    /**
+     * Изменение списка имен.
+     */
+    private static final class NameChange {
+        final long version;
+        final String name;
+        final boolean added;
+
+        NameChange(long version, String name, boolean added) {
+            this.version = version;
+            this.name = name;
+            this.added = added;
+        }
+    }
+
+    /**
+     * Изменения списка имен между версиями.
+     */
+    static final class Changes {
+        final long version; // Версия, до которой доведены изменения
+        final List<String> added;
+        final List<String> removed;
+
+        Changes(long version, List<String> added, List<String> removed) {
+            this.version = version;
+            this.added = added;
+            this.removed = removed;
+        }
+    }
+
+    /**
+     * Неизменяемый список имен на определенной версии.
+     */
+    static final class Snapshot {
+        final long version; // Версия списка имен
+        final List<String> names;
+
+        Snapshot(long version, List<String> names) {
+            this.version = version;
+            this.names = names;
+        }
+    }
+
+    /**
+     * Запись о видеофайле: атрибуты файла и метаданные, вычисленные сервером.
+     * Корень хранилища ({@link StorageRoots}) не сравнивается в {@link #equals}: он не хранится в базе
+     * и не виден клиентам, поэтому уточнение корня после загрузки из базы не меняет версию каталога.
+     */
+    static final class VideoEntry {
+        final String name;
+        final int root; // Номер корня хранилища с файлом, -1 — неизвестен до сканирования
+        final long size;
+        final long lastModified;
+        final long addedAt; // Время первого появления в каталоге
+        final long durationMs; // Длительность, -1 — неизвестна
+        final String codec; // Кодеки дорожек или null
+        final String contentHash; // Хэш содержимого или null, пока не вычислен
+
+        VideoEntry(String name, int root, long size, long lastModified) {
+            this(name, root, size, lastModified, System.currentTimeMillis(), -1, null, null);
+        }
+
+        /**
+         * Запись, загруженная из базы: корень станет известен при сканировании.
+         */
+        VideoEntry(String name, long size, long lastModified, long addedAt,
+                   long durationMs, String codec, String contentHash) {
+            this(name, -1, size, lastModified, addedAt, durationMs, codec, contentHash);
+        }
+
+        VideoEntry(String name, int root, long size, long lastModified, long addedAt,
+                   long durationMs, String codec, String contentHash) {
+            this.name = name;
+            this.root = root;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.addedAt = addedAt;
+            this.durationMs = durationMs;
+            this.codec = codec;
+            this.contentHash = contentHash;
+        }
+
+        /**
+         * Проверяет, описывают ли записи одно и то же содержимое файла (по размеру и времени изменения).
+         */
+        boolean sameFile(VideoEntry other) {
+            return other != null && size == other.size && lastModified == other.lastModified;
+        }
+
+        boolean hasMedia() {
+            return durationMs >= 0 || codec != null;
+        }
+
+        VideoEntry withAddedAt(long addedAt) {
+            return new VideoEntry(name, root, size, lastModified, addedAt, durationMs, codec, contentHash);
+        }
+
+        VideoEntry withRoot(int root) {
+            return root == this.root ? this
+                    : new VideoEntry(name, root, size, lastModified, addedAt, durationMs, codec, contentHash);
+        }
+
+        VideoEntry withMedia(long durationMs, String codec) {
+            return new VideoEntry(name, root, size, lastModified, addedAt, durationMs, codec, contentHash);
+        }
+
+        VideoEntry withContentHash(String contentHash) {
+            return new VideoEntry(name, root, size, lastModified, addedAt, durationMs, codec, contentHash);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof VideoEntry)) return false;
+            VideoEntry other = (VideoEntry) o;
+            return size == other.size && lastModified == other.lastModified && addedAt == other.addedAt &&
+                    durationMs == other.durationMs && name.equals(other.name) &&
+                    Objects.equals(codec, other.codec) && Objects.equals(contentHash, other.contentHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, size, lastModified);
+        }
+    }
+}
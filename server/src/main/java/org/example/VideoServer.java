@@ -1,244 +1,759 @@
 package org.example;
 
 import java.io.*;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.*;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Класс VideoServer реализует видеосервер, который позволяет клиентам
  * подключаться и запрашивать список видео или загружать конкретные видеофайлы.
+ * Обмен с клиентами ведется по бинарному протоколу {@link Protocol}.
  */
 public class VideoServer {
-    private static final int PORT = 8080; // Порт, на котором будет работать сервер
-    private static final String VIDEO_DIR = "videos"; // Директория с видеофайлами
-    private final List<String> videoList; // Список доступных видео
-    private boolean running; // Флаг работы сервера
+    static final int COPY_BUFFER_SIZE = 64 * 1024; // Размер буфера при отправке файла без transferTo
+    private static final Log LOG = Log.root();
+    private final ServerConfig config; // Параметры запуска
+    private final VideoCatalog catalog = new VideoCatalog(); // Каталог доступных видео
+    private final StorageRoots roots; // Корневые директории видео и их пулы чтения
+    private final DirectoryWatcher watcher; // Мониторинг директорий видео
+    private CatalogStore catalogStore; // Сохранение каталога между запусками, null — только в памяти
+    private final HotFileCache hotCache; // Популярные файлы в памяти, null — кеш отключен
+    private final BandwidthShaper shaper; // Ограничение скорости отправки файлов
+    private final AdmissionControl admission; // Пределы числа сессий
+    private final ServerMetrics metrics; // Показатели работы
+    private final ListingCache listing = new ListingCache(catalog); // Готовые ответы на LIST
+    private final CatalogFeed feed = new CatalogFeed(catalog, listing); // Уведомления подписчиков об изменениях
+    private final SearchIndex searchIndex = new SearchIndex(catalog); // Постраничные запросы с фильтром
+    private MetricsEndpoint metricsEndpoint; // HTTP-доступ к показателям, null — отключен
+    private ExecutorService sessions; // Виртуальные потоки сессий в блокирующем режиме
+    private volatile ServerSocketChannel acceptChannel; // Канал приема в блокирующем режиме
+    private volatile boolean running; // Флаг работы сервера
     private final AtomicInteger clientCounter = new AtomicInteger(0); // Счетчик клиентов
+    private final Log busyLog = Log.limited(""); // Отказы из-за пределов; пишет только поток приема
+    private NioVideoServer nioServer; // Цикл событий в неблокирующем режиме
+    private HttpRangeServer httpServer; // HTTP-раздача видео для прямого воспроизведения
 
     /**
-     * Конструктор VideoServer.
-     * Инициализирует видеосервер, загружает список видео.
+     * Конструктор VideoServer с параметрами по умолчанию.
      */
     public VideoServer() {
-        this.videoList = new ArrayList<>();
+        this(new ServerConfig());
+    }
+
+    /**
+     * Конструктор VideoServer.
+     * Инициализирует видеосервер: загружает сохраненный каталог и запускает
+     * фоновую сверку с директорией видео.
+     *
+     * @param config параметры запуска
+     */
+    public VideoServer(ServerConfig config) {
+        this.config = config;
         this.running = true;
-        loadVideos(); // Загрузка списка видео при запуске
-        startWatchingVideoDirectory(); // Запуск мониторинга изменений
+        Log.configure(config.getLogLevel(), config.getLogFile().isEmpty() ? null : Paths.get(config.getLogFile()),
+                config.getLogMaxBytes(), config.getLogFiles());
+        this.roots = new StorageRoots(config.getVideoDirs(), config.getRootIoThreads(), config.getRootIoQueue());
+        this.shaper = new BandwidthShaper(config.getMaxRate(), config.getClientRate());
+        this.admission = new AdmissionControl(config.getMaxSessions(), config.getMaxPerAddress());
+        this.metrics = new ServerMetrics(admission, shaper, feed, roots);
+        openCatalogStore();
+        catalog.addListener(feed);
+        catalog.addListener(searchIndex);
+        if (config.getHotCacheBytes() > 0) {
+            this.hotCache = new HotFileCache(roots, config.getHotCacheBytes(), config.getHotThreshold());
+            catalog.addListener(hotCache);
+        } else {
+            this.hotCache = null;
+        }
+        this.watcher = new DirectoryWatcher(roots, catalog, config.getVideoExtensions(),
+                config.getHashThreads(), config.getScanThreads());
+        try {
+            watcher.start(); // Загрузка списка видео и запуск мониторинга изменений
+        } catch (IOException e) {
+            LOG.error("Ошибка при загрузке видео: {}", e.getMessage());
+        }
+        searchIndex.start();
     }
 
     /**
-     * Загружает список видео из директории VIDEO_DIR.
+     * Открывает базу каталога и загружает из нее записи.
+     * Если база недоступна, каталог работает только в памяти.
      */
-    private void loadVideos() {
+    private void openCatalogStore() {
+        if (config.getCatalogDb().isEmpty()) {
+            return;
+        }
         try {
-            Path videoPath = Paths.get(VIDEO_DIR);
-            if (!Files.exists(videoPath)) {
-                Files.createDirectories(videoPath); // Создаем директорию, если она не существует
-            }
+            CatalogStore store = new CatalogStore(config.getCatalogDb());
+            List<VideoCatalog.VideoEntry> saved = store.loadAll();
+            catalog.attach(store, saved);
+            store.start();
+            catalogStore = store;
+            LOG.info("Каталог загружен из базы: {} видео", saved.size());
+        } catch (SQLException e) {
+            LOG.warn("База каталога недоступна, каталог хранится только в памяти: {}", e.getMessage());
+        }
+    }
 
-            videoList.clear(); // Очищаем старый список
-            try (DirectoryStream<Path> stream = Files.newDirectoryStream(videoPath, "*.{mp4,MP4}")) {
-                for (Path file : stream) {
-                    videoList.add(file.getFileName().toString()); // Добавляем файлы в список
-                }
-            }
+    ListingCache getListing() {
+        return listing;
+    }
 
-            System.out.println("Загруженные видео: " + videoList);
-        } catch (IOException e) {
-            System.err.println("Ошибка при загрузке видео: " + e.getMessage());
+    CatalogFeed getFeed() {
+        return feed;
+    }
+
+    /**
+     * Выполняет запрос QUERY по поисковому индексу.
+     *
+     * @param requestId идентификатор запроса
+     * @param payload данные запроса
+     * @return кадр QUERY_RESULT или ERROR
+     * @throws BufferUnderflowException если запрос поврежден
+     */
+    ByteBuffer query(int requestId, ByteBuffer payload) {
+        int offset = payload.getInt();
+        int limit = payload.getInt();
+        byte sort = payload.get();
+        byte flags = payload.get();
+        String filter = Protocol.getString(payload);
+        if (offset < 0 || limit < 0) {
+            return Protocol.error(requestId, Protocol.ERROR_BAD_REQUEST, "Неверные границы страницы");
         }
+        SearchIndex.Page page = searchIndex.query(filter, (flags & Protocol.QUERY_SUBSTRING) != 0, sort,
+                (flags & Protocol.QUERY_DESCENDING) != 0, offset, limit);
+        return Protocol.queryResult(requestId, catalog.id(), page.version, page.total,
+                page.names, page.sizes, page.modified);
     }
 
     /**
-     * Запускает мониторинг изменений в директории VIDEO_DIR.
+     * Возвращает запись каталога о видеофайле без обращения к файловой системе.
+     *
+     * @param videoName имя видеофайла
+     * @return запись каталога или null, если видео нет в каталоге
      */
-    private void startWatchingVideoDirectory() {
-        new Thread(() -> {
-            try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
-                Path videoPath = Paths.get(VIDEO_DIR);
-                videoPath.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
-                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
-
-                System.out.println("Мониторинг изменений в директории: " + VIDEO_DIR);
-
-                while (running) {
-                    WatchKey key = watchService.take(); // Ожидание события
-                    for (WatchEvent<?> event : key.pollEvents()) {
-                        WatchEvent.Kind<?> kind = event.kind();
-                        if (kind == StandardWatchEventKinds.OVERFLOW) {
-                            continue;
-                        }
+    VideoCatalog.VideoEntry findVideo(String videoName) {
+        return catalog.get(videoName);
+    }
 
-                        // Обновляем список видео при любых изменениях
-                        System.out.println("Изменения в директории: " + event.kind() + " - " + event.context());
-                        loadVideos();
-                    }
-                    key.reset(); // Сбрасываем ключ для получения следующих событий
-                }
-            } catch (IOException | InterruptedException e) {
-                System.err.println("Ошибка при мониторинге директории: " + e.getMessage());
-            }
-        }).start();
+    /**
+     * Учитывает запрос к видео и возвращает его отображение в памяти, если видео популярно и закешировано.
+     *
+     * @param videoName имя видеофайла
+     * @return отображение, которое нужно освободить после отправки, или null
+     */
+    HotFileCache.Mapping acquireMapped(String videoName) {
+        VideoCatalog.VideoEntry entry = catalog.get(videoName);
+        return entry == null || hotCache == null ? null : hotCache.acquire(entry);
+    }
+
+    /**
+     * Находит видеофайл по имени, присланному клиентом: в корне из записи каталога,
+     * а если видео еще нет в каталоге — в первом по порядку корне, где файл есть.
+     * Имя не может выйти за пределы корня.
+     *
+     * @param videoName путь видео относительно корня
+     * @return расположение файла или null, если имя недопустимо или файла нет ни в одном корне
+     */
+    StorageRoots.Location locateVideo(String videoName) {
+        if (!VideoCatalog.isValidName(videoName)) {
+            return null;
+        }
+        return roots.locate(videoName, catalog.get(videoName));
+    }
+
+    BandwidthShaper getShaper() {
+        return shaper;
+    }
+
+    AdmissionControl getAdmission() {
+        return admission;
+    }
+
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Допускает подключение к основному протоколу или отправляет клиенту ответ «сервер занят».
+     *
+     * @param channel принятое подключение в блокирующем режиме
+     * @return разрешение на сессию или null, если подключение отклонено
+     */
+    AdmissionControl.Permit admit(SocketChannel channel) {
+        AdmissionControl.Permit permit = admission.admit(channel.socket().getInetAddress());
+        if (permit == null) {
+            busyLog.warn("Сервер занят, подключение отклонено: {} (сессий: {})",
+                    channel.socket().getInetAddress(), admission.activeSessions());
+            admission.reject(channel, Protocol.error(0, Protocol.ERROR_BUSY, "Сервер занят, повторите позже"));
+        }
+        return permit;
+    }
+
+    /**
+     * Выдает уникальный идентификатор нового клиента.
+     *
+     * @return идентификатор клиента
+     */
+    int nextClientId() {
+        return clientCounter.incrementAndGet();
+    }
+
+    boolean isRunning() {
+        return running;
     }
 
     /**
      * Запускает видеосервер и обрабатывает подключения от клиентов.
+     * В неблокирующем режиме подключения обслуживаются циклом событий {@link NioVideoServer},
+     * иначе каждый клиент обслуживается {@link ClientHandler} в отдельном виртуальном потоке.
+     * Подключения сверх пределов {@link AdmissionControl} получают ответ «сервер занят».
+     * Если задан HTTP-порт, в том же процессе запускается {@link HttpRangeServer},
+     * если задан порт показателей — {@link MetricsEndpoint}.
      */
     public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Сервер запущен на порту " + PORT);
+        if (config.getMetricsPort() > 0) {
+            metricsEndpoint = new MetricsEndpoint(metrics, config.getMetricsPort());
+            try {
+                metricsEndpoint.start();
+            } catch (IOException e) {
+                LOG.error("Не удалось открыть порт показателей: {}", e.getMessage());
+            }
+        }
+
+        if (config.getHttpPort() > 0) {
+            httpServer = new HttpRangeServer(this, config.getHttpPort(), config.getAcceptBacklog());
+            try {
+                httpServer.start();
+            } catch (IOException e) {
+                LOG.error("Не удалось запустить HTTP-сервер: {}", e.getMessage());
+            }
+        }
+
+        if (config.isNio()) {
+            nioServer = new NioVideoServer(this, config);
+            nioServer.start();
+            return;
+        }
+
+        sessions = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("video-client-", 1).factory());
+        // Сокеты принимаются через канал, чтобы при отправке файла можно было использовать transferTo
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            acceptChannel = serverChannel;
+            serverChannel.bind(new InetSocketAddress(config.getPort()), config.getAcceptBacklog());
+            LOG.info("Сервер запущен на порту {}", config.getPort());
 
             while (running) {
                 try {
-                    Socket clientSocket = serverSocket.accept(); // Ожидание клиента
-                    int clientId = clientCounter.incrementAndGet(); // Генерация уникального идентификатора клиента
-                    new ClientHandler(clientSocket, clientId).start(); // Обработка клиента в отдельном потоке
-                    System.out.println("Новое подключение [Клиент " + clientId + "]: " + clientSocket.getInetAddress());
+                    SocketChannel channel = serverChannel.accept(); // Ожидание клиента
+                    AdmissionControl.Permit permit = admit(channel);
+                    if (permit == null) {
+                        continue;
+                    }
+                    Socket clientSocket = channel.socket();
+                    int clientId = nextClientId(); // Генерация уникального идентификатора клиента
+                    sessions.execute(new ClientHandler(clientSocket, clientId, permit)); // Обработка в виртуальном потоке
                 } catch (IOException e) {
                     if (running) {
-                        System.err.println("Ошибка при принятии подключения: " + e.getMessage());
+                        LOG.error("Ошибка при принятии подключения: {}", e.getMessage());
                     }
                 }
             }
         } catch (IOException e) {
-            System.err.println("Ошибка сервера: " + e.getMessage());
+            if (running) {
+                LOG.error("Ошибка сервера: {}", e.getMessage());
+            }
         }
     }
 
     /**
      * Вложенный класс для обработки запросов клиентов.
      */
-    private class ClientHandler extends Thread {
+    private class ClientHandler implements Runnable {
         private final Socket clientSocket;
+        private final SocketChannel channel;
         private final int clientId; // Идентификатор клиента
-        private ObjectOutputStream out;
-        private ObjectInputStream in;
+        private final AdmissionControl.Permit permit; // Место среди допущенных сессий
+        private final BandwidthShaper.Flow flow; // Учет скорости отправки
+        private final Log log; // Журнал с префиксом клиента
+        private DataInputStream in;
+        private long getReceived; // Время получения GET до отправки первого байта тела, 0 — нет
+        private final ReentrantLock writeLock = new ReentrantLock(); // Ответы и уведомления не перемежаются
+        private final AtomicBoolean pushScheduled = new AtomicBoolean(); // Поток отправки уведомления уже запущен
+        private CatalogFeed.Subscription subscription; // Подписка на изменения каталога; защищено writeLock
+        private boolean multiplexed; // Клиент принимает ответы между кадрами DATA (HELLO_MULTIPLEX)
+        private final BlockingQueue<Protocol.Frame> transfers = new LinkedBlockingQueue<>(); // GET в режиме мультиплексирования
+        private Thread transferThread; // Поток передач файлов, null — еще не запущен
 
         /**
          * Конструктор ClientHandler.
          *
          * @param socket сокет клиента
          * @param clientId уникальный идентификатор клиента
+         * @param permit разрешение на сессию, освобождается при отключении
          */
-        public ClientHandler(Socket socket, int clientId) {
+        public ClientHandler(Socket socket, int clientId, AdmissionControl.Permit permit) {
             this.clientSocket = socket;
+            this.channel = socket.getChannel();
             this.clientId = clientId;
+            this.permit = permit;
+            this.flow = shaper.open(clientId);
+            this.log = Log.forClient(clientId);
         }
 
         @Override
         public void run() {
+            log.info("Новое подключение: {}", clientSocket.getInetAddress());
             try {
-                // Инициализация потоков ввода/вывода
-                out = new ObjectOutputStream(clientSocket.getOutputStream());
-                in = new ObjectInputStream(clientSocket.getInputStream());
+                // Ответы пишутся напрямую в канал сокета, чтобы тело файла можно было передать через transferTo
+                in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
 
-                while (!clientSocket.isClosed()) {
-                    String command = (String) in.readObject(); // Чтение команды от клиента
-                    processCommand(command); // Обработка команды
+                if (handshake()) {
+                    Protocol.Frame frame;
+                    while ((frame = Protocol.read(in)) != null) { // Чтение запроса от клиента
+                        if (multiplexed && frame.opcode == Protocol.GET) {
+                            queueTransfer(frame); // Передача не задерживает следующие запросы
+                            continue;
+                        }
+                        writeLock.lock();
+                        try {
+                            processFrame(frame); // Обработка запроса
+                        } finally {
+                            writeLock.unlock();
+                        }
+                    }
                 }
-            } catch (IOException | ClassNotFoundException e) {
-                System.out.println("Клиент " + clientId + " отключился: " + clientSocket.getInetAddress());
+                log.info("Клиент отключился: {}", clientSocket.getInetAddress());
+            } catch (IOException e) {
+                log.info("Клиент отключился: {}", clientSocket.getInetAddress());
             } finally {
                 closeConnection(); // Закрытие соединения
             }
         }
 
         /**
-         * Обрабатывает команду клиента.
+         * Проверяет приветствие клиента и версию протокола.
          *
-         * @param command команда клиента
-         * @throws IOException если возникает ошибка при обработке команды
+         * @return true, если клиент может продолжать работу
+         * @throws IOException если возникает ошибка чтения или записи
          */
-        private void processCommand(String command) throws IOException {
-            System.out.println("[Клиент " + clientId + "] Получена команда: " + command);
-
-            if ("LIST".equals(command)) {
-                System.out.println("[Клиент " + clientId + "] Отправляем список видео клиенту.");
-                synchronized (videoList) {
-                    out.writeObject(new ArrayList<>(videoList));
-                    out.flush();
-                }
-            } else if (command.startsWith("GET ")) {
-                String videoName = command.substring(4);
-                System.out.println("[Клиент " + clientId + "] Запрос на получение видео: " + videoName);
-                sendVideo(videoName);
-            } else if (command.startsWith("CHECK ")) {
-                String videoName = command.substring(6);
-                System.out.println("[Клиент " + clientId + "] Запрос на проверку видео: " + videoName);
-                checkVideo(videoName);
+        private boolean handshake() throws IOException {
+            in.mark(4);
+            int first = in.readInt();
+            in.reset();
+            if (Protocol.isLegacyStream(first)) {
+                log.info("Устаревший клиент (сериализация Java), соединение закрыто.");
+                return false;
+            }
+            Protocol.Frame hello = Protocol.read(in);
+            String problem = Protocol.checkHello(hello);
+            if (problem != null) {
+                log.info("Отклонено подключение: {}", problem);
+                writeFully(channel, Protocol.error(hello == null ? 0 : hello.requestId,
+                        Protocol.ERROR_UNSUPPORTED_VERSION, problem));
+                return false;
             }
+            byte accepted = (byte) (Protocol.helloFlags(hello) & Protocol.HELLO_MULTIPLEX);
+            multiplexed = accepted != 0;
+            writeFully(channel, multiplexed
+                    ? Protocol.helloOk(hello.requestId, accepted) : Protocol.helloOk(hello.requestId));
+            return true;
         }
 
         /**
-         * Проверяет видеофайл и отправляет информацию о нем клиенту.
+         * Обрабатывает запрос клиента.
          *
-         * @param videoName имя видеофайла
-         * @throws IOException если возникает ошибка при проверке файла
+         * @param frame кадр запроса
+         * @throws IOException если возникает ошибка при обработке запроса
+         */
+        private void processFrame(Protocol.Frame frame) throws IOException {
+            long received = System.nanoTime();
+            try {
+                switch (frame.opcode) {
+                    case Protocol.LIST:
+                        metrics.requested(ServerMetrics.Command.LIST);
+                        log.debug("Отправляем список видео клиенту.");
+                        send(listing.list(frame.requestId));
+                        metrics.completed(ServerMetrics.Command.LIST, received);
+                        break;
+                    case Protocol.LIST_SINCE: {
+                        metrics.requested(ServerMetrics.Command.LIST);
+                        long catalogId = frame.payload.getLong();
+                        long since = frame.payload.getLong();
+                        boolean deflate = (frame.payload.get() & Protocol.LIST_ACCEPT_DEFLATE) != 0;
+                        log.debug("Отправляем изменения списка видео с версии {}.", since);
+                        send(listing.listSince(frame.requestId, catalogId, since, deflate));
+                        metrics.completed(ServerMetrics.Command.LIST, received);
+                        break;
+                    }
+                    case Protocol.SUBSCRIBE: {
+                        metrics.requested(ServerMetrics.Command.LIST);
+                        long catalogId = frame.payload.getLong();
+                        long since = frame.payload.getLong();
+                        byte flags = frame.payload.get();
+                        log.debug("Подписка на изменения каталога с версии {}.", since);
+                        if (subscription != null) {
+                            feed.unsubscribe(subscription);
+                        }
+                        subscription = new CatalogFeed.Subscription(frame.requestId, catalogId, since, flags,
+                                this::catalogChanged);
+                        send(feed.subscribe(subscription));
+                        metrics.completed(ServerMetrics.Command.LIST, received);
+                        break;
+                    }
+                    case Protocol.QUERY:
+                        metrics.requested(ServerMetrics.Command.QUERY);
+                        log.debug("Запрос страницы списка видео.");
+                        send(query(frame.requestId, frame.payload));
+                        metrics.completed(ServerMetrics.Command.QUERY, received);
+                        break;
+                    case Protocol.CHECK: {
+                        metrics.requested(ServerMetrics.Command.CHECK);
+                        String videoName = Protocol.getString(frame.payload);
+                        log.debug("Запрос на проверку видео: {}", videoName);
+                        checkVideo(frame.requestId, videoName);
+                        metrics.completed(ServerMetrics.Command.CHECK, received);
+                        break;
+                    }
+                    case Protocol.GET: {
+                        metrics.requested(ServerMetrics.Command.GET);
+                        String videoName = Protocol.getString(frame.payload);
+                        long offset = frame.payload.getLong();
+                        long length = frame.payload.getLong();
+                        if (log.isDebugEnabled()) {
+                            log.debug("Запрос на получение видео: {}{}", videoName,
+                                    offset == 0 && length < 0 ? "" : " (" + offset + "+" + length + ")");
+                        }
+                        getReceived = received;
+                        sendVideo(frame.requestId, videoName, offset, length);
+                        getReceived = 0;
+                        break;
+                    }
+                    case Protocol.STATS:
+                        metrics.requested(ServerMetrics.Command.STATS);
+                        send(Protocol.statsResult(frame.requestId, metrics.snapshot()));
+                        metrics.completed(ServerMetrics.Command.STATS, received);
+                        break;
+                    default:
+                        metrics.requested(ServerMetrics.Command.UNKNOWN);
+                        log.warn("Неизвестная операция: {}", frame.opcode);
+                        send(Protocol.error(frame.requestId, Protocol.ERROR_BAD_REQUEST,
+                                "Неизвестная операция: " + frame.opcode));
+                }
+            } catch (BufferUnderflowException e) {
+                send(Protocol.error(frame.requestId, Protocol.ERROR_BAD_REQUEST, "Поврежденный запрос"));
+            }
+        }
+
+        /**
+         * Ставит GET в очередь передач сессии. Передачи идут по одной в отдельном виртуальном потоке,
+         * а поток чтения тем временем обрабатывает следующие запросы; их ответы уходят между кадрами DATA.
          */
-        private void checkVideo(String videoName) throws IOException {
-            Path videoPath = Paths.get(VIDEO_DIR, videoName);
-            if (Files.exists(videoPath)) {
+        private void queueTransfer(Protocol.Frame frame) {
+            if (transferThread == null) {
+                transferThread = Thread.ofVirtual().name("video-transfer-" + clientId).start(this::runTransfers);
+            }
+            transfers.add(frame);
+        }
+
+        private void runTransfers() {
+            try {
+                while (true) {
+                    processFrame(transfers.take());
+                }
+            } catch (InterruptedException e) {
+                // Сессия закрывается
+            } catch (IOException e) {
+                log.debug("Ошибка при отправке ответа: {}", e.getMessage());
                 try {
-                    long fileSize = Files.size(videoPath);
-                    long lastModified = Files.getLastModifiedTime(videoPath).toMillis();
+                    clientSocket.close(); // Поток чтения завершит сессию
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        /**
+         * Отправляет кадр целиком под writeLock: ответы на другие запросы и уведомления
+         * могут встать только между кадрами.
+         */
+        private void send(ByteBuffer... buffers) throws IOException {
+            writeLock.lock();
+            try {
+                writeFully(channel, buffers);
+            } finally {
+                writeLock.unlock();
+            }
+        }
 
-                    out.writeLong(fileSize);
-                    out.writeLong(lastModified);
-                    out.flush();
+        /**
+         * Вызывается рассылкой при изменении каталога. Уведомление отправляет отдельный виртуальный поток,
+         * когда сессия закончит текущий ответ; пока он ждет, новые изменения объединяются с ожидающими.
+         */
+        private void catalogChanged() {
+            if (pushScheduled.compareAndSet(false, true)) {
+                Thread.ofVirtual().name("video-push-" + clientId).start(this::pushChanges);
+            }
+        }
 
-                    System.out.println("[Клиент " + clientId + "] Отправлена информация о файле: " + videoName +
-                            " (размер: " + fileSize + ", модифицирован: " + lastModified + ")");
-                } catch (IOException e) {
-                    System.err.println("[Клиент " + clientId + "] Ошибка при проверке видео: " + e.getMessage());
-                    out.writeLong(-1);
-                    out.writeLong(-1);
-                    out.flush();
+        private void pushChanges() {
+            writeLock.lock();
+            try {
+                pushScheduled.set(false); // Изменения после этой точки запустят новую отправку
+                if (subscription == null || clientSocket.isClosed()) {
+                    return;
+                }
+                ByteBuffer[] changes = feed.pending(subscription);
+                if (changes != null) {
+                    writeFully(channel, changes);
+                }
+            } catch (IOException e) {
+                log.debug("Не удалось отправить изменения каталога: {}", e.getMessage());
+                try {
+                    clientSocket.close(); // Поток чтения завершит сессию
+                } catch (IOException ignored) {
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * Проверяет видеофайл и отправляет информацию о нем клиенту.
+         *
+         * @param requestId идентификатор запроса
+         * @param videoName имя видеофайла
+         * @throws IOException если возникает ошибка при отправке ответа
+         */
+        private void checkVideo(int requestId, String videoName) throws IOException {
+            VideoCatalog.VideoEntry entry = findVideo(videoName);
+            long fileSize = -1;
+            long lastModified = -1;
+            String contentHash = null;
+            if (entry != null) {
+                contentHash = entry.contentHash;
+                fileSize = entry.size;
+                lastModified = entry.lastModified;
+                if (log.isDebugEnabled()) {
+                    log.debug("Отправлена информация о файле: {} (размер: {}, модифицирован: {})",
+                            videoName, fileSize, lastModified);
                 }
             } else {
-                System.out.println("[Клиент " + clientId + "] Файл не найден: " + videoName);
-                out.writeLong(-1);
-                out.writeLong(-1);
-                out.flush();
+                log.info("Файл не найден: {}", videoName);
             }
+            send(Protocol.checkResult(requestId, fileSize, lastModified, contentHash));
         }
 
         /**
-         * Отправляет видеофайл клиенту.
+         * Отправляет видеофайл или его диапазон: GET_RESULT с размером файла и длиной тела,
+         * затем тело кадрами DATA. Диапазон за концом файла обрезается.
          *
+         * @param requestId идентификатор запроса
          * @param videoName имя видеофайла
+         * @param offset смещение начала диапазона
+         * @param length длина диапазона или -1 для чтения до конца файла
          * @throws IOException если возникает ошибка при отправке файла
          */
-        private void sendVideo(String videoName) throws IOException {
-            Path videoPath = Paths.get(VIDEO_DIR, videoName);
-            if (Files.exists(videoPath)) {
+        private void sendVideo(int requestId, String videoName, long offset, long length) throws IOException {
+            HotFileCache.Mapping mapping = offset < 0 ? null : acquireMapped(videoName);
+            if (mapping != null) {
                 try {
-                    long fileSize = Files.size(videoPath);
-                    out.writeLong(fileSize);
-                    out.flush();
-
-                    // Отправляем содержимое файла
-                    try (InputStream fileIn = Files.newInputStream(videoPath)) {
-                        byte[] buffer = new byte[8192];
-                        int count;
-                        while ((count = fileIn.read(buffer)) > 0) {
-                            out.write(buffer, 0, count);
-                        }
+                    sendMapped(requestId, mapping, offset, length);
+                } finally {
+                    mapping.release();
+                }
+                return;
+            }
+            StorageRoots.Location location = locateVideo(videoName);
+            if (offset < 0 || location == null || !Files.exists(location.path)) {
+                log.info("Файл не найден: {}", videoName);
+                send(Protocol.getResult(requestId, -1, -1));
+                return;
+            }
+            FileChannel file;
+            long fileSize;
+            try {
+                file = FileChannel.open(location.path, StandardOpenOption.READ);
+                try {
+                    fileSize = file.size();
+                } catch (IOException e) {
+                    file.close();
+                    throw e;
+                }
+            } catch (IOException e) {
+                // Файл удален после проверки или недоступен: клиент получает «нет файла», сессия продолжается
+                log.info("Файл недоступен: {} ({})", videoName, e.getMessage());
+                send(Protocol.getResult(requestId, -1, -1));
+                return;
+            }
+            try (file) {
+                ByteRange body = new ByteRange(offset, length < 0 ? Long.MAX_VALUE : length).clamp(fileSize);
+                send(Protocol.getResult(requestId, fileSize, body.length));
+
+                // Отправляем содержимое файла
+                flow.beginTransfer(body.length);
+                try {
+                    if (location.root.isolated()) {
+                        sendPooled(requestId, file, body, location.root);
+                    } else if (config.isZeroCopy()) {
+                        sendZeroCopy(requestId, file, body, location.root);
+                    } else {
+                        sendCopy(requestId, file, body, location.root);
                     }
-                    out.flush();
-                    System.out.println("[Клиент " + clientId + "] Видео " + videoName + " успешно отправлено.");
                 } catch (IOException e) {
-                    System.err.println("[Клиент " + clientId + "] Ошибка при отправке видео: " + e.getMessage());
-                    out.writeLong(-1);
-                    out.flush();
+                    log.warn("Ошибка при отправке видео: {}", e.getMessage());
+                    flow.finishTransfer();
+                    // Часть тела уже могла уйти клиенту, поэтому продолжать сессию нельзя
+                    clientSocket.close();
+                    return;
+                }
+                double rate = flow.finishTransfer();
+                if (log.isInfoEnabled()) {
+                    log.info("Видео {} успешно отправлено{}.", videoName, formatRate(rate));
+                }
+            }
+        }
+
+        /**
+         * Отправляет диапазон файла из его отображения в памяти, без открытия файла и чтения с диска.
+         */
+        private void sendMapped(int requestId, HotFileCache.Mapping mapping, long offset, long length)
+                throws IOException {
+            long fileSize = mapping.entry.size;
+            ByteRange body = new ByteRange(offset, length < 0 ? Long.MAX_VALUE : length).clamp(fileSize);
+            send(Protocol.getResult(requestId, fileSize, body.length));
+            flow.beginTransfer(body.length);
+            try {
+                long position = body.offset;
+                while (position < body.end()) {
+                    int frame = (int) flow.chunk(Math.min(Protocol.DATA_CHUNK_SIZE, body.end() - position));
+                    flow.acquire(frame);
+                    send(Protocol.dataHeader(requestId, frame), mapping.slice(position, frame));
+                    firstByteSent();
+                    position += frame;
+                }
+                double rate = flow.finishTransfer();
+                if (log.isInfoEnabled()) {
+                    log.info("Видео {} отправлено из памяти{}.", mapping.entry.name, formatRate(rate));
+                }
+            } catch (IOException e) {
+                log.warn("Ошибка при отправке видео: {}", e.getMessage());
+                flow.finishTransfer();
+                clientSocket.close();
+            }
+        }
+
+        /**
+         * Отправляет диапазон файла изолированного корня: части читаются в пуле корня,
+         * и сессия ждет только свой диск.
+         */
+        private void sendPooled(int requestId, FileChannel file, ByteRange body, StorageRoots.Root root)
+                throws IOException {
+            boolean complete = root.copy(file, body, chunk -> {
+                while (chunk.hasRemaining()) {
+                    int part = (int) flow.chunk(chunk.remaining());
+                    flow.acquire(part);
+                    send(Protocol.dataHeader(requestId, part), chunk.slice(chunk.position(), part));
+                    chunk.position(chunk.position() + part);
+                    firstByteSent();
+                }
+            });
+            if (!complete) {
+                throw new EOFException("Файл изменился во время отправки");
+            }
+        }
+
+        /**
+         * Копирует диапазон файла через буфер позиционным чтением.
+         */
+        private void sendCopy(int requestId, FileChannel file, ByteRange body, StorageRoots.Root root)
+                throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            long position = body.offset;
+            while (position < body.end()) {
+                buffer.clear().limit((int) flow.chunk(Math.min(buffer.capacity(), body.end() - position)));
+                flow.acquire(buffer.remaining());
+                int count = file.read(buffer, position);
+                if (count > 0) {
+                    root.transferred(count);
+                }
+                if (count < 0) {
+                    throw new EOFException("Файл изменился во время отправки");
+                }
+                buffer.flip();
+                send(Protocol.dataHeader(requestId, count), buffer);
+                firstByteSent();
+                position += count;
+            }
+        }
+
+        /**
+         * Передает диапазон файла из кеша страниц прямо в сокет через {@link FileChannel#transferTo}.
+         */
+        private void sendZeroCopy(int requestId, FileChannel file, ByteRange body, StorageRoots.Root root)
+                throws IOException {
+            long position = body.offset;
+            while (position < body.end()) {
+                int frame = (int) flow.chunk(Math.min(Protocol.DATA_CHUNK_SIZE, body.end() - position));
+                flow.acquire(frame);
+                long frameEnd = position + frame;
+                writeLock.lock();
+                try {
+                    writeFully(channel, Protocol.dataHeader(requestId, frame));
+                    while (position < frameEnd) {
+                        long sent = file.transferTo(position, frameEnd - position, channel);
+                        if (sent <= 0 && position >= file.size()) {
+                            throw new EOFException("Файл изменился во время отправки");
+                        }
+                        firstByteSent();
+                        root.transferred(sent);
+                        position += sent;
+                    }
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Записывает время до первого байта тела, если оно еще не записано для текущего GET.
+         */
+        private void firstByteSent() {
+            if (getReceived != 0) {
+                metrics.completed(ServerMetrics.Command.GET, getReceived);
+                getReceived = 0;
+            }
+        }
+
+        /**
+         * Прерывает передачу файла в режиме мультиплексирования и ждет ее потока.
+         */
+        private void stopTransfers() {
+            if (transferThread != null) {
+                transferThread.interrupt();
+                try {
+                    transferThread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
-            } else {
-                System.out.println("[Клиент " + clientId + "] Файл не найден: " + videoName);
-                out.writeLong(-1);
-                out.flush();
             }
         }
 
@@ -247,20 +762,89 @@ public class VideoServer {
          */
         private void closeConnection() {
             try {
-                if (out != null) out.close();
+                if (subscription != null) {
+                    feed.unsubscribe(subscription);
+                }
                 if (in != null) in.close();
                 if (clientSocket != null) clientSocket.close();
+                stopTransfers();
+                flow.close();
             } catch (IOException e) {
-                System.err.println("[Клиент " + clientId + "] Ошибка при закрытии соединения: " + e.getMessage());
+                log.warn("Ошибка при закрытии соединения: {}", e.getMessage());
+            } finally {
+                log.close();
+                permit.release();
             }
         }
     }
 
+    /**
+     * Форматирует скорость отправки для журнала.
+     *
+     * @param bytesPerSecond скорость в байтах в секунду
+     * @return строка вида " (12.3 МБ/с)"
+     */
+    static String formatRate(double bytesPerSecond) {
+        return String.format(Locale.ROOT, " (%.1f МБ/с)", bytesPerSecond / (1024 * 1024));
+    }
+
+    /**
+     * Записывает буфер в блокирующий канал целиком.
+     */
+    static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Записывает буферы в блокирующий канал целиком одной сборной записью.
+     */
+    static void writeFully(GatheringByteChannel channel, ByteBuffer[] buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
     /**
      * Останавливает сервер.
      */
     public void stop() {
         running = false;
+        watcher.stop();
+        roots.stop();
+        feed.stop();
+        searchIndex.stop();
+        if (catalogStore != null) {
+            catalogStore.stop();
+        }
+        if (hotCache != null) {
+            hotCache.close();
+        }
+        if (acceptChannel != null) {
+            // Закрытие канала будит поток, ждущий в accept
+            try {
+                acceptChannel.close();
+            } catch (IOException e) {
+                LOG.warn("Ошибка при закрытии канала приема: {}", e.getMessage());
+            }
+        }
+        if (sessions != null) {
+            sessions.shutdownNow();
+        }
+        if (nioServer != null) {
+            nioServer.stop();
+        }
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
+        if (httpServer != null) {
+            httpServer.stop();
+        }
     }
 
     /**
@@ -269,7 +853,7 @@ public class VideoServer {
      * @param args аргументы командной строки
      */
     public static void main(String[] args) {
-        VideoServer server = new VideoServer();
+        VideoServer server = new VideoServer(ServerConfig.fromArgs(args));
         server.start();
     }
 }
\ No newline at end of file
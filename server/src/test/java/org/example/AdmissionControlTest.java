@@ -0,0 +1,135 @@
+package org.example;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Подключения сверх общего предела сессий и предела с одного адреса получают ответ «сервер занят»
+ * и закрываются, а допущенные сессии продолжают работать.
+ */
+class AdmissionControlTest {
+    private static final int MAX_SESSIONS = 3;
+    private static final int MAX_PER_ADDRESS = 2;
+
+    @TempDir
+    Path videos;
+
+    @ParameterizedTest(name = "неблокирующий режим: {0}")
+    @ValueSource(booleans = {false, true})
+    void rejectsConnectionsPastMaxSessions(boolean nio) throws Exception {
+        Files.write(videos.resolve("video.mp4"), new byte[1000]);
+        ServerConfig config = TestServer.config(videos)
+                .setNio(nio)
+                .setMaxSessions(MAX_SESSIONS);
+
+        List<TestClient> admitted = new ArrayList<>();
+        try (TestServer server = TestServer.start(config, "video.mp4")) {
+            awaitNoSessions(server);
+            for (int i = 0; i < MAX_SESSIONS; i++) {
+                admitted.add(server.connect());
+            }
+            assertBusy(new TestClient(server.port));
+
+            for (TestClient client : admitted) {
+                assertEquals(List.of("video.mp4"), client.list());
+            }
+            // Закрытая сессия освобождает место
+            admitted.remove(0).close();
+            awaitSessions(server, MAX_SESSIONS - 1);
+            admitted.add(server.connect());
+            assertBusy(new TestClient(server.port));
+        } finally {
+            for (TestClient client : admitted) {
+                client.close();
+            }
+        }
+    }
+
+    @ParameterizedTest(name = "неблокирующий режим: {0}")
+    @ValueSource(booleans = {false, true})
+    void rejectsConnectionsPastMaxPerAddress(boolean nio) throws Exception {
+        Files.write(videos.resolve("video.mp4"), new byte[1000]);
+        ServerConfig config = TestServer.config(videos)
+                .setNio(nio)
+                .setMaxSessions(100)
+                .setMaxPerAddress(MAX_PER_ADDRESS);
+        InetAddress first = InetAddress.getByName("127.0.0.1");
+        InetAddress second = InetAddress.getByName("127.0.0.2");
+
+        List<TestClient> admitted = new ArrayList<>();
+        try (TestServer server = TestServer.start(config, "video.mp4")) {
+            awaitNoSessions(server);
+            for (int i = 0; i < MAX_PER_ADDRESS; i++) {
+                admitted.add(hello(new TestClient(server.port, first)));
+            }
+            assertBusy(new TestClient(server.port, first));
+
+            // Предел считается для каждого адреса отдельно
+            for (int i = 0; i < MAX_PER_ADDRESS; i++) {
+                admitted.add(hello(new TestClient(server.port, second)));
+            }
+            assertBusy(new TestClient(server.port, second));
+
+            for (TestClient client : admitted) {
+                assertEquals(List.of("video.mp4"), client.list());
+            }
+        } finally {
+            for (TestClient client : admitted) {
+                client.close();
+            }
+        }
+    }
+
+    private static TestClient hello(TestClient client) throws IOException {
+        try {
+            client.hello((byte) 0);
+        } catch (IOException e) {
+            client.close();
+            throw e;
+        }
+        return client;
+    }
+
+    /**
+     * Проверяет, что сервер ответил на подключение отказом ERROR_BUSY и закрыл его.
+     */
+    private static void assertBusy(TestClient client) throws IOException {
+        try (client) {
+            client.send(Protocol.hello(client.nextId()));
+            Protocol.Frame reply = client.read();
+            assertEquals(Protocol.ERROR, reply.opcode);
+            assertEquals(Protocol.ERROR_BUSY, reply.payload.getShort(reply.payload.position()));
+            assertThrows(EOFException.class, client::read);
+        }
+    }
+
+    /**
+     * Ждет, пока закроются проверочные подключения, которыми {@link TestServer} ждал запуска.
+     */
+    private static void awaitNoSessions(TestServer server) throws InterruptedException {
+        awaitSessions(server, 0);
+    }
+
+    private static void awaitSessions(TestServer server, int sessions) throws InterruptedException {
+        AdmissionControl admission = server.server.getAdmission();
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (admission.activeSessions() != sessions) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Активных сессий " + admission.activeSessions() + " вместо " + sessions);
+            }
+            Thread.sleep(10);
+        }
+    }
+}
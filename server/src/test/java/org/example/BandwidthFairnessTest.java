@@ -0,0 +1,218 @@
+package org.example;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Клиенты, загружающие файлы одновременно, делят общий предел скорости поровну и вместе
+ * не превышают его, каждое подключение держится своего предела, а короткие диапазоны
+ * получают большую долю полосы, чем загрузки целых файлов.
+ */
+class BandwidthFairnessTest {
+    private static final String VIDEO = "video.mp4";
+    private static final long MAX_RATE = 4 * 1024 * 1024;
+    private static final long CLIENT_RATE = 1024 * 1024;
+    private static final long VIDEO_SIZE = 64L * 1024 * 1024; // Больше, чем уходит за время замера
+    private static final long SMALL_RANGE = BandwidthShaper.SMALL_TRANSFER / 2;
+    private static final int MANY_CLIENTS = 50;
+    private static final long MANY_CLIENTS_RATE = 32 * 1024 * 1024; // Каждому около 10 порций в секунду
+    private static final long WARMUP_MS = 500;
+    private static final long WINDOW_MS = 2000;
+
+    @TempDir
+    Path videos;
+
+    @ParameterizedTest(name = "неблокирующий режим: {0}")
+    @ValueSource(booleans = {false, true})
+    void twoClientsShareThrottledServerEvenly(boolean nio) throws Exception {
+        double[] rates = measure(config(nio).setMaxRate(MAX_RATE), 2, 0);
+
+        String text = format(rates);
+        assertTotal(MAX_RATE, rates);
+        assertEquals(0.5, rates[0] / (rates[0] + rates[1]), 0.1, "Полоса поделена неравно: " + text);
+    }
+
+    /**
+     * Пятьдесят загрузок под общим пределом: индекс справедливости Джейна
+     * (сумма долей в квадрате к числу клиентов, умноженному на сумму квадратов долей)
+     * близок к единице, и ни один клиент не получает вдвое меньше другого.
+     */
+    @ParameterizedTest(name = "неблокирующий режим: {0}")
+    @ValueSource(booleans = {false, true})
+    void manyClientsShareThrottledServerEvenly(boolean nio) throws Exception {
+        double[] rates = measure(config(nio).setMaxRate(MANY_CLIENTS_RATE), MANY_CLIENTS, 0);
+
+        double sum = 0;
+        double squares = 0;
+        for (double rate : rates) {
+            sum += rate;
+            squares += rate * rate;
+        }
+        double jain = sum * sum / (rates.length * squares);
+        double[] sorted = rates.clone();
+        Arrays.sort(sorted);
+        double minToMax = sorted[0] / sorted[sorted.length - 1];
+        assertTotal(MANY_CLIENTS_RATE, rates);
+        assertTrue(jain >= 0.95, String.format("Индекс Джейна %.3f: %s", jain, format(rates)));
+        assertTrue(minToMax >= 0.5, String.format("Наименьшая доля к наибольшей %.2f: %s", minToMax,
+                format(rates)));
+    }
+
+    @ParameterizedTest(name = "неблокирующий режим: {0}")
+    @ValueSource(booleans = {false, true})
+    void eachConnectionStaysWithinClientRate(boolean nio) throws Exception {
+        double[] rates = measure(config(nio).setClientRate(CLIENT_RATE), 3, 0);
+
+        String text = format(rates);
+        for (double rate : rates) {
+            assertTrue(rate <= CLIENT_RATE * 1.2, "Предел подключения превышен: " + text);
+            assertTrue(rate >= CLIENT_RATE * 0.6, "Подключение не получает своей полосы: " + text);
+        }
+    }
+
+    /**
+     * Первый клиент загружает файл целиком, второй запрашивает подряд короткие диапазоны.
+     * Короткие отправки имеют вес {@link BandwidthShaper#SMALL_WEIGHT}, поэтому второму клиенту
+     * достается больше половины полосы.
+     */
+    @ParameterizedTest(name = "неблокирующий режим: {0}")
+    @ValueSource(booleans = {false, true})
+    void smallRangesGetLargerShare(boolean nio) throws Exception {
+        double[] rates = measure(config(nio).setMaxRate(MAX_RATE), 2, 1);
+
+        String text = format(rates);
+        assertTotal(MAX_RATE, rates);
+        double smallShare = rates[1] / (rates[0] + rates[1]);
+        double weighted = (double) BandwidthShaper.SMALL_WEIGHT / (BandwidthShaper.SMALL_WEIGHT + 1);
+        assertTrue(smallShare >= 0.6, "Коротким диапазонам не дан больший вес: " + text);
+        assertTrue(smallShare <= weighted + 0.1, "Загрузка целого файла вытеснена: " + text);
+    }
+
+    private ServerConfig config(boolean nio) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(videos.resolve(VIDEO).toFile(), "rw")) {
+            file.setLength(VIDEO_SIZE);
+        }
+        return TestServer.config(videos)
+                .setNio(nio);
+    }
+
+    /**
+     * Запускает загрузки и замеряет их скорость после разгона. Последние {@code rangeClients}
+     * клиентов запрашивают короткие диапазоны один за другим, остальные загружают файл целиком.
+     *
+     * @return скорость каждого клиента за время замера, байт/с
+     */
+    private static double[] measure(ServerConfig config, int clients, int rangeClients) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        List<TestClient> connections = new ArrayList<>();
+        try (TestServer server = TestServer.start(config, VIDEO)) {
+            AtomicLong[] received = new AtomicLong[clients];
+            List<Future<?>> downloads = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                TestClient client = server.connect();
+                connections.add(client);
+                AtomicLong bytes = received[i] = new AtomicLong();
+                boolean ranges = i >= clients - rangeClients;
+                downloads.add(executor.submit(() -> ranges ? downloadRanges(client, bytes) : download(client, 0,
+                        -1, bytes)));
+            }
+
+            Thread.sleep(WARMUP_MS);
+            long[] start = new long[clients];
+            for (int i = 0; i < clients; i++) {
+                start[i] = received[i].get();
+            }
+            Thread.sleep(WINDOW_MS);
+            double[] rates = new double[clients];
+            for (int i = 0; i < clients; i++) {
+                rates[i] = (received[i].get() - start[i]) * 1000.0 / WINDOW_MS;
+            }
+
+            // Все загрузки шли все время замера; оставшееся обрывается закрытием сокетов
+            for (int i = 0; i < clients; i++) {
+                assertFalse(downloads.get(i).isDone(), "Загрузка " + i + " закончилась раньше замера");
+            }
+            return rates;
+        } finally {
+            for (TestClient client : connections) {
+                client.close();
+            }
+            executor.shutdownNow();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    private static void assertTotal(long limit, double[] rates) {
+        double total = 0;
+        for (double rate : rates) {
+            total += rate;
+        }
+        String text = format(rates);
+        assertTrue(total <= limit * 1.2, "Общий предел превышен: " + text);
+        assertTrue(total >= limit * 0.6, "Полоса используется не полностью: " + text);
+    }
+
+    private static String format(double[] rates) {
+        StringBuilder text = new StringBuilder();
+        for (double rate : rates) {
+            text.append(text.length() == 0 ? "" : ", ").append(String.format("%.0f", rate));
+        }
+        return text.append(" байт/с").toString();
+    }
+
+    /**
+     * Запрашивает короткие диапазоны из начала файла один за другим, пока соединение не закроется.
+     *
+     * @return null; исключение означает обрыв загрузки
+     */
+    private static Void downloadRanges(TestClient client, AtomicLong received) throws IOException {
+        for (long offset = 0; ; offset = (offset + SMALL_RANGE) % VIDEO_SIZE) {
+            download(client, offset, SMALL_RANGE, received);
+        }
+    }
+
+    /**
+     * Загружает диапазон, учитывая полученные байты тела по мере прихода.
+     *
+     * @return null; исключение означает обрыв загрузки
+     */
+    private static Void download(TestClient client, long offset, long length, AtomicLong received)
+            throws IOException {
+        int requestId = client.nextId();
+        Protocol.Frame result = client.call(Protocol.get(requestId, VIDEO, offset, length), Protocol.GET_RESULT);
+        result.payload.getLong();
+        long remaining = result.payload.getLong();
+        byte[] buffer = new byte[64 * 1024];
+        while (remaining > 0) {
+            int frameRemaining = Protocol.readDataHeader(client.in, requestId);
+            remaining -= frameRemaining;
+            while (frameRemaining > 0) {
+                int count = client.in.read(buffer, 0, Math.min(buffer.length, frameRemaining));
+                if (count < 0) {
+                    throw new EOFException("Соединение оборвалось во время передачи");
+                }
+                frameRemaining -= count;
+                received.addAndGet(count);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,183 @@
+package org.example;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Нагрузка тысячами подключений сверх предела сессий. Сначала лишние подключения непрерывно открываются
+ * из нескольких потоков, каждое сразу отправляет HELLO, как обычный клиент, и все получают ERROR_BUSY.
+ * Затем сразу открываются тысячи молчащих подключений: сверх предела одновременных отказов сервер
+ * закрывает их без ответа, но ни одно не становится сессией. Допущенные сессии продолжают обслуживаться,
+ * а число потоков платформы не растет с числом подключений. Печатаются задержки отказа.
+ * <p>
+ * Каждое подключение занимает два дескриптора в процессе теста, поэтому нужен предел открытых файлов
+ * не меньше 16 000 ({@code ulimit -n}).
+ * Запуск: {@code mvn -P benchmark test -pl server -am -Dtest=ConnectionFloodBenchmark}.
+ */
+@Tag("benchmark")
+class ConnectionFloodBenchmark {
+    private static final int ADMITTED = 3000;
+    private static final int EXCESS = 4000; // Лишние подключения, отправляющие HELLO сразу
+    private static final int FLOOD_THREADS = 32;
+    private static final int BURST = 3000; // Лишние подключения, открытые разом без запроса
+    private static final int MAX_NEW_THREADS = 20; // Рост числа потоков платформы сервера за время нагрузки
+    private static final int VIDEO_SIZE = 256 * 1024;
+
+    @TempDir
+    Path videos;
+
+    @ParameterizedTest(name = "неблокирующий режим: {0}")
+    @ValueSource(booleans = {false, true})
+    void rejectsExcessConnectionsAndKeepsServing(boolean nio) throws Exception {
+        byte[] video = new byte[VIDEO_SIZE];
+        new Random(3).nextBytes(video);
+        Files.write(videos.resolve("video.mp4"), video);
+        ServerConfig config = TestServer.config(videos)
+                .setNio(nio)
+                .setMaxSessions(ADMITTED)
+                .setMaxPerAddress(ADMITTED)
+                .setAcceptBacklog(BURST);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        List<TestClient> admitted = new ArrayList<>(ADMITTED);
+        ThreadPoolExecutor flood = (ThreadPoolExecutor) Executors.newFixedThreadPool(FLOOD_THREADS);
+        flood.prestartAllCoreThreads(); // Потоки теста не учитываются в росте числа потоков сервера
+        try (TestServer server = TestServer.start(config, "video.mp4")) {
+            awaitNoSessions(server);
+            int threadsBefore = threads.getThreadCount();
+            AdmissionControl admission = server.server.getAdmission();
+
+            long start = System.nanoTime();
+            for (int i = 0; i < ADMITTED; i++) {
+                admitted.add(server.connect());
+            }
+            long admitTime = System.nanoTime() - start;
+            assertEquals(ADMITTED, admission.activeSessions());
+
+            long[] rejectTimes = new long[EXCESS];
+            List<Future<?>> flooders = new ArrayList<>();
+            start = System.nanoTime();
+            for (int t = 0; t < FLOOD_THREADS; t++) {
+                int first = t;
+                flooders.add(flood.submit(() -> {
+                    for (int i = first; i < EXCESS; i += FLOOD_THREADS) {
+                        long connected = System.nanoTime();
+                        assertBusy(new TestClient(server.port));
+                        rejectTimes[i] = System.nanoTime() - connected;
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> flooder : flooders) {
+                flooder.get();
+            }
+            long floodTime = System.nanoTime() - start;
+
+            List<TestClient> burst = new ArrayList<>(BURST);
+            int busy = 0;
+            try {
+                for (int i = 0; i < BURST; i++) {
+                    burst.add(new TestClient(server.port));
+                }
+                for (TestClient client : burst) {
+                    busy += rejected(client) ? 1 : 0;
+                }
+            } finally {
+                for (TestClient client : burst) {
+                    client.close();
+                }
+            }
+            int threadsAfter = threads.getThreadCount();
+
+            assertTrue(busy > 0, "Ни одно молчащее подключение не получило ERROR_BUSY");
+            assertEquals(ADMITTED, admission.activeSessions());
+            for (TestClient client : admitted) {
+                assertEquals(List.of("video.mp4"), client.list());
+            }
+            for (int i = 0; i < ADMITTED; i += ADMITTED / 10) {
+                assertArrayEquals(video, admitted.get(i).get("video.mp4", 0, -1));
+            }
+
+            Arrays.sort(rejectTimes);
+            System.out.printf("%s: допущено %d за %d мс; %d отказов за %d мс, задержка p50 %d мкс, p99 %d мкс; "
+                            + "из %d молчащих ERROR_BUSY получили %d; потоков %d -> %d%n",
+                    nio ? "неблокирующий" : "блокирующий", ADMITTED, admitTime / 1_000_000, EXCESS,
+                    floodTime / 1_000_000, rejectTimes[EXCESS / 2] / 1000, rejectTimes[EXCESS * 99 / 100] / 1000,
+                    BURST, busy, threadsBefore, threadsAfter);
+            assertTrue(threadsAfter - threadsBefore < MAX_NEW_THREADS,
+                    "Потоков стало " + threadsAfter + " при " + threadsBefore + " до нагрузки");
+        } finally {
+            flood.shutdownNow();
+            for (TestClient client : admitted) {
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * Проверяет, что молчащее подключение не стало сессией: сервер ответил ERROR_BUSY или
+     * закрыл его без ответа.
+     *
+     * @return true, если получен ERROR_BUSY
+     */
+    private static boolean rejected(TestClient client) throws IOException {
+        Protocol.Frame reply;
+        try {
+            reply = client.read();
+        } catch (EOFException | SocketException e) {
+            return false; // Отказов в очереди больше предела: закрыто без ответа
+        }
+        assertEquals(Protocol.ERROR, reply.opcode);
+        assertEquals(Protocol.ERROR_BUSY, reply.payload.getShort(reply.payload.position()));
+        return true;
+    }
+
+    /**
+     * Проверяет, что сервер ответил на подключение отказом ERROR_BUSY и закрыл его.
+     */
+    private static void assertBusy(TestClient client) throws IOException {
+        try (client) {
+            client.send(Protocol.hello(client.nextId()));
+            Protocol.Frame reply = client.read();
+            assertEquals(Protocol.ERROR, reply.opcode);
+            assertEquals(Protocol.ERROR_BUSY, reply.payload.getShort(reply.payload.position()));
+            assertThrows(EOFException.class, client::read);
+        }
+    }
+
+    /**
+     * Ждет, пока закроются проверочные подключения, которыми {@link TestServer} ждал запуска.
+     */
+    private static void awaitNoSessions(TestServer server) throws InterruptedException {
+        AdmissionControl admission = server.server.getAdmission();
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (admission.activeSessions() != 0) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Активных сессий " + admission.activeSessions() + " вместо 0");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package org.example;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Задержка LIST по отдельному управляющему соединению, пока по трем соединениям данных одна за другой
+ * идут загрузки файлов по 1 ГБ без ограничения скорости, как у клиента с пулом соединений.
+ * Для сравнения печатается задержка LIST без загрузок; 99-й процентиль под нагрузкой
+ * не должен превышать {@link #LIST_P99_BOUND_MS}.
+ * <p>
+ * Запуск: {@code mvn -P benchmark test -pl server -am -Dtest=ControlLatencyBenchmark}.
+ */
+@Tag("benchmark")
+class ControlLatencyBenchmark {
+    private static final int DOWNLOADS = 3;
+    private static final long VIDEO_SIZE = 1024L * 1024 * 1024;
+    private static final int CATALOG = 1000; // Видео в ответе LIST
+    private static final int LISTS = 1000;
+    private static final long LIST_INTERVAL_MS = 5; // Пауза между запросами LIST
+    private static final long LIST_P99_BOUND_MS = 100; // Ожидание за загрузкой 1 ГБ заняло бы около секунды
+
+    @TempDir
+    Path videos;
+
+    @ParameterizedTest(name = "неблокирующий режим: {0}")
+    @ValueSource(booleans = {false, true})
+    void listLatencyDuringDownloads(boolean nio) throws Exception {
+        String[] names = new String[CATALOG];
+        for (int i = 0; i < CATALOG; i++) {
+            names[i] = String.format("video %04d.mp4", i);
+            if (i < DOWNLOADS) {
+                try (RandomAccessFile file = new RandomAccessFile(videos.resolve(names[i]).toFile(), "rw")) {
+                    file.setLength(VIDEO_SIZE);
+                }
+            } else {
+                Files.write(videos.resolve(names[i]), new byte[1000]);
+            }
+        }
+        ServerConfig config = TestServer.config(videos)
+                .setNio(nio);
+
+        ExecutorService executor = Executors.newFixedThreadPool(DOWNLOADS);
+        List<TestClient> data = new ArrayList<>();
+        try (TestServer server = TestServer.start(config, names);
+             TestClient control = server.connect()) {
+            assertEquals(CATALOG, control.list().size());
+            long[] idle = measureList(control);
+
+            AtomicLong received = new AtomicLong();
+            List<Future<?>> downloads = new ArrayList<>();
+            for (int i = 0; i < DOWNLOADS; i++) {
+                TestClient client = server.connect();
+                data.add(client);
+                String name = names[i];
+                downloads.add(executor.submit(() -> download(client, name, received)));
+            }
+            while (received.get() < VIDEO_SIZE / 16) {
+                Thread.sleep(10); // Загрузки разогнались
+            }
+            long start = System.nanoTime();
+            long startBytes = received.get();
+            long[] loaded = measureList(control);
+            double rate = (received.get() - startBytes) * 1e9 / (System.nanoTime() - start);
+            for (Future<?> download : downloads) {
+                assertFalse(download.isDone(), "Загрузка оборвалась во время замера");
+            }
+
+            System.out.printf("%s: LIST из %d имен, %d запросов%n", nio ? "неблокирующий" : "блокирующий",
+                    CATALOG, LISTS);
+            System.out.printf("%-16s %10s %10s %10s %12s%n", "загрузки", "p50, мкс", "p99, мкс", "макс, мкс",
+                    "данные, МБ/с");
+            System.out.printf("%-16s %10d %10d %10d %12s%n", "нет", idle[LISTS / 2] / 1000,
+                    idle[LISTS * 99 / 100] / 1000, idle[LISTS - 1] / 1000, "-");
+            System.out.printf("%-16s %10d %10d %10d %12.0f%n", DOWNLOADS + " по 1 ГБ", loaded[LISTS / 2] / 1000,
+                    loaded[LISTS * 99 / 100] / 1000, loaded[LISTS - 1] / 1000, rate / 1e6);
+            assertTrue(loaded[LISTS * 99 / 100] < LIST_P99_BOUND_MS * 1_000_000,
+                    "99-й процентиль LIST под нагрузкой " + loaded[LISTS * 99 / 100] / 1000 + " мкс");
+        } finally {
+            for (TestClient client : data) {
+                client.close();
+            }
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return отсортированные задержки LIST, нс
+     */
+    private static long[] measureList(TestClient control) throws Exception {
+        long[] times = new long[LISTS];
+        for (int i = 0; i < LISTS; i++) {
+            long start = System.nanoTime();
+            List<String> list = control.list();
+            times[i] = System.nanoTime() - start;
+            assertEquals(CATALOG, list.size());
+            Thread.sleep(LIST_INTERVAL_MS);
+        }
+        Arrays.sort(times);
+        return times;
+    }
+
+    /**
+     * Загружает файл целиком раз за разом, учитывая полученные байты тела, пока сокет не закроется.
+     *
+     * @return не возвращается; исключение означает обрыв загрузки
+     */
+    private static Void download(TestClient client, String videoName, AtomicLong received) throws IOException {
+        while (true) {
+            downloadOnce(client, videoName, received);
+        }
+    }
+
+    private static void downloadOnce(TestClient client, String videoName, AtomicLong received) throws IOException {
+        int requestId = client.nextId();
+        Protocol.Frame result = client.call(Protocol.get(requestId, videoName, 0, -1), Protocol.GET_RESULT);
+        result.payload.getLong();
+        long remaining = result.payload.getLong();
+        byte[] buffer = new byte[256 * 1024];
+        while (remaining > 0) {
+            int frameRemaining = Protocol.readDataHeader(client.in, requestId);
+            remaining -= frameRemaining;
+            while (frameRemaining > 0) {
+                int count = client.in.read(buffer, 0, Math.min(buffer.length, frameRemaining));
+                if (count < 0) {
+                    throw new IOException("Соединение оборвалось во время передачи");
+                }
+                frameRemaining -= count;
+                received.addAndGet(count);
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.example;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Замер начального сканирования дерева из 200 000 видео в 20×20 вложенных папках
+ * (421 директория, расширения в разном регистре и файлы других типов) при разном числе потоков обхода.
+ * Время — от запуска наблюдения до появления в каталоге всех видео, кеш страниц прогрет.
+ * <p>
+ * Запуск: {@code mvn -P benchmark test -pl server -am -Dtest=DirectoryScanBenchmark}.
+ */
+@Tag("benchmark")
+class DirectoryScanBenchmark {
+    private static final int FOLDERS = 20; // Папок на каждом из двух уровней
+    private static final int VIDEOS_PER_FOLDER = 500;
+    private static final int VIDEOS = FOLDERS * FOLDERS * VIDEOS_PER_FOLDER;
+    private static final String[] EXTENSIONS = {"mp4", "MKV", "avi", "Mov", "flv"};
+    private static final int RUNS = 3;
+
+    @TempDir
+    Path videos;
+
+    @Test
+    void scanNestedTree() throws Exception {
+        createTree();
+        scan(4); // Прогрев кеша страниц и JIT
+        System.out.printf("%d видео, %d директорий, медиана %d прогонов%n", VIDEOS, FOLDERS * FOLDERS + FOLDERS + 1,
+                RUNS);
+        System.out.printf("%-14s %12s%n", "потоков обхода", "мс");
+        for (int threads : new int[] {1, 4, 16}) {
+            long[] times = new long[RUNS];
+            for (int i = 0; i < RUNS; i++) {
+                times[i] = scan(threads);
+            }
+            Arrays.sort(times);
+            System.out.printf("%-14d %12d%n", threads, times[RUNS / 2] / 1_000_000);
+        }
+    }
+
+    /**
+     * Создает дерево с временем изменения в прошлом, чтобы сканирование публиковало файлы сразу.
+     * Имена латиницей: кодировка имен файлов зависит от локали, в которой запущены тесты.
+     */
+    private void createTree() throws IOException {
+        FileTime old = FileTime.fromMillis(System.currentTimeMillis() - 3_600_000);
+        for (int outer = 0; outer < FOLDERS; outer++) {
+            for (int inner = 0; inner < FOLDERS; inner++) {
+                Path folder = Files.createDirectories(videos.resolve("Series " + outer).resolve("Season " + inner));
+                for (int i = 0; i < VIDEOS_PER_FOLDER; i++) {
+                    Path video = folder.resolve("Episode " + i + "." + EXTENSIONS[i % EXTENSIONS.length]);
+                    Files.createFile(video);
+                    Files.setLastModifiedTime(video, old);
+                }
+                Files.createFile(folder.resolve("cover.jpg"));
+                Files.createFile(folder.resolve("notes.txt"));
+            }
+        }
+    }
+
+    /**
+     * @return время от запуска наблюдения до появления в каталоге всех видео, нс
+     */
+    private long scan(int threads) throws Exception {
+        ServerConfig config = new ServerConfig();
+        StorageRoots roots = new StorageRoots(List.of(videos.toString()), config.getRootIoThreads(),
+                config.getRootIoQueue());
+        VideoCatalog catalog = new VideoCatalog();
+        DirectoryWatcher watcher = new DirectoryWatcher(roots, catalog, config.getVideoExtensions(),
+                config.getHashThreads(), threads);
+        long start = System.nanoTime();
+        watcher.start();
+        try {
+            while (catalog.size() < VIDEOS) {
+                Thread.sleep(1);
+            }
+            long elapsed = System.nanoTime() - start;
+            assertEquals(VIDEOS, catalog.size());
+            assertNotNull(catalog.get("Series 19/Season 19/Episode 499.flv"));
+            assertNotNull(catalog.get("Series 0/Season 7/Episode 1.MKV"));
+            assertNull(catalog.get("Series 0/Season 0/cover.jpg"));
+            return elapsed;
+        } finally {
+            watcher.stop();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Дерево директорий, перенесенное в наблюдаемый корень целиком, попадает в каталог со всеми
+ * вложенными видео, а изменения внутри него после переноса тоже отслеживаются.
+ */
+class DirectoryWatcherTest {
+    private static final int FOLDERS = 5;
+    private static final int VIDEOS_PER_FOLDER = 20;
+    private static final long TIMEOUT_MS = 10_000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void publishesMovedDirectoryTree() throws Exception {
+        Path videos = Files.createDirectories(dir.resolve("videos"));
+        Path staging = Files.createDirectories(dir.resolve("staging").resolve("Series"));
+        for (int folder = 0; folder < FOLDERS; folder++) {
+            Path season = Files.createDirectories(staging.resolve("Season " + folder));
+            for (int i = 0; i < VIDEOS_PER_FOLDER; i++) {
+                Files.write(season.resolve("Episode " + i + ".mp4"), new byte[100]);
+            }
+            Files.write(season.resolve("notes.txt"), new byte[10]);
+        }
+
+        ServerConfig config = new ServerConfig();
+        StorageRoots roots = new StorageRoots(List.of(videos.toString()), config.getRootIoThreads(),
+                config.getRootIoQueue());
+        VideoCatalog catalog = new VideoCatalog();
+        DirectoryWatcher watcher = new DirectoryWatcher(roots, catalog, config.getVideoExtensions(),
+                config.getHashThreads(), config.getScanThreads());
+        watcher.start();
+        try {
+            Thread.sleep(500); // Начальное сканирование пустого корня
+            Files.move(staging, videos.resolve("Series"), StandardCopyOption.ATOMIC_MOVE);
+            awaitSize(catalog, FOLDERS * VIDEOS_PER_FOLDER);
+            assertNotNull(catalog.get("Series/Season 0/Episode 0.mp4"));
+            assertNotNull(catalog.get("Series/Season 4/Episode 19.mp4"));
+            assertNull(catalog.get("Series/Season 0/notes.txt"));
+
+            // Обход перенесенного дерева взял его директории под наблюдение
+            Files.write(videos.resolve("Series/Season 2/Extra.mp4"), new byte[100]);
+            awaitSize(catalog, FOLDERS * VIDEOS_PER_FOLDER + 1);
+            assertNotNull(catalog.get("Series/Season 2/Extra.mp4"));
+        } finally {
+            watcher.stop();
+        }
+    }
+
+    private static void awaitSize(VideoCatalog catalog, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (catalog.size() < size) {
+            if (System.currentTimeMillis() > deadline) {
+                break;
+            }
+            Thread.sleep(50);
+        }
+        assertEquals(size, catalog.size());
+    }
+}
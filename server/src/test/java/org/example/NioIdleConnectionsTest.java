@@ -0,0 +1,92 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Неблокирующий режим держит тысячи простаивающих подключений на нескольких потоках
+ * и продолжает обслуживать активных клиентов.
+ */
+class NioIdleConnectionsTest {
+    private static final int IDLE_CONNECTIONS = 3000;
+    private static final int IO_THREADS = 2;
+
+    @TempDir
+    Path videos;
+
+    @Test
+    void holdsThousandsOfIdleConnectionsWhileServingTransfers() throws Exception {
+        byte[] video = new byte[8 * 1024 * 1024 + 123];
+        new Random(1).nextBytes(video);
+        Files.write(videos.resolve("video.mp4"), video);
+        ServerConfig config = TestServer.config(videos)
+                .setNio(true)
+                .setIoThreads(IO_THREADS)
+                .setMaxSessions(IDLE_CONNECTIONS + 100)
+                .setMaxPerAddress(IDLE_CONNECTIONS + 100)
+                .setAcceptBacklog(IDLE_CONNECTIONS);
+
+        List<SocketChannel> idle = new ArrayList<>(IDLE_CONNECTIONS);
+        try (TestServer server = TestServer.start(config, "video.mp4")) {
+            int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+            ByteBuffer response = ByteBuffer.allocate(64);
+            for (int i = 0; i < IDLE_CONNECTIONS; i++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.port));
+                idle.add(channel);
+                // HELLO подтверждает, что сервер зарегистрировал подключение
+                channel.write(Protocol.hello(i + 1));
+                response.clear();
+                Protocol.Frame ok;
+                while ((ok = Protocol.poll(response.flip())) == null) {
+                    response.compact();
+                    assertTrue(channel.read(response) > 0, "Сервер закрыл подключение " + i);
+                }
+                assertEquals(Protocol.HELLO_OK, ok.opcode);
+            }
+            int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+            assertTrue(threadsAfter - threadsBefore < 20,
+                    "Потоков стало " + threadsAfter + " при " + threadsBefore + " до подключений");
+
+            try (TestClient active = server.connect()) {
+                assertEquals(List.of("video.mp4"), active.list());
+                assertArrayEquals(video, active.get("video.mp4", 0, -1));
+                byte[] slice = active.get("video.mp4", 5_000_000, 1_000_000);
+                byte[] expected = new byte[1_000_000];
+                System.arraycopy(video, 5_000_000, expected, 0, expected.length);
+                assertArrayEquals(expected, slice);
+            }
+
+            // Простаивавшие подключения по-прежнему обслуживаются
+            for (int i = 0; i < IDLE_CONNECTIONS; i += IDLE_CONNECTIONS / 10) {
+                SocketChannel channel = idle.get(i);
+                channel.write(Protocol.list(1_000_000 + i));
+                ByteBuffer buffer = ByteBuffer.allocate(4096);
+                Protocol.Frame frame;
+                while ((frame = Protocol.poll(buffer.flip())) == null) {
+                    buffer.compact();
+                    assertTrue(channel.read(buffer) > 0);
+                }
+                assertEquals(Protocol.LIST_RESULT, frame.opcode);
+                assertEquals(List.of("video.mp4"), Protocol.readListResult(frame.payload));
+            }
+        } finally {
+            for (SocketChannel channel : idle) {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.example;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * При ограничении скорости неблокирующий сервер режет тело на кадры по порциям ограничителя,
+ * и ответы мультиплексированной сессии приходят между ними, а не после целого кадра.
+ */
+class NioShapedFramesTest {
+    private static final int VIDEO_SIZE = 3 * 1024 * 1024;
+    private static final long CLIENT_RATE = 1024 * 1024;
+
+    @TempDir
+    Path videos;
+
+    @ParameterizedTest(name = "из кеша в памяти: {0}")
+    @ValueSource(booleans = {false, true})
+    void repliesInterleaveWithShapedFrames(boolean mapped) throws Exception {
+        byte[] video = new byte[VIDEO_SIZE];
+        new Random(2).nextBytes(video);
+        Files.write(videos.resolve("video.mp4"), video);
+        ServerConfig config = TestServer.config(videos)
+                .setNio(true)
+                .setZeroCopy(true)
+                .setClientRate(CLIENT_RATE);
+        if (mapped) {
+            config.setHotCacheBytes(VIDEO_SIZE * 2L).setHotThreshold(1);
+        }
+
+        try (TestServer server = TestServer.start(config, "video.mp4")) {
+            if (mapped) {
+                awaitMapped(server.server, "video.mp4");
+            }
+            try (TestClient client = server.connect(Protocol.HELLO_MULTIPLEX)) {
+                int getId = client.nextId();
+                Protocol.Frame result = client.call(Protocol.get(getId, "video.mp4", 0, -1), Protocol.GET_RESULT);
+                result.payload.getLong();
+                assertEquals(VIDEO_SIZE, result.payload.getLong());
+
+                byte[] body = new byte[VIDEO_SIZE];
+                int received = 0;
+                int listId = 0;
+                int receivedBeforeList = -1;
+                while (received < VIDEO_SIZE || receivedBeforeList < 0) {
+                    Protocol.Frame frame = client.read();
+                    if (frame.opcode == Protocol.LIST_RESULT) {
+                        assertEquals(listId, frame.requestId);
+                        assertEquals(List.of("video.mp4"), Protocol.readListResult(frame.payload));
+                        receivedBeforeList = received;
+                        continue;
+                    }
+                    assertEquals(Protocol.DATA, frame.opcode);
+                    assertEquals(getId, frame.requestId);
+                    int length = frame.payload.remaining();
+                    assertTrue(length <= BandwidthShaper.QUANTUM, "Кадр DATA в " + length + " байт");
+                    frame.payload.get(body, received, length);
+                    received += length;
+                    if (listId == 0) {
+                        listId = client.nextId();
+                        client.send(Protocol.list(listId));
+                    }
+                }
+                assertArrayEquals(video, body);
+                // Ответ пришел вскоре после запроса, а не после всего тела
+                assertTrue(receivedBeforeList < VIDEO_SIZE / 2,
+                        "LIST_RESULT пришел после " + receivedBeforeList + " байт тела");
+            }
+        }
+    }
+
+    private static void awaitMapped(VideoServer server, String videoName) throws InterruptedException {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (System.nanoTime() < deadline) {
+            HotFileCache.Mapping mapping = server.acquireMapped(videoName);
+            if (mapping != null) {
+                mapping.release();
+                return;
+            }
+            Thread.sleep(20);
+        }
+        throw new AssertionError("Файл не попал в кеш в памяти: " + videoName);
+    }
+}
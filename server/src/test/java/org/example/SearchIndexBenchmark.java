@@ -0,0 +1,164 @@
+package org.example;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Замер задержки QUERY по индексу каталога из миллиона видео: первый запрос каждого вида
+ * (без прогрева и кеша фильтров) и медиана с 99-м процентилем по разным фильтрам.
+ * Первые ответы каждого вида сверяются с полным перебором каталога.
+ * <p>
+ * Запуск: {@code mvn -P benchmark test -pl server -am -Dtest=SearchIndexBenchmark}.
+ */
+@Tag("benchmark")
+class SearchIndexBenchmark {
+    private static final int VIDEOS = 1_000_000;
+    private static final int WORDS = 500;
+    private static final int QUERIES = 200; // Разных фильтров каждого вида
+    private static final int VERIFIED = 3; // Сколько ответов каждого вида сверяется с перебором
+    private static final int PAGE = 200; // Страница клиентского списка
+
+    private final Random random = new Random(17);
+    private final String[] words = new String[WORDS];
+    private List<VideoCatalog.VideoEntry> entries;
+    private SearchIndex index;
+
+    @Test
+    void queryLatency() {
+        long started = System.nanoTime();
+        build();
+        System.out.printf("Индекс %d видео построен за %d мс%n", VIDEOS, (System.nanoTime() - started) / 1_000_000);
+        System.out.printf("%-24s %10s %12s %10s %10s%n", "запрос", "совпадений", "первый, мкс", "p50, мкс",
+                "p99, мкс");
+
+        measure("начало, по имени", i -> new Query(prefix(), false, Protocol.SORT_NAME, false, 0));
+        measure("начало, по размеру", i -> new Query(prefix(), false, Protocol.SORT_SIZE, true, 0));
+        measure("подстрока, по имени", i -> new Query(part(3), true, Protocol.SORT_NAME, false, 0));
+        measure("подстрока, по времени", i -> new Query(part(3), true, Protocol.SORT_MODIFIED, true, 0));
+        measure("подстрока, стр. 10", i -> new Query(part(4), true, Protocol.SORT_SIZE, false, 9 * PAGE));
+        measure("2 символа, по размеру", i -> new Query(part(2), true, Protocol.SORT_SIZE, false, 0));
+        measure("без фильтра, вглубь", i -> new Query("", false, Protocol.SORT_MODIFIED, false,
+                random.nextInt(VIDEOS - PAGE)));
+    }
+
+    private void build() {
+        String[] syllables = {"ка", "ро", "ми", "на", "ло", "те", "ви", "до", "са", "пу", "ле", "го", "ar", "en"};
+        for (int i = 0; i < WORDS; i++) {
+            StringBuilder word = new StringBuilder();
+            for (int length = 2 + random.nextInt(3); length > 0; length--) {
+                word.append(syllables[random.nextInt(syllables.length)]);
+            }
+            words[i] = i % 3 == 0 ? Character.toUpperCase(word.charAt(0)) + word.substring(1) : word.toString();
+        }
+        entries = new ArrayList<>(VIDEOS);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < VIDEOS; i++) {
+            String name = "Папка " + random.nextInt(1000) + "/" + word() + " " + word() + " " + i + ".mp4";
+            entries.add(new VideoCatalog.VideoEntry(name, 0, random.nextInt(4096) * (1L << 20),
+                    now - random.nextInt(1_000_000) * 1000L));
+        }
+        VideoCatalog catalog = new VideoCatalog();
+        catalog.attach(null, entries);
+        index = new SearchIndex(catalog);
+        index.rebuild();
+    }
+
+    private void measure(String title, IntFunction<Query> queries) {
+        long[] times = new long[QUERIES];
+        long matches = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            Query query = queries.apply(i);
+            long start = System.nanoTime();
+            SearchIndex.Page page = index.query(query.filter, query.substring, query.sort, query.descending,
+                    query.offset, PAGE);
+            times[i] = System.nanoTime() - start;
+            matches += page.total;
+            if (i < VERIFIED) {
+                verify(query, page);
+            }
+        }
+        long first = times[0];
+        Arrays.sort(times);
+        System.out.printf("%-24s %10d %12d %10d %10d%n", title, matches / QUERIES, first / 1000,
+                times[QUERIES / 2] / 1000, times[QUERIES * 99 / 100] / 1000);
+    }
+
+    /**
+     * Сверяет страницу с полным перебором каталога.
+     */
+    private void verify(Query query, SearchIndex.Page page) {
+        List<VideoCatalog.VideoEntry> expected = new ArrayList<>();
+        for (VideoCatalog.VideoEntry entry : entries) {
+            String lower = entry.name.toLowerCase(Locale.ROOT);
+            if (query.substring ? lower.contains(query.filter) : lower.startsWith(query.filter)) {
+                expected.add(entry);
+            }
+        }
+        Comparator<VideoCatalog.VideoEntry> byName = Comparator
+                .comparing((VideoCatalog.VideoEntry entry) -> entry.name.toLowerCase(Locale.ROOT))
+                .thenComparing(entry -> entry.name);
+        Comparator<VideoCatalog.VideoEntry> order = query.sort == Protocol.SORT_SIZE
+                ? Comparator.comparingLong((VideoCatalog.VideoEntry entry) -> entry.size).thenComparing(byName)
+                : query.sort == Protocol.SORT_MODIFIED
+                ? Comparator.comparingLong((VideoCatalog.VideoEntry entry) -> entry.lastModified).thenComparing(byName)
+                : byName;
+        expected.sort(order);
+        if (query.descending) {
+            Collections.reverse(expected);
+        }
+        assertEquals(expected.size(), page.total, "Число совпадений для «" + query.filter + "»");
+        String[] names = expected.subList(Math.min(query.offset, expected.size()),
+                        Math.min(query.offset + PAGE, expected.size())).stream()
+                .map(entry -> entry.name)
+                .toArray(String[]::new);
+        assertArrayEquals(names, page.names, "Страница для «" + query.filter + "»");
+    }
+
+    private String word() {
+        return words[random.nextInt(WORDS)];
+    }
+
+    /**
+     * @return начало имени: папки с номерами, начинающимися с одного числа
+     */
+    private String prefix() {
+        return "папка " + random.nextInt(100);
+    }
+
+    /**
+     * @return часть случайного слова в нижнем регистре
+     */
+    private String part(int length) {
+        String word = word();
+        int from = random.nextInt(word.length() - length + 1);
+        return word.substring(from, from + length).toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Query {
+        final String filter;
+        final boolean substring;
+        final byte sort;
+        final boolean descending;
+        final int offset;
+
+        Query(String filter, boolean substring, byte sort, boolean descending, int offset) {
+            this.filter = filter;
+            this.substring = substring;
+            this.sort = sort;
+            this.descending = descending;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Клиент основного протокола для тестов: один запрос за раз на одном соединении.
+ */
+final class TestClient implements Closeable {
+    final Socket socket;
+    final DataInputStream in;
+    final DataOutputStream out;
+    private int requestIds;
+
+    TestClient(int port) throws IOException {
+        this(port, null);
+    }
+
+    /**
+     * @param localAddress адрес, с которого подключаться, или null — любой
+     */
+    TestClient(int port, InetAddress localAddress) throws IOException {
+        socket = new Socket(InetAddress.getByName("127.0.0.1"), port, localAddress, 0);
+        socket.setSoTimeout(30_000);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    int nextId() {
+        return ++requestIds;
+    }
+
+    void hello(byte flags) throws IOException {
+        call(flags == 0 ? Protocol.hello(nextId()) : Protocol.hello(nextId(), flags), Protocol.HELLO_OK);
+    }
+
+    void send(ByteBuffer request) throws IOException {
+        out.write(request.array(), request.arrayOffset() + request.position(), request.remaining());
+        out.flush();
+    }
+
+    /**
+     * Читает следующий кадр.
+     *
+     * @throws EOFException если сервер закрыл соединение
+     */
+    Protocol.Frame read() throws IOException {
+        Protocol.Frame frame = Protocol.read(in);
+        if (frame == null) {
+            throw new EOFException("Сервер закрыл соединение");
+        }
+        return frame;
+    }
+
+    /**
+     * Отправляет запрос и возвращает ответ ожидаемого типа.
+     *
+     * @throws IOException если пришел ответ другого типа, например ERROR
+     */
+    Protocol.Frame call(ByteBuffer request, byte expectedOpcode) throws IOException {
+        send(request);
+        Protocol.Frame response = read();
+        if (response.opcode != expectedOpcode) {
+            throw new IOException("Ответ " + response.opcode + " вместо " + expectedOpcode
+                    + (response.opcode == Protocol.ERROR ? ": " + Protocol.readErrorMessage(response.payload) : ""));
+        }
+        return response;
+    }
+
+    List<String> list() throws IOException {
+        return Protocol.readListResult(call(Protocol.list(nextId()), Protocol.LIST_RESULT).payload);
+    }
+
+    /**
+     * Загружает диапазон видео.
+     *
+     * @return тело ответа или null, если файла нет
+     */
+    byte[] get(String videoName, long offset, long length) throws IOException {
+        int requestId = nextId();
+        Protocol.Frame result = call(Protocol.get(requestId, videoName, offset, length), Protocol.GET_RESULT);
+        result.payload.getLong();
+        long bodyLength = result.payload.getLong();
+        if (bodyLength < 0) {
+            return null;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream((int) bodyLength);
+        byte[] buffer = new byte[64 * 1024];
+        long remaining = bodyLength;
+        while (remaining > 0) {
+            int frameRemaining = Protocol.readDataHeader(in, requestId);
+            remaining -= frameRemaining;
+            while (frameRemaining > 0) {
+                int count = in.read(buffer, 0, Math.min(buffer.length, frameRemaining));
+                if (count < 0) {
+                    throw new EOFException("Соединение оборвалось во время передачи");
+                }
+                body.write(buffer, 0, count);
+                frameRemaining -= count;
+            }
+        }
+        return body.toByteArray();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
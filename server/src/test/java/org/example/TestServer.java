@@ -0,0 +1,108 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Сервер для тестов: {@link VideoServer} на свободном порту с видео из временной директории.
+ * Прием подключений идет в отдельном потоке.
+ */
+final class TestServer implements AutoCloseable {
+    private static final long START_TIMEOUT_MS = 10_000;
+
+    final VideoServer server;
+    final int port;
+    private final Thread acceptor;
+
+    private TestServer(ServerConfig config) {
+        this.port = config.getPort();
+        this.server = new VideoServer(config);
+        this.acceptor = new Thread(server::start, "test-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Параметры сервера для тестов: свободный порт, видео из {@code videos}, без HTTP, базы каталога
+     * и кеша в памяти.
+     */
+    static ServerConfig config(Path videos) throws IOException {
+        return new ServerConfig()
+                .setPort(freePort())
+                .setVideoDirs(List.of(videos.toString()))
+                .setHttpPort(0)
+                .setCatalogDb("")
+                .setHotCacheBytes(0)
+                .setLogLevel(Log.Level.WARN);
+    }
+
+    /**
+     * Запускает сервер и ждет, пока он начнет принимать подключения, а перечисленные видео попадут в каталог.
+     */
+    static TestServer start(ServerConfig config, String... videos) throws Exception {
+        TestServer testServer = new TestServer(config);
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MS;
+        while (!testServer.accepts() || !testServer.cataloged(videos)) {
+            if (System.currentTimeMillis() > deadline) {
+                testServer.close();
+                throw new IllegalStateException("Сервер не запустился за " + START_TIMEOUT_MS + " мс");
+            }
+            Thread.sleep(20);
+        }
+        return testServer;
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Открывает соединение и выполняет HELLO.
+     */
+    TestClient connect() throws IOException {
+        return connect((byte) 0);
+    }
+
+    TestClient connect(byte flags) throws IOException {
+        TestClient client = new TestClient(port);
+        try {
+            client.hello(flags);
+        } catch (IOException | RuntimeException e) {
+            client.close();
+            throw e;
+        }
+        return client;
+    }
+
+    /**
+     * Проверяет, что сервер принимает подключения. Проверочное подключение выполняет HELLO,
+     * чтобы сервер точно принял его до закрытия и не занял место сессии позже.
+     */
+    private boolean accepts() {
+        try (TestClient client = new TestClient(port)) {
+            client.hello((byte) 0);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private boolean cataloged(String[] videos) {
+        for (String video : videos) {
+            if (server.findVideo(video) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        server.stop();
+        acceptor.join(5_000);
+    }
+}
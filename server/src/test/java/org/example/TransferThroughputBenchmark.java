@@ -0,0 +1,95 @@
+package org.example;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Замер отправки тела GET: копирование через буфер и {@link java.nio.channels.FileChannel#transferTo}
+ * в блокирующем и неблокирующем режимах. Файл читается из кеша страниц, клиент работает в том же процессе
+ * и читает по петлевому интерфейсу.
+ * <p>
+ * Процессорное время сервера — время процесса за вычетом времени потока клиента.
+ * Запуск: {@code mvn -P benchmark test -pl server -am -Dtest=TransferThroughputBenchmark}.
+ */
+@Tag("benchmark")
+class TransferThroughputBenchmark {
+    private static final long VIDEO_SIZE = 1024L * 1024 * 1024;
+    private static final int WARMUP_RUNS = 1;
+    private static final int RUNS = 3;
+
+    @TempDir
+    Path videos;
+
+    @Test
+    void compareCopyAndZeroCopy() throws Exception {
+        try (RandomAccessFile file = new RandomAccessFile(videos.resolve("video.mp4").toFile(), "rw")) {
+            file.setLength(VIDEO_SIZE);
+        }
+        System.out.printf("Файл %d МБ, %d прогона%n", VIDEO_SIZE >> 20, RUNS);
+        System.out.printf("%-9s %-9s %10s %22s%n", "режим", "передача", "МБ/с", "процессор сервера, мс/ГБ");
+        for (boolean nio : new boolean[] {false, true}) {
+            for (boolean zeroCopy : new boolean[] {false, true}) {
+                measure(nio, zeroCopy);
+            }
+        }
+    }
+
+    private void measure(boolean nio, boolean zeroCopy) throws Exception {
+        ServerConfig config = TestServer.config(videos)
+                .setNio(nio)
+                .setZeroCopy(zeroCopy);
+        try (TestServer server = TestServer.start(config, "video.mp4");
+             TestClient client = server.connect()) {
+            for (int i = 0; i < WARMUP_RUNS; i++) {
+                download(client);
+            }
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            com.sun.management.OperatingSystemMXBean os =
+                    (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+            long processCpu = os.getProcessCpuTime();
+            long clientCpu = threads.getCurrentThreadCpuTime();
+            long start = System.nanoTime();
+            for (int i = 0; i < RUNS; i++) {
+                download(client);
+            }
+            long elapsed = System.nanoTime() - start;
+            long serverCpu = os.getProcessCpuTime() - processCpu - (threads.getCurrentThreadCpuTime() - clientCpu);
+
+            double bytes = (double) VIDEO_SIZE * RUNS;
+            System.out.printf("%-9s %-9s %10.0f %22.0f%n", nio ? "nio" : "blocking", zeroCopy ? "zerocopy" : "copy",
+                    bytes / 1e6 / (elapsed / 1e9), serverCpu / 1e6 / (bytes / (1L << 30)));
+        }
+    }
+
+    /**
+     * Загружает файл целиком, не сохраняя тело.
+     */
+    private static void download(TestClient client) throws IOException {
+        int requestId = client.nextId();
+        Protocol.Frame result = client.call(Protocol.get(requestId, "video.mp4", 0, -1), Protocol.GET_RESULT);
+        result.payload.getLong();
+        long remaining = result.payload.getLong();
+        assertEquals(VIDEO_SIZE, remaining);
+        byte[] buffer = new byte[256 * 1024];
+        while (remaining > 0) {
+            int frameRemaining = Protocol.readDataHeader(client.in, requestId);
+            remaining -= frameRemaining;
+            while (frameRemaining > 0) {
+                int count = client.in.read(buffer, 0, Math.min(buffer.length, frameRemaining));
+                if (count < 0) {
+                    throw new IOException("Соединение оборвалось во время передачи");
+                }
+                frameRemaining -= count;
+            }
+        }
+    }
+}